@@ -0,0 +1,34 @@
+package com.levitator.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+*
+* Runs the benchmarks with the GC profiler attached, so that every result reports
+* allocation rate (gc.alloc.rate.norm is bytes per operation) next to throughput
+*
+* Arguments: [include regex] [JSON result file]
+*
+*/
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException{
+        var builder = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : ".*")
+                .addProfiler(GCProfiler.class)
+                .forks(1)
+                .warmupIterations(3)
+                .measurementIterations(5);
+
+        if(args.length > 1){
+            builder.resultFormat(ResultFormatType.JSON)
+                   .result(args[1]);
+        }
+
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,81 @@
+package com.levitator.benchmarks;
+
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.binlog.BinLogReader;
+import com.levitator.gqlib.binlog.BinLogWriter;
+import com.levitator.gqlib.exceptions.GQException;
+import com.levitator.gqlib.exceptions.internal.RecordTruncatedException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/*
+*
+* The binary log format: writing a full log, reading it back, and a one-hour query which skips most blocks.
+* Compare with CsvBenchmark.csv_exporter and csv_importer_load.
+*
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BinLogBenchmark {
+
+    private LogDataSet m_data;
+    private Path m_dir;
+    private Path m_out;
+    private Path m_in;
+    private LocalDateTime m_from, m_to;
+
+    @Setup
+    public void setup() throws GQException, RecordTruncatedException, IOException{
+        m_data = Fixtures.dataset();
+        m_dir = Files.createTempDirectory("gqbench");
+        m_out = m_dir.resolve("dump" + BinLogWriter.extension);
+        m_in = m_dir.resolve("archive" + BinLogWriter.extension);
+        try(var out = new BinLogWriter(m_in, false)){
+            out.write(m_data);
+        }
+
+        var mid = m_data.time(m_data.size() / 2);
+        m_from = mid;
+        m_to = mid.plusHours(1);
+    }
+
+    @TearDown
+    public void teardown() throws IOException{
+        Files.deleteIfExists(m_out);
+        Files.deleteIfExists(m_in);
+        Files.deleteIfExists(m_dir);
+    }
+
+    @Benchmark
+    public void write() throws IOException, GQException{
+        try(var out = new BinLogWriter(m_out, false)){
+            out.write(m_data);
+        }
+    }
+
+    @Benchmark
+    public LogDataSet read_all() throws IOException, GQException{
+        try(var in = new BinLogReader(m_in)){
+            return in.read_all();
+        }
+    }
+
+    @Benchmark
+    public LogDataSet read_hour() throws IOException, GQException{
+        try(var in = new BinLogReader(m_in)){
+            return in.read(m_from, m_to);
+        }
+    }
+}
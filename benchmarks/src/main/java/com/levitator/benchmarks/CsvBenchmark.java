@@ -0,0 +1,167 @@
+package com.levitator.benchmarks;
+
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.csv.ArchiveLoader;
+import com.levitator.gqlib.csv.CSV;
+import com.levitator.gqlib.csv.CsvExporter;
+import com.levitator.gqlib.csv.CsvImporter;
+import com.levitator.gqlib.exceptions.GQException;
+import com.levitator.gqlib.exceptions.internal.RecordTruncatedException;
+import com.levitator.gqlib.structures.MeasurementRecord;
+import com.levitator.tricorder.config.Config;
+import com.levitator.tricorder.features.DumpLog;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+*
+* CSV encoding and decoding of a full log: field-level, record-level, and to and from files
+*
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CsvBenchmark {
+
+    private LogDataSet m_data;
+    private String[][] m_fields;
+    private String m_csv;
+    private final CharArrayWriter m_writer = new CharArrayWriter(1 << 23);
+    private Path m_dir;
+    private Path m_out;
+    private Path m_in;
+    private CsvImporter m_importer;
+    private Path m_archive;
+    private ArchiveLoader m_loader;
+    private PrintStream m_stdout;
+
+    @Setup
+    public void setup() throws GQException, RecordTruncatedException, IOException{
+        m_data = Fixtures.dataset();
+        m_fields = new String[m_data.size()][];
+        int i = 0;
+        for(var r : m_data)
+            m_fields[i++] = r.to_text(Config.csv_date_time_format);
+
+        var wr = new CharArrayWriter();
+        for(var f : m_fields)
+            CSV.write_record(f, wr);
+        m_csv = wr.toString();
+
+        m_dir = Files.createTempDirectory("gqbench");
+        m_out = m_dir.resolve("dump.csv");
+        m_in = m_dir.resolve("archive.csv");
+        Files.writeString(m_in, m_csv, Charset.defaultCharset());
+        m_importer = new CsvImporter(Config.csv_date_time_format);
+
+        //Overlapping dumps, as from a device which is never cleared
+        m_archive = Files.createDirectory(m_dir.resolve("archive"));
+        m_loader = new ArchiveLoader(Config.csv_date_time_format, Config.file_name_date_time_format);
+        var suffix = m_archive.resolve("emf_data.csv");
+        for(int k = 1; k <= 4; ++k){
+            var part = m_data.range(0, m_data.size() * k / 4);
+            try(var out = new CsvExporter(DumpLog.time_name(suffix, part), false, Config.csv_date_time_format)){
+                out.write_header();
+                out.write(part);
+            }
+        }
+
+        //write_log() chats on stdout every time it opens a file
+        m_stdout = System.out;
+        System.setOut(new PrintStream(PrintStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void teardown() throws IOException{
+        System.setOut(m_stdout);
+        Files.deleteIfExists(m_out);
+        Files.deleteIfExists(m_in);
+        try(var files = Files.list(m_archive)){
+            for(var f : (Iterable<Path>)files::iterator)
+                Files.delete(f);
+        }
+        Files.deleteIfExists(m_archive);
+        Files.deleteIfExists(m_dir);
+    }
+
+    @Benchmark
+    public int write_record() throws IOException{
+        m_writer.reset();
+        for(var f : m_fields)
+            CSV.write_record(f, m_writer);
+        return m_writer.size();
+    }
+
+    //Per-record formatting, the way DumpLog used to write
+    @Benchmark
+    public int to_csv() throws IOException{
+        m_writer.reset();
+        for(var r : m_data)
+            r.toCSV(Config.csv_date_time_format, m_writer);
+        return m_writer.size();
+    }
+
+    @Benchmark
+    public void csv_exporter() throws IOException{
+        try(var out = new CsvExporter(m_out, false, Config.csv_date_time_format)){
+            out.write_header();
+            out.write(m_data);
+        }
+    }
+
+    @Benchmark
+    public void read_record(Blackhole bh) throws IOException{
+        var rd = new StringReader(m_csv);
+        for(int i = 0; i < m_fields.length; ++i)
+            bh.consume(CSV.read_record(rd));
+    }
+
+    //Parsing included, the way MeasurementRecord.from_CSV() would go through an archive
+    @Benchmark
+    public void parse_text(Blackhole bh) throws IOException, RecordTruncatedException, GQException{
+        var rd = new StringReader(m_csv);
+        var fmts = new DateTimeFormatter[]{ Config.csv_date_time_format };
+        var m = new MeasurementRecord(null, 0, 0, 0, 0);
+        for(int i = 0; i < m_fields.length; ++i){
+            m.from_CSV(rd, fmts);
+            bh.consume(m.get_time_nanos());
+        }
+    }
+
+    @Benchmark
+    public long csv_importer(Blackhole bh) throws IOException, GQException{
+        return m_importer.read(m_in, (time, seq, uncertain, emfx10, ef, rf) -> bh.consume(time));
+    }
+
+    @Benchmark
+    public LogDataSet csv_importer_load() throws IOException, GQException{
+        return m_importer.load(m_in);
+    }
+
+    @Benchmark
+    public LogDataSet archive_loader() throws IOException, GQException{
+        return m_loader.load(m_archive, "emf_data.csv", null, null);
+    }
+
+    //Formatting included, and the file system
+    @Benchmark
+    public void write_log() throws IOException{
+        DumpLog.write_log(m_data, m_out, false);
+    }
+}
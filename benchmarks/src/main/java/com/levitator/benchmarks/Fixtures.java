@@ -0,0 +1,89 @@
+package com.levitator.benchmarks;
+
+import com.levitator.gqlib.GQDevice;
+import com.levitator.gqlib.config.Config;
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.emulator.SyntheticNvm;
+import com.levitator.gqlib.exceptions.GQException;
+import com.levitator.gqlib.exceptions.internal.NvmBlankException;
+import com.levitator.gqlib.exceptions.internal.RecordTruncatedException;
+import com.levitator.gqlib.structures.MeasurementRecord;
+import com.levitator.gqlib.structures.NvmDecoder;
+import com.levitator.gqlib.structures.NvmRecordBase;
+import com.levitator.gqlib.structures.RawLog;
+import com.levitator.gqlib.structures.RecordFactory;
+import com.levitator.gqlib.structures.TimeRecord;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+
+/*
+*
+* Shared input data. Everything is derived from one fixed-seed synthetic NVM image,
+* so that runs are comparable from one build to the next.
+*
+*/
+public class Fixtures {
+
+    static public final LocalDateTime start = LocalDateTime.of(2020, 1, 1, 0, 0);
+    static public final long seed = 390;
+
+    //A full 1MB log memory
+    static public byte[] nvm_image(){
+        return SyntheticNvm.image(start, seed);
+    }
+
+    //Parse records until blank memory, the way GQDevice does it
+    static public ArrayList<NvmRecordBase> parse(byte[] nvm) throws GQException, RecordTruncatedException{
+        var buf = ByteBuffer.wrap(nvm);
+        var result = new ArrayList<NvmRecordBase>();
+        try{
+            while(buf.remaining() > 0)
+                result.add(RecordFactory.read(buf));
+        }
+        catch(NvmBlankException ex){
+            //End of log
+        }
+        return result;
+    }
+
+    //The same, through NvmDecoder, in SPIR-sized chunks
+    static public RawLog decode(byte[] nvm) throws GQException{
+        var log = new RawLog(nvm.length / MeasurementRecord.sizeof());
+        var decoder = new NvmDecoder(log);
+        for(int addr = 0; addr < nvm.length; addr += Config.log_chunk_size){
+            if(!decoder.decode(ByteBuffer.wrap(nvm, addr, Math.min(Config.log_chunk_size, nvm.length - addr))))
+                break;
+        }
+        return log;
+    }
+
+    //Measurements stamped with their raw TimeRecord times and sequence numbers, before any interpolation, and sorted.
+    //This is the intermediate list which GQDevice.process_record_times() hands to TimeInterpolate.
+    static public ArrayList<MeasurementRecord> raw_dataset(ArrayList<NvmRecordBase> records){
+        var result = new ArrayList<MeasurementRecord>();
+        LocalDateTime time = null;
+        int seq = 0;
+        for(var r : records){
+            if(r.getClass().equals(TimeRecord.class)){
+                if(time == null || !time.equals(r.time)){
+                    time = r.time;
+                    seq = 0;
+                }
+            }
+            else if(time != null){
+                var m = (MeasurementRecord)r;
+                m.time = time;
+                m.seq_no = seq++;
+                result.add(m);
+            }
+        }
+        result.sort(null);
+        return result;
+    }
+
+    //Finished, interpolated log, as it comes out of GQDevice.get_log()
+    static public LogDataSet dataset() throws GQException, RecordTruncatedException{
+        return GQDevice.process_record_times(parse(nvm_image()), null, null);
+    }
+}
@@ -0,0 +1,109 @@
+package com.levitator.benchmarks;
+
+import com.levitator.gqlib.StreamInterpolator;
+import com.levitator.gqlib.TimeInterpolate;
+import com.levitator.gqlib.exceptions.GQException;
+import com.levitator.gqlib.exceptions.internal.RecordTruncatedException;
+import com.levitator.gqlib.structures.MeasurementRecord;
+import com.levitator.util.LocalNanos;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+*
+* Session splitting and time interpolation over a full log's worth of raw measurements
+*
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class InterpolateBenchmark {
+
+    private ArrayList<MeasurementRecord> m_raw;
+    private ArrayList<ArrayList<MeasurementRecord>> m_sessions;
+
+    //Interpolation overwrites the record times, so we keep the originals to put back
+    private MeasurementRecord[] m_records;
+    private LocalDateTime[] m_times;
+
+    //The same, for the primitive engine
+    private long[] m_nanos;
+    private long[] m_work;
+    private byte[] m_flags;
+    private int[] m_runs;
+    private int m_nruns;
+    private int[] m_session_runs;
+    private int m_nsessions;
+
+    @Setup
+    public void setup() throws GQException, RecordTruncatedException{
+        m_raw = Fixtures.raw_dataset(Fixtures.parse(Fixtures.nvm_image()));
+        m_sessions = TimeInterpolate.divide_into_sessions(m_raw);
+        m_records = m_raw.toArray(new MeasurementRecord[0]);
+        m_times = new LocalDateTime[m_records.length];
+        for(int i = 0; i < m_records.length; ++i)
+            m_times[i] = m_records[i].time;
+
+        m_nanos = new long[m_records.length];
+        for(int i = 0; i < m_records.length; ++i)
+            m_nanos[i] = LocalNanos.of(m_times[i]);
+        m_work = m_nanos.clone();
+        m_flags = new byte[m_nanos.length];
+        m_runs = new int[m_nanos.length + 1];
+        m_nruns = TimeInterpolate.divide_into_runs(m_nanos, 0, m_nanos.length, m_runs);
+        m_session_runs = new int[m_nruns + 1];
+        m_nsessions = TimeInterpolate.divide_into_sessions(m_nanos, m_runs, m_nruns, m_session_runs);
+    }
+
+    @Setup(Level.Invocation)
+    public void restore_times(){
+        for(int i = 0; i < m_records.length; ++i){
+            m_records[i].time = m_times[i];
+            m_records[i].uncertain_time = false;
+        }
+        System.arraycopy(m_nanos, 0, m_work, 0, m_nanos.length);
+    }
+
+    @Benchmark
+    public ArrayList<ArrayList<MeasurementRecord>> divide_into_sessions(){
+        return TimeInterpolate.divide_into_sessions(m_raw);
+    }
+
+    @Benchmark
+    public ArrayList<MeasurementRecord> interpolate_session_times(Blackhole bh){
+        var result = new ArrayList<MeasurementRecord>(m_records.length);
+        for(var s : m_sessions)
+            bh.consume(TimeInterpolate.interpolate_session_times(s, result));
+        return result;
+    }
+
+    //Records one at a time, in order, as the decoder would give them, through to a sink which only counts them
+    @Benchmark
+    public long interpolate_stream(){
+        var count = new long[1];
+        var interp = new StreamInterpolator((time, seq, uncertain, emfx10, ef, rf) -> ++count[0], null, null);
+        for(int i = 0; i < m_nanos.length; ++i){
+            var r = m_records[i];
+            interp.measurement(m_nanos[i], r.seq_no, r.get_emfx10(), r.ef, r.rf);
+        }
+        interp.finish();
+        return count[0];
+    }
+
+    @Benchmark
+    public long[] interpolate_primitive(Blackhole bh){
+        for(int k = 0; k < m_nsessions; ++k)
+            bh.consume(TimeInterpolate.interpolate_session_times(m_work, m_flags, m_runs, m_session_runs[k], m_session_runs[k + 1]));
+        return m_work;
+    }
+}
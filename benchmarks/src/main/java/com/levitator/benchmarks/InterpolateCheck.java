@@ -0,0 +1,140 @@
+package com.levitator.benchmarks;
+
+import com.levitator.gqlib.TimeInterpolate;
+import com.levitator.gqlib.config.Config;
+import com.levitator.gqlib.emulator.SyntheticNvm;
+import com.levitator.gqlib.exceptions.GQException;
+import com.levitator.gqlib.exceptions.internal.RecordTruncatedException;
+import com.levitator.gqlib.structures.MeasurementRecord;
+import com.levitator.util.LocalNanos;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+/*
+*
+* Differential check of the two time interpolation engines: TimeInterpolate's LocalDateTime one, over lists of
+* MeasurementRecords, against its primitive one, over LocalNanos arrays
+*
+* Each log is raw measurements, stamped with their TimeRecord times, as Fixtures.raw_dataset() makes them. Some are
+* decoded from synthetic log memories of random sizes and seeds. The rest are made up run by run, to get at the corners
+* that a well-behaved device rarely gives us: sessions of one run or two, runs of one record, pauses right at the
+* session limit, and times off the whole second. Both engines have to agree on the sessions, which of them were
+* guessed, and every record's time and flag, to the nanosecond.
+*
+* Arguments: [logs of each kind] [seed]. Exits nonzero if they disagree.
+*
+*/
+public class InterpolateCheck {
+
+    static private final int max_shown = 10;
+
+    private int m_logs = 0;
+    private long m_records = 0;
+    private int m_failures = 0;
+
+    public static void main(String[] args) throws GQException, RecordTruncatedException{
+        var count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        var seed = args.length > 1 ? Long.parseLong(args[1]) : Fixtures.seed;
+        var rnd = new Random(seed);
+        var check = new InterpolateCheck();
+
+        for(int i = 0; i < count; ++i){
+            var size = 4096 + rnd.nextInt(Config.log_memory_size / 4);
+            var nvm = SyntheticNvm.image(size, size - rnd.nextInt(1024), Fixtures.start.plusSeconds(rnd.nextInt(1 << 25)), rnd.nextLong());
+            check.compare("synthetic image " + i, Fixtures.raw_dataset(Fixtures.parse(nvm)));
+        }
+        for(int i = 0; i < count; ++i)
+            check.compare("random log " + i, random_log(rnd));
+
+        System.out.println(check.m_logs + " logs, " + check.m_records + " records: " +
+                (check.m_failures == 0 ? "the engines agree" : check.m_failures + " disagree"));
+        System.exit(check.m_failures == 0 ? 0 : 1);
+    }
+
+    //Runs of equal times, as the device would log them between TimeRecords, in time order
+    static private ArrayList<MeasurementRecord> random_log(Random rnd){
+        var result = new ArrayList<MeasurementRecord>();
+        var t = Fixtures.start.plusSeconds(rnd.nextInt(1 << 25));
+        var runs = 1 + rnd.nextInt(rnd.nextBoolean() ? 4 : 400);
+        for(int r = 0; r < runs; ++r){
+            var len = 1 + rnd.nextInt(rnd.nextBoolean() ? 3 : 400);
+            for(int s = 0; s < len; ++s)
+                result.add(new MeasurementRecord(t, s, rnd.nextInt(1000), rnd.nextFloat(), rnd.nextFloat()));
+
+            long step;
+            switch(rnd.nextInt(10)){
+                case 0: step = Config.max_native_time_granular + 1 + rnd.nextInt(86400); break;    //A pause
+                case 1: step = Config.max_native_time_granular; break;                                //Not quite
+                case 2: step = 1 + rnd.nextInt(10); break;
+                default: step = Config.native_time_granular + rnd.nextInt(3) - 1; break;
+            }
+            t = t.plusSeconds(step);
+            if(rnd.nextInt(5) == 0)
+                t = t.plusNanos(rnd.nextInt(1000000000));
+        }
+        return result;
+    }
+
+    private void compare(String name, ArrayList<MeasurementRecord> raw){
+        ++m_logs;
+        m_records += raw.size();
+        var problem = disagreement(raw);
+        if(problem != null){
+            ++m_failures;
+            if(m_failures <= max_shown)
+                System.out.println(name + " (" + raw.size() + " records): " + problem);
+        }
+    }
+
+    //What the engines disagree on, or null if nothing
+    static private String disagreement(ArrayList<MeasurementRecord> raw){
+        var n = raw.size();
+        if(n == 0)
+            return null;
+        var records = raw.toArray(new MeasurementRecord[0]);
+        var times = new long[n];
+        for(int i = 0; i < n; ++i)
+            times[i] = LocalNanos.of(records[i].time);
+
+        //Primitive
+        var runs = new int[n + 1];
+        var nruns = TimeInterpolate.divide_into_runs(times, 0, n, runs);
+        var sessions = new int[nruns + 1];
+        var nsessions = TimeInterpolate.divide_into_sessions(times, runs, nruns, sessions);
+        var flags = new byte[n];
+        Arrays.fill(flags, TimeInterpolate.untimed);
+        var guessed = new boolean[nsessions];
+        for(int k = 0; k < nsessions; ++k)
+            guessed[k] = TimeInterpolate.interpolate_session_times(times, flags, runs, sessions[k], sessions[k + 1]);
+
+        //LocalDateTime. Records it leaves out of the result are the untimed ones.
+        var old_sessions = TimeInterpolate.divide_into_sessions(raw);
+        if(old_sessions.size() != nsessions)
+            return old_sessions.size() + " sessions, against " + nsessions;
+        var timed = new IdentityHashMap<MeasurementRecord, Boolean>();
+        for(int k = 0; k < nsessions; ++k){
+            var sess = old_sessions.get(k);
+            if(sess.size() != runs[sessions[k + 1]] - runs[sessions[k]])
+                return "session " + k + " has " + sess.size() + " records, against " + (runs[sessions[k + 1]] - runs[sessions[k]]);
+            var result = new ArrayList<MeasurementRecord>();
+            var old_guessed = TimeInterpolate.interpolate_session_times(sess, result);
+            if(old_guessed != guessed[k])
+                return "session " + k + (old_guessed ? " was" : " wasn't") + " guessed, against" + (guessed[k] ? " was" : " wasn't");
+            for(var r : result)
+                timed.put(r, r.uncertain_time);
+        }
+
+        for(int i = 0; i < n; ++i){
+            var r = records[i];
+            var uncertain = timed.get(r);
+            var flag = uncertain == null ? TimeInterpolate.untimed : uncertain ? TimeInterpolate.uncertain : TimeInterpolate.certain;
+            if(flag != flags[i])
+                return "record " + i + " is flagged " + flag + ", against " + flags[i];
+            if(uncertain != null && LocalNanos.of(r.time) != times[i])
+                return "record " + i + " is timed " + r.time + ", against " + LocalNanos.to_local(times[i]);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,62 @@
+package com.levitator.benchmarks;
+
+import com.levitator.gqlib.GQDevice;
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.exceptions.GQException;
+import com.levitator.gqlib.exceptions.internal.RecordTruncatedException;
+import com.levitator.gqlib.structures.NvmRecordBase;
+import com.levitator.gqlib.structures.RawLog;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+*
+* Turning a full log memory into records, and records into a time-stamped dataset
+*
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class NvmParseBenchmark {
+
+    private byte[] m_nvm;
+    private ArrayList<NvmRecordBase> m_records;
+    private RawLog m_raw;
+
+    @Setup
+    public void setup() throws GQException, RecordTruncatedException{
+        m_nvm = Fixtures.nvm_image();
+        m_records = Fixtures.parse(m_nvm);
+        m_raw = Fixtures.decode(m_nvm);
+    }
+
+    //RecordFactory.read() over the whole image
+    @Benchmark
+    public ArrayList<NvmRecordBase> record_factory_read() throws GQException, RecordTruncatedException{
+        return Fixtures.parse(m_nvm);
+    }
+
+    //NvmDecoder over the whole image, into columns
+    @Benchmark
+    public RawLog nvm_decoder() throws GQException{
+        return Fixtures.decode(m_nvm);
+    }
+
+    //Parsed records, by way of a RawLog
+    @Benchmark
+    public LogDataSet process_record_times(){
+        return GQDevice.process_record_times(m_records, null, null);
+    }
+
+    @Benchmark
+    public LogDataSet process_raw_log(){
+        return GQDevice.process_record_times(m_raw, null, null);
+    }
+}
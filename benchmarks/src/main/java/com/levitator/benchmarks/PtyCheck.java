@@ -0,0 +1,159 @@
+package com.levitator.benchmarks;
+
+import com.levitator.gqlib.GQDevice;
+import com.levitator.gqlib.emulator.Emf390Emulator;
+import com.levitator.gqlib.emulator.SyntheticNvm;
+import com.levitator.gqlib.exceptions.GQException;
+import com.levitator.gqlib.exceptions.GQInterruptedException;
+import com.levitator.gqlib.io.Posix;
+import com.levitator.gqlib.io.TtyTransport;
+import com.levitator.util.FunctionalThread;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+*
+* TtyTransport against a real tty: the emulator on the master side of a pty, and a GQDevice on the slave side
+*
+* The pty comes from openpty(3), through the same libc bindings that TtyTransport uses. Pumping bytes between its
+* master and an Emf390Emulator puts the emulator at the far end of the tty, and TtyTransport opens the slave by name
+* and sets up its line discipline as it would a serial port's.
+*
+* Checks that log reads come through the line discipline intact, and that interrupting the thread which is reading
+* leaves the tty open for the next read. Run with --add-modules jdk.incubator.foreign --enable-native-access=ALL-UNNAMED.
+* Exits nonzero if a check fails.
+*
+*/
+public class PtyCheck {
+
+    static private final int nvm_size = 1 << 16;
+    static private final int chunk = 4096;
+    static private final int interrupts = 20;
+
+    private final byte[] m_nvm = SyntheticNvm.image(nvm_size, nvm_size - 1024, Fixtures.start, Fixtures.seed);
+    private final Emf390Emulator m_emu = new Emf390Emulator(m_nvm.clone(), LocalDateTime.now());
+    private Posix.Pty m_pty;
+    private int m_failures = 0;
+
+    public static void main(String[] args) throws Exception{
+        var check = new PtyCheck();
+        try{
+            check.run();
+        }
+        finally{
+            check.close();
+        }
+        System.out.println(check.m_failures == 0 ? "All checks passed" : check.m_failures + " checks failed");
+        System.exit(check.m_failures == 0 ? 0 : 1);
+    }
+
+    private void check(boolean ok, String what){
+        System.out.println((ok ? "OK: " : "FAILED: ") + what);
+        if(!ok)
+            ++m_failures;
+    }
+
+    //Commands from the tty to the emulator, and replies back, until the emulator or the pty goes away
+    private void pump(int master){
+        var commands = new FunctionalThread(() -> {
+            var buf = ByteBuffer.allocateDirect(4096);
+            try{
+                while(Posix.read(master, buf.clear()) > 0)
+                    m_emu.receive(buf.flip());
+            }
+            catch(IOException ex){
+                //The pty is closed
+            }
+        });
+        var replies = new FunctionalThread(() -> {
+            var buf = ByteBuffer.allocateDirect(4096);
+            try{
+                while(m_emu.read(buf.clear()) > 0)
+                    Posix.write(master, buf.flip());
+            }
+            catch(IOException ex){
+                //Emulator closed, or the pty is
+            }
+        });
+        for(var t : new Thread[]{commands, replies}){
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void run() throws Exception{
+        m_emu.set_link(0, 200000);
+        m_pty = Posix.openpty();
+        System.out.println("pty: " + m_pty.name);
+        pump(m_pty.master);
+
+        try(var dev = new GQDevice(TtyTransport.open(m_pty.name))){
+            check(m_emu.get_version().equals(dev.get_version()), "GETVER: " + dev.get_version());
+
+            var same = true;
+            for(int addr = 0; addr < nvm_size && same; addr += chunk)
+                same = Arrays.equals(m_nvm, addr, addr + chunk, dev.get_log(addr, chunk), 0, chunk);
+            check(same, "log in " + chunk + " byte chunks");
+
+            interrupts(dev);
+        }
+    }
+
+    //A thread reads the log over and over, and is interrupted at random. Every time, the tty has to still be open, and
+    //the next read has to come through whole.
+    private void interrupts(GQDevice dev) throws InterruptedException{
+        var rnd = new Random(Fixtures.seed);
+        var stopped = new Semaphore(0);
+        var results = new boolean[interrupts];
+        var errors = new String[interrupts];
+        var reader = new FunctionalThread(() -> {
+            for(int i = 0; i < interrupts; ++i){
+                try{
+                    try{
+                        while(true)
+                            dev.get_log(0, chunk);
+                    }
+                    catch(GQInterruptedException ex){
+                        //Expected
+                    }
+                    Thread.interrupted();
+                    results[i] = Arrays.equals(m_nvm, 0, chunk, dev.get_log(0, chunk), 0, chunk);
+                }
+                catch(GQException ex){
+                    errors[i] = ex.toString();
+                }
+                stopped.release();
+            }
+        });
+        reader.start();
+
+        for(int i = 0; i < interrupts; ++i){
+            TimeUnit.MILLISECONDS.sleep(rnd.nextInt(300));
+            reader.interrupt();
+            stopped.acquire();
+        }
+        reader.join();
+
+        var ok = 0;
+        for(int i = 0; i < interrupts; ++i){
+            if(results[i])
+                ++ok;
+            else if(errors[i] != null)
+                System.out.println("\tafter interrupt " + (i + 1) + ": " + errors[i]);
+        }
+        check(ok == interrupts, ok + " of " + interrupts + " reads right after an interrupt");
+    }
+
+    private void close() throws IOException{
+        m_emu.close();
+        if(m_pty != null){
+            Posix.close(m_pty.slave);
+            Posix.close(m_pty.master);
+        }
+    }
+}
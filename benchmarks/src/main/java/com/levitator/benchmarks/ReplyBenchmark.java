@@ -0,0 +1,200 @@
+package com.levitator.benchmarks;
+
+import com.levitator.gqlib.config.Config;
+import com.levitator.gqlib.exceptions.EOFException;
+import com.levitator.gqlib.exceptions.GQIOException;
+import com.levitator.gqlib.exceptions.GQInterruptedException;
+import com.levitator.gqlib.io.GQTransport;
+import com.levitator.gqlib.io.ReplyReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+*
+* Reply framing: ReplyReader against the per-byte InputStream.read() loop which GQDevice used before it
+*
+* Both read the same bytes out of memory, so this is the framing alone, without a device or a pipe: text replies a line
+* at a time, and the whole log memory in SPIR-sized binary replies. The per-byte path is as it was, reading from a
+* BufferedInputStream, as Process.getInputStream() hands out.
+*
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReplyBenchmark {
+
+    static private final int line_count = 1 << 16;
+
+    private byte[] m_lines;
+    private byte[] m_nvm;
+    private byte[] m_chunk;
+
+    //Hands out the whole of an array, as much at a time as the caller has room for
+    static private class ArrayTransport implements GQTransport{
+        private final byte[] m_data;
+        private int m_pos = 0;
+
+        ArrayTransport(byte[] data){
+            m_data = data;
+        }
+
+        @Override
+        public int read(ByteBuffer dst){
+            if(m_pos == m_data.length)
+                return -1;
+            var ct = Math.min(dst.remaining(), m_data.length - m_pos);
+            dst.put(m_data, m_pos, ct);
+            m_pos += ct;
+            return ct;
+        }
+
+        @Override
+        public int available(){ return m_data.length - m_pos; }
+
+        @Override
+        public void write(ByteBuffer src){
+            src.position(src.limit());
+        }
+
+        @Override
+        public void flush(){
+        }
+
+        @Override
+        public void close(){
+        }
+    }
+
+    @Setup
+    public void setup(){
+        //The sort of thing the device says, CRLF terminated
+        var replies = new String[]{"GQ-EMF390v2Re 3.70", "EMF = 1.3 mG", "EF = 12.4 V/m",
+                "RF = 0.0035 mW/m2 (6.3 dBm)", "ok"};
+        var out = new ByteArrayOutputStream();
+        for(int i = 0; i < line_count; ++i)
+            out.writeBytes((replies[i % replies.length] + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        m_lines = out.toByteArray();
+
+        m_nvm = Fixtures.nvm_image();
+        m_chunk = new byte[Config.log_chunk_size];
+    }
+
+    //
+    // The per-byte path, as GQDevice had it
+    //
+
+    static private int stream_read(InputStream in) throws GQIOException{
+        try {
+            var result = in.read();
+            if(result == -1)
+                throw new EOFException("Disconnected from device while reading byte");
+            return result;
+        }
+        catch (IOException ex) {
+            throw new GQIOException("Error reading byte from device", ex);
+        }
+    }
+
+    static private String stream_read_line(InputStream in) throws GQIOException{
+        var sb = new StringBuilder(32);
+        int b;
+
+        while(true){
+            b = stream_read(in);
+            if(b == '\n')
+                break;
+            else{
+                sb.append( (char)b );
+            }
+        }
+
+        //If the line eneded in crlf, then lop off the cr, too
+        int last = sb.length() - 1;
+        if(last >= 0 && sb.charAt(last) == '\r' )
+            sb.deleteCharAt(last);
+
+        return sb.toString();
+    }
+
+    static private void stream_read(InputStream in, byte[] data, int i, int len) throws GQIOException{
+        try{
+           var end = i + len;
+           while(i < end){
+               var result = in.read(data, i, len);
+               if(result < 0)
+                   throw new EOFException("Device or IO process disconnected while reading byte array");
+               i += result;
+               len -= result;
+           }
+        }
+        catch(IOException ex){
+            throw new GQIOException("Error reading byte string from device", ex);
+        }
+    }
+
+    private InputStream stream(byte[] data){
+        return new BufferedInputStream(new ByteArrayInputStream(data));
+    }
+
+    private ReplyReader reader(byte[] data){
+        return new ReplyReader(new ArrayTransport(data), Config.reply_buffer_size);
+    }
+
+    //
+    // Text replies
+    //
+
+    @Benchmark
+    public void read_line_per_byte(Blackhole bh) throws GQIOException{
+        var in = stream(m_lines);
+        for(int i = 0; i < line_count; ++i)
+            bh.consume(stream_read_line(in));
+    }
+
+    @Benchmark
+    public void read_line(Blackhole bh) throws GQIOException, GQInterruptedException{
+        var in = reader(m_lines);
+        for(int i = 0; i < line_count; ++i)
+            bh.consume(in.read_line());
+    }
+
+    //
+    // Binary replies, a log chunk at a time
+    //
+
+    @Benchmark
+    public int read_chunks_stream() throws GQIOException{
+        var in = stream(m_nvm);
+        int result = 0;
+        for(int addr = 0; addr < m_nvm.length; addr += m_chunk.length){
+            stream_read(in, m_chunk, 0, m_chunk.length);
+            result += m_chunk[0];
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int read_chunks() throws GQIOException, GQInterruptedException{
+        var in = reader(m_nvm);
+        int result = 0;
+        for(int addr = 0; addr < m_nvm.length; addr += m_chunk.length){
+            in.read(m_chunk, 0, m_chunk.length);
+            result += m_chunk[0];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,244 @@
+package com.levitator.benchmarks;
+
+import com.levitator.gqlib.GQDevice;
+import com.levitator.gqlib.LogCheckpoint;
+import com.levitator.gqlib.SessionTimes;
+import com.levitator.gqlib.StreamInterpolator;
+import com.levitator.gqlib.emulator.Emf390Emulator;
+import com.levitator.gqlib.emulator.EmulatorTransport;
+import com.levitator.gqlib.emulator.NvmWriter;
+import com.levitator.gqlib.emulator.SyntheticNvm;
+import com.levitator.gqlib.exceptions.GQException;
+import com.levitator.gqlib.exceptions.GQUserDataFormatException;
+import com.levitator.gqlib.stats.RollupStore;
+import com.levitator.gqlib.structures.MeasurementSink;
+import com.levitator.gqlib.structures.NvmDecoder;
+import com.levitator.util.LocalNanos;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/*
+*
+* RollupStore against a log which grows between dumps: re-fed dump after dump, it has to end up with the same buckets as
+* one dump of the whole log
+*
+* Each log is a synthetic log memory, dumped at random points as it's written, some of them a record or two into a
+* session or a run, where the end of the log is timed least. Full dumps decode the log from the start each time, as
+* DumpLog does without -i, and have to match the one dump bucket for bucket, in every resolution. Incremental dumps
+* go through a GQDevice on the emulator, picking up from a LogCheckpoint, and time their context differently from a full
+* dump, so records can move between neighbouring minutes. Context also starts a session, where a full dump goes on
+* with the one before it, and can end up timing the first record of what was that session's last run, which a full dump
+* leaves out. So they have to count as many records as the one dump, and at most one more for each session.
+*
+* Arguments: [logs] [seed]. Exits nonzero if any log's rollups come out different.
+*
+*/
+public class RollupCheck {
+
+    static private final int max_shown = 10;
+    static private final int dumps = 8;
+
+    private final Path m_dir;
+    private int m_logs = 0;
+    private int m_failures = 0;
+
+    //The provisional time from the latest dump, as DumpLog's output files keep it
+    static private class Feed implements MeasurementSink{
+        final RollupStore store;
+        long provisional = Long.MAX_VALUE;
+
+        Feed(RollupStore store){ this.store = store; }
+
+        @Override
+        public void measurement(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+            store.measurement(time, seq, uncertain, emfx10, ef, rf);
+        }
+
+        @Override
+        public void provisional(long time){
+            provisional = Math.min(provisional, time);
+            store.provisional(time);
+        }
+
+        @Override
+        public void context(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+            store.context(time, seq, uncertain, emfx10, ef, rf);
+        }
+
+        void commit() throws IOException{
+            store.commit();
+            provisional = Long.MAX_VALUE;
+        }
+    }
+
+    RollupCheck(Path dir){
+        m_dir = dir;
+    }
+
+    public static void main(String[] args) throws Exception{
+        var count = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        var seed = args.length > 1 ? Long.parseLong(args[1]) : Fixtures.seed;
+        var rnd = new Random(seed);
+        var dir = Files.createTempDirectory("rollupcheck");
+        var check = new RollupCheck(dir);
+        try{
+            for(int i = 0; i < count; ++i){
+                var size = 8192 + rnd.nextInt(1 << 16);
+                var nvm = SyntheticNvm.image(size, size - rnd.nextInt(1024), Fixtures.start.plusSeconds(rnd.nextInt(1 << 25)), rnd.nextLong());
+                check.compare("log " + i, nvm, cuts(nvm, rnd));
+            }
+        }
+        finally{
+            try(var paths = Files.walk(dir)){
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+
+        System.out.println(check.m_logs + " logs, dumped " + dumps + " times each as they grew: " +
+                (check.m_failures == 0 ? "the rollups match one dump of the whole log" : check.m_failures + " don't"));
+        System.exit(check.m_failures == 0 ? 0 : 1);
+    }
+
+    //Where each dump finds the end of the log, at record boundaries, the last two of them at the real end, since a dump
+    //can hold back more than one of the whole log would, for the next dump to count. Half are the first or second
+    //record after a TimeRecord, and a few of those a run or two into a session.
+    static private int[] cuts(byte[] nvm, Random rnd){
+        var records = new ArrayList<Integer>();
+        var after_time = new ArrayList<Integer>();
+        int addr = 0;
+        while(addr + 2 <= nvm.length){
+            var id = ((nvm[addr] & 0xff) << 8) | (nvm[addr + 1] & 0xff);
+            var size = id == 0x55aa ? NvmWriter.time_record_size() : id == 0xaa55 ? NvmWriter.measurement_record_size() : 0;
+            if(size == 0 || addr + size > nvm.length)
+                break;
+            addr += size;
+            records.add(addr);
+            if(id == 0x55aa)
+                after_time.add(records.size());
+        }
+
+        var result = new int[dumps];
+        for(int i = 0; i < dumps - 2; ++i){
+            if(rnd.nextBoolean() && !after_time.isEmpty()){
+                var r = after_time.get(rnd.nextInt(after_time.size())) + rnd.nextInt(2);
+                result[i] = records.get(Math.min(r, records.size() - 1));
+            }
+            else
+                result[i] = records.get(rnd.nextInt(records.size()));
+        }
+        result[dumps - 2] = result[dumps - 1] = addr;
+        Arrays.sort(result);
+        return result;
+    }
+
+    private void compare(String name, byte[] nvm, int[] cuts) throws Exception{
+        ++m_logs;
+        var problem = disagreement(nvm, cuts);
+        if(problem != null){
+            ++m_failures;
+            if(m_failures <= max_shown)
+                System.out.println(name + " (" + nvm.length + " bytes, dumped at " + Arrays.toString(cuts) + "): " + problem);
+        }
+    }
+
+    private Path fresh(String name) throws IOException{
+        var result = m_dir.resolve(name);
+        if(Files.exists(result)){
+            try(var paths = Files.walk(result)){
+                paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+        return result;
+    }
+
+    //What the rollups disagree on, or null if nothing
+    private String disagreement(byte[] nvm, int[] cuts) throws Exception{
+        try(var once = new RollupStore(fresh("once")); var full = new RollupStore(fresh("full"));
+                var incremental = new RollupStore(fresh("incremental"))){
+            var sessions = new SessionTimes();
+            dump(nvm, nvm.length, new Feed(once), sessions);
+
+            var feed = new Feed(full);
+            for(var cut : cuts)
+                dump(nvm, cut, feed, null);
+
+            for(var r : RollupStore.Resolution.values()){
+                var problem = difference(r, once, full);
+                if(problem != null)
+                    return "full dumps: " + problem;
+            }
+
+            dump_incremental(nvm, cuts, new Feed(incremental));
+            var extra = total(incremental) - total(once);
+            return extra >= 0 && extra <= sessions.size() ? null :
+                    "incremental dumps: " + total(once) + " records in " + sessions.size() + " sessions, against " + total(incremental);
+        }
+    }
+
+    //Full dump of the log as far as end, adding its sessions to the list, if not null
+    static private void dump(byte[] nvm, int end, Feed feed, SessionTimes sessions) throws GQException, IOException{
+        var interp = new StreamInterpolator(feed, sessions, null, true);
+        var decoder = new NvmDecoder(interp);
+        decoder.decode(ByteBuffer.wrap(Arrays.copyOf(nvm, end)));
+        interp.finish();
+        feed.commit();
+    }
+
+    //The emulator's log memory grows to each cut in turn, and each dump picks up from the last one's checkpoint
+    static private void dump_incremental(byte[] nvm, int[] cuts, Feed feed) throws GQException, IOException{
+        var image = new byte[nvm.length];
+        Arrays.fill(image, (byte)0xff);
+        var emu = new Emf390Emulator(image, LocalDateTime.now());
+        emu.set_link(0, 0);
+        var checkpoint = new LogCheckpoint();
+        try(var dev = new GQDevice(new EmulatorTransport(emu))){
+            dev.adaptive_log(false);
+            var at = 0;
+            for(var cut : cuts){
+                System.arraycopy(nvm, at, emu.get_nvm(), at, cut - at);
+                at = cut;
+                dev.stream_log(() -> {}, null, new SessionTimes(), new SessionTimes(), checkpoint, feed);
+                var provisional = feed.provisional;
+                feed.commit();
+
+                //As DumpLog does, when the rollups hold back more than the next incremental dump would decode again
+                if(checkpoint.valid() && provisional < LocalNanos.of(checkpoint.time()))
+                    checkpoint.invalidate();
+            }
+        }
+        finally{
+            emu.close();
+        }
+    }
+
+    static private long total(RollupStore store) throws IOException, GQUserDataFormatException{
+        long result = 0;
+        for(var b : store.query(RollupStore.Resolution.DAY, null, null))
+            result += b.count();
+        return result;
+    }
+
+    //By start and count
+    static private String difference(RollupStore.Resolution r, RollupStore expected, RollupStore actual)
+            throws IOException, GQUserDataFormatException{
+        var e = expected.query(r, null, null);
+        var a = actual.query(r, null, null);
+        if(e.size() != a.size())
+            return e.size() + " " + r.name().toLowerCase() + " buckets, against " + a.size();
+        for(int i = 0; i < e.size(); ++i){
+            var eb = e.get(i);
+            var ab = a.get(i);
+            if(eb.start_nanos() != ab.start_nanos() || eb.count() != ab.count())
+                return r.name().toLowerCase() + " bucket " + i + " is " + eb.start() + " x " + eb.count() + ", against " +
+                        ab.start() + " x " + ab.count();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,82 @@
+package com.levitator.benchmarks;
+
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.exceptions.GQException;
+import com.levitator.gqlib.exceptions.internal.RecordTruncatedException;
+import com.levitator.gqlib.stats.LogSketch;
+import com.levitator.gqlib.stats.LogStats;
+import com.levitator.gqlib.stats.Moments;
+import com.levitator.tricorder.features.DumpStats;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+*
+* Summary statistics of a full log: record by record through the IMeasurement view, as the summary used to be done,
+* against the column kernels, serially, in parallel, and fed a record at a time, and percentiles exactly and by sketch
+*
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StatsBenchmark {
+
+    private LogDataSet m_data;
+
+    @Setup
+    public void setup() throws GQException, RecordTruncatedException{
+        m_data = Fixtures.dataset();
+    }
+
+    @Benchmark
+    public double per_record(){
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum = 0;
+        for(var r : m_data){
+            var v = r.get_ef();
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            sum += v;
+        }
+        return min + max + sum;
+    }
+
+    @Benchmark
+    public Moments ef_kernel(){
+        return Moments.of(m_data.ef_column(), 0, m_data.size());
+    }
+
+    @Benchmark
+    public LogStats log_stats(){
+        return LogStats.of(m_data);
+    }
+
+    @Benchmark
+    public LogStats streamed(){
+        var stats = new DumpStats();
+        var time = m_data.time_column();
+        var emfx10 = m_data.emfx10_column();
+        var ef = m_data.ef_column();
+        var rf = m_data.rf_column();
+        for(int i = 0; i < m_data.size(); ++i)
+            stats.measurement(time[i], 0, false, emfx10[i], ef[i], rf[i]);
+        return stats.stats();
+    }
+
+    @Benchmark
+    public double[] ef_percentiles(){
+        return LogStats.quantiles(m_data.ef_column(), m_data.size(), 0.5, 0.95, 0.99);
+    }
+
+    @Benchmark
+    public LogSketch sketch(){
+        var sketch = new LogSketch();
+        sketch.add(m_data);
+        return sketch;
+    }
+}
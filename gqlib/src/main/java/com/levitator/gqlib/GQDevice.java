@@ -5,10 +5,18 @@ import com.levitator.gqlib.exceptions.GQException;
 import com.levitator.gqlib.exceptions.GQIOException;
 import com.levitator.gqlib.exceptions.GQInterruptedException;
 import com.levitator.gqlib.exceptions.GQProtocolException;
+import com.levitator.gqlib.exceptions.GQStrayDataException;
+import com.levitator.gqlib.exceptions.GQTimeoutException;
 import com.levitator.gqlib.exceptions.GQUnexpectedException;
 import com.levitator.gqlib.exceptions.GQFramingError;
-import com.levitator.gqlib.exceptions.internal.NvmBlankException;
-import com.levitator.gqlib.structures.RecordFactory;
+import com.levitator.gqlib.io.GQTransport;
+import com.levitator.gqlib.io.LinkTuner;
+import com.levitator.gqlib.io.ReplyReader;
+import com.levitator.gqlib.io.SercatTransport;
+import com.levitator.gqlib.structures.MeasurementSink;
+import com.levitator.gqlib.structures.NvmDecoder;
+import com.levitator.gqlib.structures.NvmFramer;
+import com.levitator.gqlib.structures.RawLog;
 import com.levitator.gqlib.structures.TimeRecord;
 import com.levitator.gqlib.structures.MeasurementRecord;
 import com.levitator.gqlib.structures.NvmRecordBase;
@@ -16,9 +24,11 @@ import java.io.*;
 import java.nio.file.*;
 import java.util.concurrent.*;
 import com.levitator.util.Util;
-import com.levitator.gqlib.exceptions.internal.RecordTruncatedException;
 import com.levitator.util.Action;
+import com.levitator.util.FunctionalThread;
+import com.levitator.util.LocalNanos;
 import com.levitator.util.Ref;
+import com.levitator.util.SpscQueue;
 import com.levitator.util.Timer;
 import com.levitator.util.levArrays;
 import static java.lang.Integer.min;
@@ -26,20 +36,27 @@ import java.nio.ByteBuffer;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.function.BiPredicate;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
 import util.guards.Guard;
 
 public class GQDevice implements AutoCloseable{
     
-    //Native process that handles serial I/O
-    private Process m_process;
-    private InputStream m_in;
-    private OutputStream m_out;
-    private InputStream m_error;
+    //Serial I/O, either through sercat or straight from the JVM
+    private GQTransport m_transport;
+    private ReplyReader m_in;
     
     private String m_device_version;
     private Timer m_last_cmd_time = new Timer();
     private boolean m_echo_status = true; //assume it's true so that when we turn it off it comes up dirty and commits to the device
     private Boolean m_save_log_status = null; //It's kind of a big production to fetch this, so be lazy
+    private boolean m_pipelined_log = Config.pipelined_log;
+    private boolean m_adaptive_log = Config.adaptive_log;
+    private LinkTuner m_tuner = null;   //Loaded on the first log download
+    private boolean m_menu_routing = Config.menu_routing;
+    private MenuModel m_menu = null;    //Loaded on the first navigation
+    private long m_command_gap = Config.command_interval;
     
     //
     //We attempt to trap all unhandled exceptions as GQUnexpectedException so that users can tell that
@@ -47,21 +64,25 @@ public class GQDevice implements AutoCloseable{
     //
     
     public GQDevice(Path dev) throws GQIOException, GQInterruptedException, GQProtocolException, GQUnexpectedException{
+        this(open_sercat(dev));
+    }
+    
+    static private GQTransport open_sercat(Path dev) throws GQUnexpectedException{
+        try{
+            return SercatTransport.open(dev);
+        }
+        catch(Exception ex){
+            throw new GQUnexpectedException("Unexpected exception initializing new GQDevice", ex);
+        }
+    }
+    
+    //Takes ownership of the transport
+    public GQDevice(GQTransport transport) throws GQIOException, GQInterruptedException, GQProtocolException, GQUnexpectedException{
         
         try{
-            try{
-                var cmd = new ArrayList<String>(Config.sercat_cmd);
-                cmd.add(dev.toString());
-                var pb = new ProcessBuilder(cmd);
-                m_process = pb.start();
-                m_in = m_process.getInputStream();
-                m_out = m_process.getOutputStream();
-                m_error = m_process.getErrorStream();
-                finish_command();
-            }
-            catch(IOException ex){
-                throw new GQIOException("Failed opening devce or IO process", ex);
-            }
+            m_transport = transport;
+            m_in = new ReplyReader(m_transport, Config.reply_buffer_size);
+            finish_command();
 
             //We cache this because we need it for use as a response delimiter
             m_device_version = fetch_version();
@@ -70,6 +91,7 @@ public class GQDevice implements AutoCloseable{
             echo_off();
         }
         catch(Exception ex){
+            try{ transport.close(); }catch(Exception ex2){}
             throw new GQUnexpectedException("Unexpected exception initializing new GQDevice", ex);
         }
     }
@@ -77,7 +99,7 @@ public class GQDevice implements AutoCloseable{
     @Override
     public void close() throws GQUnexpectedException{
         try{
-            m_process.destroy();
+            m_transport.close();
         }
         catch(Exception ex){
             throw new GQUnexpectedException("Unexpected exception closing GQDevice", ex);
@@ -85,24 +107,7 @@ public class GQDevice implements AutoCloseable{
     }
     
     protected String read_line() throws GQIOException, GQInterruptedException{
-        var sb = new StringBuilder(32);
-        int b;
-
-        while(true){
-            b = read();
-            if(b == '\n')
-                break;
-            else{
-                sb.append( (char)b );
-            }
-        }
-        
-        //If the line eneded in crlf, then lop off the cr, too
-        int last = sb.length() - 1;
-        if(last >= 0 && sb.charAt(last) == '\r' )
-            sb.deleteCharAt(last);
-        
-        return sb.toString();
+        return m_in.read_line();
     }
     
     //Ok. Some echo messages are not line-terminated, so we look for those
@@ -111,27 +116,7 @@ public class GQDevice implements AutoCloseable{
     //they are all bugged the same way. Will probably need to add to the initialization
     //sequence a probe for device quirks (bugs)
     protected String read_buggy_line(String... unterminated) throws GQIOException, GQInterruptedException{
-        var sb = new StringBuilder(32);
-        int b;
-        
-        Arrays.sort(unterminated);
-        while(true){
-            b = read();
-            if(b == '\n')
-                break;
-            else{
-                sb.append( (char)b );
-                if( Arrays.binarySearch(unterminated, sb.toString()) > -1 )
-                    return sb.toString();
-            }
-        }
-       
-        //If the line eneded in crlf, then lop off the cr, too
-        int last = sb.length() - 1;
-        if(last >= 0 && sb.charAt(last) == '\r' )
-            sb.deleteCharAt(last);
-        
-        return sb.toString();
+        return m_in.read_line(unterminated);
     }
     
     
@@ -145,7 +130,7 @@ public class GQDevice implements AutoCloseable{
     
     protected void send_string(String str) throws GQIOException{
         try{
-            m_out.write( Util.String2bytes(str) );
+            m_transport.write( ByteBuffer.wrap(Util.String2bytes(str)) );
         }
         catch(IOException ex){
             throw new GQIOException("Failed transmitting string", ex);
@@ -153,22 +138,7 @@ public class GQDevice implements AutoCloseable{
     }
     
     protected void read(byte[] data, int i, int len) throws GQIOException, GQInterruptedException{
-        try{
-           var end = i + len;
-           while(i < end){
-               var result = m_in.read(data, i, len);
-               if(result < 0)
-                   throw new EOFException("Device or IO process disconnected while reading byte array");
-               i += result;
-               len -= result;
-           } 
-        }
-        catch(InterruptedIOException ex){
-            throw new GQInterruptedException(false, "Interrupted reading device byte array", ex);
-        }
-        catch(IOException ex){
-            throw new GQIOException("Error reading byte string from device", ex);
-        }
+        m_in.read(data, i, len);
     }
     
     protected void read(byte[] data) throws GQIOException, GQInterruptedException{
@@ -182,12 +152,10 @@ public class GQDevice implements AutoCloseable{
     }
     
     protected void write_command(String cmd) throws GQIOException{
-        send_string("<");
-        send_string(cmd);
-        send_string(">>");
+        send_string("<" + cmd + ">>");
         
         try{
-            m_out.flush();
+            m_transport.flush();
         }
         catch(IOException ex){
             throw new GQIOException("Failed flushing device out-stream", ex);
@@ -197,7 +165,7 @@ public class GQDevice implements AutoCloseable{
     //How long to wait before we can transmit another command
     public long throttle_time() throws GQUnexpectedException {
         try{
-            var tmp = Config.command_interval - m_last_cmd_time.elapsed();
+            var tmp = m_command_gap - m_last_cmd_time.elapsed();
             return Math.max(tmp, 0);
         }
         catch(Exception ex){
@@ -228,12 +196,9 @@ public class GQDevice implements AutoCloseable{
         
         try{
             if(m_in.available() > 0)
-                throw new GQProtocolException("Stray reply data found before issuing command '" + cmd + "': " + read_string(m_in.available()));
+                throw new GQStrayDataException("Stray reply data found before issuing command '" + cmd + "': " + read_string(m_in.available()));
             write_command(cmd);
         }
-        catch(IOException ex){
-            throw new GQIOException("Error checking IO in-queue size", ex);
-        }
         finally{
             finish_command();  //Assumes no reply. Call again later otherwise.
         }
@@ -268,18 +233,7 @@ public class GQDevice implements AutoCloseable{
     }
     
     protected int read() throws GQIOException, GQInterruptedException{
-        try {
-            var result = m_in.read();
-            if(result == -1)
-                throw new EOFException("Disconnected from device while reading byte");
-            return result;
-        }
-        catch (InterruptedIOException ex){
-            throw new GQInterruptedException(false, "Interrupted reading byte", ex);
-        }
-        catch (IOException ex) {
-            throw new GQIOException("Error reading byte from device", ex);
-        }
+        return m_in.read();
     }
     
     //Do a command whose expected response is a single byte
@@ -406,6 +360,9 @@ public class GQDevice implements AutoCloseable{
     
      public String key(int no) throws GQIOException, GQProtocolException, GQInterruptedException{
          try{
+             //Only press() keeps track of where we are in the menus
+             if(m_menu != null)
+                 m_menu.lost();
              return key_impl(no);
          }
          catch(GQException ex){
@@ -428,6 +385,75 @@ public class GQDevice implements AutoCloseable{
         }
     }
     
+    //Press a key, with echo on, keeping track of where in the menus it takes us. If the menu model can't tell from the
+    //echo, we ask for the mode. setting means the key changes a setting, so that routes never use it.
+    private String press(int no, boolean setting) throws GQIOException, GQProtocolException, GQInterruptedException{
+        var echo = key_impl(no);
+        if(m_menu_routing && !menu().follow(no, echo, setting))
+            m_menu.land(get_mode(), echo);
+        return echo;
+    }
+    
+    //The mode, going by the menu model if it knows where we are
+    private String where() throws GQInterruptedException, GQProtocolException, GQIOException{
+        if(m_menu_routing && menu().located())
+            return m_menu.mode();
+        var mode = get_mode();
+        if(m_menu_routing)
+            m_menu.locate(mode);
+        return mode;
+    }
+    
+    //Take the menu model's shortest route to a screen which satisfies target, given its mode and echo, checking where
+    //each key actually took us and rerouting from there if need be. Returns the echo of the screen we arrive at, or null if
+    //the model doesn't know the way, in which case we're somewhere along it, and we know where.
+    private String route(BiPredicate<String, String> target) throws GQIOException, GQProtocolException, GQInterruptedException{
+        var menu = menu();
+        if(!menu.located() && !menu.locate(get_mode()))
+            return null;
+        
+        //GETMODE alone might have us select the wrong item, so find out which one's highlighted first
+        if(!menu.placed()){
+            var k = menu.placing_key();
+            if(k < 0)
+                return null;
+            press(k, false);
+        }
+        
+        //Every screen once should be plenty, even if we get sidetracked
+        for(int i = menu.size(); i >= 0; --i){
+            if(target.test(menu.mode(), menu.echo()))
+                return menu.echo();
+            var k = menu.route(target);
+            if(k < 0)
+                return null;
+            press(k, false);
+        }
+        return null;
+    }
+    
+    //What we know of this device version's menus
+    public MenuModel menu(){
+        if(m_menu == null)
+            m_menu = MenuModel.load(m_device_version);
+        return m_menu;
+    }
+    
+    //Whether navigation learns the menus and takes the shortest route it knows, or always feels its way
+    public boolean menu_routing(){ return m_menu_routing; }
+    public void menu_routing(boolean v){ m_menu_routing = v; }
+    
+    private void save_menu(){
+        if(m_menu == null)
+            return;
+        try{
+            m_menu.save(m_device_version);
+        }
+        catch(IOException ex){
+            //Only costs us the learning next time
+        }
+    }
+    
     private Guard<GQException> push_echo(boolean v) throws GQProtocolException, GQIOException, GQInterruptedException, GQUnexpectedException{
         boolean previous = echo();
         echo(v);
@@ -447,6 +473,9 @@ public class GQDevice implements AutoCloseable{
         return ()->set_save_data_onoff(previous);
     }
 
+    //The menu model's name for the Save Data->On/Off screen
+    static private final String save_data_onoff = "save_data_onoff";
+    
     //This must remain sorted. "const" would be nice
     static private final String[] main_modes = levArrays.sort( new String[]{"AllInOneMode RF", "Vertical RF", "TableMode RF", 
         "EMF Graphs", "RF Browser", "2.400 - 2.504 GHz", "240.00 - 1040.00 MHz", "Exit"} );
@@ -467,13 +496,22 @@ public class GQDevice implements AutoCloseable{
         Arrays.sort(target_echos);
         
         try(var eguard = push_echo(true)){
-            while( !is_main_mode(get_mode()) ){
-                es = key_with_echo(0);
+            if(m_menu_routing){
+                var routed = route((mode, echo) -> is_main_mode(mode) || Arrays.binarySearch(target_echos, echo) >= 0);
+                if(routed != null){
+                    save_menu();
+                    return routed;
+                }
+            }
+            
+            while( !is_main_mode(where()) ){
+                es = press(0, false);
                 if(target_echos.length > 0){
                     if(Arrays.binarySearch(target_echos, es) >= 0)
-                        return es;
+                        break;
                 }
             }
+            save_menu();
         }
         catch(GQProtocolException | GQIOException | GQInterruptedException ex){
             throw ex;
@@ -487,7 +525,7 @@ public class GQDevice implements AutoCloseable{
     
     //Verify the mode or throw
     protected void demand_mode(String mode) throws GQInterruptedException, GQProtocolException, GQIOException{
-        var actual = get_mode();
+        var actual = where();
         if(!actual.equals(mode))
             throw new GQProtocolException("Unexpected mode. Wanted: " + mode + ". Got: " + actual);
     }
@@ -502,11 +540,11 @@ public class GQDevice implements AutoCloseable{
         if(current != null)
             first = current;
         else
-            first = key_with_echo(1);
+            first = press(1, false);
 
         String echo;
         if(first.equals(target)) return;
-        while(!(echo = key_with_echo(1)).equals(target)){
+        while(!(echo = press(1, false)).equals(target)){
             //Oops. Wrapped around
             if(echo.equals(first))
                 throw new GQProtocolException("Failed locating menu item: " + target);
@@ -528,7 +566,7 @@ public class GQDevice implements AutoCloseable{
     
     private String navigate_main_menu_impl() throws GQProtocolException, GQIOException, GQInterruptedException{
         navigate_home();
-        var current = key_with_echo(3);
+        var current = press(3, false);
         demand_mode("Main Menu");
         return current;
     }
@@ -551,12 +589,12 @@ public class GQDevice implements AutoCloseable{
             //likely after having visited it before
             var echo = navigate_home("->Save Data");
             if(echo.equals("->Save Data"))
-                return key_with_echo(3);
+                return press(3, false);
             
             //No luck, take the long route
             echo = navigate_main_menu();
             seek_echo("->Save Data", echo);
-            return key_with_echo(3);
+            return press(3, false);
     }
     
     //Navigate to screen: Main Menu->Save Data
@@ -576,9 +614,24 @@ public class GQDevice implements AutoCloseable{
     private String navigate_save_data_onoff_impl() throws GQProtocolException, GQIOException, GQInterruptedException{
         
         try(var guard = push_echo(true)){
+            //Straight there, if we've been before
+            var place = m_menu_routing ? menu().place(save_data_onoff) : null;
+            if(place != null){
+                var echo = route((mode, echo_) -> mode.equals(place));
+                if(echo != null){
+                    save_menu();
+                    return echo;
+                }
+            }
+            
             var echo = navigate_save_data();
             seek_echo("->On/Off", echo);
-            return key_with_echo(3);
+            echo = press(3, false);
+            if(m_menu_routing){
+                m_menu.name(save_data_onoff);
+                save_menu();
+            }
+            return echo;
         }
         catch(GQProtocolException | GQIOException | GQInterruptedException ex){
             throw ex;
@@ -633,9 +686,9 @@ public class GQDevice implements AutoCloseable{
 
                 //Remember to back out of the on/off screen because it will time out
                 //but we prefer well-defined behavior and not race conditions
-                try(Guard<GQException> back_out = ()->key(0) ){
+                try(Guard<GQException> back_out = ()->press(0, false) ){
                     if(m_save_log_status != value){
-                        var newb = onoff2bool(key_with_echo(1));
+                        var newb = onoff2bool(press(1, true));
                         if(newb != value)
                             throw new GQProtocolException("Failed to set data logging status to: " + bool2onoff(value));
                         m_save_log_status = value;
@@ -691,9 +744,9 @@ public class GQDevice implements AutoCloseable{
         return buf;
     }
     
-    private byte[] get_log_impl(int address, int count) throws GQIOException, GQProtocolException, GQInterruptedException{
+    //Waits indefinitely for the reply if idle_timeout is 0
+    private void get_log_impl(int address, byte[] dst, int count, long idle_timeout) throws GQIOException, GQProtocolException, GQInterruptedException{
         String cmd;
-        byte[] result;
         
         try{
             var argbytes = ByteBuffer.allocate(5);
@@ -702,18 +755,20 @@ public class GQDevice implements AutoCloseable{
             cmd = "SPIR" + Util.bytes2String(argbytes.array());
             send_command(cmd);
             //var result = poll_read();
-            result = readNBytes(count);
+            if(idle_timeout > 0)
+                m_in.read(dst, 0, count, idle_timeout);
+            else
+                read(dst, 0, count);
         }
         finally{
             finish_command();
         }
-        return result;
     }
     
-    //Fetch a block of raw binary data directly from device NVM
-    public byte[] get_log(int address, int count) throws GQIOException, GQProtocolException, GQInterruptedException{
+    //Fetch a block of raw binary data directly from device NVM into the start of dst
+    public void get_log(int address, byte[] dst, int count) throws GQIOException, GQProtocolException, GQInterruptedException{
         try{
-            return get_log_impl(address, count);
+            get_log_impl(address, dst, count, 0);
         }
         catch(GQIOException | GQProtocolException | GQInterruptedException ex){
             throw ex;
@@ -723,78 +778,385 @@ public class GQDevice implements AutoCloseable{
         }
     }
     
-    //Scan a block of binary data aligned to the start of a record and read as many records as possible
-    //The number of bytes processed are returned. The start of NVM is always a block start, right?
-    private void parse_chunk(ByteBuffer data, ArrayList<NvmRecordBase> records) throws 
-            GQFramingError, GQProtocolException, RecordTruncatedException, NvmBlankException{
+    public byte[] get_log(int address, int count) throws GQIOException, GQProtocolException, GQInterruptedException{
+        var result = new byte[count];
+        get_log(address, result, count);
+        return result;
+    }
+    
+    //Whether get_log() decodes on this thread while a second one drives the link
+    public boolean pipelined_log(){ return m_pipelined_log; }
+    public void pipelined_log(boolean v){ m_pipelined_log = v; }
+    
+    //Whether get_log() tunes chunk size and command spacing to the link, or sticks to the Config defaults
+    public boolean adaptive_log(){ return m_adaptive_log; }
+    public void adaptive_log(boolean v){
+        if(v != m_adaptive_log)
+            m_tuner = null;
+        m_adaptive_log = v;
+    }
+    
+    //Link settings for log downloads, as learned so far
+    public LinkTuner link_tuner(){
+        if(m_tuner == null)
+            m_tuner = m_adaptive_log ? LinkTuner.load(m_device_version) : new LinkTuner(false);
+        return m_tuner;
+    }
+    
+    //Read and parse the entire device log or until a framing error occurs, which we interpret as EOF
+    //Since the record size is variable, it's unclear what's suppposed to happen at the seam of a full ringbuffer where the head meets the tail
+    //Seems like that could lead to a desync in the middle, but have to wait and see.
+    private LogDataSet get_log_impl(Action progress_f, Ref<Integer> byte_count, SessionTimes all_sessions, SessionTimes guessed_times,
+            LogCheckpoint checkpoint, NvmImage capture) throws GQIOException, GQProtocolException, GQInterruptedException, GQFramingError{
+        
+        var log = new RawLog(Config.log_memory_size / MeasurementRecord.sizeof());
+        if(capture != null)
+            capture.reset(m_device_version);
+        
+        if(checkpoint != null){
+            checkpoint.incremental(false);
+            if(checkpoint.valid() && checkpoint.version().equals(m_device_version)){
+                var decoder = new NvmDecoder(log, checkpoint.resume_address());
+                if(resume_log(checkpoint, decoder, capture)){
+                    var context = log.size();
+                    download_log(decoder, progress_f, checkpoint.address(), capture);
+                    if(decoder.blank()){
+                        checkpoint.incremental(true);
+                        return finish_log(decoder, log, context, checkpoint.address(), byte_count, all_sessions, guessed_times, checkpoint);
+                    }
+                    
+                    //The log filled up memory since last time, and it may have wrapped around onto the start. Read all of it.
+                    log.clear();
+                }
+                if(capture != null)
+                    capture.reset(m_device_version);
+            }
+        }
+        
+        var decoder = new NvmDecoder(log);
+        download_log(decoder, progress_f, 0, capture);
+        return finish_log(decoder, log, 0, 0, byte_count, all_sessions, guessed_times, checkpoint);
+    }
+    
+    //Read back the head of the log and the stretch the checkpoint ends with.
+    //If they're unchanged, decode the latter to pick up from.
+    private boolean resume_log(LogCheckpoint checkpoint, NvmDecoder decoder, NvmImage capture) throws GQIOException, GQProtocolException,
+            GQInterruptedException, GQFramingError{
+        
+        var len = checkpoint.address() - checkpoint.resume_address();
+        if(len <= 0 || len > Config.max_log_chunk_size || checkpoint.address() > Config.log_memory_size ||
+                checkpoint.head_end() > Config.max_log_chunk_size)
+            return false;
+        
+        if(crc(get_log(0, checkpoint.head_end())) != checkpoint.head_crc())
+            return false;
+        
+        var tail = get_log(checkpoint.resume_address(), len);
+        if(crc(tail) != checkpoint.crc())
+            return false;
         
-        while(data.remaining() > 0){
-            records.add( RecordFactory.read(data) );
+        decoder.decode(ByteBuffer.wrap(tail));
+        if(capture != null){
+            capture.add(checkpoint.resume_address(), tail, tail.length);
+            capture.end_context();
         }
+        return decoder.address() == checkpoint.address();
+    }
+    
+    static private long crc(byte[] data){
+        var crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+    
+    //The first context measurements were only decoded to help the time interpolation along
+    private LogDataSet finish_log(NvmDecoder decoder, RawLog log, int context, int start, Ref<Integer> byte_count,
+            SessionTimes all_sessions, SessionTimes guessed_times, LogCheckpoint checkpoint){
         
-        //We only support two record types, but they should all ensure that the buffer position
-        //is restored in the event of a truncation error, as those need to be recoverable
+        finish_download(decoder, start, byte_count, checkpoint);
+        return process_record_times(log, context, all_sessions, guessed_times);
+    }
+    
+    private void finish_download(NvmDecoder decoder, int start, Ref<Integer> byte_count, LogCheckpoint checkpoint){
+        if(byte_count != null)
+            byte_count.value = decoder.address() - start;
         
-        //Return normally if we reach the end of the chunk, though we are more likely to
-        //either hit a partial record or unpolulated NVM space first
+        //If the log ran right up to the end of memory, then it's about to wrap, and there's no telling where to pick up next time
+        if(checkpoint != null){
+            //Picking up from a checkpoint means the head is as it was
+            var head_end = start == 0 ? decoder.head_end() : checkpoint.head_end();
+            var head_crc = start == 0 ? decoder.head_crc() : checkpoint.head_crc();
+            if(decoder.blank() && decoder.time() != NvmDecoder.no_time)
+                checkpoint.update(m_device_version, head_end, head_crc, decoder.time_address(), decoder.address(), decoder.tail_crc(),
+                        decoder.time());
+            else
+                checkpoint.invalidate();
+        }
     }
     
-    //Read and parse the entire device log or until a framing error occurs, which we interpret as EOF
-    //Since the record size is variable, it's unclear what's suppposed to happen at the seam of a full ringbuffer where the head meets the tail
-    //Seems like that could lead to a desync in the middle, but have to wait and see.
-    private LogDataSet get_log_impl(Action progress_f, Ref<Integer> byte_count, SessionTimes all_sessions, SessionTimes guessed_times)
-            throws GQIOException, GQProtocolException, GQInterruptedException, GQFramingError{
+    //As get_log_impl(), with the records going through interp as they're decoded
+    private void stream_log_impl(Action progress_f, Ref<Integer> byte_count, StreamInterpolator interp, LogCheckpoint checkpoint,
+            NvmImage capture) throws GQIOException, GQProtocolException, GQInterruptedException, GQFramingError{
         
-        var result = new ArrayList<NvmRecordBase>();
-        ByteBuffer buf;
-        int addr = 0;
-        int to_read;
-        int min_read = NvmRecordBase.id_size; //minimum bytes needed to make progress
-        int mem_remain;
+        if(capture != null)
+            capture.reset(m_device_version);
         
-        do{
-            mem_remain = Config.log_memory_size - addr;
-            to_read = min(mem_remain, Config.log_chunk_size);
-            
-            //Ran out of memory to read
-            if(to_read < min_read)
-                break;
-           
-            buf = ByteBuffer.wrap(get_log(addr, to_read));
-            
+        if(checkpoint != null){
+            checkpoint.incremental(false);
+            if(checkpoint.valid() && checkpoint.version().equals(m_device_version)){
+                var decoder = new NvmDecoder(interp, checkpoint.resume_address());
+                interp.context(true);
+                var resumed = resume_log(checkpoint, decoder, capture);
+                interp.context(false);
+                if(resumed){
+                    //If the log has filled memory since, what's been passed on stays passed on. We give the rest
+                    //of memory, and leave the checkpoint invalid so the next dump reads it all.
+                    download_log(decoder, progress_f, checkpoint.address(), capture);
+                    interp.finish();
+                    checkpoint.incremental(true);
+                    finish_download(decoder, checkpoint.address(), byte_count, checkpoint);
+                    return;
+                }
+                
+                //Nothing but context has gone in, and none of it has come out
+                interp.reset();
+                if(capture != null)
+                    capture.reset(m_device_version);
+            }
+        }
+        
+        var decoder = new NvmDecoder(interp);
+        download_log(decoder, progress_f, 0, capture);
+        interp.finish();
+        finish_download(decoder, 0, byte_count, checkpoint);
+    }
+    
+    //Fetch from address start to the end of the log
+    private void download_log(NvmDecoder decoder, Action progress_f, int start, NvmImage capture) throws GQIOException, GQProtocolException,
+            GQInterruptedException, GQFramingError{
+        
+        var tuner = link_tuner();
+        try{
+            if(m_pipelined_log)
+                download_log_pipelined(decoder, progress_f, tuner, start, capture);
+            else
+                download_log_serial(decoder, progress_f, tuner, start, capture);
+        }
+        finally{
+            //Other commands go at the usual pace
+            m_command_gap = Config.command_interval;
             try{
-                parse_chunk(buf, result);
+                tuner.save(m_device_version);
+            }
+            catch(IOException ex){
+                //Only costs us the learning next time
+            }
+        }
+    }
+    
+    //Walks log memory in chunks sized by the tuner, fetching chunks again when they go wrong in transit.
+    //It follows the record framing, so it knows where the log stops without waiting on the decoder.
+    //Only ever used from whichever thread is talking to the device.
+    private class LogFetcher{
+        private final LinkTuner m_tuner;
+        private final NvmFramer m_framer;
+        private final NvmImage m_capture;
+        private int m_addr;
+        private int m_garbage_at = -1;  //Where a chunk last failed to frame
+        private int m_failures = 0;     //In a row
+        private boolean m_done;
+        
+        //From start, which is a record boundary
+        LogFetcher(LinkTuner tuner, int start, NvmImage capture){
+            m_tuner = tuner;
+            m_capture = capture;
+            m_framer = new NvmFramer(start);
+            m_addr = start;
+            m_done = start >= Config.log_memory_size;
+        }
+        
+        //Nothing more to fetch, either because the records stopped or because memory did
+        boolean done(){ return m_done; }
+        
+        //Fetch the next chunk into the start of dst, which has room for Config.max_log_chunk_size bytes
+        //Returns the chunk length
+        int next(byte[] dst) throws GQIOException, GQProtocolException, GQInterruptedException{
+            while(true){
+                var len = min(Config.log_memory_size - m_addr, m_tuner.chunk_size());
+                long round_trip;
+                try{
+                    m_command_gap = m_tuner.command_gap();
+                    throttle_wait();
+                    var start = System.nanoTime();
+                    get_log_impl(m_addr, dst, len, Config.reply_timeout);
+                    round_trip = System.nanoTime() - start;
+                }
+                catch(GQTimeoutException ex){
+                    retry(ex, ex.received == 0 ? LinkTuner.Failure.DROPPED : LinkTuner.Failure.SHORT);
+                    continue;
+                }
+                catch(GQStrayDataException ex){
+                    retry(ex, LinkTuner.Failure.STRAY);
+                    continue;
+                }
                 
-                //Ended on a record boundry, so minimum size to read is 2, so that we can
-                //determine the type of next record
-                min_read = NvmRecordBase.id_size;
-                if(progress_f != null) progress_f.apply();
+                var framed = m_framer.walk(dst, m_addr, len);
+                if(!framed && !m_framer.blank() && m_framer.address() != m_garbage_at && m_failures < Config.log_read_retries){
+                    //Possibly damaged in transit. If it's still there the second time, then it's really in memory,
+                    //and it's the end of the log, as it always has been.
+                    m_garbage_at = m_framer.address();
+                    m_framer.undo();
+                    ++m_failures;
+                    m_tuner.failure(LinkTuner.Failure.CORRUPT);
+                    continue;
+                }
+                
+                m_failures = 0;
+                m_tuner.success(len, round_trip);
+                if(m_capture != null)
+                    m_capture.add(m_addr, dst, len);
+                m_addr += len;
+                m_done = !framed || m_addr >= Config.log_memory_size;
+                return len;
             }
-            catch(NvmBlankException ex){
-                //We got blanked memory for framing bytes
+        }
+        
+        //Give up if we've had enough. Otherwise, get the line quiet and back off.
+        private void retry(GQProtocolException ex, LinkTuner.Failure f) throws GQIOException, GQProtocolException, GQInterruptedException{
+            if(++m_failures > Config.log_read_retries)
+                throw ex;
+            m_tuner.failure(f);
+            m_in.drain(Config.drain_quiet_time);
+            finish_command();
+        }
+    }
+    
+    //One chunk at a time: fetch, decode, repeat
+    private void download_log_serial(NvmDecoder decoder, Action progress_f, LinkTuner tuner, int start, NvmImage capture) throws GQIOException, GQProtocolException,
+            GQInterruptedException, GQFramingError{
+        
+        var buf = new byte[Config.max_log_chunk_size];
+        var fetcher = new LogFetcher(tuner, start, capture);
+        
+        //Records which straddle chunks are carried over by the decoder, so the chunks are just back to back
+        while(!fetcher.done()){
+            var len = fetcher.next(buf);
+            var more = decoder.decode(ByteBuffer.wrap(buf, 0, len));
+            if(progress_f != null) progress_f.apply();
+            
+            //We got blanked memory for framing bytes
+            if(!more)
                 break;
+        }
+    }
+    
+    //A chunk of log memory on its way from the link thread to the decoder
+    static private class LogChunk{
+        final byte[] data = new byte[Config.max_log_chunk_size];
+        int length;
+        boolean last;
+    }
+    
+    //The link thread issues SPIR requests back to back, as fast as the device will take them, while this thread decodes.
+    //Buffers circulate between the two threads through a pair of queues, so there's no allocation after startup.
+    //The capture, if any, is filled in on the link thread, and is ours again once it has been joined.
+    private void download_log_pipelined(NvmDecoder decoder, Action progress_f, LinkTuner tuner, int start, NvmImage capture) throws GQIOException, GQProtocolException,
+            GQInterruptedException, GQFramingError{
+        
+        var full = new SpscQueue<LogChunk>(Config.log_queue_depth);
+        var empty = new SpscQueue<LogChunk>(Config.log_queue_depth + 1);
+        for(int i = 0; i < empty.capacity(); ++i)
+            empty.offer(new LogChunk());
+        
+        //Set before the link thread closes the queue, which makes it visible to us once we see the close
+        var error = new Ref<Exception>();
+        
+        var link = new FunctionalThread( () -> {
+            var fetcher = new LogFetcher(tuner, start, capture);
+            try{
+                while(!fetcher.done()){
+                    var chunk = empty.take();
+                    if(chunk == null)
+                        return; //The decoder quit
+                    
+                    chunk.length = fetcher.next(chunk.data);
+                    chunk.last = fetcher.done();
+                    if(!full.put(chunk) || chunk.last)
+                        return;
+                }
             }
-            catch(RecordTruncatedException ex){
-                //There was a partial record, but we remember the minimum size for the next chunk to make progress
-                min_read = ex.size; 
+            catch(Exception ex){
+                error.value = ex;
             }
             finally{
-                //Resume reading device memory at the end of the last successful operation
-                addr += buf.position();
+                full.close();
             }
-        }while(true);
+        });
+        link.setName("GQDevice log download");
+        link.setDaemon(true);
         
-        if(byte_count != null)
-            byte_count.value = addr;
-        
-        return process_record_times(result, all_sessions, guessed_times);
+        LogChunk chunk;
+        try{
+            link.start();
+            do{
+                chunk = full.take();
+                if(chunk == null){
+                    if(error.value != null)
+                        rethrow_log_error(error.value);
+                    throw new GQUnexpectedException("Log download thread quit without finishing", null);
+                }
+                
+                var more = decoder.decode(ByteBuffer.wrap(chunk.data, 0, chunk.length));
+                if(progress_f != null) progress_f.apply();
+                if(!more)
+                    break;
+                empty.offer(chunk);
+            }while(!chunk.last);
+        }
+        catch(InterruptedException ex){
+            link.interrupt();
+            throw new GQInterruptedException(false, "Interrupted downloading device log", ex);
+        }
+        finally{
+            //Let the link thread finish whatever request it's on, so that the line is quiet when we return
+            empty.close();
+            full.close();
+            try{
+                link.join();
+            }
+            catch(InterruptedException ex){
+                link.interrupt();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    static private void rethrow_log_error(Exception ex) throws GQIOException, GQProtocolException, GQInterruptedException{
+        if(ex instanceof GQIOException) throw (GQIOException)ex;
+        if(ex instanceof GQProtocolException) throw (GQProtocolException)ex;
+        if(ex instanceof GQInterruptedException) throw (GQInterruptedException)ex;
+        if(ex instanceof RuntimeException) throw (RuntimeException)ex;
+        throw new GQUnexpectedException("Unexpected exception downloading device log", ex);
     }
     
     public LogDataSet get_log(Action progress_f, Ref<Integer> byte_count, SessionTimes all_sessions, SessionTimes guesses) throws
             GQIOException, GQProtocolException, GQInterruptedException, GQFramingError{
+        return get_log(progress_f, byte_count, all_sessions, guesses, null);
+    }
+    
+    //As above, except that if the checkpoint still matches device memory, we only fetch and return what was logged since.
+    //Either way, the checkpoint is updated to the end of the log. byte_count is the number of new bytes.
+    public LogDataSet get_log(Action progress_f, Ref<Integer> byte_count, SessionTimes all_sessions, SessionTimes guesses,
+            LogCheckpoint checkpoint) throws GQIOException, GQProtocolException, GQInterruptedException, GQFramingError{
+        return get_log(progress_f, byte_count, all_sessions, guesses, checkpoint, null);
+    }
+    
+    //As above, also keeping the raw log memory as it was read, in capture, for NvmImage.replay()
+    public LogDataSet get_log(Action progress_f, Ref<Integer> byte_count, SessionTimes all_sessions, SessionTimes guesses,
+            LogCheckpoint checkpoint, NvmImage capture) throws GQIOException, GQProtocolException, GQInterruptedException, GQFramingError{
         
         try{
-            return get_log_impl(progress_f, byte_count, all_sessions, guesses);
+            return get_log_impl(progress_f, byte_count, all_sessions, guesses, checkpoint, capture);
         }
         catch(GQException ex){
             throw ex;
@@ -804,80 +1166,191 @@ public class GQDevice implements AutoCloseable{
         }
     }
     
-    //Match measurment records with corresponding time records, and then sort them all
-    //Populates a set of all sessions found.
-    //Populates a set of sessions for which we made assumptions regarding time interpolation.
-    private LogDataSet process_record_times(ArrayList<NvmRecordBase> data, SessionTimes all_sessions, SessionTimes guess_sessions){
-        LocalDateTime time = null;
-        int leading_no_times = 0;
-        int seq = 0;
-        var result = new LogDataSet();
-        var result2 = new LogDataSet();
+    //As get_log(), except that rather than being collected and sorted all at once, the records go to sink, in order, as soon
+    //as their times are interpolated, so only a few minutes' worth are held at a time. See StreamInterpolator for how that
+    //can differ from get_log(). Sessions are added to the lists as they end.
+    public void stream_log(Action progress_f, Ref<Integer> byte_count, SessionTimes all_sessions, SessionTimes guesses,
+            LogCheckpoint checkpoint, MeasurementSink sink) throws GQIOException, GQProtocolException, GQInterruptedException, GQFramingError{
+        stream_log(progress_f, byte_count, all_sessions, guesses, checkpoint, null, sink);
+    }
+    
+    //As above, also keeping the raw log memory as it was read, in capture
+    public void stream_log(Action progress_f, Ref<Integer> byte_count, SessionTimes all_sessions, SessionTimes guesses,
+            LogCheckpoint checkpoint, NvmImage capture, MeasurementSink sink) throws GQIOException, GQProtocolException,
+            GQInterruptedException, GQFramingError{
         
-        //apply each time record to the subsequent series of measurement records
+        try{
+            stream_log_impl(progress_f, byte_count, new StreamInterpolator(sink, all_sessions, guesses, true), checkpoint, capture);
+        }
+        catch(GQException ex){
+            throw ex;
+        }
+        catch(Exception ex){
+            throw new GQUnexpectedException("Unexpected exception fetching or parsing device data log", ex);
+        }
+    }
+    
+    //As below, for records which have been parsed into objects
+    static public LogDataSet process_record_times(ArrayList<NvmRecordBase> data, SessionTimes all_sessions, SessionTimes guess_sessions){
+        var log = new RawLog(data.size());
+        long time = NvmDecoder.no_time;
+        int seq = 0;
         for(var r : data){
             if(r.getClass().equals(TimeRecord.class)){
-                //Record the time and discard the time record
-                //Duplicate time records are ignored
-                if( time==null || !time.equals(r.time) ){
-                    time = r.time;
+                var t = LocalNanos.of(r.time);
+                if(t != time){
+                    time = t;
                     seq = 0;
+                    log.time(t);
                 }
             }
             else{
                 var m = (MeasurementRecord)r;
-                m.time = time;
-                m.seq_no = seq++;
-                if(time == null)
-                    ++leading_no_times;
-                else
-                    if(!result.add(m))
-                        throw new RuntimeException("Unexpected error. Somehow wound up with a duplicate log record or sequence number.");
+                log.measurement(time, seq++, m.get_emfx10(), m.ef, m.rf);
             }
         }
+        return process_record_times(log, all_sessions, guess_sessions);
+    }
+    
+    //Match measurment records with corresponding time records, and then sort them all
+    //Populates a set of all sessions found.
+    //Populates a set of sessions for which we made assumptions regarding time interpolation.
+    static public LogDataSet process_record_times(RawLog data, SessionTimes all_sessions, SessionTimes guess_sessions){
+        return process_record_times(data, 0, all_sessions, guess_sessions);
+    }
+    
+    //The first context measurements, in memory order, are there only to inform the time interpolation. They're left out of the result.
+    static public LogDataSet process_record_times(RawLog data, int context, SessionTimes all_sessions, SessionTimes guess_sessions){
         
         //Empty set if missing all time data
-        if(time == null){
-            result.clear();
-            return result;
-        }
-
+        if(data.last_time() == NvmDecoder.no_time)
+            return new LogDataSet();
+        
+        int ct = data.size(), leading_no_times = data.leading_no_times();
+        long min_time = Long.MAX_VALUE;
+        for(int i = leading_no_times; i < ct; ++i)
+            min_time = Math.min(min_time, data.time_nanos(i));
+        
         //If we have a leading string of records with no time associated,
         //see if the time at the end of the array is consistent with ring-buffer
-        //roll-over
-        //if( time.compareTo( result.get(leading_no_times).time ) <= 0 ){
-        if(time.compareTo( result.first().time ) <= 0){
+        //roll-over. Otherwise, they must be discarded.
+        var wrap = ct > leading_no_times && data.last_time() <= min_time;
+        var n = ct - leading_no_times + (wrap ? leading_no_times : 0);
+        if(n <= 0)
+            return new LogDataSet();
+        
+        //Time, sequence and log index of each row
+        var times = new long[n];
+        var seqs = new int[n];
+        var rows = new int[n];
+        int j = 0;
+        for(int i = leading_no_times; i < ct; ++i, ++j){
+            times[j] = data.time_nanos(i);
+            seqs[j] = data.seq_no(i);
+            rows[j] = i;
+        }
+        if(wrap){
             //The times wrap around, so apply the buffer-end time and sequence to the beginning
-            for(var r : data.subList(0, leading_no_times) ){
-                var r2 = (MeasurementRecord)r;
-                r2.time = time;
-                r2.seq_no = seq++;
-                if(!result.add(r2)) throw new RuntimeException("Unexpected duplicate record!");
+            var seq = data.last_time() == data.time_nanos(ct - 1) ? data.seq_no(ct - 1) + 1 : 0;
+            for(int i = 0; i < leading_no_times; ++i, ++j){
+                times[j] = data.last_time();
+                seqs[j] = seq++;
+                rows[j] = i;
             }
         }
-        //Leading records lacking times must be discarded if the surrounding times don't wrap
-        if(result.size() <= 0)
-            return result;
         
-        var sessions = TimeInterpolate.divide_into_sessions(result);
+        //Mostly in order already, so this is cheap
+        sort_rows(times, seqs, rows);
+        for(int i = 1; i < n; ++i){
+            if(times[i - 1] == times[i] && seqs[i - 1] == seqs[i])
+                throw new RuntimeException("Unexpected error. Somehow wound up with a duplicate log record or sequence number.");
+        }
         
-        boolean guessed;
-        LocalDateTimeRange dr;
-        for(var s : sessions){
-            guessed = TimeInterpolate.interpolate_session_times(s, result2);
+        var runs = new int[n + 1];
+        var nruns = TimeInterpolate.divide_into_runs(times, 0, n, runs);
+        var sessions = new int[nruns + 1];
+        var nsessions = TimeInterpolate.divide_into_sessions(times, runs, nruns, sessions);
+        var flags = new byte[n];
+        Arrays.fill(flags, TimeInterpolate.untimed);
+        
+        //Sessions don't depend on each other, so they're interpolated in parallel, each into its own sorted set.
+        //The first context measurements in the log weren't wrapped around, so they're the ones with low indices.
+        var guessed = new boolean[nsessions];
+        var sets = new LogDataSet[nsessions];
+        IntStream.range(0, nsessions).parallel().forEach(k -> {
+            guessed[k] = TimeInterpolate.interpolate_session_times(times, flags, runs, sessions[k], sessions[k + 1]);
             
-            LocalDateTime t0=s.get(0).time, t1=s.get(s.size() -1).time;
+            //Interpolated times can collide. The first one in wins.
+            var set = new LogDataSet.Builder();
+            for(int i = runs[sessions[k]], end = runs[sessions[k + 1]]; i < end; ++i){
+                var r = rows[i];
+                if(flags[i] == TimeInterpolate.untimed || (r >= leading_no_times && r < context))
+                    continue;
+                set.measurement(times[i], seqs[i], flags[i] == TimeInterpolate.uncertain, data.emfx10(r), data.ef(r), data.rf(r));
+            }
+            sets[k] = set.build();
+        });
+        
+        LocalDateTimeRange dr;
+        for(int k = 0; k < nsessions; ++k){
+            var t0 = LocalNanos.to_local(times[runs[sessions[k]]]);
+            var t1 = LocalNanos.to_local(times[runs[sessions[k + 1]] - 1]);
             dr = new LocalDateTimeRange(t0, t1);
             
             if(all_sessions != null)
                 all_sessions.add( dr );
                 
-            if(guessed && guess_sessions != null){
+            if(guessed[k] && guess_sessions != null){
                 guess_sessions.add( dr );
             }
         }
         
-        return result2;
+        //Sessions which ran into each other once interpolated are merged, and the earlier one wins. Otherwise it's a copy.
+        return LogDataSet.merge(Arrays.asList(sets));
+    }
+    
+    //Sorts the rows by time and then sequence, all three arrays together. Stable, though there shouldn't be any ties.
+    static private void sort_rows(long[] times, int[] seqs, int[] rows){
+        var n = times.length;
+        var sorted = true;
+        for(int i = 1; i < n && sorted; ++i)
+            sorted = row_less_equal(times, seqs, i - 1, i);
+        if(sorted)
+            return;
+        
+        //Merge sort an ordering, bottom up, and then apply it
+        var order = new int[n];
+        var tmp = new int[n];
+        for(int i = 0; i < n; ++i)
+            order[i] = i;
+        for(int width = 1; width < n; width *= 2){
+            for(int lo = 0; lo < n; lo += 2 * width){
+                int mid = Math.min(lo + width, n), hi = Math.min(lo + 2 * width, n);
+                int a = lo, b = mid, k = lo;
+                while(a < mid && b < hi)
+                    tmp[k++] = row_less_equal(times, seqs, order[a], order[b]) ? order[a++] : order[b++];
+                while(a < mid)
+                    tmp[k++] = order[a++];
+                while(b < hi)
+                    tmp[k++] = order[b++];
+            }
+            var swap = order;
+            order = tmp;
+            tmp = swap;
+        }
+        
+        var t = times.clone();
+        var s = seqs.clone();
+        var r = rows.clone();
+        for(int i = 0; i < n; ++i){
+            times[i] = t[order[i]];
+            seqs[i] = s[order[i]];
+            rows[i] = r[order[i]];
+        }
+    }
+    
+    static private boolean row_less_equal(long[] times, int[] seqs, int a, int b){
+        return times[a] < times[b] || (times[a] == times[b] && seqs[a] <= seqs[b]);
     }
     
     /*
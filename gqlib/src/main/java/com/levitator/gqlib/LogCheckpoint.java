@@ -0,0 +1,117 @@
+package com.levitator.gqlib;
+
+import com.levitator.util.LocalNanos;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.Properties;
+
+/*
+*
+* Where the last log dump left off, so that the next one can fetch only what was logged since
+*
+* We remember the address of the latest TimeRecord, the end of the log, and a CRC of the bytes in between,
+* along with a CRC of the first few records. Next time, we read those back. If they're unchanged, then
+* the log has only grown, and we pick up at the end, with the tail on hand to give the time interpolation
+* some context. If either has changed, then the log was cleared or has wrapped around, and we start over
+* from address 0.
+*
+*/
+public class LogCheckpoint {
+
+    private String m_version = null;
+    private int m_resume = -1;          //Address of the latest TimeRecord
+    private int m_address = -1;         //End of the log
+    private long m_crc = 0;             //Of [resume, address)
+    private int m_head_end = 0;
+    private long m_head_crc = 0;        //Of [0, head_end)
+    private long m_time = Long.MIN_VALUE;
+    private boolean m_incremental = false;
+
+    public LogCheckpoint(){
+    }
+
+    //Nothing to go on. The next dump will be a full one.
+    public boolean valid(){ return m_version != null && m_head_end > 0 && m_resume >= 0 && m_address >= m_resume; }
+    public void invalidate(){ m_version = null; m_resume = m_address = -1; }
+
+    public String version(){ return m_version; }
+    public int resume_address(){ return m_resume; }
+    public int address(){ return m_address; }
+    public long crc(){ return m_crc; }
+    public int head_end(){ return m_head_end; }
+    public long head_crc(){ return m_head_crc; }
+    public LocalDateTime time(){ return LocalNanos.to_local(m_time); }
+
+    //Whether the last dump through this checkpoint picked up where the one before left off
+    public boolean incremental(){ return m_incremental; }
+
+    void update(String version, int head_end, long head_crc, int resume, int address, long crc, long time){
+        m_version = version;
+        m_head_end = head_end;
+        m_head_crc = head_crc;
+        m_resume = resume;
+        m_address = address;
+        m_crc = crc;
+        m_time = time;
+    }
+
+    void incremental(boolean v){ m_incremental = v; }
+
+    //An invalid checkpoint if the file is missing or unreadable
+    static public LogCheckpoint load(Path path){
+        var result = new LogCheckpoint();
+        if(!Files.isReadable(path))
+            return result;
+
+        var props = new Properties();
+        try(Reader in = Files.newBufferedReader(path)){
+            props.load(in);
+            result.update(props.getProperty("version"),
+                    Integer.parseInt(props.getProperty("head_end")),
+                    Long.parseLong(props.getProperty("head_crc")),
+                    Integer.parseInt(props.getProperty("resume_address")),
+                    Integer.parseInt(props.getProperty("address")),
+                    Long.parseLong(props.getProperty("crc")),
+                    Long.parseLong(props.getProperty("time")));
+        }
+        catch(IOException | RuntimeException ex){
+            result.invalidate();
+        }
+        return result;
+    }
+
+    //Replaces the old file atomically, or deletes it if there's nothing valid to save
+    public void save(Path path) throws IOException{
+        if(!valid()){
+            Files.deleteIfExists(path);
+            return;
+        }
+
+        var props = new Properties();
+        props.setProperty("version", m_version);
+        props.setProperty("head_end", Integer.toString(m_head_end));
+        props.setProperty("head_crc", Long.toString(m_head_crc));
+        props.setProperty("resume_address", Integer.toString(m_resume));
+        props.setProperty("address", Integer.toString(m_address));
+        props.setProperty("crc", Long.toString(m_crc));
+        props.setProperty("time", Long.toString(m_time));
+
+        var dir = path.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        var tmp = Files.createTempFile(dir, "checkpoint-", ".tmp");
+        try{
+            try(Writer out = Files.newBufferedWriter(tmp)){
+                props.store(out, "Log dump checkpoint");
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally{
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -1,7 +1,367 @@
 package com.levitator.gqlib;
 
-import com.levitator.gqlib.structures.MeasurementRecord;
-import java.util.TreeSet;
+import com.levitator.gqlib.structures.IMeasurement;
+import com.levitator.gqlib.structures.MeasurementSink;
+import com.levitator.util.LocalNanos;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
-//typedef?
-public class LogDataSet extends TreeSet<MeasurementRecord>{}
+/*
+*
+* A time-ordered log of samples, stored column-wise in primitive arrays
+*
+* A full device log is on the order of 80k samples, and archives hold years of them, so we don't
+* spend an object (and a tree node) on each one. Rows are ordered by (time, sequence), and may only be
+* appended in that order. Reading goes through a Cursor, which is a movable view of one row.
+*
+*/
+public class LogDataSet implements Iterable<IMeasurement>{
+
+    static private final int default_capacity = 1024;
+
+    private int m_size = 0;
+    private long[] m_time;          //LocalNanos
+    private int[] m_seq;
+    private int[] m_emfx10;
+    private float[] m_ef;
+    private float[] m_rf;
+    private long[] m_uncertain;     //One bit per row
+
+    public LogDataSet(){
+        this(default_capacity);
+    }
+
+    public LogDataSet(int capacity){
+        capacity = Math.max(capacity, 1);
+        m_time = new long[capacity];
+        m_seq = new int[capacity];
+        m_emfx10 = new int[capacity];
+        m_ef = new float[capacity];
+        m_rf = new float[capacity];
+        m_uncertain = new long[(capacity + 63) >>> 6];
+    }
+
+    public int size(){ return m_size; }
+    public boolean isEmpty(){ return m_size == 0; }
+    public void clear(){
+        m_size = 0;
+        Arrays.fill(m_uncertain, 0);
+    }
+
+    private void grow(int min){
+        var cap = Math.max(min, m_time.length * 2);
+        m_time = Arrays.copyOf(m_time, cap);
+        m_seq = Arrays.copyOf(m_seq, cap);
+        m_emfx10 = Arrays.copyOf(m_emfx10, cap);
+        m_ef = Arrays.copyOf(m_ef, cap);
+        m_rf = Arrays.copyOf(m_rf, cap);
+        m_uncertain = Arrays.copyOf(m_uncertain, (cap + 63) >>> 6);
+    }
+
+    public void ensure_capacity(int cap){
+        if(cap > m_time.length)
+            grow(cap);
+    }
+
+    static private int compare(long t0, int s0, long t1, int s1){
+        var comp = Long.compare(t0, t1);
+        return comp != 0 ? comp : Integer.compare(s0, s1);
+    }
+
+    //Append a row which sorts after all of the others
+    //Returns false, and leaves the set alone, if it duplicates the last row's time and sequence, as a set would
+    //Throws if it sorts before the last row
+    public boolean add(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+        if(m_size > 0){
+            var comp = compare(time, seq, m_time[m_size - 1], m_seq[m_size - 1]);
+            if(comp == 0)
+                return false;
+            if(comp < 0)
+                throw new IllegalArgumentException("Measurement appended out of order: " + LocalNanos.to_local(time) + " #" + seq);
+        }
+
+        if(m_size == m_time.length)
+            grow(m_size + 1);
+
+        var i = m_size++;
+        m_time[i] = time;
+        m_seq[i] = seq;
+        m_emfx10[i] = emfx10;
+        m_ef[i] = ef;
+        m_rf[i] = rf;
+        if(uncertain)
+            m_uncertain[i >>> 6] |= 1L << i;
+        else
+            m_uncertain[i >>> 6] &= ~(1L << i);
+        return true;
+    }
+
+    public boolean add(IMeasurement m){
+        return add(m.get_time_nanos(), m.get_seq_no(), m.get_uncertain_time(), m.get_emfx10(), m.get_ef(), m.get_rf());
+    }
+
+    //Whether there's a row with this time and sequence number
+    public boolean contains(long time, int seq){
+        for(int i = lower_bound(time); i < m_size && m_time[i] == time; ++i){
+            if(m_seq[i] == seq)
+                return true;
+        }
+        return false;
+    }
+
+    //Column access by row
+    public long time_nanos(int i){ return m_time[check(i)]; }
+    public LocalDateTime time(int i){ return LocalNanos.to_local(time_nanos(i)); }
+    public int seq_no(int i){ return m_seq[check(i)]; }
+    public boolean uncertain_time(int i){ return uncertain_bit(check(i)); }
+    public int emfx10(int i){ return m_emfx10[check(i)]; }
+    public float ef(int i){ return m_ef[check(i)]; }
+    public float rf(int i){ return m_rf[check(i)]; }
+
+    //The columns themselves, for bulk numeric work such as LogStats. Only the first size() entries are rows, and they
+    //mustn't be changed. Adding rows may replace the arrays.
+    public long[] time_column(){ return m_time; }
+    public int[] emfx10_column(){ return m_emfx10; }
+    public float[] ef_column(){ return m_ef; }
+    public float[] rf_column(){ return m_rf; }
+
+    private boolean uncertain_bit(int i){ return (m_uncertain[i >>> 6] & (1L << i)) != 0; }
+
+    private int check(int i){
+        if(i < 0 || i >= m_size)
+            throw new IndexOutOfBoundsException("Row " + i + " of " + m_size);
+        return i;
+    }
+
+    //Index of the first row at or after time t, or size() if there is none
+    public int lower_bound(long t){
+        int lo = 0, hi = m_size;
+        while(lo < hi){
+            var mid = (lo + hi) >>> 1;
+            if(m_time[mid] < t) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    //Index of the first row after time t, or size() if there is none
+    public int upper_bound(long t){
+        int lo = 0, hi = m_size;
+        while(lo < hi){
+            var mid = (lo + hi) >>> 1;
+            if(m_time[mid] <= t) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    public int lower_bound(LocalDateTime t){ return lower_bound(LocalNanos.of(t)); }
+    public int upper_bound(LocalDateTime t){ return upper_bound(LocalNanos.of(t)); }
+
+    //One set out of several, in order. Where rows collide, the one from the earliest set wins.
+    static public LogDataSet merge(List<LogDataSet> sets){
+        long total = 0;
+        for(var s : sets)
+            total += s.m_size;
+        if(total > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Too many rows to merge: " + total);
+        var result = new LogDataSet((int)total);
+        if(consecutive(sets)){
+            for(var s : sets)
+                result.append(s);
+            return result;
+        }
+
+        //Min-heap of set indices, ordered by each set's next row
+        var next = new int[sets.size()];
+        var heap = new int[sets.size()];
+        int n = 0;
+        for(int i = 0; i < sets.size(); ++i){
+            if(!sets.get(i).isEmpty())
+                heap[n++] = i;
+        }
+        for(int i = n / 2 - 1; i >= 0; --i)
+            sift_down(sets, next, heap, n, i);
+
+        while(n > 0){
+            var k = heap[0];
+            var s = sets.get(k);
+            var i = next[k]++;
+            result.add(s.m_time[i], s.m_seq[i], s.uncertain_bit(i), s.m_emfx10[i], s.m_ef[i], s.m_rf[i]);
+            if(next[k] == s.m_size)
+                heap[0] = heap[--n];
+            sift_down(sets, next, heap, n, 0);
+        }
+        return result;
+    }
+
+    //Each set starts after the last one ends, so merging is just copying them end to end
+    static private boolean consecutive(List<LogDataSet> sets){
+        LogDataSet prev = null;
+        for(var s : sets){
+            if(s.m_size == 0)
+                continue;
+            if(prev != null && compare(prev.m_time[prev.m_size - 1], prev.m_seq[prev.m_size - 1], s.m_time[0], s.m_seq[0]) >= 0)
+                return false;
+            prev = s;
+        }
+        return true;
+    }
+
+    //Rows of s, which all sort after ours
+    private void append(LogDataSet s){
+        ensure_capacity(m_size + s.m_size);
+        System.arraycopy(s.m_time, 0, m_time, m_size, s.m_size);
+        System.arraycopy(s.m_seq, 0, m_seq, m_size, s.m_size);
+        System.arraycopy(s.m_emfx10, 0, m_emfx10, m_size, s.m_size);
+        System.arraycopy(s.m_ef, 0, m_ef, m_size, s.m_size);
+        System.arraycopy(s.m_rf, 0, m_rf, m_size, s.m_size);
+        for(int i = 0; i < s.m_size; ++i){
+            var j = m_size + i;
+            if(s.uncertain_bit(i))
+                m_uncertain[j >>> 6] |= 1L << j;
+            else
+                m_uncertain[j >>> 6] &= ~(1L << j);
+        }
+        m_size += s.m_size;
+    }
+
+    static private boolean heap_less(List<LogDataSet> sets, int[] next, int a, int b){
+        LogDataSet sa = sets.get(a), sb = sets.get(b);
+        int ia = next[a], ib = next[b];
+        var comp = compare(sa.m_time[ia], sa.m_seq[ia], sb.m_time[ib], sb.m_seq[ib]);
+        return comp != 0 ? comp < 0 : a < b;
+    }
+
+    static private void sift_down(List<LogDataSet> sets, int[] next, int[] heap, int n, int i){
+        while(true){
+            int least = i, l = 2 * i + 1, r = l + 1;
+            if(l < n && heap_less(sets, next, heap[l], heap[least])) least = l;
+            if(r < n && heap_less(sets, next, heap[r], heap[least])) least = r;
+            if(least == i)
+                return;
+            var t = heap[i];
+            heap[i] = heap[least];
+            heap[least] = t;
+            i = least;
+        }
+    }
+
+    //Rows from inclusive start to exclusive end, as a new set
+    public LogDataSet range(int start, int end){
+        if(start < 0 || end > m_size || start > end)
+            throw new IndexOutOfBoundsException("Range [" + start + ", " + end + ") of " + m_size);
+        var result = new LogDataSet(end - start);
+        for(int i = start; i < end; ++i)
+            result.add(m_time[i], m_seq[i], uncertain_time(i), m_emfx10[i], m_ef[i], m_rf[i]);
+        return result;
+    }
+
+    //Rows with times in [from, to]
+    public LogDataSet range(LocalDateTime from, LocalDateTime to){
+        return range(lower_bound(from), Math.max(lower_bound(from), upper_bound(to)));
+    }
+
+    //
+    // Building from rows in no particular order
+    //
+
+    //Appends in order where it can. A row from an earlier dump is dropped if it's already there, and otherwise
+    //goes to a side run. Runs are merged at the end.
+    static public class Builder implements MeasurementSink{
+        private final LogDataSet m_main = new LogDataSet();
+        private final ArrayList<LogDataSet> m_side = new ArrayList<>();
+        private LogDataSet m_current = m_main;
+
+        @Override
+        public void measurement(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+            if(fits(m_main, time, seq)){
+                m_main.add(time, seq, uncertain, emfx10, ef, rf);
+                m_current = m_main;
+                return;
+            }
+            if(m_main.contains(time, seq))
+                return;
+
+            if(m_current == m_main || !fits(m_current, time, seq)){
+                m_current = new LogDataSet();
+                m_side.add(m_current);
+            }
+            m_current.add(time, seq, uncertain, emfx10, ef, rf);
+        }
+
+        static private boolean fits(LogDataSet s, long time, int seq){
+            return s.m_size == 0 || compare(time, seq, s.m_time[s.m_size - 1], s.m_seq[s.m_size - 1]) >= 0;
+        }
+
+        //Each one sorted, and the first one holds most of the rows. For merging with runs from elsewhere.
+        public List<LogDataSet> runs(){
+            var result = new ArrayList<LogDataSet>(m_side.size() + 1);
+            result.add(m_main);
+            result.addAll(m_side);
+            return result;
+        }
+
+        public LogDataSet build(){
+            return m_side.isEmpty() ? m_main : merge(runs());
+        }
+    }
+
+    //
+    // Flyweight view of one row
+    //
+    public class Cursor implements IMeasurement{
+        private int m_i;
+
+        private Cursor(int i){ m_i = i; }
+
+        public int index(){ return m_i; }
+        public Cursor move(int i){ m_i = check(i); return this; }
+
+        @Override public LocalDateTime get_time(){ return time(m_i); }
+        @Override public long get_time_nanos(){ return time_nanos(m_i); }
+        @Override public int get_seq_no(){ return seq_no(m_i); }
+        @Override public boolean get_uncertain_time(){ return uncertain_time(m_i); }
+        @Override public int get_emfx10(){ return emfx10(m_i); }
+        @Override public float get_ef(){ return ef(m_i); }
+        @Override public float get_rf(){ return rf(m_i); }
+    }
+
+    public Cursor cursor(int i){
+        return new Cursor(check(i));
+    }
+
+    public Cursor first(){
+        if(m_size == 0) throw new NoSuchElementException("Empty LogDataSet");
+        return cursor(0);
+    }
+
+    public Cursor last(){
+        if(m_size == 0) throw new NoSuchElementException("Empty LogDataSet");
+        return cursor(m_size - 1);
+    }
+
+    //Every step returns the same Cursor, moved along. Copy out anything you need to keep.
+    @Override
+    public Iterator<IMeasurement> iterator(){
+        return new Iterator<>(){
+            private final Cursor m_cursor = new Cursor(-1);
+            private int m_next = 0;
+
+            @Override
+            public boolean hasNext(){ return m_next < m_size; }
+
+            @Override
+            public IMeasurement next(){
+                if(m_next >= m_size)
+                    throw new NoSuchElementException();
+                m_cursor.m_i = m_next++;
+                return m_cursor;
+            }
+        };
+    }
+}
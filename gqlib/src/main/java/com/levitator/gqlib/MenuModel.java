@@ -0,0 +1,313 @@
+package com.levitator.gqlib;
+
+import com.levitator.gqlib.config.Config;
+import com.levitator.util.Timer;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.function.BiPredicate;
+
+/*
+*
+* What we've learned of a device version's menus, and where in them the device is
+*
+* A screen is what GETMODE calls it, and the echo we got on landing there: the item highlighted, or the value shown.
+* Each keypress that GQDevice makes with echo on is an edge from one screen to another. One key can lead to different
+* screens, like back from the main menu to whichever home screen we came from, so an edge has an outcome per echo, and
+* the echo tells us which one we got. Only an echo we haven't seen from there costs a GETMODE to find out where we are,
+* and an echo that doesn't fit at all means we'd lost track, so we carry on from where GETMODE says we are.
+*
+* GETMODE by itself doesn't say which item is highlighted, or which value is shown, so it only narrows things down to
+* the screens with that mode. A route from there could select the wrong item, so GQDevice first presses a key which
+* only moves, placing_key(), and the echo says which of them we were on.
+*
+* Knowing where we are, route() finds the fewest keypresses to a screen by breadth-first search, so that navigating
+* doesn't have to ask for the mode at every step, or cycle through menu items to find the one it wants. Edges only come
+* from keys GQDevice has actually pressed, so a route never does anything that the exploratory navigation wouldn't,
+* and edges which change a setting are never part of one. The menus time out by themselves, and the user can press
+* buttons too, so where we are is only trusted for Config.menu_position_ttl after the last key.
+*
+* Saved per device version, as LinkTuner is.
+*
+*/
+public class MenuModel {
+
+    static public final int key_count = 4;
+    static private final int format_version = 1;
+
+    static private class Screen{
+        final String mode, echo;
+        final ArrayList<HashMap<String, Screen>> next = new ArrayList<>(key_count);    //Outcomes of each key, by echo
+        final boolean[] setting = new boolean[key_count];               //The key changes a setting from here
+
+        Screen(String mode, String echo){
+            this.mode = mode;
+            this.echo = echo;
+            for(int k = 0; k < key_count; ++k)
+                next.add(new HashMap<>());
+        }
+    }
+
+    private final HashMap<String, Screen> m_screens = new HashMap<>();
+    private final HashMap<String, String> m_places = new HashMap<>();   //Named screens' modes
+    private final Timer m_since = new Timer();
+    private Screen m_at = null;
+    private ArrayList<Screen> m_maybe = null;   //Screens with the mode GETMODE gave, if that's all we know
+    private Screen m_from = null;   //Where the last key was pressed, if we don't know where it went yet
+    private int m_from_key;
+    private boolean m_from_setting;
+    private boolean m_dirty = false;
+
+    public MenuModel(){
+    }
+
+    static private String id(String mode, String echo){
+        return mode + '\n' + echo;
+    }
+
+    private Screen screen(String mode, String echo){
+        return m_screens.computeIfAbsent(id(mode, echo), k -> new Screen(mode, echo));
+    }
+
+    //
+    // Where we are
+    //
+
+    //If we know at least the mode we're in, and it's recent enough to believe
+    public boolean located(){
+        return (m_at != null || m_maybe != null) && m_since.elapsed() < Config.menu_position_ttl;
+    }
+
+    //If we know the very screen, echo and all
+    public boolean placed(){
+        return m_at != null && located();
+    }
+
+    public void lost(){
+        m_at = null;
+        m_maybe = null;
+        m_from = null;
+    }
+
+    //The current screen's mode, if we're located, and its echo, if we're placed
+    public String mode(){ return m_at != null ? m_at.mode : m_maybe != null ? m_maybe.get(0).mode : null; }
+    public String echo(){ return m_at == null ? null : m_at.echo; }
+
+    //From GETMODE alone, which leaves us located, but not placed. False if we've never seen that mode.
+    public boolean locate(String mode){
+        var maybe = new ArrayList<Screen>();
+        for(var s : m_screens.values()){
+            if(s.mode.equals(mode))
+                maybe.add(s);
+        }
+        lost();
+        m_maybe = maybe.isEmpty() ? null : maybe;
+        m_since.reset();
+        return m_maybe != null;
+    }
+
+    //When located but not placed, a key whose echo will place us: down, up or back, one we've pressed before from every
+    //screen we could be on, without it changing a setting. -1 if there isn't one.
+    public int placing_key(){
+        if(m_maybe == null)
+            return -1;
+        for(var k : new int[]{1, 2, 0}){
+            if(m_maybe.stream().allMatch(s -> !s.setting[k] && !s.next.get(k).isEmpty()))
+                return k;
+        }
+        return -1;
+    }
+
+    //key was pressed, with this echo. Returns false if we don't know where that leaves us, in which case land() should
+    //be told the mode. setting means the key changes a setting from where we were.
+    public boolean follow(int key, String echo, boolean setting){
+        if(!located()){
+            lost();
+            m_since.reset();
+            return false;
+        }
+        m_since.reset();
+
+        if(m_at == null){
+            //Wherever we were, the echo places us if every screen it could have come from agrees where it led
+            Screen to = null;
+            for(var s : m_maybe){
+                var t = s.next.get(key).get(echo);
+                if(t == null)
+                    continue;
+                if(s.setting[key] != setting || (to != null && t != to)){
+                    to = null;
+                    break;
+                }
+                to = t;
+            }
+            //Otherwise we don't know where the key was pressed, so there's no edge to learn
+            lost();
+            m_at = to;
+            return m_at != null;
+        }
+
+        var to = m_at.next.get(key).get(echo);
+        if(to != null && m_at.setting[key] == setting){
+            m_at = to;
+            return true;
+        }
+        m_from = m_at;
+        m_from_key = key;
+        m_from_setting = setting;
+        m_at = null;
+        return false;
+    }
+
+    //After follow() returned false, with what GETMODE says. Learns the edge, if we knew where it started, and if it's
+    //believable that the key could go there as well as where we've seen it go. Back goes wherever we came from, but
+    //otherwise a key only leads to another view of one of the screens it has led to before, like a value screen showing
+    //a different value. Anything else means we were somewhere other than we thought when the key was pressed.
+    public void land(String mode, String echo){
+        var to = screen(mode, echo);
+        if(m_from != null && m_from_key != 0 && !m_from.next.get(m_from_key).isEmpty() &&
+                m_from.next.get(m_from_key).values().stream().noneMatch(s -> s.mode.equals(mode)))
+            m_from = null;
+        if(m_from != null){
+            m_from.next.get(m_from_key).put(echo, to);
+            m_from.setting[m_from_key] = m_from_setting;
+            m_dirty = true;
+        }
+        m_from = null;
+        m_maybe = null;
+        m_at = to;
+        m_since.reset();
+    }
+
+    //Remember the current screen's mode by name
+    public void name(String place){
+        if(m_at != null && !m_at.mode.equals(m_places.put(place, m_at.mode)))
+            m_dirty = true;
+    }
+
+    //Mode of the named screen, or null if we haven't been there
+    public String place(String place){
+        return m_places.get(place);
+    }
+
+    //
+    // Routes
+    //
+
+    //The first key of the shortest known route from here to a screen which satisfies target, given its mode and echo, if
+    //we aren't there already. -1 if there's no known route. Keys which change settings don't count.
+    public int route(BiPredicate<String, String> target){
+        if(!placed())
+            return -1;
+
+        var first = new HashMap<Screen, Integer>();
+        var queue = new ArrayDeque<Screen>();
+        first.put(m_at, -1);
+        queue.add(m_at);
+        while(!queue.isEmpty()){
+            var s = queue.remove();
+            for(int k = 0; k < key_count; ++k){
+                if(s.setting[k])
+                    continue;
+                for(var t : s.next.get(k).values()){
+                    if(first.containsKey(t))
+                        continue;
+                    var key = s == m_at ? k : first.get(s);
+                    if(target.test(t.mode, t.echo))
+                        return key;
+                    first.put(t, key);
+                    queue.add(t);
+                }
+            }
+        }
+        return -1;
+    }
+
+    //Number of screens we know of
+    public int size(){ return m_screens.size(); }
+
+    //
+    // Persistence
+    //
+
+    static private Path profile_path(String version){
+        var name = version == null ? "unknown" : version.trim().replaceAll("[^A-Za-z0-9._-]", "_");
+        return Config.profile_dir.resolve("menu-" + name + ".properties");
+    }
+
+    //What we learned about this device version's menus last time, or nothing if there's nothing usable
+    static public MenuModel load(String version){
+        var path = profile_path(version);
+        var result = new MenuModel();
+        if(!Files.isReadable(path))
+            return result;
+
+        var props = new Properties();
+        try(Reader in = Files.newBufferedReader(path)){
+            props.load(in);
+            if(Integer.parseInt(props.getProperty("format")) != format_version)
+                return new MenuModel();
+
+            for(var name : props.stringPropertyNames()){
+                var value = props.getProperty(name);
+                if(name.startsWith("place.")){
+                    result.m_places.put(name.substring("place.".length()), value);
+                }
+                else if(name.startsWith("edge.")){
+                    var f = value.split("\t", -1);
+                    var from = result.screen(f[0], f[1]);
+                    var key = Integer.parseInt(f[2]);
+                    from.next.get(key).put(f[4], result.screen(f[3], f[4]));
+                    from.setting[key] = Boolean.parseBoolean(f[5]);
+                }
+            }
+            return result;
+        }
+        catch(IOException | RuntimeException ex){
+            //Unreadable or from some other version of us. Start over.
+            return new MenuModel();
+        }
+    }
+
+    //Write out what we've learned, if anything. Replaces the old file atomically.
+    public void save(String version) throws IOException{
+        if(!m_dirty)
+            return;
+
+        var path = profile_path(version);
+        var props = new Properties();
+        props.setProperty("format", Integer.toString(format_version));
+        for(var p : m_places.entrySet())
+            props.setProperty("place." + p.getKey(), p.getValue());
+
+        var edges = new ArrayList<String>();
+        for(var s : m_screens.values()){
+            for(int k = 0; k < key_count; ++k){
+                for(var t : s.next.get(k).values())
+                    edges.add(s.mode + '\t' + s.echo + '\t' + k + '\t' + t.mode + '\t' + t.echo + '\t' + s.setting[k]);
+            }
+        }
+        for(int i = 0; i < edges.size(); ++i)
+            props.setProperty("edge." + i, edges.get(i));
+
+        Files.createDirectories(path.getParent());
+        var tmp = Files.createTempFile(path.getParent(), "menu-", ".tmp");
+        try{
+            try(Writer out = Files.newBufferedWriter(tmp)){
+                props.store(out, "Learned menus for " + version);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally{
+            Files.deleteIfExists(tmp);
+        }
+        m_dirty = false;
+    }
+}
@@ -0,0 +1,174 @@
+package com.levitator.gqlib;
+
+import com.levitator.gqlib.config.Config;
+import com.levitator.gqlib.exceptions.GQFramingError;
+import com.levitator.gqlib.exceptions.GQProtocolException;
+import com.levitator.gqlib.exceptions.GQUserDataFormatException;
+import com.levitator.gqlib.structures.MeasurementRecord;
+import com.levitator.gqlib.structures.NvmDecoder;
+import com.levitator.gqlib.structures.RawLog;
+import com.levitator.util.LocalNanos;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+*
+* The raw log memory that a dump fetched, as it came off the wire, so it can be decoded and interpolated again later
+* without the device
+*
+* The bytes go in as GQDevice reads them, chunk by chunk, with their addresses. A dump which picked up from a
+* checkpoint starts with the stretch of the old log that it reread for context, and context_end() says where that
+* stops, so a replay gives just what the dump gave. Files are gzipped, and written under a temporary name and then
+* renamed, as LogCheckpoint's are.
+*
+*/
+public class NvmImage {
+
+    static public final String extension = ".nvm";
+
+    static private final int magic = 0x47514e56;   //"GQNV"
+    static private final short format_version = 1;
+
+    private String m_version = "";
+    private long m_device_time = NvmDecoder.no_time;
+    private int m_context_end = 0;
+    private final ArrayList<Integer> m_addresses = new ArrayList<>();
+    private final ArrayList<byte[]> m_extents = new ArrayList<>();
+
+    public NvmImage(){
+    }
+
+    //Device version, as reported when the device was opened
+    public String version(){ return m_version; }
+
+    //Device clock when the dump started, or null if nobody said
+    public LocalDateTime device_time(){ return m_device_time == NvmDecoder.no_time ? null : LocalNanos.to_local(m_device_time); }
+    public void device_time(LocalDateTime t){ m_device_time = t == null ? NvmDecoder.no_time : LocalNanos.of(t); }
+
+    //Bytes below this address were only read to help the time interpolation along
+    public int context_end(){ return m_context_end; }
+
+    public int start(){ return m_addresses.isEmpty() ? 0 : m_addresses.get(0); }
+
+    public int byte_count(){
+        int result = 0;
+        for(var e : m_extents)
+            result += e.length;
+        return result;
+    }
+
+    //Starting over, as when an incremental dump finds it has to read everything after all
+    void reset(String version){
+        m_version = version;
+        m_context_end = 0;
+        m_addresses.clear();
+        m_extents.clear();
+    }
+
+    //The next chunk, which follows on from the last one
+    void add(int address, byte[] src, int length){
+        var last = m_extents.size() - 1;
+        if(last >= 0 && m_addresses.get(last) + m_extents.get(last).length != address)
+            throw new IllegalArgumentException("Log chunk at " + address + " doesn't follow on from the last one");
+
+        var data = new byte[length];
+        System.arraycopy(src, 0, data, 0, length);
+        m_addresses.add(address);
+        m_extents.add(data);
+    }
+
+    //Everything so far was context
+    void end_context(){
+        var last = m_extents.size() - 1;
+        m_context_end = last < 0 ? 0 : m_addresses.get(last) + m_extents.get(last).length;
+    }
+
+    //
+    // Replay
+    //
+
+    //Decodes and interpolates the image, exactly as GQDevice.get_log() did when it was captured
+    public LogDataSet replay(SessionTimes all_sessions, SessionTimes guess_sessions) throws GQFramingError, GQProtocolException{
+        var log = new RawLog(byte_count() / MeasurementRecord.sizeof());
+        var decoder = new NvmDecoder(log, start());
+        var context = 0;
+        for(int i = 0; i < m_extents.size(); ++i){
+            if(m_addresses.get(i) == m_context_end)
+                context = log.size();
+            if(!decoder.decode(ByteBuffer.wrap(m_extents.get(i))))
+                break;
+        }
+        if(m_context_end > start() && decoder.address() <= m_context_end)
+            context = log.size();
+        return GQDevice.process_record_times(log, context, all_sessions, guess_sessions);
+    }
+
+    //
+    // Files
+    //
+
+    public void write(Path path) throws IOException{
+        var dir = path.toAbsolutePath().getParent();
+        var tmp = Files.createTempFile(dir, "nvm-", ".tmp");
+        try{
+            try(var out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp), 1 << 16))){
+                out.writeInt(magic);
+                out.writeShort(format_version);
+                out.writeUTF(m_version);
+                out.writeLong(m_device_time);
+                out.writeInt(m_context_end);
+                out.writeInt(m_extents.size());
+                for(int i = 0; i < m_extents.size(); ++i){
+                    out.writeInt(m_addresses.get(i));
+                    out.writeInt(m_extents.get(i).length);
+                    out.write(m_extents.get(i));
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally{
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    static public NvmImage read(Path path) throws IOException, GQUserDataFormatException{
+        var result = new NvmImage();
+        try(var in = new DataInputStream(new GZIPInputStream(Files.newInputStream(path), 1 << 16))){
+            if(in.readInt() != magic)
+                throw new GQUserDataFormatException(path + " is not an NVM image");
+            var v = in.readShort();
+            if(v != format_version)
+                throw new GQUserDataFormatException(path + " is NVM image format version " + v + ". We only know version " + format_version);
+
+            result.m_version = in.readUTF();
+            result.m_device_time = in.readLong();
+            result.m_context_end = in.readInt();
+            var n = in.readInt();
+            for(int i = 0; i < n; ++i){
+                var address = in.readInt();
+                var length = in.readInt();
+                if(address < 0 || length < 0 || length > Config.log_memory_size)
+                    throw new GQUserDataFormatException(path + ": extent " + i + " is out of range");
+                var data = new byte[length];
+                in.readFully(data);
+                result.add(address, data, length);
+            }
+        }
+        catch(java.io.EOFException | java.util.zip.ZipException ex){
+            throw new GQUserDataFormatException(path + " is cut short or corrupt: " + ex.getMessage(), ex);
+        }
+        catch(IllegalArgumentException ex){
+            throw new GQUserDataFormatException(path + ": " + ex.getMessage(), ex);
+        }
+        return result;
+    }
+}
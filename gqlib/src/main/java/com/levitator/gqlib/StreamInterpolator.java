@@ -0,0 +1,303 @@
+package com.levitator.gqlib;
+
+import com.levitator.gqlib.config.Config;
+import com.levitator.gqlib.structures.MeasurementSink;
+import com.levitator.gqlib.structures.NvmDecoder;
+import com.levitator.gqlib.structures.NvmSink;
+import com.levitator.gqlib.structures.RawLog;
+import com.levitator.util.LocalNanos;
+import java.util.Arrays;
+
+/*
+*
+* Time interpolation on the fly, as the NvmDecoder turns out records, for dumps which shouldn't have to hold the whole
+* log in memory
+*
+* A run of records between TimeRecords can be timed as soon as the next TimeRecord comes along, except that the first
+* two runs of a session wait for the third, since the start of a session is extrapolated back from the step after it.
+* The end of a session is extrapolated when we see the gap after it, or on finish(). So we hold on to a run or two,
+* a few minutes' worth of records, and pass on the rest to the sink, flagged as TimeInterpolate would flag them.
+*
+* Measurements from before the first TimeRecord are held until finish(), which is when we know whether the log wrapped
+* around, as GQDevice.process_record_times() does.
+*
+* The end of the log isn't the end of the last session, only of what's been logged of it so far, so its last run is
+* extrapolated, or the whole of it guessed if it has only two runs. The sink hears where that starts, from
+* provisional(), before any of it is passed on. Context records go to the sink's context(), once they're timed.
+*
+* As long as the TimeRecords in the log never go backward, the records and sessions which come out are exactly the
+* ones process_record_times() would give, though not necessarily in order: the start of a session can be extrapolated back
+* over the end of the one before. A LogDataSet.Builder sorts that out, and keeps the earlier session's row, as merge() does.
+* Or, ordered, we do it ourselves, by holding what we've timed until nothing still to come can go before it. The end of a
+* session waits for the third run of the next one. That's exact unless a session's start is extrapolated back past
+* more than the gap before it, and the stragglers are passed on late, rather than lost, if it is.
+*
+* process_record_times() sorts the whole log first, so if the clock was set back, or the log wrapped around with
+* TimeRecords after the seam, it can join up sessions we've already passed on. We take each jump back as the end of
+* a session instead.
+*
+*/
+public class StreamInterpolator implements NvmSink{
+
+    private final MeasurementSink m_sink;
+    private final SessionTimes m_all_sessions, m_guess_sessions;
+    private final boolean m_ordered;
+
+    //Records we're holding: the first two runs of the session until a third begins, and then just the latest run.
+    //Times are the TimeRecord's until they're interpolated.
+    private long[] m_time = new long[256];
+    private int[] m_seq = new int[256];
+    private int[] m_emfx10 = new int[256];
+    private float[] m_ef = new float[256];
+    private float[] m_rf = new float[256];
+    private boolean[] m_context = new boolean[256];
+    private byte[] m_flags = new byte[256];
+    private int m_size = 0;
+
+    private int m_runs = 0;             //In the session so far
+    private long m_run_time;            //TimeRecord time of the latest run
+    private int m_second = 0;           //Where the second run starts, while we're holding it
+    private long m_step = 0;            //Of the last interpolated run, once there are three
+    private long m_session_start;       //Time of the session's first record, once it's interpolated
+    private boolean m_in_context = false;
+
+    //For deciding what to do with the leading measurements
+    private final RawLog m_leading = new RawLog(64);
+    private long m_last_time = NvmDecoder.no_time;
+    private long m_min_time = Long.MAX_VALUE;
+    private long m_last_measured = NvmDecoder.no_time;
+    private int m_last_seq = 0;
+
+    //Timed records waiting their turn, when ordered, sorted by time and then sequence
+    private long[] m_out_time = new long[256];
+    private int[] m_out_seq = new int[256];
+    private boolean[] m_out_uncertain = new boolean[256];
+    private int[] m_out_emfx10 = new int[256];
+    private float[] m_out_ef = new float[256];
+    private float[] m_out_rf = new float[256];
+    private int m_out_size = 0;
+
+    //Sessions are added to either list, if not null, as they end, as process_record_times() adds them
+    public StreamInterpolator(MeasurementSink sink, SessionTimes all_sessions, SessionTimes guess_sessions){
+        this(sink, all_sessions, guess_sessions, false);
+    }
+
+    //If ordered, records are passed on in time order, without duplicates, as a LogDataSet would have them
+    public StreamInterpolator(MeasurementSink sink, SessionTimes all_sessions, SessionTimes guess_sessions, boolean ordered){
+        m_sink = sink;
+        m_all_sessions = all_sessions;
+        m_guess_sessions = guess_sessions;
+        m_ordered = ordered;
+    }
+
+    //While on, measurements only inform the interpolation and aren't passed on, as with process_record_times()'s context
+    public void context(boolean v){ m_in_context = v; }
+
+    //Records held right now
+    public int held(){ return m_size + m_leading.size() + m_out_size; }
+
+    @Override
+    public void time(long nanos){
+        m_last_time = nanos;
+    }
+
+    @Override
+    public void measurement(long time, int seq, int emfx10, float ef, float rf){
+        if(time == NvmDecoder.no_time){
+            m_leading.measurement(time, seq, emfx10, ef, rf);
+            return;
+        }
+
+        m_min_time = Math.min(m_min_time, time);
+        m_last_measured = time;
+        m_last_seq = seq;
+
+        if(m_runs > 0 && time != m_run_time){
+            if(time < m_run_time || (time - m_run_time) / LocalNanos.per_second > Config.max_native_time_granular)
+                end_session(false);
+            else
+                next_run(time);
+        }
+        if(m_runs == 0 || time != m_run_time){
+            m_run_time = time;
+            if(++m_runs == 2)
+                m_second = m_size;
+        }
+        hold(time, seq, emfx10, ef, rf);
+    }
+
+    //The log is over. Ends the last session, with the leading measurements if the log wrapped around, and starts over.
+    public void finish(){
+        m_in_context = false;
+        if(m_leading.size() > 0 && m_last_measured != NvmDecoder.no_time && m_last_time <= m_min_time){
+            //The buffer-end time and sequence carry on at the beginning
+            var seq = m_last_time == m_last_measured ? m_last_seq + 1 : 0;
+            var time = m_last_time;
+            var leading = m_leading.size();
+            for(int i = 0; i < leading; ++i)
+                measurement(time, seq++, m_leading.emfx10(i), m_leading.ef(i), m_leading.rf(i));
+        }
+        end_session(true);
+        release(Long.MAX_VALUE, true);
+        reset();
+    }
+
+    //Drops whatever is held, without passing it on, and starts over
+    public void reset(){
+        m_size = m_runs = m_out_size = 0;
+        m_in_context = false;
+        m_leading.clear();
+        m_last_time = m_last_measured = NvmDecoder.no_time;
+        m_min_time = Long.MAX_VALUE;
+    }
+
+    //A new run starts at time, so the one before it can be interpolated, and the first two, once there's a third
+    private void next_run(long time){
+        if(m_runs == 1)
+            return;
+
+        if(m_runs == 2){
+            m_step = TimeInterpolate.interpolate_run(m_time, m_flags, m_second, m_size, time);
+            var t = m_time[m_second];
+            for(int i = m_second - 1; i >= 0; --i){
+                t -= m_step;
+                m_time[i] = t;
+                m_flags[i] = TimeInterpolate.certain;
+            }
+            m_session_start = m_time[0];
+        }
+        else
+            m_step = TimeInterpolate.interpolate_run(m_time, m_flags, 0, m_size, time);
+        pass_on();
+
+        //The rest of the session comes after the new run's TimeRecord
+        release(time, false);
+    }
+
+    //last if it's the end of the log rather than of the session
+    private void end_session(boolean last){
+        if(m_runs == 0)
+            return;
+
+        boolean guessed;
+        if(m_runs <= 2){
+            //We still have all of it
+            var runs = m_runs == 1 ? new int[]{0, m_size} : new int[]{0, m_second, m_size};
+            guessed = TimeInterpolate.interpolate_session_times(m_time, m_flags, runs, 0, m_runs);
+            m_session_start = m_time[0];
+        }
+        else{
+            //Extrapolate from the last step. The first record goes untimed, as it does in interpolate_session_times().
+            m_flags[0] = TimeInterpolate.untimed;
+            var t = m_time[0];
+            for(int i = 1; i < m_size; ++i){
+                t += m_step;
+                m_time[i] = t;
+                m_flags[i] = TimeInterpolate.certain;
+            }
+            guessed = false;
+        }
+
+        //From the last run's TimeRecord, or the session's first record, if it was all guessed
+        if(last)
+            m_sink.provisional(m_time[0]);
+
+        var dr = new LocalDateTimeRange(LocalNanos.to_local(m_session_start), LocalNanos.to_local(m_time[m_size - 1]));
+        pass_on();
+        m_runs = 0;
+
+        if(m_all_sessions != null)
+            m_all_sessions.add(dr);
+        if(guessed && m_guess_sessions != null)
+            m_guess_sessions.add(dr);
+    }
+
+    //Everything held has its time now
+    private void pass_on(){
+        for(int i = 0; i < m_size; ++i){
+            if(m_flags[i] == TimeInterpolate.untimed)
+                continue;
+            if(m_context[i])
+                m_sink.context(m_time[i], m_seq[i], m_flags[i] == TimeInterpolate.uncertain, m_emfx10[i], m_ef[i], m_rf[i]);
+            else if(m_ordered)
+                order(m_time[i], m_seq[i], m_flags[i] == TimeInterpolate.uncertain, m_emfx10[i], m_ef[i], m_rf[i]);
+            else
+                m_sink.measurement(m_time[i], m_seq[i], m_flags[i] == TimeInterpolate.uncertain, m_emfx10[i], m_ef[i], m_rf[i]);
+        }
+        m_size = 0;
+    }
+
+    //Into its place among those waiting. It's almost always the last one. A duplicate loses to the one already there.
+    private void order(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+        var i = m_out_size;
+        while(i > 0 && (m_out_time[i - 1] > time || (m_out_time[i - 1] == time && m_out_seq[i - 1] > seq)))
+            --i;
+        if(i > 0 && m_out_time[i - 1] == time && m_out_seq[i - 1] == seq)
+            return;
+
+        if(m_out_size == m_out_time.length){
+            var cap = m_out_size * 2;
+            m_out_time = Arrays.copyOf(m_out_time, cap);
+            m_out_seq = Arrays.copyOf(m_out_seq, cap);
+            m_out_uncertain = Arrays.copyOf(m_out_uncertain, cap);
+            m_out_emfx10 = Arrays.copyOf(m_out_emfx10, cap);
+            m_out_ef = Arrays.copyOf(m_out_ef, cap);
+            m_out_rf = Arrays.copyOf(m_out_rf, cap);
+        }
+        var n = m_out_size - i;
+        System.arraycopy(m_out_time, i, m_out_time, i + 1, n);
+        System.arraycopy(m_out_seq, i, m_out_seq, i + 1, n);
+        System.arraycopy(m_out_uncertain, i, m_out_uncertain, i + 1, n);
+        System.arraycopy(m_out_emfx10, i, m_out_emfx10, i + 1, n);
+        System.arraycopy(m_out_ef, i, m_out_ef, i + 1, n);
+        System.arraycopy(m_out_rf, i, m_out_rf, i + 1, n);
+        m_out_time[i] = time;
+        m_out_seq[i] = seq;
+        m_out_uncertain[i] = uncertain;
+        m_out_emfx10[i] = emfx10;
+        m_out_ef[i] = ef;
+        m_out_rf[i] = rf;
+        ++m_out_size;
+    }
+
+    //Passes on the waiting records from before time, or all of them
+    private void release(long time, boolean all){
+        int n = 0;
+        while(n < m_out_size && (all || m_out_time[n] < time)){
+            m_sink.measurement(m_out_time[n], m_out_seq[n], m_out_uncertain[n], m_out_emfx10[n], m_out_ef[n], m_out_rf[n]);
+            ++n;
+        }
+        if(n == 0)
+            return;
+
+        var left = m_out_size - n;
+        System.arraycopy(m_out_time, n, m_out_time, 0, left);
+        System.arraycopy(m_out_seq, n, m_out_seq, 0, left);
+        System.arraycopy(m_out_uncertain, n, m_out_uncertain, 0, left);
+        System.arraycopy(m_out_emfx10, n, m_out_emfx10, 0, left);
+        System.arraycopy(m_out_ef, n, m_out_ef, 0, left);
+        System.arraycopy(m_out_rf, n, m_out_rf, 0, left);
+        m_out_size = left;
+    }
+
+    private void hold(long time, int seq, int emfx10, float ef, float rf){
+        if(m_size == m_time.length){
+            var cap = m_size * 2;
+            m_time = Arrays.copyOf(m_time, cap);
+            m_seq = Arrays.copyOf(m_seq, cap);
+            m_emfx10 = Arrays.copyOf(m_emfx10, cap);
+            m_ef = Arrays.copyOf(m_ef, cap);
+            m_rf = Arrays.copyOf(m_rf, cap);
+            m_context = Arrays.copyOf(m_context, cap);
+            m_flags = Arrays.copyOf(m_flags, cap);
+        }
+        var i = m_size++;
+        m_time[i] = time;
+        m_seq[i] = seq;
+        m_emfx10[i] = emfx10;
+        m_ef[i] = ef;
+        m_rf[i] = rf;
+        m_context[i] = m_in_context;
+        m_flags[i] = TimeInterpolate.untimed;
+    }
+}
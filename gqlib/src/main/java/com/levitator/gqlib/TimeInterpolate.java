@@ -2,10 +2,12 @@ package com.levitator.gqlib;
 
 import com.levitator.gqlib.config.Config;
 import com.levitator.gqlib.structures.MeasurementRecord;
+import com.levitator.util.LocalNanos;
 import com.levitator.util.Pair;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  *
@@ -30,9 +32,9 @@ public class TimeInterpolate {
     }
     
     //For a complete (non-truncated, i.e. not beginng or end of dataset) series of same-timestamp records, calculate the sample rate and interpolate the times
-    //Place the completed records in result.
+    //Place the completed records in result. They are timestamped in place, so result doesn't own copies.
     //Return dt between samples (1/(sample rate))
-    static public Duration interpolate_session_times(ArrayList<MeasurementRecord> sess, LogDataSet result, int di0, int di1){
+    static public Duration interpolate_session_times(ArrayList<MeasurementRecord> sess, List<MeasurementRecord> result, int di0, int di1){
         Duration sd;
         var r0 = sess.get(di0);
         var r1 = sess.get(di1);
@@ -74,7 +76,8 @@ public class TimeInterpolate {
     //We consider this block of records to be continuous, so we will calculate the sample rates betwen time updates
     //and use that to interpolate the times. Then we will extrapolate at both ends using the first and last known sample rates
     //We return true if we were forced to pull default guesses from Config for lack of sufficient data
-    static public boolean interpolate_session_times(ArrayList<MeasurementRecord> sess, LogDataSet result) {
+    //Records go into result in no particular order, so sort it before making a LogDataSet of it
+    static public boolean interpolate_session_times(ArrayList<MeasurementRecord> sess, List<MeasurementRecord> result) {
         
         int i, ct=sess.size(), di0, di1;
         MeasurementRecord r;
@@ -181,14 +184,144 @@ public class TimeInterpolate {
         return false;
     }
     
-    static public ArrayList<ArrayList<MeasurementRecord>> divide_into_sessions(LogDataSet data){
+    //
+    // The same thing over plain arrays, in LocalNanos, without allocating anything per record
+    //
+    // Session and run boundaries are kept as int[]s of start indices, followed by the end. Times are overwritten in place
+    // with the interpolated ones, and each record's flag says how it came out. The results match the LocalDateTime
+    // versions above, nanosecond for nanosecond, Duration's truncating division and all.
+    //
+    
+    static public final byte certain = 0, uncertain = 1;
+    
+    //interpolate_session_times() never gets around to timing the first record of the last run, when there are two or
+    //more deltas, and leaves it out. So do we, so that the two agree.
+    static public final byte untimed = 2;
+    
+    static private long seconds(long s){ return s * LocalNanos.per_second; }
+    
+    //Start of each run of equal times in times[from, to), followed by to. Returns how many runs.
+    //runs needs room for one more than the number of runs.
+    static public int divide_into_runs(long[] times, int from, int to, int[] runs){
+        int n = 0;
+        for(int i = from; i < to; ++i){
+            if(i == from || times[i] != times[i - 1])
+                runs[n++] = i;
+        }
+        runs[n] = to;
+        return n;
+    }
+    
+    //Divides the runs, which must be in time order, into sessions, as divide_into_sessions() does the records.
+    //Each session is given as the index of its first run, followed by the number of runs. Returns how many sessions.
+    //sessions needs room for one more than the number of sessions.
+    static public int divide_into_sessions(long[] times, int[] runs, int nruns, int[] sessions){
+        int n = 0;
+        for(int r = 0; r < nruns; ++r){
+            //As Duration.getSeconds(), which the times being in order keeps from being negative
+            if(r == 0 || (times[runs[r]] - times[runs[r] - 1]) / LocalNanos.per_second > Config.max_native_time_granular)
+                sessions[n++] = r;
+        }
+        sessions[n] = nruns;
+        return n;
+    }
+    
+    //guess_dt().second, in nanoseconds
+    static public long guess_sd(int ct){
+        if(Config.dt_per_sample * (ct - 1) > Config.native_time_granular)
+            return seconds(Config.native_time_granular) / (ct > 1 ? ct - 1 : 1);
+        return seconds(Config.dt_per_sample);
+    }
+    
+    //Interpolates the session made up of the runs runs[first, last), setting flags for each record in it.
+    //Returns true if we had to guess.
+    static public boolean interpolate_session_times(long[] times, byte[] flags, int[] runs, int first, int last){
+        int start = runs[first], ct = runs[last] - start;
+        long t, sd;
+        
+        //No dt
+        if(last - first == 1){
+            var dt = Math.min(Config.dt_per_sample * (ct - 1), Config.native_time_granular);
+            sd = guess_sd(ct);
+            t = times[start] + seconds((Config.native_time_granular - dt) / 2);
+            for(int i = start; i < start + ct; ++i){
+                times[i] = t;
+                flags[i] = uncertain;
+                t += sd;
+            }
+            return true;
+        }
+        
+        //Single dt. The time is accurate where it changes, and we extrapolate outward.
+        var di0 = runs[first + 1];
+        if(last - first == 2){
+            var sd0 = guess_sd(di0 - start);
+            var sd1 = guess_sd(start + ct - di0);
+            var tm = times[di0];
+            flags[di0] = certain;
+            t = tm;
+            for(int i = di0 - 1; i >= start; --i){
+                t -= sd0;
+                times[i] = t;
+                flags[i] = uncertain;
+            }
+            t = tm;
+            for(int i = di0 + 1; i < start + ct; ++i){
+                t += sd1;
+                times[i] = t;
+                flags[i] = uncertain;
+            }
+            return true;
+        }
+        
+        //Two or more deltas. Interpolate between each pair of changes, and extrapolate at both ends.
+        sd = interpolate_run(times, flags, di0, runs[first + 2]);
+        t = times[di0];
+        for(int i = di0 - 1; i >= start; --i){
+            t -= sd;
+            times[i] = t;
+            flags[i] = certain;
+        }
+        
+        int k = first + 2;
+        for(; k + 1 < last; ++k)
+            sd = interpolate_run(times, flags, runs[k], runs[k + 1]);
+        
+        t = times[runs[k]];
+        for(int i = runs[k] + 1; i < start + ct; ++i){
+            t += sd;
+            times[i] = t;
+            flags[i] = certain;
+        }
+        return false;
+    }
+    
+    //From the time at di0 to the time at di1, evenly. Returns the step.
+    static private long interpolate_run(long[] times, byte[] flags, int di0, int di1){
+        return interpolate_run(times, flags, di0, di1, times[di1]);
+    }
+    
+    //As above, toward t1, for when the record at di1 isn't in the arrays
+    static long interpolate_run(long[] times, byte[] flags, int di0, int di1, long t1){
+        var sd = (t1 - times[di0]) / (di1 - di0);
+        var t = times[di0];
+        for(int i = di0; i < di1; ++i){
+            times[i] = t;
+            flags[i] = certain;
+            t += sd;
+        }
+        return sd;
+    }
+    
+    //data must be sorted
+    static public ArrayList<ArrayList<MeasurementRecord>> divide_into_sessions(List<MeasurementRecord> data){
         //Ok. Now we divide the dataset into continuous strings of readings, in case the log contains multiple sessions
         //We just search for pauses or lapses
         var sessions = new ArrayList<ArrayList<MeasurementRecord>>();
         var sess = new ArrayList<MeasurementRecord>();
         
         if(data.size() <= 0) return sessions;
-        var pr = data.first();
+        var pr = data.get(0);
         for(var r : data){    
             //Is there a lapse? If so, push this session and start a new one.
             if(Duration.between(pr.time, r.time).getSeconds() > Config.max_native_time_granular){
@@ -0,0 +1,233 @@
+package com.levitator.gqlib.binlog;
+
+import com.levitator.gqlib.structures.MeasurementSink;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/*
+*
+* Layout of the binary log format, and the column encodings which the writer and reader share
+*
+* A file header, then blocks of up to block_rows rows. Each block has a header, with the row count, the time range
+* and the length of each column, then the columns one after another, each a bit stream padded to a whole byte:
+*
+*   time        first value in full, then the delta, then deltas of deltas, which are nearly always zero
+*               because the interpolated sample interval barely changes
+*   sequence    difference from one more than the last one, so zero within a session
+*   uncertain   one bit per row
+*   EMF x 10    zig-zag varint of the difference from the last one
+*   EF, RF      XOR with the last value, storing only the bits which changed, as in Facebook's Gorilla
+*
+* Everything in a block is relative to the start of the block, so blocks decode independently. All integers
+* in headers are big-endian. The CRC covers the block header and the columns.
+*
+* A file which won't be appended to any more may end with an index of its blocks, with a trailer that says where
+* the index starts, so SegmentStore can find its way around by reading a few bytes from the end.
+*
+*/
+final class BinLog {
+
+    static final int file_magic = 0x47514c47;      //"GQLG"
+    static final short version = 1;
+    static final int file_header_size = 8;         //magic, version, reserved
+
+    static final int block_magic = 0x424c4f4b;     //"BLOK"
+    static final int columns = 6;
+    static final int block_header_size = 4 + 4 + 8 + 8 + 4 * columns + 4;   //magic, count, min and max time, lengths, CRC
+    static final int block_rows = 4096;
+    static final int max_block_rows = 1 << 20;     //Anything bigger isn't ours
+
+    //Optional index after the last block, so that a reader needn't visit every block header: index_magic, entry count,
+    //the entries, and then a trailer at the very end of the file, which says where the index starts
+    static final int index_magic = 0x494e4458;     //"INDX"
+    static final int index_entry_size = 8 + 8 + 8 + 4 + 4;  //offset, min and max time, row count, length with header
+    static final int trailer_magic = 0x47514958;   //"GQIX"
+    static final int trailer_size = 8 + 4 + 4;     //index offset, CRC of the index, magic
+
+    static final int time_column = 0, seq_column = 1, uncertain_column = 2, emf_column = 3, ef_column = 4, rf_column = 5;
+
+    private BinLog(){}
+
+    //Header and columns of the block at buf[at], from the header
+    static int block_length(ByteBuffer buf, int at){
+        int result = block_header_size;
+        for(int i = 0; i < columns; ++i)
+            result += buf.getInt(at + 24 + 4 * i);
+        return result;
+    }
+
+    //Checks the CRC and decodes the block which starts at buf[at], passing along the rows in [from, to].
+    //Returns how many. Throws IllegalStateException if the block is corrupt.
+    static int decode_block(ByteBuffer buf, int at, long from, long to, MeasurementSink sink){
+        if(buf.getInt(at) != block_magic)
+            throw new IllegalStateException("isn't a block");
+        var count = buf.getInt(at + 4);
+        var lengths = new int[columns];
+        for(int i = 0; i < columns; ++i){
+            lengths[i] = buf.getInt(at + 24 + 4 * i);
+            if(lengths[i] < 0)
+                throw new IllegalStateException("has a negative column length");
+        }
+
+        var crc = new CRC32();
+        var payload = block_length(buf, at) - block_header_size;
+        crc.update(buf.duplicate().limit(at + block_header_size - 4).position(at));
+        crc.update(buf.duplicate().limit(at + block_header_size + payload).position(at + block_header_size));
+        if((int)crc.getValue() != buf.getInt(at + block_header_size - 4))
+            throw new IllegalStateException("fails its CRC check");
+
+        var readers = new BitReader[columns];
+        var pos = at + block_header_size;
+        for(int i = 0; i < columns; ++i){
+            readers[i] = new BitReader(buf, pos, lengths[i]);
+            pos += lengths[i];
+        }
+        BitReader time = readers[time_column], seq = readers[seq_column], uncertain = readers[uncertain_column],
+                emf = readers[emf_column], ef = readers[ef_column], rf = readers[rf_column];
+        FloatXor ef_xor = new FloatXor(), rf_xor = new FloatXor();
+
+        long t = 0, delta = 0;
+        long s = -1, e = 0;
+        int result = 0;
+        for(int i = 0; i < count; ++i){
+            if(i == 0)
+                t = time.get(64);
+            else{
+                delta += get_signed(time);
+                t += delta;
+            }
+            s += get_signed(seq) + 1;
+            var u = uncertain.get_bit();
+            e += get_varint(emf);
+            var ef_value = ef_xor.get(ef);
+            var rf_value = rf_xor.get(rf);
+
+            if(t >= from && t <= to){
+                sink.measurement(t, (int)s, u, (int)e, ef_value, rf_value);
+                ++result;
+            }
+        }
+        return result;
+    }
+
+    //Variable-length signed integer, favoring zero and then small values
+    static void put_signed(BitWriter w, long v){
+        if(v == 0)
+            w.put(0, 1);
+        else if(v >= -(1 << 6) && v < (1 << 6)){
+            w.put(0b10, 2);
+            w.put(v, 7);
+        }
+        else if(v >= -(1 << 15) && v < (1 << 15)){
+            w.put(0b110, 3);
+            w.put(v, 16);
+        }
+        else if(v == (int)v){
+            w.put(0b1110, 4);
+            w.put(v, 32);
+        }
+        else{
+            w.put(0b1111, 4);
+            w.put(v, 64);
+        }
+    }
+
+    static long get_signed(BitReader r){
+        if(!r.get_bit()) return 0;
+        if(!r.get_bit()) return r.get_signed(7);
+        if(!r.get_bit()) return r.get_signed(16);
+        if(!r.get_bit()) return r.get_signed(32);
+        return r.get(64);
+    }
+
+    //Zig-zag, then seven bits to the byte, low first, with the top bit set on all but the last
+    static void put_varint(BitWriter w, long v){
+        var zz = (v << 1) ^ (v >> 63);
+        while((zz & ~0x7fL) != 0){
+            w.put((zz & 0x7f) | 0x80, 8);
+            zz >>>= 7;
+        }
+        w.put(zz, 8);
+    }
+
+    static long get_varint(BitReader r){
+        long zz = 0;
+        for(int shift = 0; ; shift += 7){
+            if(shift > 63)
+                throw new IllegalStateException("Varint is too long");
+            var b = r.get(8);
+            zz |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0)
+                break;
+        }
+        return (zz >>> 1) ^ -(zz & 1);
+    }
+
+    //Float column state. The first value goes in whole. After that, a zero bit if nothing changed. Otherwise, the
+    //changed bits, either within the window of the last ones that were stored, or with a new window.
+    static final class FloatXor{
+        private int m_prev;
+        private int m_lead = -1, m_trail;
+
+        void reset(){
+            m_lead = -1;
+        }
+
+        void put(BitWriter w, float f){
+            var bits = Float.floatToRawIntBits(f);
+            if(m_lead < 0){
+                w.put(bits, 32);
+                m_prev = bits;
+                m_lead = 32;    //No window yet, so the first change opens one
+                m_trail = 32;
+                return;
+            }
+
+            var x = bits ^ m_prev;
+            m_prev = bits;
+            if(x == 0){
+                w.put(0, 1);
+                return;
+            }
+
+            int lead = Integer.numberOfLeadingZeros(x), trail = Integer.numberOfTrailingZeros(x);
+            if(lead >= m_lead && trail >= m_trail){
+                w.put(0b10, 2);
+                w.put(x >>> m_trail, 32 - m_lead - m_trail);
+                return;
+            }
+
+            var len = 32 - lead - trail;
+            w.put(0b11, 2);
+            w.put(lead, 5);
+            w.put(len - 1, 5);
+            w.put(x >>> trail, len);
+            m_lead = lead;
+            m_trail = trail;
+        }
+
+        float get(BitReader r){
+            if(m_lead < 0){
+                m_prev = (int)r.get(32);
+                m_lead = 32;
+                m_trail = 32;
+                return Float.intBitsToFloat(m_prev);
+            }
+
+            if(r.get_bit()){
+                if(r.get_bit()){
+                    var lead = (int)r.get(5);
+                    var len = (int)r.get(5) + 1;
+                    if(lead + len > 32)
+                        throw new IllegalStateException("XOR window out of range");
+                    m_lead = lead;
+                    m_trail = 32 - lead - len;
+                }
+                else if(m_lead + m_trail >= 32)
+                    throw new IllegalStateException("XOR window used before it was set");
+                m_prev ^= (int)r.get(32 - m_lead - m_trail) << m_trail;
+            }
+            return Float.intBitsToFloat(m_prev);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.levitator.gqlib.binlog;
+
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.exceptions.GQUserDataFormatException;
+import com.levitator.gqlib.structures.MeasurementSink;
+import com.levitator.util.LocalNanos;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+*
+* Reads the binary log format. See BinLog for the layout.
+*
+* Opening the file reads just the block headers. A block's columns are read and decoded when it's asked for,
+* and range queries skip the blocks whose time range misses. A torn block at the end, as left by a crash in the
+* middle of a write, ends the file early, and truncated() says so. So does an index, though that's not an error.
+*
+*/
+public class BinLogReader implements AutoCloseable{
+
+    private final FileChannel m_in;
+    private final Path m_path;
+    private final ArrayList<Block> m_blocks = new ArrayList<>();
+    private long m_end;
+    private boolean m_truncated = false;
+    private boolean m_indexed = false;
+
+    public class Block{
+        private final long m_offset;
+        private final int m_count;
+        private final long m_min, m_max;
+        private final int[] m_lengths;
+
+        private Block(long offset, int count, long min, long max, int[] lengths){
+            m_offset = offset;
+            m_count = count;
+            m_min = min;
+            m_max = max;
+            m_lengths = lengths;
+        }
+
+        public long offset(){ return m_offset; }
+        public int size(){ return m_count; }
+        public long min_time(){ return m_min; }
+        public long max_time(){ return m_max; }
+
+        //Header and columns, in bytes
+        public int length(){ return BinLog.block_header_size + payload(); }
+
+        public boolean overlaps(long from, long to){ return m_min <= to && m_max >= from; }
+
+        private int payload(){
+            int result = 0;
+            for(var l : m_lengths)
+                result += l;
+            return result;
+        }
+
+        //Rows with times in [from, to], in the order they were written. Returns how many.
+        public int read(long from, long to, MeasurementSink sink) throws IOException, GQUserDataFormatException{
+            var buf = ByteBuffer.allocate(BinLog.block_header_size + payload());
+            while(buf.hasRemaining()){
+                if(m_in.read(buf, m_offset + buf.position()) < 0)
+                    throw corrupt("ends early", null);
+            }
+
+            try{
+                return BinLog.decode_block(buf, 0, from, to, sink);
+            }
+            catch(IllegalStateException ex){
+                throw corrupt(ex.getMessage(), ex);
+            }
+        }
+
+        public int read(MeasurementSink sink) throws IOException, GQUserDataFormatException{
+            return read(Long.MIN_VALUE, Long.MAX_VALUE, sink);
+        }
+
+        private GQUserDataFormatException corrupt(String what, Throwable cause){
+            return new GQUserDataFormatException(m_path + ": block at offset " + m_offset + " " + what, cause);
+        }
+    }
+
+    public BinLogReader(Path path) throws IOException, GQUserDataFormatException{
+        m_path = path;
+        m_in = FileChannel.open(path, StandardOpenOption.READ);
+        try{
+            scan();
+        }
+        catch(IOException | GQUserDataFormatException | RuntimeException ex){
+            m_in.close();
+            throw ex;
+        }
+    }
+
+    private void scan() throws IOException, GQUserDataFormatException{
+        var size = m_in.size();
+        var header = ByteBuffer.allocate(Math.max(BinLog.file_header_size, BinLog.block_header_size));
+
+        header.limit(BinLog.file_header_size);
+        read_fully(header, 0);
+        if(header.position() < BinLog.file_header_size || header.getInt(0) != BinLog.file_magic)
+            throw new GQUserDataFormatException(m_path + " is not a binary log file");
+        if(header.getShort(4) != BinLog.version)
+            throw new GQUserDataFormatException(m_path + " is binary log format version " + header.getShort(4) +
+                    ". We only know version " + BinLog.version);
+
+        long pos = BinLog.file_header_size;
+        while(pos < size){
+            header.clear();
+            read_fully(header, pos);
+            if(header.position() >= 4 && header.getInt(0) == BinLog.index_magic){
+                //Nothing but the index from here on
+                m_end = pos;
+                m_indexed = true;
+                return;
+            }
+            if(header.position() < BinLog.block_header_size || header.getInt(0) != BinLog.block_magic)
+                break;
+
+            var count = header.getInt(4);
+            var lengths = new int[BinLog.columns];
+            long payload = 0;
+            for(int i = 0; i < BinLog.columns; ++i){
+                lengths[i] = header.getInt(24 + 4 * i);
+                if(lengths[i] < 0)
+                    count = -1;
+                payload += lengths[i];
+            }
+            var next = pos + BinLog.block_header_size + payload;
+            if(count < 1 || count > BinLog.max_block_rows || next > size)
+                break;
+
+            m_blocks.add(new Block(pos, count, header.getLong(8), header.getLong(16), lengths));
+            pos = next;
+        }
+        m_end = pos;
+        m_truncated = pos < size;
+    }
+
+    private void read_fully(ByteBuffer buf, long pos) throws IOException{
+        while(buf.hasRemaining()){
+            if(m_in.read(buf, pos + buf.position()) < 0)
+                return;
+        }
+    }
+
+    public List<Block> blocks(){ return Collections.unmodifiableList(m_blocks); }
+
+    //Where the last whole block ends
+    public long end(){ return m_end; }
+
+    //There's something after the last whole block. Probably a write that didn't finish.
+    public boolean truncated(){ return m_truncated; }
+
+    //Sealed with an index, as SegmentStore's segments are
+    public boolean indexed(){ return m_indexed; }
+
+    public long size(){
+        long result = 0;
+        for(var b : m_blocks)
+            result += b.size();
+        return result;
+    }
+
+    //Rows with times in [from, to] (LocalNanos), in file order. Only the blocks which might have some are read.
+    public long read(long from, long to, MeasurementSink sink) throws IOException, GQUserDataFormatException{
+        long result = 0;
+        for(var b : m_blocks){
+            if(b.overlaps(from, to))
+                result += b.read(from, to, sink);
+        }
+        return result;
+    }
+
+    //As a time-ordered set without duplicates. Either end may be null for no limit.
+    public LogDataSet read(LocalDateTime from, LocalDateTime to) throws IOException, GQUserDataFormatException{
+        var result = new LogDataSet.Builder();
+        read(from == null ? Long.MIN_VALUE : LocalNanos.of(from), to == null ? Long.MAX_VALUE : LocalNanos.of(to), result);
+        return result.build();
+    }
+
+    public LogDataSet read_all() throws IOException, GQUserDataFormatException{
+        return read(null, null);
+    }
+
+    @Override
+    public void close() throws IOException{
+        m_in.close();
+    }
+}
@@ -0,0 +1,215 @@
+package com.levitator.gqlib.binlog;
+
+import com.levitator.gqlib.exceptions.GQUserDataFormatException;
+import com.levitator.gqlib.structures.IMeasurement;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/*
+*
+* Writes measurements in the binary log format. See BinLog for the layout.
+*
+* Rows are collected a block at a time, and each block goes out in a single write once it's full, or on flush()
+* or close(). If we die partway through one, BinLogReader ignores the torn block at the end, and the next
+* BinLogWriter to append cuts it off before carrying on.
+*
+*/
+public class BinLogWriter implements AutoCloseable{
+
+    static public final String extension = ".gqlog";
+
+    private final FileChannel m_out;
+
+    //The block in progress, column-wise
+    private final long[] m_time = new long[BinLog.block_rows];
+    private final int[] m_seq = new int[BinLog.block_rows];
+    private final boolean[] m_uncertain = new boolean[BinLog.block_rows];
+    private final int[] m_emfx10 = new int[BinLog.block_rows];
+    private final float[] m_ef = new float[BinLog.block_rows];
+    private final float[] m_rf = new float[BinLog.block_rows];
+    private int m_count = 0;
+
+    private final BitWriter[] m_columns = new BitWriter[BinLog.columns];
+    private final BinLog.FloatXor m_xor = new BinLog.FloatXor();
+    private final CRC32 m_crc = new CRC32();
+    private final ByteBuffer m_header = ByteBuffer.allocate(BinLog.block_header_size);
+
+    //What write_index() will say about each block written so far
+    private final ByteArrayOutputStream m_index = new ByteArrayOutputStream();
+    private int m_blocks = 0;
+    private boolean m_sealed = false;
+
+    public BinLogWriter(Path path, boolean append) throws IOException, GQUserDataFormatException{
+        for(int i = 0; i < m_columns.length; ++i)
+            m_columns[i] = new BitWriter();
+
+        long end = 0;
+        if(append && Files.exists(path) && Files.size(path) > 0){
+            //Don't bury whatever follows behind a torn block
+            try(var in = new BinLogReader(path)){
+                end = in.end();
+            }
+        }
+
+        m_out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try{
+            m_out.truncate(end);
+            m_out.position(end);
+            if(end == 0){
+                var header = ByteBuffer.allocate(BinLog.file_header_size);
+                header.putInt(BinLog.file_magic).putShort(BinLog.version).putShort((short)0).flip();
+                write_fully(header);
+            }
+        }
+        catch(IOException | RuntimeException ex){
+            m_out.close();
+            throw ex;
+        }
+    }
+
+    public void write(long time, int seq, boolean uncertain, int emfx10, float ef, float rf) throws IOException{
+        if(m_sealed)
+            throw new IllegalStateException("Binary log already has its index");
+        var i = m_count++;
+        m_time[i] = time;
+        m_seq[i] = seq;
+        m_uncertain[i] = uncertain;
+        m_emfx10[i] = emfx10;
+        m_ef[i] = ef;
+        m_rf[i] = rf;
+        if(m_count == BinLog.block_rows)
+            flush();
+    }
+
+    public void write(IMeasurement m) throws IOException{
+        write(m.get_time_nanos(), m.get_seq_no(), m.get_uncertain_time(), m.get_emfx10(), m.get_ef(), m.get_rf());
+    }
+
+    public void write(Iterable<? extends IMeasurement> data) throws IOException{
+        for(var m : data)
+            write(m);
+    }
+
+    //Ends the current block early and writes it out
+    public void flush() throws IOException{
+        if(m_count == 0)
+            return;
+
+        for(var c : m_columns)
+            c.reset();
+        encode();
+
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for(int i = 0; i < m_count; ++i){
+            min = Math.min(min, m_time[i]);
+            max = Math.max(max, m_time[i]);
+        }
+
+        m_header.clear();
+        m_header.putInt(BinLog.block_magic).putInt(m_count).putLong(min).putLong(max);
+        for(var c : m_columns)
+            m_header.putInt(c.finish());
+
+        m_crc.reset();
+        m_crc.update(m_header.array(), 0, m_header.position());
+        for(var c : m_columns)
+            m_crc.update(c.buffer(), 0, c.length());
+        m_header.putInt((int)m_crc.getValue()).flip();
+
+        var bufs = new ByteBuffer[BinLog.columns + 1];
+        bufs[0] = m_header;
+        long length = 0;
+        for(int i = 0; i < BinLog.columns; ++i){
+            bufs[i + 1] = ByteBuffer.wrap(m_columns[i].buffer(), 0, m_columns[i].length());
+            length += bufs[i + 1].remaining();
+        }
+        var offset = m_out.position();
+        write_fully(bufs);
+
+        var entry = ByteBuffer.allocate(BinLog.index_entry_size);
+        entry.putLong(offset).putLong(min).putLong(max).putInt(m_count).putInt((int)(BinLog.block_header_size + length));
+        m_index.write(entry.array(), 0, entry.position());
+        ++m_blocks;
+        m_count = 0;
+    }
+
+    //Writes out the last block and then the index, and forces it all to disk. After that the file is finished. Only SegmentStore's files
+    //have one, since a file which is appended to would need it rewriting each time.
+    void write_index() throws IOException{
+        flush();
+        m_sealed = true;
+
+        var entries = m_index.toByteArray();
+        var head = ByteBuffer.allocate(8).putInt(BinLog.index_magic).putInt(m_blocks).flip();
+        m_crc.reset();
+        m_crc.update(head.array(), 0, head.limit());
+        m_crc.update(entries);
+
+        var trailer = ByteBuffer.allocate(BinLog.trailer_size);
+        trailer.putLong(m_out.position()).putInt((int)m_crc.getValue()).putInt(BinLog.trailer_magic).flip();
+        write_fully(head, ByteBuffer.wrap(entries), trailer);
+        m_out.force(true);
+    }
+
+    private void encode(){
+        var time = m_columns[BinLog.time_column];
+        time.put(m_time[0], 64);
+        long delta = 0;
+        for(int i = 1; i < m_count; ++i){
+            var d = m_time[i] - m_time[i - 1];
+            BinLog.put_signed(time, d - delta);
+            delta = d;
+        }
+
+        var seq = m_columns[BinLog.seq_column];
+        long prev = -1;
+        for(int i = 0; i < m_count; ++i){
+            BinLog.put_signed(seq, m_seq[i] - prev - 1);
+            prev = m_seq[i];
+        }
+
+        var uncertain = m_columns[BinLog.uncertain_column];
+        for(int i = 0; i < m_count; ++i)
+            uncertain.put_bit(m_uncertain[i]);
+
+        var emf = m_columns[BinLog.emf_column];
+        prev = 0;
+        for(int i = 0; i < m_count; ++i){
+            BinLog.put_varint(emf, m_emfx10[i] - prev);
+            prev = m_emfx10[i];
+        }
+
+        encode_floats(m_columns[BinLog.ef_column], m_ef);
+        encode_floats(m_columns[BinLog.rf_column], m_rf);
+    }
+
+    private void encode_floats(BitWriter w, float[] values){
+        m_xor.reset();
+        for(int i = 0; i < m_count; ++i)
+            m_xor.put(w, values[i]);
+    }
+
+    private void write_fully(ByteBuffer... bufs) throws IOException{
+        long left = 0;
+        for(var b : bufs)
+            left += b.remaining();
+        while(left > 0)
+            left -= m_out.write(bufs);
+    }
+
+    @Override
+    public void close() throws IOException{
+        try{
+            flush();
+        }
+        finally{
+            m_out.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.levitator.gqlib.binlog;
+
+import java.nio.ByteBuffer;
+
+/*
+*
+* Reads back what BitWriter packs, from a heap or mapped buffer
+*
+* Running off the end means the data is corrupt, which comes out as an IllegalStateException.
+*
+*/
+final class BitReader {
+
+    private final ByteBuffer m_buf;
+    private int m_pos;
+    private final int m_end;
+    private long m_acc = 0;
+    private int m_bits = 0;
+
+    BitReader(ByteBuffer buf, int offset, int length){
+        m_buf = buf;
+        m_pos = offset;
+        m_end = offset + length;
+    }
+
+    //n bits in [1, 64], unsigned
+    long get(int n){
+        if(n > 32)
+            return (get(n - 32) << 32) | get(32);
+        while(m_bits < n){
+            if(m_pos >= m_end)
+                throw new IllegalStateException("Column data ends early");
+            m_acc = (m_acc << 8) | (m_buf.get(m_pos++) & 0xff);
+            m_bits += 8;
+        }
+        m_bits -= n;
+        return (m_acc >>> m_bits) & ((1L << n) - 1);
+    }
+
+    boolean get_bit(){
+        return get(1) != 0;
+    }
+
+    //n bits, sign-extended
+    long get_signed(int n){
+        return (get(n) << (64 - n)) >> (64 - n);
+    }
+}
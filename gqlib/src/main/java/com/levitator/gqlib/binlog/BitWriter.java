@@ -0,0 +1,54 @@
+package com.levitator.gqlib.binlog;
+
+import java.util.Arrays;
+
+/*
+*
+* Packs bit fields, most significant bit first, into a growable byte array
+*
+*/
+final class BitWriter {
+
+    private byte[] m_buf = new byte[1024];
+    private int m_len = 0;      //Whole bytes written
+    private long m_acc = 0;     //Bits not yet written, in the low m_bits
+    private int m_bits = 0;
+
+    //The low n bits of v, for n in [1, 64]
+    void put(long v, int n){
+        if(n > 32){
+            put(v >>> 32, n - 32);
+            put(v, 32);
+            return;
+        }
+        m_acc = (m_acc << n) | (v & ((1L << n) - 1));
+        m_bits += n;
+        while(m_bits >= 8){
+            m_bits -= 8;
+            if(m_len == m_buf.length)
+                m_buf = Arrays.copyOf(m_buf, m_len * 2);
+            m_buf[m_len++] = (byte)(m_acc >>> m_bits);
+        }
+        m_acc &= (1L << m_bits) - 1;
+    }
+
+    void put_bit(boolean b){
+        put(b ? 1 : 0, 1);
+    }
+
+    //Pads out the last byte with zeros. Returns the length in bytes.
+    int finish(){
+        if(m_bits > 0)
+            put(0, 8 - m_bits);
+        return m_len;
+    }
+
+    byte[] buffer(){ return m_buf; }
+    int length(){ return m_len; }
+
+    void reset(){
+        m_len = 0;
+        m_acc = 0;
+        m_bits = 0;
+    }
+}
@@ -0,0 +1,514 @@
+package com.levitator.gqlib.binlog;
+
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.exceptions.GQUserDataFormatException;
+import com.levitator.gqlib.structures.IMeasurement;
+import com.levitator.gqlib.structures.MeasurementSink;
+import com.levitator.util.LocalNanos;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+
+/*
+*
+* A directory of binary log segments, for keeping long-term data and getting at any stretch of it quickly
+*
+* Each append(), or Appender, becomes a new segment, "seg-<number>.gqlog", which is written under a temporary name, forced to
+* disk and then renamed into place, as DumpLog.temp_path() is, so a segment is either all there or not there at all.
+* Segments end with an index of their blocks' time ranges (see BinLogWriter.write_index()), and that's all we read
+* of them, the first time something needs it. Appending alone only lists the directory, so a store which grows by a
+* segment per dump doesn't cost more to append to as it grows. Queries map just the blocks whose time range overlaps,
+* a run of neighbouring blocks to a mapping, and decode them straight out of the page cache. A segment's file is only
+* open while its index is read or it's being queried, so a big store doesn't use up file handles.
+*
+* compact() merges a few of the smallest segments at a time, so a store that gets a small segment per dump doesn't end up
+* with a file per dump forever. A merge streams rows from a block of each segment at a time into the new segment, in time
+* order and without duplicates, and never writes more than max_merged_rows, so neither its memory nor its writing grows
+* with the store. Segments which have grown that big are left as they are. If we die before a merge has deleted the
+* segments it merged, their rows are in the store twice until they're merged again. Queries into a LogDataSet drop
+* them, as they do rows which were appended twice.
+*
+*/
+public class SegmentStore implements AutoCloseable{
+
+    static public final String prefix = "seg-";
+    static private final String temp_suffix = ".tmp";
+    static private final long max_mapping = 1L << 26;
+    static public final int merge_fanin = 8;                //Most segments merged into one at a time
+    static public final long max_merged_rows = 1L << 24;   //Segments are never merged into anything bigger
+
+    private final Path m_dir;
+    private final ArrayList<Segment> m_segments = new ArrayList<>();
+    private final ArrayList<Path> m_unread = new ArrayList<>();     //Segments whose indexes we haven't needed yet
+    private long m_next = 0;
+
+    //One segment's index
+    static private class Segment{
+        final long number;
+        final Path path;
+        long[] offset, min, max;
+        int[] count, length;
+        boolean ordered;            //Blocks are in time order, so we can search and stop early
+        long min_time, max_time;
+        long rows;
+
+        Segment(long number, Path path){
+            this.number = number;
+            this.path = path;
+        }
+
+        void allocate(int n){
+            offset = new long[n];
+            min = new long[n];
+            max = new long[n];
+            count = new int[n];
+            length = new int[n];
+            ordered = true;
+            min_time = Long.MAX_VALUE;
+            max_time = Long.MIN_VALUE;
+            rows = 0;
+        }
+
+        void set(int i, long off, long lo, long hi, int ct, int len){
+            offset[i] = off;
+            min[i] = lo;
+            max[i] = hi;
+            count[i] = ct;
+            length[i] = len;
+            min_time = Math.min(min_time, lo);
+            max_time = Math.max(max_time, hi);
+            rows += ct;
+            if(i > 0 && (lo < min[i - 1] || hi < max[i - 1]))
+                ordered = false;
+        }
+
+        int blocks(){ return offset.length; }
+
+        long size(){ return rows; }
+
+        boolean overlaps(long from, long to){ return min_time <= to && max_time >= from; }
+
+        boolean overlaps(int i, long from, long to){ return min[i] <= to && max[i] >= from; }
+
+        //First block which could have anything at or after from
+        int search(long from){
+            if(!ordered)
+                return 0;
+            int lo = 0, hi = blocks();
+            while(lo < hi){
+                var mid = (lo + hi) >>> 1;
+                if(max[mid] < from)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+
+        long query(long from, long to, MeasurementSink sink) throws IOException, GQUserDataFormatException{
+            try(var channel = FileChannel.open(path, StandardOpenOption.READ)){
+                return query(channel, from, to, sink);
+            }
+        }
+
+        private long query(FileChannel channel, long from, long to, MeasurementSink sink) throws IOException, GQUserDataFormatException{
+            long result = 0;
+            int i = search(from), n = blocks();
+            while(i < n){
+                if(ordered && min[i] > to)
+                    break;
+                if(!overlaps(i, from, to)){
+                    ++i;
+                    continue;
+                }
+
+                //Neighbouring blocks which overlap go in the same mapping
+                var first = i;
+                var end = offset[i] + length[i];
+                ++i;
+                while(i < n && offset[i] == end && overlaps(i, from, to) && end + length[i] - offset[first] <= max_mapping){
+                    end += length[i];
+                    ++i;
+                }
+                result += decode(channel, first, i, end, from, to, sink);
+            }
+            return result;
+        }
+
+        //Block i's rows, sorted and without duplicates
+        LogDataSet block(FileChannel channel, int i) throws IOException, GQUserDataFormatException{
+            var result = new LogDataSet.Builder();
+            decode(channel, i, i + 1, offset[i] + length[i], Long.MIN_VALUE, Long.MAX_VALUE, result);
+            return result.build();
+        }
+
+        private long decode(FileChannel channel, int first, int last, long end, long from, long to, MeasurementSink sink) throws IOException, GQUserDataFormatException{
+            var start = offset[first];
+            var buf = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            long result = 0;
+            for(int j = first; j < last; ++j){
+                try{
+                    result += BinLog.decode_block(buf, (int)(offset[j] - start), from, to, sink);
+                }
+                catch(IllegalStateException | IndexOutOfBoundsException ex){
+                    throw new GQUserDataFormatException(path + ": block at offset " + offset[j] + " " + ex.getMessage(), ex);
+                }
+            }
+            return result;
+        }
+    }
+
+    //Opens the store in dir, creating the directory if need be. Only lists the segments; their indexes are read when
+    //they're first needed.
+    public SegmentStore(Path dir) throws IOException{
+        m_dir = dir;
+        Files.createDirectories(dir);
+
+        var found = new ArrayList<Path>();
+        try(var files = Files.list(dir)){
+            for(var path : (Iterable<Path>)files::iterator){
+                var name = path.getFileName().toString();
+                if(!name.startsWith(prefix))
+                    continue;
+                if(name.endsWith(temp_suffix))
+                    Files.deleteIfExists(path);     //Never finished, so never renamed into place
+                else if(number(path) >= 0)
+                    found.add(path);
+            }
+        }
+        found.sort(Comparator.comparingLong(SegmentStore::number));
+        m_unread.addAll(found);
+        if(!found.isEmpty())
+            m_next = number(found.get(found.size() - 1)) + 1;
+    }
+
+    //Reads the indexes of any segments we haven't yet
+    private void load() throws IOException, GQUserDataFormatException{
+        while(!m_unread.isEmpty()){
+            var path = m_unread.get(0);
+            m_segments.add(open(number(path), path));
+            m_unread.remove(0);
+        }
+    }
+
+    //-1 unless the name is prefix, digits, extension
+    static private long number(Path path){
+        var name = path.getFileName().toString();
+        if(!name.startsWith(prefix) || !name.endsWith(BinLogWriter.extension))
+            return -1;
+        var digits = name.substring(prefix.length(), name.length() - BinLogWriter.extension.length());
+        if(digits.isEmpty() || !digits.chars().allMatch(Character::isDigit))
+            return -1;
+        try{
+            return Long.parseLong(digits);
+        }
+        catch(NumberFormatException ex){
+            return -1;
+        }
+    }
+
+    private Path segment_path(long number){
+        return m_dir.resolve(String.format("%s%08d%s", prefix, number, BinLogWriter.extension));
+    }
+
+    static private Segment open(long number, Path path) throws IOException, GQUserDataFormatException{
+        var result = new Segment(number, path);
+        boolean indexed;
+        try(var channel = FileChannel.open(path, StandardOpenOption.READ)){
+            indexed = read_index(result, channel);
+        }
+        if(!indexed)
+            scan(result);
+        return result;
+    }
+
+    //False if there's no index which checks out
+    static private boolean read_index(Segment seg, FileChannel channel) throws IOException{
+        var size = channel.size();
+        if(size < BinLog.file_header_size + 8 + BinLog.trailer_size)
+            return false;
+
+        var trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - BinLog.trailer_size, BinLog.trailer_size);
+        var at = trailer.getLong(0);
+        if(trailer.getInt(12) != BinLog.trailer_magic || at < BinLog.file_header_size || at > size - BinLog.trailer_size - 8)
+            return false;
+
+        var index = channel.map(FileChannel.MapMode.READ_ONLY, at, size - BinLog.trailer_size - at);
+        var n = index.getInt(4);
+        if(index.getInt(0) != BinLog.index_magic || n < 0 || (long)n * BinLog.index_entry_size != index.capacity() - 8)
+            return false;
+
+        var crc = new CRC32();
+        crc.update(index.duplicate());
+        if((int)crc.getValue() != trailer.getInt(8))
+            return false;
+
+        seg.allocate(n);
+        for(int i = 0; i < n; ++i){
+            var e = 8 + i * BinLog.index_entry_size;
+            var offset = index.getLong(e);
+            var length = index.getInt(e + 28);
+            if(offset < BinLog.file_header_size || length < BinLog.block_header_size || offset + length > at)
+                return false;
+            seg.set(i, offset, index.getLong(e + 8), index.getLong(e + 16), index.getInt(e + 24), length);
+        }
+        return true;
+    }
+
+    //Segments always get an index, but we can do without it
+    static private void scan(Segment seg) throws IOException, GQUserDataFormatException{
+        try(var in = new BinLogReader(seg.path)){
+            var blocks = in.blocks();
+            seg.allocate(blocks.size());
+            for(int i = 0; i < blocks.size(); ++i){
+                var b = blocks.get(i);
+                seg.set(i, b.offset(), b.min_time(), b.max_time(), b.size(), b.length());
+            }
+        }
+    }
+
+    //
+    // Writing
+    //
+
+    //A new segment, written a row at a time and added to the store by commit(). Closing it without committing throws
+    //it away.
+    public class Appender implements AutoCloseable{
+        private final long m_number;
+        private final Path m_path, m_temp;
+        private final BinLogWriter m_writer;
+        private long m_rows = 0;
+        private boolean m_closed = false;
+
+        private Appender() throws IOException{
+            m_number = m_next++;
+            m_path = segment_path(m_number);
+            m_temp = m_path.resolveSibling(m_path.getFileName() + temp_suffix);
+            try{
+                m_writer = new BinLogWriter(m_temp, false);
+            }
+            catch(GQUserDataFormatException ex){
+                //Only from appending to an existing file, which we aren't
+                throw new IOException("Unexpected: " + ex.getMessage(), ex);
+            }
+        }
+
+        public void write(long time, int seq, boolean uncertain, int emfx10, float ef, float rf) throws IOException{
+            m_writer.write(time, seq, uncertain, emfx10, ef, rf);
+            ++m_rows;
+        }
+
+        public void write(Iterable<? extends IMeasurement> data) throws IOException{
+            for(var m : data){
+                m_writer.write(m);
+                ++m_rows;
+            }
+        }
+
+        public long rows(){ return m_rows; }
+
+        //Puts the segment in place. Nothing is added if there were no rows.
+        public void commit() throws IOException{
+            if(m_closed)
+                throw new IllegalStateException("Segment already committed or thrown away");
+            if(m_rows == 0){
+                close();
+                return;
+            }
+
+            m_closed = true;
+            try{
+                try{
+                    m_writer.write_index();
+                }
+                finally{
+                    m_writer.close();
+                }
+                Files.move(m_temp, m_path, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch(IOException | RuntimeException ex){
+                Files.deleteIfExists(m_temp);
+                throw ex;
+            }
+
+            m_unread.add(m_path);
+        }
+
+        @Override
+        public void close() throws IOException{
+            if(m_closed)
+                return;
+            m_closed = true;
+            try{
+                m_writer.close();
+            }
+            finally{
+                Files.deleteIfExists(m_temp);
+            }
+        }
+    }
+
+    //Doesn't need any of the segments already there
+    public Appender appender() throws IOException{
+        return new Appender();
+    }
+
+    //Adds the data as a new segment. Nothing is written if there's no data.
+    public void append(Iterable<? extends IMeasurement> data) throws IOException{
+        if(!data.iterator().hasNext())
+            return;
+
+        try(var a = appender()){
+            a.write(data);
+            a.commit();
+        }
+    }
+
+    //Merges segments while there are more than max_segments, the smallest merge_fanin that fit in max_merged_rows at a
+    //time. Stops early if the only segments left to merge are too big. Returns how many segments were merged away.
+    public int compact(int max_segments) throws IOException, GQUserDataFormatException{
+        int result = 0;
+        while(true){
+            load();
+            if(m_segments.size() <= max_segments)
+                break;
+
+            var by_size = new ArrayList<>(m_segments);
+            by_size.sort(Comparator.comparingLong(Segment::size));
+            var merge = new ArrayList<Segment>();
+            long rows = 0;
+            for(var seg : by_size){
+                if(merge.size() == merge_fanin || rows + seg.size() > max_merged_rows)
+                    break;
+                merge.add(seg);
+                rows += seg.size();
+            }
+            if(merge.size() < 2)
+                break;
+
+            merge(merge);
+            result += merge.size() - 1;
+        }
+        return result;
+    }
+
+    //Where a merge has got to in one block
+    static private class BlockCursor{
+        final LogDataSet rows;
+        int i = 0;
+
+        BlockCursor(LogDataSet rows){
+            this.rows = rows;
+        }
+
+        long time(){ return rows.time_nanos(i); }
+        int seq(){ return rows.seq_no(i); }
+    }
+
+    //Writes the segments' rows as one new segment, in time order and without duplicates, and then deletes them. A block
+    //is only decoded once the merge reaches its first time, so only blocks which overlap in time are in memory together.
+    private void merge(ArrayList<Segment> segs) throws IOException, GQUserDataFormatException{
+        var pending = new ArrayList<int[]>();    //Segment and block, by the block's first time
+        for(int s = 0; s < segs.size(); ++s){
+            for(int b = 0; b < segs.get(s).blocks(); ++b)
+                pending.add(new int[]{s, b});
+        }
+        pending.sort(Comparator.comparingLong(p -> segs.get(p[0]).min[p[1]]));
+
+        var heads = new PriorityQueue<BlockCursor>((a, b) -> a.time() != b.time() ? Long.compare(a.time(), b.time()) :
+                Integer.compare(a.seq(), b.seq()));
+        var channels = new FileChannel[segs.size()];
+        try(var out = appender()){
+            for(int s = 0; s < segs.size(); ++s)
+                channels[s] = FileChannel.open(segs.get(s).path, StandardOpenOption.READ);
+
+            int next = 0;
+            long last_time = 0;
+            int last_seq = 0;
+            while(true){
+                while(next < pending.size() && (heads.isEmpty() || segs.get(pending.get(next)[0]).min[pending.get(next)[1]] <= heads.peek().time())){
+                    var p = pending.get(next++);
+                    var c = new BlockCursor(segs.get(p[0]).block(channels[p[0]], p[1]));
+                    if(c.rows.size() > 0)
+                        heads.add(c);
+                }
+
+                var c = heads.poll();
+                if(c == null)
+                    break;
+                var r = c.rows;
+                var i = c.i;
+                if(out.rows() == 0 || r.time_nanos(i) != last_time || r.seq_no(i) != last_seq){
+                    last_time = r.time_nanos(i);
+                    last_seq = r.seq_no(i);
+                    out.write(last_time, last_seq, r.uncertain_time(i), r.emfx10(i), r.ef(i), r.rf(i));
+                }
+                if(++c.i < r.size())
+                    heads.add(c);
+            }
+            out.commit();
+        }
+        finally{
+            for(var ch : channels){
+                if(ch != null)
+                    ch.close();
+            }
+        }
+
+        //The new one is safely in place. If we stop partway through here, query() still has the right answer.
+        m_segments.removeAll(segs);
+        for(var seg : segs)
+            Files.deleteIfExists(seg.path);
+    }
+
+    //
+    // Reading
+    //
+
+    //Rows with times in [from, to] (LocalNanos), a segment at a time, in the order they were appended.
+    //Rows which were appended more than once come out more than once. Returns how many.
+    public long query(long from, long to, MeasurementSink sink) throws IOException, GQUserDataFormatException{
+        load();
+        long result = 0;
+        for(var seg : m_segments){
+            if(seg.overlaps(from, to))
+                result += seg.query(from, to, sink);
+        }
+        return result;
+    }
+
+    //As a time-ordered set without duplicates. Either end may be null for no limit.
+    public LogDataSet query(LocalDateTime from, LocalDateTime to) throws IOException, GQUserDataFormatException{
+        var result = new LogDataSet.Builder();
+        query(from == null ? Long.MIN_VALUE : LocalNanos.of(from), to == null ? Long.MAX_VALUE : LocalNanos.of(to), result);
+        return result.build();
+    }
+
+    public Path directory(){ return m_dir; }
+
+    public int segments(){ return m_segments.size() + m_unread.size(); }
+
+    //Rows, counting any duplicates
+    public long size() throws IOException, GQUserDataFormatException{
+        load();
+        long result = 0;
+        for(var seg : m_segments)
+            result += seg.size();
+        return result;
+    }
+
+    //Nothing is held open between queries, so this only forgets the indexes
+    @Override
+    public void close(){
+        m_segments.clear();
+        m_unread.clear();
+    }
+}
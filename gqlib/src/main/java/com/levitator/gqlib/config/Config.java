@@ -1,5 +1,6 @@
 package com.levitator.gqlib.config;
 
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
 
@@ -15,20 +16,56 @@ public class Config extends In{
     //Experimentally determined. In ms.
     static public final long command_interval = 85;
     
+    //Log downloads tune the delay and the chunk size to the link as they go, starting from the above and log_chunk_size.
+    //This is as low as the delay goes, in ms.
+    static public final long min_command_interval = 5;
+    
+    //A reply which goes quiet this long (ms) has been dropped or cut short
+    static public final long reply_timeout = 1000;
+    
+    //After a failed command, wait for the line to be quiet this long (ms) before issuing another
+    static public final long drain_quiet_time = 250;
+    
     //Sometimes we don't know when a response is going to end, so we just
     //wait for a quiescent period to decide we're done
     static public final long io_poll_interval = 10;
     
+    //Replies are framed out of a reusable buffer of this size rather than read a byte at a time
+    static public final int reply_buffer_size = 8192;
+    
     //Size of log chunks to retrieve. Mostly influences the rate of progress updates "....etc".
     //Obviously this has to be >= the size of the largest record, but that's just a few bytes
     static public final int log_chunk_size = 4096;
     //static public final int log_chunk_size = 18;
     
+    //Bounds for adaptive chunk sizing. SPIR takes a 16-bit byte count.
+    static public final int min_log_chunk_size = 256;
+    static public final int max_log_chunk_size = 0xffff;
+    
+    //Learn chunk size and command interval during log downloads, rather than sticking with the defaults above
+    static public final boolean adaptive_log = true;
+    
+    //Learn the device's menus, and take the shortest known route through them, rather than feeling our way every time
+    static public final boolean menu_routing = true;
+    
+    //The menus time out by themselves, and the user can press buttons, so after this long (ms) without a key we ask
+    //the device where it is rather than going by the menu model
+    static public final long menu_position_ttl = 3000;
+    
+    //Learned link parameters are kept here, per device version
+    static public final Path profile_dir = Path.of(System.getProperty("user.home"), ".gqlib");
+    
     //1 MB
     static public final int log_memory_size = 1024 * 1024;
     
-    //Number of times to retry if we get a tiny result buffer reading the log
-    //static public final int log_read_retries = 5;
+    //Download the log on a separate link thread, decoding each chunk while the next one is on the wire
+    static public final boolean pipelined_log = true;
+    
+    //Chunks in flight between the link thread and the decoder
+    static public final int log_queue_depth = 4;
+    
+    //Number of times to retry a log chunk which timed out, came back short or garbled, or ran into stray data
+    static public final int log_read_retries = 5;
     
     //Due to a firmware bug, we need to interpret this echo string as if it were a terminated line of text
     static public final String[] unterminated_echo_replies = {"->AllInOne"};
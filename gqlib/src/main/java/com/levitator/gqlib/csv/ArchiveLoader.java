@@ -0,0 +1,215 @@
+package com.levitator.gqlib.csv;
+
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.exceptions.GQUserDataFormatException;
+import com.levitator.util.LocalNanos;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Collectors;
+
+/*
+*
+* Loads a directory full of time-named dump files back into one dataset
+*
+* Dumps written with unique names are called "<first>_to_<last>_<suffix>", with the times in the file name format,
+* so we can tell which files could hold anything in the query window without opening them. Those files are cut
+* into pieces at record boundaries, and the pieces are parsed on a ForkJoinPool, each into a few sorted runs.
+* The runs are merged in one pass, in (time, sequence) order, as MeasurementRecord.compareTo() has it. Dumps of a log
+* which wasn't cleared overlap, so rows which collide are taken from the earliest file.
+*
+*/
+public class ArchiveLoader {
+
+    //Big enough that the per-piece overhead doesn't matter, small enough to keep every core busy
+    static private final long piece_size = 1L << 24;
+
+    private final DateTimeFormatter m_csv_fmt;
+    private final DateTimeFormatter m_name_fmt;
+    private final ForkJoinPool m_pool;
+
+    //One dump file and the time range in its name
+    static public class Entry{
+        private final Path m_path;
+        private final LocalDateTime m_first, m_last;
+
+        private Entry(Path path, LocalDateTime first, LocalDateTime last){
+            m_path = path;
+            m_first = first;
+            m_last = last;
+        }
+
+        public Path path(){ return m_path; }
+        public LocalDateTime first(){ return m_first; }
+        public LocalDateTime last(){ return m_last; }
+
+        //The name is only good to the second
+        boolean overlaps(long from, long to){
+            return LocalNanos.of(m_first) <= to && LocalNanos.of(m_last) + LocalNanos.per_second > from;
+        }
+    }
+
+    public ArchiveLoader(DateTimeFormatter csv_fmt, DateTimeFormatter name_fmt){
+        this(csv_fmt, name_fmt, ForkJoinPool.commonPool());
+    }
+
+    public ArchiveLoader(DateTimeFormatter csv_fmt, DateTimeFormatter name_fmt, ForkJoinPool pool){
+        m_csv_fmt = csv_fmt;
+        m_name_fmt = name_fmt;
+        m_pool = pool;
+    }
+
+    //
+    // Discovery
+    //
+
+    //Dump files anywhere under dir whose names end in "_<suffix>", oldest first
+    public List<Entry> find(Path dir, String suffix) throws IOException{
+        try(var files = Files.walk(dir)){
+            return files.filter(Files::isRegularFile)
+                    .map(p -> entry(p, suffix))
+                    .filter(e -> e != null)
+                    .sorted(Comparator.comparing(Entry::first).thenComparing(Entry::last).thenComparing(Entry::path))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    //Null if the name isn't "<first>_to_<last>_<suffix>"
+    private Entry entry(Path path, String suffix){
+        var name = path.getFileName().toString();
+        var to = name.indexOf("_to_");
+        if(to < 0)
+            return null;
+        var end = name.indexOf('_', to + 4);
+        if(end < 0 || !name.substring(end + 1).equals(suffix))
+            return null;
+
+        try{
+            var first = LocalDateTime.from(m_name_fmt.parse(name.substring(0, to)));
+            var last = LocalDateTime.from(m_name_fmt.parse(name.substring(to + 4, end)));
+            return new Entry(path, first, last);
+        }
+        catch(RuntimeException ex){
+            return null;
+        }
+    }
+
+    //
+    // Loading
+    //
+
+    //Everything in [from, to] from the dumps under dir. Either end may be null for no limit.
+    public LogDataSet load(Path dir, String suffix, LocalDateTime from, LocalDateTime to) throws IOException, GQUserDataFormatException{
+        return load(find(dir, suffix), from, to);
+    }
+
+    public LogDataSet load(List<Entry> files, LocalDateTime from, LocalDateTime to) throws IOException, GQUserDataFormatException{
+        var lo = from == null ? Long.MIN_VALUE : LocalNanos.of(from);
+        var hi = to == null ? Long.MAX_VALUE : LocalNanos.of(to);
+
+        var pieces = new ArrayList<Piece>();
+        for(var f : files){
+            if(f.overlaps(lo, hi))
+                split(f.path(), pieces);
+        }
+        if(pieces.isEmpty())
+            return new LogDataSet();
+
+        List<LogDataSet> runs;
+        try{
+            runs = m_pool.invoke(new Parse(pieces, 0, pieces.size(), lo, hi));
+        }
+        catch(PieceFailed ex){
+            //The pool may have wrapped it again on the way across threads
+            Throwable cause = ex;
+            while(cause instanceof PieceFailed)
+                cause = cause.getCause();
+            if(cause instanceof IOException)
+                throw (IOException)cause;
+            throw (GQUserDataFormatException)cause;
+        }
+        return LogDataSet.merge(runs);
+    }
+
+    //A byte range of a file which starts and ends on record boundaries
+    static private class Piece{
+        final Path path;
+        final long start, end;
+
+        Piece(Path path, long start, long end){
+            this.path = path;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    static private void split(Path path, List<Piece> pieces) throws IOException{
+        try(var in = FileChannel.open(path, StandardOpenOption.READ)){
+            var size = in.size();
+            long start = 0;
+            while(start < size){
+                var end = start + piece_size >= size ? size : CsvImporter.next_record(in, start + piece_size);
+                pieces.add(new Piece(path, start, end));
+                start = end;
+            }
+        }
+    }
+
+    //Checked exceptions can't get out of a RecursiveTask, so they travel in this
+    static private class PieceFailed extends RuntimeException{
+        PieceFailed(Throwable cause){ super(cause); }
+    }
+
+    //Splits the list of pieces in half until there's one left, which it parses. Runs come back in piece order.
+    private class Parse extends RecursiveTask<List<LogDataSet>>{
+        private final List<Piece> m_pieces;
+        private final int m_begin, m_end;
+        private final long m_from, m_to;
+
+        Parse(List<Piece> pieces, int begin, int end, long from, long to){
+            m_pieces = pieces;
+            m_begin = begin;
+            m_end = end;
+            m_from = from;
+            m_to = to;
+        }
+
+        @Override
+        protected List<LogDataSet> compute(){
+            if(m_end - m_begin > 1){
+                var mid = (m_begin + m_end) >>> 1;
+                var left = new Parse(m_pieces, m_begin, mid, m_from, m_to);
+                var right = new Parse(m_pieces, mid, m_end, m_from, m_to);
+                left.fork();
+                var result = new ArrayList<LogDataSet>(right.compute());
+                result.addAll(0, left.join());
+                return result;
+            }
+
+            var piece = m_pieces.get(m_begin);
+            var runs = new LogDataSet.Builder();
+            try{
+                new CsvImporter(m_csv_fmt).read(piece.path, piece.start, piece.end, (time, seq, uncertain, emfx10, ef, rf) -> {
+                    if(time >= m_from && time <= m_to)
+                        runs.measurement(time, seq, uncertain, emfx10, ef, rf);
+                });
+            }
+            catch(GQUserDataFormatException ex){
+                throw new PieceFailed(new GQUserDataFormatException(piece.path + ": " + ex.getMessage(), ex));
+            }
+            catch(IOException ex){
+                throw new PieceFailed(ex);
+            }
+            return runs.runs();
+        }
+    }
+}
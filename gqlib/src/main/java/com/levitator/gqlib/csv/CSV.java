@@ -12,7 +12,10 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  *
@@ -50,19 +53,44 @@ public class CSV {
     
     //Returns <field, end-of-record>
     static public Pair<String, Boolean> read_field(Reader data) throws IOException{
-        var result = new StringBuffer();
-        int ech=',';
+        var result = new StringBuilder();
         var ch = eat_ws(data);
-        if(ch == '"')
-            ech = '"';
         
-        while(!check_end_of_field(ch = data.read(), ech, data)){            
-            result.append(ch);
+        if(ch == '"'){
+            //Quoted. Runs to the closing quote, after which there must be a comma or the end of the line.
+            while((ch = data.read()) != '"'){
+                if(ch == -1)
+                    throw new IllegalArgumentException("Unterminated quoted field");
+                result.append((char)ch);
+            }
+            
+            ch = eat_ws(data);
+            if(ch == ',')
+                return new Pair<>(result.toString(), false);
+            if(check_eol(ch, data))
+                return new Pair<>(result.toString(), true);
+            throw new IllegalArgumentException("Expected a comma or end of record after quoted field");
         }
-
-        return new Pair<>(result.toString(), check_eol(ch, data));
+        
+        //Unquoted. Runs to a comma or the end of the line.
+        while(ch != ',' && !check_eol(ch, data)){
+            result.append((char)ch);
+            ch = data.read();
+        }
+        return new Pair<>(result.toString(), ch != ',');
     }
     
+    //Whether the charset encodes ASCII as itself, so that we can read and write those bytes directly
+    static public boolean is_ascii_compatible(Charset cs){
+        if(!cs.canEncode())
+            return false;
+        var ascii = new char[128];
+        for(int i = 0; i < ascii.length; ++i)
+            ascii[i] = (char)i;
+        var s = new String(ascii);
+        return Arrays.equals(s.getBytes(cs), s.getBytes(StandardCharsets.US_ASCII));
+    }
+
     public static void write_field(String data, Writer buf, int i) throws IOException{
         if(data.contains("\""))
             throw new IllegalArgumentException("CSV field must not contain the double-quote character '\"'");
@@ -0,0 +1,302 @@
+package com.levitator.gqlib.csv;
+
+import com.levitator.gqlib.structures.IMeasurement;
+import com.levitator.gqlib.structures.MeasurementRecord;
+import com.levitator.util.LocalNanos;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/*
+*
+* Writes measurements out as CSV, byte for byte what IMeasurement.toCSV() through a FileWriter would
+*
+* Records are encoded straight into a reusable byte buffer, which goes out through a FileChannel when it fills.
+* The timestamp is the only expensive field, so we format it once per minute and just patch the seconds digits
+* in between, after checking that the formatter puts them where we think. Anything it does that we can't patch
+* (fractional seconds, unpadded seconds and so on) gets the formatter for every record, as before.
+* The rest of the fields are ASCII, and the floats go through a StringBuilder, which formats them exactly as
+* Float.toString() and Double.toString() do, without the String.
+*
+*/
+public class CsvExporter implements AutoCloseable{
+
+    static private final int buffer_size = 1 << 16;
+    static private final int max_record_size = 512;
+    static private final long no_minute = Long.MIN_VALUE;
+
+    private final FileChannel m_out;
+    private final DateTimeFormatter m_fmt;
+    private final Charset m_charset;
+    private final CharsetEncoder m_encoder;    //Set up as a FileWriter's. Some charsets have state, like a byte order mark.
+    private final boolean m_ascii;     //Charset encodes ASCII as itself, so we can too
+
+    private final byte[] m_buf = new byte[buffer_size];
+    private int m_pos = 0;
+    private final StringBuilder m_scratch = new StringBuilder(32);
+    private final Row m_row = new Row();
+
+    //The timestamp for the current minute, with the seconds digits at m_sec_pos, or -1 if we can't patch them
+    private long m_minute = no_minute;
+    private byte[] m_stamp;
+    private int m_sec_pos = -1;
+    private final boolean m_patchable;
+
+    //Plain values dressed up as an IMeasurement, for what only takes one
+    static private class Row implements IMeasurement{
+        long time;
+        int seq, emfx10;
+        boolean uncertain;
+        float ef, rf;
+
+        Row set(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+            this.time = time;
+            this.seq = seq;
+            this.uncertain = uncertain;
+            this.emfx10 = emfx10;
+            this.ef = ef;
+            this.rf = rf;
+            return this;
+        }
+
+        @Override public LocalDateTime get_time(){ return LocalNanos.to_local(time); }
+        @Override public long get_time_nanos(){ return time; }
+        @Override public int get_seq_no(){ return seq; }
+        @Override public boolean get_uncertain_time(){ return uncertain; }
+        @Override public int get_emfx10(){ return emfx10; }
+        @Override public float get_ef(){ return ef; }
+        @Override public float get_rf(){ return rf; }
+    }
+
+    //Same file, same charset, same text as a FileWriter would write
+    public CsvExporter(Path path, boolean append, DateTimeFormatter fmt) throws IOException{
+        this(path, append, fmt, Charset.defaultCharset());
+    }
+
+    public CsvExporter(Path path, boolean append, DateTimeFormatter fmt, Charset charset) throws IOException{
+        m_fmt = fmt;
+        m_charset = charset;
+        m_encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        m_ascii = CSV.is_ascii_compatible(charset);
+
+        //Sub-second fields would change from record to record within the second
+        var t = LocalDateTime.of(2000, 1, 1, 0, 0);
+        m_patchable = m_ascii && fmt.format(t).equals(fmt.format(t.withNano(123456789)));
+
+        m_out = append ?
+                FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND) :
+                FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    public void write_header() throws IOException{
+        var sw = new StringWriter();
+        MeasurementRecord.write_CSV_header(sw);
+        encode(sw.toString());
+    }
+
+    public void write(IMeasurement m) throws IOException{
+        if(!m_ascii){
+            //Nothing clever. Let the charset have all of it.
+            var sw = new StringWriter();
+            m.toCSV(m_fmt, sw);
+            encode(sw.toString());
+            return;
+        }
+        write(m.get_time_nanos(), m.get_seq_no(), m.get_uncertain_time(), m.get_emfx10(), m.get_ef(), m.get_rf());
+    }
+
+    //The same, from the values a MeasurementSink gets
+    public void write(long time, int seq, boolean uncertain, int emfx10, float ef, float rf) throws IOException{
+        if(!m_ascii){
+            m_row.set(time, seq, uncertain, emfx10, ef, rf);
+            write(m_row);
+            return;
+        }
+
+        if(buffer_size - m_pos < max_record_size)
+            flush();
+
+        m_buf[m_pos++] = '"';
+        put_time(time);
+        m_buf[m_pos++] = '"';
+        m_buf[m_pos++] = ',';
+
+        m_buf[m_pos++] = '"';
+        put_ascii(uncertain ? "true" : "false");
+        m_buf[m_pos++] = '"';
+        m_buf[m_pos++] = ',';
+
+        m_buf[m_pos++] = '"';
+        put_int(seq);
+        m_buf[m_pos++] = '"';
+        m_buf[m_pos++] = ',';
+
+        //As MeasurementRecord.format_emfx10(), negatives and all
+        var emf = emfx10;
+        m_buf[m_pos++] = '"';
+        put_int(emf / 10);
+        m_buf[m_pos++] = '.';
+        put_int(emf % 10);
+        m_buf[m_pos++] = '"';
+        m_buf[m_pos++] = ',';
+
+        m_buf[m_pos++] = '"';
+        m_scratch.setLength(0);
+        put_ascii(m_scratch.append(ef));
+        m_buf[m_pos++] = '"';
+        m_buf[m_pos++] = ',';
+
+        m_buf[m_pos++] = '"';
+        m_scratch.setLength(0);
+        put_ascii(m_scratch.append(m_row.set(time, seq, uncertain, emfx10, ef, rf).get_rf_mWm2()));
+        m_buf[m_pos++] = '"';
+        m_buf[m_pos++] = '\n';
+    }
+
+    public void write(Iterable<? extends IMeasurement> data) throws IOException{
+        for(var m : data)
+            write(m);
+    }
+
+    private void put_time(long nanos){
+        var sec = Math.floorDiv(nanos, LocalNanos.per_second);
+        if(m_patchable){
+            var minute = Math.floorDiv(sec, 60);
+            if(minute != m_minute)
+                new_minute(minute);
+        }
+
+        //Couldn't find the seconds, so there's no reusing anything
+        if(m_sec_pos < 0){
+            put_stamp(check_field(m_fmt.format(LocalNanos.to_local(nanos)).getBytes(m_charset)));
+            return;
+        }
+
+        var at = m_pos;
+        put_stamp(m_stamp);
+        var s = Math.floorMod(sec, 60);
+        m_buf[at + m_sec_pos] = (byte)('0' + s / 10);
+        m_buf[at + m_sec_pos + 1] = (byte)('0' + s % 10);
+    }
+
+    //As CSV.write_field()
+    static private byte[] check_field(byte[] field){
+        for(var b : field){
+            if(b == '"')
+                throw new IllegalArgumentException("CSV field must not contain the double-quote character '\"'");
+        }
+        return field;
+    }
+
+    //Format the minute with a couple of different seconds to find out where the formatter puts them
+    private void new_minute(long minute){
+        var t = LocalNanos.to_local(minute * 60 * LocalNanos.per_second);
+        var a = m_fmt.format(t.withSecond(17)).getBytes(m_charset);
+        var b = m_fmt.format(t.withSecond(42)).getBytes(m_charset);
+        var c = m_fmt.format(t.withSecond(5)).getBytes(m_charset);
+
+        m_stamp = check_field(a);
+        m_minute = minute;
+        m_sec_pos = -1;
+        if(a.length != b.length || a.length != c.length)
+            return;
+
+        //Exactly two adjacent bytes should differ, and they should be the seconds, zero-padded
+        int pos = -1, diffs = 0;
+        for(int i = 0; i < a.length; ++i){
+            if(a[i] != b[i] || a[i] != c[i]){
+                if(pos < 0) pos = i;
+                ++diffs;
+            }
+        }
+        if(diffs != 2 || a[pos] != '1' || a[pos + 1] != '7' || b[pos] != '4' || b[pos + 1] != '2' || c[pos] != '0' || c[pos + 1] != '5')
+            return;
+        m_sec_pos = pos;
+    }
+
+    private void put_stamp(byte[] stamp){
+        if(stamp.length > max_record_size / 2)
+            throw new IllegalArgumentException("Formatted timestamp is unreasonably long: " + stamp.length + " bytes");
+        System.arraycopy(stamp, 0, m_buf, m_pos, stamp.length);
+        m_pos += stamp.length;
+    }
+
+    private void put_ascii(CharSequence s){
+        for(int i = 0, ct = s.length(); i < ct; ++i)
+            m_buf[m_pos++] = (byte)s.charAt(i);
+    }
+
+    private void put_int(int v){
+        if(v < 0){
+            if(v == Integer.MIN_VALUE){
+                put_ascii(Integer.toString(v));
+                return;
+            }
+            m_buf[m_pos++] = '-';
+            v = -v;
+        }
+
+        var end = m_pos + digits(v);
+        var i = end;
+        do{
+            m_buf[--i] = (byte)('0' + v % 10);
+            v /= 10;
+        }while(v != 0);
+        m_pos = end;
+    }
+
+    static private int digits(int v){
+        int result = 1;
+        while(v >= 10){
+            v /= 10;
+            ++result;
+        }
+        return result;
+    }
+
+    private void encode(String text) throws IOException{
+        var in = CharBuffer.wrap(text);
+        while(true){
+            var out = ByteBuffer.wrap(m_buf, m_pos, buffer_size - m_pos);
+            var result = m_encoder.encode(in, out, false);
+            m_pos = out.position();
+            if(!result.isOverflow())
+                break;
+            flush();
+        }
+    }
+
+    public void flush() throws IOException{
+        write_fully(ByteBuffer.wrap(m_buf, 0, m_pos));
+        m_pos = 0;
+    }
+
+    private void write_fully(ByteBuffer buf) throws IOException{
+        while(buf.hasRemaining())
+            m_out.write(buf);
+    }
+
+    @Override
+    public void close() throws IOException{
+        try{
+            //Whatever the charset keeps back for the end of the stream
+            var out = ByteBuffer.wrap(m_buf, m_pos, buffer_size - m_pos);
+            m_encoder.encode(CharBuffer.allocate(0), out, true);
+            m_encoder.flush(out);
+            m_pos = out.position();
+            flush();
+        }
+        finally{
+            m_out.close();
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package com.levitator.gqlib.csv;
+
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.exceptions.GQUserDataFormatException;
+import com.levitator.gqlib.structures.MeasurementRecord;
+import com.levitator.gqlib.structures.MeasurementSink;
+import com.levitator.util.LocalNanos;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/*
+*
+* Reads back what CsvExporter writes, in bulk
+*
+* The file is mapped a window at a time and scanned in place, following the same quoting rules as
+* CSV.read_field(), without a String or a Pair per field. Numbers are parsed straight from the bytes when
+* they're in the plain forms that Float.toString() and friends produce, and the timestamp too, if the
+* formatter turns out to be the usual "yyyy/M/d h:mm:ssa" in a locale which says AM and PM. Anything else
+* goes the long way round, through a String, with the same result. Nothing is kept from one record to the
+* next, so memory use doesn't depend on the size of the file, except for whatever the sink keeps.
+*
+* Dumps appended to an archive each repeat the header, and overlap when the log wasn't cleared in between.
+* read() passes along everything that isn't a header. load() sorts it all out into one LogDataSet.
+*
+*/
+public class CsvImporter {
+
+    static private final int window_size = 1 << 26;
+
+    //Columns in MeasurementRecord.to_text() order
+    static private final int field_count = 6;
+    static private final int time_field = 0, uncertain_field = 1, seq_field = 2, emf_field = 3, ef_field = 4, rf_field = 5;
+
+    static private final byte[] header = MeasurementRecord.csv_time_heading.getBytes(StandardCharsets.US_ASCII);
+    static private final byte[] am = {'A', 'M'}, pm = {'P', 'M'};
+
+    //Powers of ten that are exact in each type, for parsing short decimals with a single rounding
+    static private final float[] float_tens = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+    static private final double[] double_tens = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final DateTimeFormatter m_fmt;
+    private final Charset m_charset;
+    private final boolean m_fast_time;     //The formatter writes the format we parse by hand
+
+    //Current window and record
+    private MappedByteBuffer m_buf;
+    private long m_base;    //File offset of the window
+    private long m_line;
+    private boolean m_whole;    //Reading from the start of the file, so m_line is right
+    private int m_line_start;
+    private int m_fields;
+    private final int[] m_start = new int[field_count];
+    private final int[] m_end = new int[field_count];
+    private long m_count;
+
+    //Reads what a CsvExporter with the same formatter writes
+    public CsvImporter(DateTimeFormatter fmt){
+        this(fmt, Charset.defaultCharset());
+    }
+
+    public CsvImporter(DateTimeFormatter fmt, Charset charset){
+        if(!CSV.is_ascii_compatible(charset))
+            throw new IllegalArgumentException("CSV import needs a charset which encodes ASCII as itself, not " + charset);
+        m_fmt = fmt;
+        m_charset = charset;
+        m_fast_time = check_time_format(fmt);
+    }
+
+    //
+    // Whole files
+    //
+
+    //Every measurement in the file, in file order. Returns how many.
+    public long read(Path path, MeasurementSink sink) throws IOException, GQUserDataFormatException{
+        return read(path, 0, Long.MAX_VALUE, sink);
+    }
+
+    //Just the records in [start, end), which had better be record boundaries. See next_record().
+    public long read(Path path, long start, long end, MeasurementSink sink) throws IOException, GQUserDataFormatException{
+        m_line = 1;
+        m_count = 0;
+        m_base = start;
+        m_whole = start == 0;
+        try(var in = FileChannel.open(path, StandardOpenOption.READ)){
+            end = Math.min(end, in.size());
+            while(m_base < end){
+                var len = (int)Math.min(window_size, end - m_base);
+                var last = m_base + len == end;
+                m_buf = in.map(FileChannel.MapMode.READ_ONLY, m_base, len);
+                var used = scan(len, last, sink);
+                if(used == 0 && !last)
+                    throw new GQUserDataFormatException(where() + ": Record is longer than " + window_size + " bytes");
+                m_base += used;
+            }
+        }
+        finally{
+            m_buf = null;
+        }
+        return m_count;
+    }
+
+    //Where the first record at or after pos starts, which is just after a line break.
+    //Our own files never have a line break inside quotes, so this is a safe place to split them.
+    static public long next_record(FileChannel in, long pos) throws IOException{
+        if(pos <= 0)
+            return 0;
+        var buf = ByteBuffer.allocate(4096);
+        var at = pos - 1;
+        while(true){
+            buf.clear();
+            var n = in.read(buf, at);
+            if(n < 0)
+                return Math.max(at, pos);
+            for(int i = 0; i < n; ++i){
+                if(buf.get(i) == '\n')
+                    return at + i + 1;
+            }
+            at += n;
+        }
+    }
+
+    //The file as one time-ordered set, without duplicates
+    public LogDataSet load(Path path) throws IOException, GQUserDataFormatException{
+        var result = new LogDataSet.Builder();
+        read(path, result);
+        return result.build();
+    }
+
+    //
+    // Scanning
+    //
+
+    //Hands off every complete record in the window. Returns where the first incomplete one starts.
+    private int scan(int limit, boolean last, MeasurementSink sink) throws GQUserDataFormatException{
+        int line = 0;
+        while(line < limit){
+            m_line_start = line;
+            var end = scan_record(line, limit, last);
+            if(end < 0)
+                break;
+            record(sink);
+            line = end;
+            ++m_line;
+        }
+        return line;
+    }
+
+    //As CSV.read_field(), but just notes where each field is
+    //Returns the start of the next line, or -1 if the record runs off the end of the window
+    private int scan_record(int i, int limit, boolean last) throws GQUserDataFormatException{
+        var buf = m_buf;
+        m_fields = 0;
+        while(true){
+            while(i < limit && buf.get(i) == ' ')
+                ++i;
+
+            int start, end;
+            if(i < limit && buf.get(i) == '"'){
+                //Quoted. Runs to the closing quote, after which there must be a comma or the end of the line.
+                start = ++i;
+                while(i < limit && buf.get(i) != '"')
+                    ++i;
+                if(i == limit){
+                    if(!last) return -1;
+                    throw error("Unterminated quoted field", null);
+                }
+                end = i++;
+                while(i < limit && buf.get(i) == ' ')
+                    ++i;
+                if(i < limit && !is_delimiter(buf.get(i)))
+                    throw error("Expected a comma or end of record after quoted field", null);
+            }
+            else{
+                //Unquoted. Runs to a comma or the end of the line.
+                start = i;
+                while(i < limit && !is_delimiter(buf.get(i)))
+                    ++i;
+                end = i;
+            }
+
+            if(m_fields < field_count){
+                m_start[m_fields] = start;
+                m_end[m_fields] = end;
+            }
+            ++m_fields;
+
+            //LF, CRLF, or EOF
+            if(i == limit)
+                return last ? i : -1;
+            var b = buf.get(i++);
+            if(b == ',')
+                continue;
+            if(b == '\n')
+                return i;
+            if(i == limit)
+                return last ? i : -1;
+            if(buf.get(i) != '\n')
+                throw error("Malformed end-of line. Found CR, no LF.", null);
+            return i + 1;
+        }
+    }
+
+    static private boolean is_delimiter(byte b){
+        return b == ',' || b == '\n' || b == '\r';
+    }
+
+    private void record(MeasurementSink sink) throws GQUserDataFormatException{
+        //Blank lines and headers
+        if(m_fields == 1 && m_start[0] == m_end[0])
+            return;
+        if(field_equals(time_field, header))
+            return;
+        if(m_fields < field_count)
+            throw error("Expected " + field_count + " fields, found " + m_fields, null);
+
+        //All exceptions here should necessarily be parsing-related
+        long time;
+        boolean uncertain;
+        int seq, emfx10;
+        float ef, rf;
+        try{
+            time = parse_time();
+            uncertain = parse_boolean(uncertain_field);
+            seq = parse_int(seq_field);
+            emfx10 = parse_emfx10(emf_field);
+            ef = parse_float(ef_field);
+            rf = MeasurementRecord.rf_from_mWm2(parse_double(rf_field));
+        }
+        catch(RuntimeException ex){
+            throw error("Error parsing field text: " + ex.getMessage(), ex);
+        }
+
+        sink.measurement(time, seq, uncertain, emfx10, ef, rf);
+        ++m_count;
+    }
+
+    static private final int max_error_text = 200;
+
+    //Quotes the record, or the start of it, with the message
+    private GQUserDataFormatException error(String msg, Throwable cause){
+        int end = m_line_start, limit = Math.min(m_buf.limit(), m_line_start + max_error_text);
+        while(end < limit && m_buf.get(end) != '\n')
+            ++end;
+        var text = text(m_line_start, end).stripTrailing();
+        return new GQUserDataFormatException(where() + ": " + msg + System.lineSeparator() + "Record: " + text, cause);
+    }
+
+    //Line numbers are only meaningful from the start of the file
+    private String where(){
+        return m_whole ? "Line " + m_line : "Byte " + (m_base + m_line_start);
+    }
+
+    private String text(int start, int end){
+        var bytes = new byte[end - start];
+        m_buf.get(start, bytes);
+        return new String(bytes, m_charset);
+    }
+
+    private String field_text(int f){
+        return text(m_start[f], m_end[f]);
+    }
+
+    private boolean field_equals(int f, byte[] v){
+        int s = m_start[f];
+        if(m_end[f] - s != v.length)
+            return false;
+        for(int i = 0; i < v.length; ++i){
+            if(m_buf.get(s + i) != v[i])
+                return false;
+        }
+        return true;
+    }
+
+    //
+    // Fields
+    //
+
+    //Boolean.parseBoolean()
+    private boolean parse_boolean(int f){
+        int s = m_start[f];
+        if(m_end[f] - s != 4)
+            return false;
+        return (m_buf.get(s) | 0x20) == 't' && (m_buf.get(s + 1) | 0x20) == 'r' &&
+                (m_buf.get(s + 2) | 0x20) == 'u' && (m_buf.get(s + 3) | 0x20) == 'e';
+    }
+
+    //Unsigned decimal digits in [s, e), or -1 if there are none, or anything else, or too many
+    private long digits(int s, int e){
+        if(s >= e || e - s > 18)
+            return -1;
+        long result = 0;
+        for(int i = s; i < e; ++i){
+            var d = m_buf.get(i) - '0';
+            if(d < 0 || d > 9)
+                return -1;
+            result = result * 10 + d;
+        }
+        return result;
+    }
+
+    private int parse_int(int f){
+        int s = m_start[f], e = m_end[f];
+        var neg = s < e && m_buf.get(s) == '-';
+        var v = digits(neg ? s + 1 : s, e);
+        if(v < 0 || v > Integer.MAX_VALUE)
+            return Integer.parseInt(field_text(f));
+        return neg ? (int)-v : (int)v;
+    }
+
+    //"12.3", as MeasurementRecord.format_emfx10() writes it
+    private int parse_emfx10(int f){
+        int s = m_start[f], e = m_end[f];
+        if(e - s >= 3 && e - s <= 11 && m_buf.get(e - 2) == '.'){
+            var whole = digits(s, e - 2);
+            var tenths = digits(e - 1, e);
+            if(whole >= 0 && tenths >= 0 && whole <= Integer.MAX_VALUE / 10 - 1)
+                return (int)(whole * 10 + tenths);
+        }
+
+        //As MeasurementRecord.parse_text()
+        var demf = Double.parseDouble(field_text(f));
+        return (int)demf * 10 + (int)((demf * 10d) % 10d);
+    }
+
+    //Plain decimals and scientific notation, as Float.toString() and Double.toString() write them, come out as
+    //a mantissa of up to 18 digits and a power of ten. Returns false if it's anything else.
+    private long m_mantissa;
+    private int m_exponent;
+    private boolean m_negative;
+
+    private boolean parse_decimal(int s, int e){
+        m_negative = false;
+        if(s < e && (m_buf.get(s) == '-' || m_buf.get(s) == '+'))
+            m_negative = m_buf.get(s++) == '-';
+
+        long m = 0;
+        int digits = 0, point = -1, exp = 0, i = s;
+        for(; i < e; ++i){
+            var b = m_buf.get(i);
+            if(b == '.'){
+                if(point >= 0) return false;
+                point = digits;
+                continue;
+            }
+            var d = b - '0';
+            if(d < 0 || d > 9)
+                break;
+            if(m == 0 && d == 0){
+                //Leading zeros don't count toward the digit limit, but they do shift the point
+                if(point >= 0) --exp;
+                continue;
+            }
+            if(++digits > 18)
+                return false;
+            m = m * 10 + d;
+            if(point >= 0) --exp;
+        }
+        if(i == s || (i == s + 1 && point >= 0))
+            return false;
+
+        if(i < e){
+            var b = m_buf.get(i++);
+            if(b != 'E' && b != 'e')
+                return false;
+            var neg = i < e && m_buf.get(i) == '-';
+            if(i < e && (m_buf.get(i) == '-' || m_buf.get(i) == '+'))
+                ++i;
+            var x = digits(i, e);
+            if(x < 0 || x > 1000)
+                return false;
+            exp += neg ? -x : x;
+        }
+
+        m_mantissa = m;
+        m_exponent = m == 0 ? 0 : exp;
+        return true;
+    }
+
+    //Where the mantissa and the power of ten are both exact, one multiplication or division rounds once,
+    //which is what parseFloat() does
+    private float parse_float(int f){
+        if(parse_decimal(m_start[f], m_end[f]) && m_mantissa <= 1 << 24 && Math.abs(m_exponent) < float_tens.length){
+            var v = (float)m_mantissa;
+            v = m_exponent < 0 ? v / float_tens[-m_exponent] : v * float_tens[m_exponent];
+            return m_negative ? -v : v;
+        }
+        return Float.parseFloat(field_text(f));
+    }
+
+    private double parse_double(int f){
+        if(parse_decimal(m_start[f], m_end[f]) && m_mantissa <= 1L << 53 && Math.abs(m_exponent) < double_tens.length){
+            var v = (double)m_mantissa;
+            v = m_exponent < 0 ? v / double_tens[-m_exponent] : v * double_tens[m_exponent];
+            return m_negative ? -v : v;
+        }
+        return Double.parseDouble(field_text(f));
+    }
+
+    //
+    // Timestamps
+    //
+
+    //"2021/3/7 1:05:09PM"
+    private long parse_time(){
+        if(m_fast_time){
+            var t = fast_time(m_start[time_field], m_end[time_field]);
+            if(t != Long.MIN_VALUE)
+                return t;
+        }
+        return LocalNanos.of(LocalDateTime.from(m_fmt.parse(field_text(time_field))));
+    }
+
+    //Long.MIN_VALUE if it isn't that format, or isn't a valid time, in which case the formatter can decide
+    private long fast_time(int s, int e){
+        if(e - s < 17 || m_buf.get(s + 4) != '/')
+            return Long.MIN_VALUE;
+        var year = (int)digits(s, s + 4);
+
+        int i = s + 5;
+        var month = small_number(i, e, '/');
+        i += month < 10 ? 2 : 3;
+        var day = small_number(i, e, ' ');
+        i += day < 10 ? 2 : 3;
+        var hour = small_number(i, e, ':');
+        i += hour < 10 ? 2 : 3;
+        if(e - i != 7 || m_buf.get(i + 2) != ':')
+            return Long.MIN_VALUE;
+        var minute = (int)digits(i, i + 2);
+        var second = (int)digits(i + 3, i + 5);
+
+        boolean afternoon;
+        if(m_buf.get(i + 5) == am[0] && m_buf.get(i + 6) == am[1])
+            afternoon = false;
+        else if(m_buf.get(i + 5) == pm[0] && m_buf.get(i + 6) == pm[1])
+            afternoon = true;
+        else
+            return Long.MIN_VALUE;
+
+        if(year < 0 || month < 1 || month > 12 || day < 1 || day > LocalNanos.days_in_month(year, month) ||
+                hour < 1 || hour > 12 || minute < 0 || minute > 59 || second < 0 || second > 59)
+            return Long.MIN_VALUE;
+
+        hour = hour % 12 + (afternoon ? 12 : 0);
+        return LocalNanos.of(year, month, day, hour, minute, second);
+    }
+
+    //One or two digits followed by the separator, or -1
+    private int small_number(int i, int e, char sep){
+        if(i + 2 > e)
+            return -1;
+        var n = m_buf.get(i + 1) == sep ? 1 : 2;
+        if(i + n >= e || m_buf.get(i + n) != sep)
+            return -1;
+        var v = (int)digits(i, i + n);
+        return n == 2 && v < 10 ? -1 : v;
+    }
+
+    //Whether fmt writes times the way fast_time() reads them. Checked against times on either side of noon and
+    //midnight, with one and two-digit fields.
+    static private boolean check_time_format(DateTimeFormatter fmt){
+        LocalDateTime[] probes = {
+            LocalDateTime.of(2001, 2, 3, 0, 5, 6),
+            LocalDateTime.of(2012, 11, 23, 12, 59, 59),
+            LocalDateTime.of(1999, 12, 31, 23, 0, 0),
+            LocalDateTime.of(2020, 7, 14, 9, 30, 45)
+        };
+        try{
+            for(var t : probes){
+                var h = t.getHour() % 12 == 0 ? 12 : t.getHour() % 12;
+                var expect = String.format(Locale.ROOT, "%d/%d/%d %d:%02d:%02d%s", t.getYear(), t.getMonthValue(), t.getDayOfMonth(),
+                        h, t.getMinute(), t.getSecond(), t.getHour() < 12 ? "AM" : "PM");
+                var text = fmt.format(t);
+                if(!text.equals(expect) || !LocalDateTime.from(fmt.parse(text)).equals(t))
+                    return false;
+            }
+        }
+        catch(RuntimeException ex){
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,556 @@
+package com.levitator.gqlib.emulator;
+
+import com.levitator.gqlib.config.Config;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/*
+*
+* Software stand-in for an EMF-390 on the other end of the serial line
+*
+* Speaks the <CMD>> protocol as GQDevice expects to find it, quirks included: GETMODE is unterminated,
+* the ->AllInOne echo is unterminated, and commands that arrive too soon after the previous
+* reply are silently dropped. Replies are released at a configurable latency and line rate so
+* that timing-sensitive code sees something like a real link.
+*
+* It's scriptable: all of the device state is exposed, and a command hook can override or
+* add to any reply.
+*
+*/
+public class Emf390Emulator {
+
+    static public final String default_version = "GQ-EMF390v2Re 3.70";
+    static private final byte ok = (byte)0xaa;
+
+    //
+    // Menus
+    //
+
+    //Home screens: GETMODE name and the echo we give when landing on them
+    static private final String[] home_modes = {"AllInOneMode RF", "Vertical RF", "TableMode RF", "EMF Graphs",
+        "RF Browser", "2.400 - 2.504 GHz", "240.00 - 1040.00 MHz"};
+    static private final String[] home_echos = {"->AllInOne", "->Vertical", "->TableMode", "->EMF Graphs",
+        "->RF Browser", "->2.4GHz", "->240-1040MHz"};
+
+    static private final String main_menu = "Main Menu";
+    static private final List<String> main_items = List.of("->Display", "->Alarm", "->Save Data", "->Date/Time",
+        "->Power Saving", "->Language", "->Factory Reset", "->About");
+
+    static private final String save_data_menu = "Save Data";
+    static private final List<String> save_data_items = List.of("->On/Off", "->Interval", "->Erase", "->Return");
+
+    static private final String onoff_screen = "On/Off";
+
+    private enum Screen{ HOME, MAIN_MENU, SAVE_DATA, ONOFF, LEAF }
+
+    //
+    // Commands, with the number of binary argument bytes each one takes
+    //
+    static private final String[] commands = {"GETVER", "GETMODE", "GETDATETIME", "ECHOON", "ECHOOFF", "SPIR",
+        "SPIE", "KEY0", "KEY1", "KEY2", "KEY3", "SETDATEYY", "SETDATEMM", "SETDATEDD", "SETTIMEHH", "SETTIMEMM",
+        "SETTIMESS", "CFGUPDATE"};
+    static private final int[] command_args = {0, 0, 0, 0, 0, 5, 0, 0, 0, 0, 0, 1, 1, 1, 1, 1, 1, 0};
+
+    //A reply on its way over the link. Byte i can be read at start_ns + (i + 1) * ns_per_byte.
+    static private class Reply{
+        final byte[] data;
+        final long start_ns;
+        int pos = 0;
+        Reply(byte[] d, long t){ data = d; start_ns = t; }
+    }
+
+    private String m_version = default_version;
+    private byte[] m_nvm;
+    private final NvmWriter m_log;
+    private boolean m_echo = true;
+    private boolean m_save_data = true;
+
+    //RTC fields as last set, and when. The device doesn't validate them, so neither do we.
+    private final int[] m_clock = new int[6];
+    private long m_clock_set_ns;
+
+    private Screen m_screen = Screen.HOME;
+    private int m_home = 0;
+    private int m_main_item = 0;
+    private int m_save_item = 0;
+    private String m_leaf;
+
+    //Live logging. When on, and save data is on, a sample goes into NVM every second of emulator time.
+    private boolean m_live = false;
+    private long m_log_tick_ns;
+    private long m_last_time_record_ns;
+    private final Random m_rnd = new Random(1);
+
+    //Link
+    private long m_latency_ns = 0;
+    private long m_ns_per_byte = 0;
+    private long m_min_interval_ns = 0;
+    private int m_max_reply = Integer.MAX_VALUE;
+    private final ArrayDeque<Reply> m_replies = new ArrayDeque<>();
+    private long m_link_free_ns = Long.MIN_VALUE;
+    private long m_last_reply_end_ns = Long.MIN_VALUE;
+    private int m_dropped = 0;
+    private int m_commands = 0;
+    private boolean m_closed = false;
+
+    //Partially received command
+    private byte[] m_cmd = new byte[64];
+    private int m_cmd_len = 0;
+
+    //Returns a reply to send in place of the built-in one, or null to carry on as usual
+    private Function<String, byte[]> m_hook = null;
+
+    public Emf390Emulator(byte[] nvm, LocalDateTime clock){
+        m_nvm = nvm;
+        m_log = new NvmWriter(nvm, find_blank(nvm));
+        set_clock(clock);
+    }
+
+    //Serve a freshly generated, nearly full, log
+    public Emf390Emulator(){
+        this(SyntheticNvm.image(LocalDateTime.of(2020, 1, 1, 0, 0), 1), LocalDateTime.of(2020, 2, 1, 0, 0));
+    }
+
+    //Walk the records to find where the device would write next
+    static private int find_blank(byte[] nvm){
+        int addr = 0;
+        while(addr + 2 <= nvm.length){
+            var id = ((nvm[addr] & 0xff) << 8) | (nvm[addr + 1] & 0xff);
+            if(id == 0x55aa) addr += NvmWriter.time_record_size();
+            else if(id == 0xaa55) addr += NvmWriter.measurement_record_size();
+            else break;
+        }
+        return Math.min(addr, nvm.length);
+    }
+
+    //
+    // Scripting
+    //
+
+    public synchronized void set_version(String v){ m_version = v; }
+    public synchronized String get_version(){ return m_version; }
+    public synchronized byte[] get_nvm(){ return m_nvm; }
+    public synchronized int get_log_address(){ return m_log.address(); }
+    public synchronized boolean get_save_data(){ return m_save_data; }
+    public synchronized void set_save_data(boolean v){ log_catch_up(System.nanoTime()); m_save_data = v; }
+    public synchronized boolean get_echo(){ return m_echo; }
+    public synchronized void set_echo(boolean v){ m_echo = v; }
+    public synchronized void set_command_hook(Function<String, byte[]> f){ m_hook = f; }
+
+    //Commands executed and commands dropped for arriving too early
+    public synchronized int get_command_count(){ return m_commands; }
+    public synchronized int get_dropped_count(){ return m_dropped; }
+
+    //Delay before the first byte of each reply, and the line rate after that. 0 bytes/s means no limit.
+    public synchronized void set_link(long latency_ms, int bytes_per_second){
+        m_latency_ns = latency_ms * 1000000;
+        m_ns_per_byte = bytes_per_second > 0 ? 1000000000L / bytes_per_second : 0;
+    }
+
+    //As the real thing: 115200 baud, 10 bits per byte
+    public synchronized void set_serial_link(long latency_ms){
+        set_link(latency_ms, 115200 / 10);
+    }
+
+    //Commands which arrive sooner than this after the end of the previous reply are ignored
+    public synchronized void set_min_command_interval(long ms){
+        m_min_interval_ns = ms * 1000000;
+    }
+
+    //SPIR replies are cut off after this many bytes, as from a device which can't keep up with big requests
+    public synchronized void set_max_reply(int bytes){
+        m_max_reply = bytes;
+    }
+
+    //Append a sample to NVM every emulated second while save data is on
+    public synchronized void set_live_logging(boolean v){
+        var now = System.nanoTime();
+        log_catch_up(now);
+        m_live = v;
+        m_log_tick_ns = now;
+        m_last_time_record_ns = Long.MIN_VALUE;
+    }
+
+    //Noise on the line, as from a spontaneous echo
+    public synchronized void inject(byte[] data){
+        queue_reply(data, System.nanoTime());
+    }
+
+    //
+    // Clock
+    //
+
+    public synchronized void set_clock(LocalDateTime t){
+        m_clock[0] = t.getYear() - 2000;
+        m_clock[1] = t.getMonthValue();
+        m_clock[2] = t.getDayOfMonth();
+        m_clock[3] = t.getHour();
+        m_clock[4] = t.getMinute();
+        m_clock[5] = t.getSecond();
+        m_clock_set_ns = System.nanoTime();
+    }
+
+    //Current RTC fields, or the raw ones if somebody set an impossible date
+    private int[] clock_fields(long now){
+        try{
+            var t = LocalDateTime.of(2000 + m_clock[0], m_clock[1], m_clock[2], m_clock[3], m_clock[4], m_clock[5])
+                    .plusNanos(now - m_clock_set_ns);
+            return new int[]{t.getYear() - 2000, t.getMonthValue(), t.getDayOfMonth(), t.getHour(), t.getMinute(), t.getSecond()};
+        }
+        catch(DateTimeException ex){
+            return m_clock.clone();
+        }
+    }
+
+    public synchronized LocalDateTime get_clock(){
+        var f = clock_fields(System.nanoTime());
+        return LocalDateTime.of(2000 + f[0], f[1], f[2], f[3], f[4], f[5]);
+    }
+
+    private void set_clock_field(int i, int v, long now){
+        var f = clock_fields(now);
+        f[i] = v;
+        System.arraycopy(f, 0, m_clock, 0, f.length);
+        m_clock_set_ns = now;
+    }
+
+    //
+    // Live logging
+    //
+
+    private void log_catch_up(long now){
+        if(!m_live || !m_save_data){
+            m_log_tick_ns = now;
+            return;
+        }
+
+        final long second = 1000000000L;
+        final long granular = Config.native_time_granular * second;
+        var f = clock_fields(now);
+        var clock = LocalDateTime.of(2000 + f[0], f[1], f[2], f[3], f[4], f[5]);
+
+        while(now - m_log_tick_ns >= second){
+            m_log_tick_ns += second;
+            var t = clock.minusNanos(now - m_log_tick_ns);
+            var need_time = m_last_time_record_ns == Long.MIN_VALUE || m_log_tick_ns - m_last_time_record_ns >= granular;
+            var size = NvmWriter.measurement_record_size() + (need_time ? NvmWriter.time_record_size() : 0);
+            if(!m_log.fits(size))
+                return; //Full
+            if(need_time){
+                m_log.time_record(t);
+                m_last_time_record_ns = m_log_tick_ns;
+            }
+            m_log.measurement_record(m_rnd.nextInt(600), m_rnd.nextFloat() * 20, m_rnd.nextFloat() * 5000);
+        }
+    }
+
+    //
+    // Link
+    //
+
+    private void queue_reply(byte[] data, long now){
+        if(data.length == 0){
+            m_last_reply_end_ns = Math.max(m_last_reply_end_ns, now);
+            return;
+        }
+        var start = Math.max(now + m_latency_ns, m_link_free_ns);
+        m_replies.add(new Reply(data, start));
+        m_link_free_ns = start + data.length * m_ns_per_byte;
+        m_last_reply_end_ns = m_link_free_ns;
+        notifyAll();
+    }
+
+    //Bytes which have made it across the link by now
+    private int ready(long now){
+        int result = 0;
+        for(var r : m_replies){
+            if(now < r.start_ns) break;
+            var sent = m_ns_per_byte > 0 ? (int)Math.min(r.data.length, (now - r.start_ns) / m_ns_per_byte + 1) : r.data.length;
+            result += sent - r.pos;
+            if(sent < r.data.length) break;
+        }
+        return result;
+    }
+
+    public synchronized int available(){
+        return ready(System.nanoTime());
+    }
+
+    //Block until some reply data has arrived, then take as much as is ready. -1 once closed.
+    public synchronized int read(ByteBuffer dst) throws InterruptedIOException{
+        try{
+            while(true){
+                if(m_closed) return -1;
+
+                var now = System.nanoTime();
+                var ct = Math.min(ready(now), dst.remaining());
+                if(ct > 0){
+                    var result = ct;
+                    while(ct > 0){
+                        var r = m_replies.peek();
+                        var n = Math.min(ct, r.data.length - r.pos);
+                        dst.put(r.data, r.pos, n);
+                        r.pos += n;
+                        ct -= n;
+                        if(r.pos == r.data.length) m_replies.remove();
+                    }
+                    return result;
+                }
+
+                if(m_replies.isEmpty())
+                    wait();
+                else{
+                    var r = m_replies.peek();
+                    var wait_ns = Math.max(r.start_ns + (r.pos + 1) * m_ns_per_byte - now, 1);
+                    wait(wait_ns / 1000000, (int)(wait_ns % 1000000));
+                }
+            }
+        }
+        catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on emulated device");
+        }
+    }
+
+    public synchronized void close(){
+        m_closed = true;
+        notifyAll();
+    }
+
+    //Bytes from the host
+    public synchronized void receive(ByteBuffer src){
+        var now = System.nanoTime();
+        log_catch_up(now);
+
+        while(src.hasRemaining()){
+            if(m_cmd_len == m_cmd.length)
+                m_cmd = Arrays.copyOf(m_cmd, m_cmd.length * 2);
+            m_cmd[m_cmd_len++] = src.get();
+            parse(now);
+        }
+    }
+
+    //Returns the index of the command whose name is at the start of the buffer, -1 if it's too soon to tell, or -2 if it's garbage
+    private int match_command(){
+        var maybe = false;
+        for(int i = 0; i < commands.length; ++i){
+            var name = commands[i];
+            var n = Math.min(name.length(), m_cmd_len - 1);
+            var match = true;
+            for(int j = 0; j < n && match; ++j)
+                match = m_cmd[j + 1] == name.charAt(j);
+            if(!match) continue;
+            if(n == name.length()) return i;
+            maybe = true;
+        }
+        return maybe ? -1 : -2;
+    }
+
+    private void drop_cmd_bytes(int ct){
+        System.arraycopy(m_cmd, ct, m_cmd, 0, m_cmd_len - ct);
+        m_cmd_len -= ct;
+    }
+
+    private void parse(long now){
+        while(m_cmd_len > 0){
+            if(m_cmd[0] != '<'){
+                drop_cmd_bytes(1);
+                continue;
+            }
+
+            var i = match_command();
+            if(i == -1) return;
+            if(i == -2){
+                drop_cmd_bytes(1);
+                continue;
+            }
+
+            var name = commands[i];
+            var total = 1 + name.length() + command_args[i] + 2;
+            if(m_cmd_len < total) return;
+
+            if(m_cmd[total - 2] != '>' || m_cmd[total - 1] != '>'){
+                drop_cmd_bytes(1);
+                continue;
+            }
+
+            var args = Arrays.copyOfRange(m_cmd, 1 + name.length(), total - 2);
+            drop_cmd_bytes(total);
+
+            //Too fast. The firmware just doesn't hear it.
+            if(m_last_reply_end_ns != Long.MIN_VALUE && now - m_last_reply_end_ns < m_min_interval_ns){
+                ++m_dropped;
+                continue;
+            }
+
+            ++m_commands;
+            byte[] reply = null;
+            if(m_hook != null)
+                reply = m_hook.apply(name);
+            if(reply == null)
+                reply = execute(name, args, now);
+            queue_reply(reply, now);
+        }
+    }
+
+    static private byte[] text(String s){
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static private byte[] line(String s){
+        return text(s + "\r\n");
+    }
+
+    private byte[] execute(String name, byte[] args, long now){
+        switch(name){
+            case "GETVER":
+                return line(m_version);
+            case "GETMODE":
+                return text(mode());
+            case "GETDATETIME":{
+                var f = clock_fields(now);
+                return new byte[]{(byte)f[0], (byte)f[1], (byte)f[2], (byte)f[3], (byte)f[4], (byte)f[5], ok};
+            }
+            case "ECHOON":
+                m_echo = true;
+                return new byte[]{ok};
+            case "ECHOOFF":
+                m_echo = false;
+                return new byte[]{ok};
+            case "SPIR":
+                return spir(args);
+            case "SPIE":
+                Arrays.fill(m_nvm, (byte)0xff);
+                m_log.address(0);
+                m_last_time_record_ns = Long.MIN_VALUE;
+                return new byte[]{ok};
+            case "KEY0":
+            case "KEY1":
+            case "KEY2":
+            case "KEY3":{
+                var echo = key(name.charAt(3) - '0');
+                if(!m_echo) return new byte[0];
+                //Firmware bug: this one comes without a line terminator
+                return echo.equals(home_echos[0]) ? text(echo) : line(echo);
+            }
+            case "SETDATEYY": set_clock_field(0, args[0], now); return new byte[]{ok};
+            case "SETDATEMM": set_clock_field(1, args[0], now); return new byte[]{ok};
+            case "SETDATEDD": set_clock_field(2, args[0], now); return new byte[]{ok};
+            case "SETTIMEHH": set_clock_field(3, args[0], now); return new byte[]{ok};
+            case "SETTIMEMM": set_clock_field(4, args[0], now); return new byte[]{ok};
+            case "SETTIMESS": set_clock_field(5, args[0], now); return new byte[]{ok};
+            case "CFGUPDATE":
+                return new byte[]{ok};
+            default:
+                return new byte[0];
+        }
+    }
+
+    private byte[] spir(byte[] args){
+        var addr = ((args[0] & 0xff) << 16) | ((args[1] & 0xff) << 8) | (args[2] & 0xff);
+        var count = ((args[3] & 0xff) << 8) | (args[4] & 0xff);
+        var result = new byte[Math.min(count, m_max_reply)];
+        Arrays.fill(result, (byte)0xff);
+        if(addr < m_nvm.length)
+            System.arraycopy(m_nvm, addr, result, 0, Math.min(result.length, m_nvm.length - addr));
+        return result;
+    }
+
+    public synchronized String mode(){
+        switch(m_screen){
+            case HOME: return home_modes[m_home];
+            case MAIN_MENU: return main_menu;
+            case SAVE_DATA: return save_data_menu;
+            case ONOFF: return onoff_screen;
+            default: return m_leaf;
+        }
+    }
+
+    static private int cycle(int i, int delta, int ct){
+        return Math.floorMod(i + delta, ct);
+    }
+
+    //0: back, 1: down, 2: up, 3: enter. Returns the echo.
+    private String key(int k){
+        switch(m_screen){
+            case HOME:
+                if(k == 3){
+                    m_screen = Screen.MAIN_MENU;
+                    m_main_item = 0;
+                    return main_items.get(m_main_item);
+                }
+                if(k == 1 || k == 2)
+                    m_home = cycle(m_home, k == 1 ? 1 : -1, home_modes.length);
+                return home_echos[m_home];
+
+            case MAIN_MENU:
+                switch(k){
+                    case 0:
+                        m_screen = Screen.HOME;
+                        return home_echos[m_home];
+                    case 1:
+                    case 2:
+                        m_main_item = cycle(m_main_item, k == 1 ? 1 : -1, main_items.size());
+                        return main_items.get(m_main_item);
+                    default:
+                        if(main_items.get(m_main_item).equals("->Save Data")){
+                            m_screen = Screen.SAVE_DATA;
+                            m_save_item = 0;
+                            return save_data_items.get(m_save_item);
+                        }
+                        m_screen = Screen.LEAF;
+                        m_leaf = main_items.get(m_main_item).substring(2);
+                        return m_leaf;
+                }
+
+            case SAVE_DATA:
+                switch(k){
+                    case 0:
+                        m_screen = Screen.MAIN_MENU;
+                        return main_items.get(m_main_item);
+                    case 1:
+                    case 2:
+                        m_save_item = cycle(m_save_item, k == 1 ? 1 : -1, save_data_items.size());
+                        return save_data_items.get(m_save_item);
+                    default:
+                        var item = save_data_items.get(m_save_item);
+                        if(item.equals("->On/Off")){
+                            m_screen = Screen.ONOFF;
+                            return m_save_data ? "ON" : "OFF";
+                        }
+                        if(item.equals("->Return")){
+                            m_screen = Screen.MAIN_MENU;
+                            return main_items.get(m_main_item);
+                        }
+                        m_screen = Screen.LEAF;
+                        m_leaf = item.substring(2);
+                        return m_leaf;
+                }
+
+            case ONOFF:
+                if(k == 1 || k == 2){
+                    set_save_data(!m_save_data);
+                    return m_save_data ? "ON" : "OFF";
+                }
+                m_screen = Screen.SAVE_DATA;
+                return save_data_items.get(m_save_item);
+
+            default:
+                //Leaf screens only know how to go back where they came from
+                if(k == 0 || k == 3){
+                    var in_save = save_data_items.contains("->" + m_leaf);
+                    m_screen = in_save ? Screen.SAVE_DATA : Screen.MAIN_MENU;
+                    return in_save ? save_data_items.get(m_save_item) : main_items.get(m_main_item);
+                }
+                return m_leaf;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.levitator.gqlib.emulator;
+
+import com.levitator.gqlib.io.GQTransport;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+*
+* Connects a GQDevice to an Emf390Emulator instead of a serial port
+*
+*/
+public class EmulatorTransport implements GQTransport{
+
+    private final Emf390Emulator m_emu;
+
+    public EmulatorTransport(Emf390Emulator emu){
+        m_emu = emu;
+    }
+
+    public Emf390Emulator emulator(){ return m_emu; }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException{
+        return m_emu.read(dst);
+    }
+
+    @Override
+    public int available(){
+        return m_emu.available();
+    }
+
+    @Override
+    public void write(ByteBuffer src){
+        m_emu.receive(src);
+    }
+
+    @Override
+    public void flush(){
+        //Nothing buffered on our side
+    }
+
+    @Override
+    public void close(){
+        m_emu.close();
+    }
+}
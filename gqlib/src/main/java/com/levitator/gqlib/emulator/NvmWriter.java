@@ -0,0 +1,68 @@
+package com.levitator.gqlib.emulator;
+
+import com.levitator.gqlib.structures.MeasurementRecord;
+import com.levitator.gqlib.structures.TimeRecord;
+import java.time.LocalDateTime;
+
+/*
+*
+* Writes records into an NVM image in the device's own format
+*
+* 0x55aa TimeRecord:        55 aa YY MM DD hh mm ss
+* 0xaa55 MeasurementRecord: aa 55 EE Et <EF float LE> <RF float LE>
+*   where EEE is the 12-bit whole EMF reading and t is the tenths digit
+*
+*/
+public class NvmWriter {
+
+    private final byte[] m_nvm;
+    private int m_addr;
+
+    public NvmWriter(byte[] nvm, int addr){
+        m_nvm = nvm;
+        m_addr = addr;
+    }
+
+    public int address(){ return m_addr; }
+    public void address(int addr){ m_addr = addr; }
+
+    public boolean fits(int size){
+        return m_addr + size <= m_nvm.length;
+    }
+
+    private void put_float_le(float v){
+        var bits = Float.floatToRawIntBits(v);
+        m_nvm[m_addr++] = (byte)bits;
+        m_nvm[m_addr++] = (byte)(bits >> 8);
+        m_nvm[m_addr++] = (byte)(bits >> 16);
+        m_nvm[m_addr++] = (byte)(bits >> 24);
+    }
+
+    public void time_record(LocalDateTime t){
+        m_nvm[m_addr++] = 0x55;
+        m_nvm[m_addr++] = (byte)0xaa;
+        m_nvm[m_addr++] = (byte)(t.getYear() - 2000);
+        m_nvm[m_addr++] = (byte)t.getMonthValue();
+        m_nvm[m_addr++] = (byte)t.getDayOfMonth();
+        m_nvm[m_addr++] = (byte)t.getHour();
+        m_nvm[m_addr++] = (byte)t.getMinute();
+        m_nvm[m_addr++] = (byte)t.getSecond();
+    }
+
+    //EMF in tenths of a m/G. The whole part has to fit in 12 bits.
+    public void measurement_record(int emfx10, float ef, float rf){
+        if(emfx10 < 0 || emfx10 / 10 > 0xfff)
+            throw new IllegalArgumentException("EMF reading out of range: " + emfx10);
+
+        var emf = emfx10 / 10;
+        m_nvm[m_addr++] = (byte)0xaa;
+        m_nvm[m_addr++] = 0x55;
+        m_nvm[m_addr++] = (byte)(emf >> 4);
+        m_nvm[m_addr++] = (byte)(((emf & 0x0f) << 4) | (emfx10 % 10));
+        put_float_le(ef);
+        put_float_le(rf);
+    }
+
+    static public int time_record_size(){ return TimeRecord.sizeof(); }
+    static public int measurement_record_size(){ return MeasurementRecord.sizeof(); }
+}
@@ -0,0 +1,79 @@
+package com.levitator.gqlib.emulator;
+
+import com.levitator.gqlib.config.Config;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+*
+* Plausible-looking log memory for the emulator and benchmarks
+*
+* Logging sessions of a few hours at one sample per second, separated by pauses. Like the
+* EMF-390, a TimeRecord goes down at the start of each session and then roughly every three minutes,
+* jittering by a second, with the odd duplicate. Readings are random walks. Whatever is left over
+* stays blank (0xff).
+*
+*/
+public class SyntheticNvm {
+
+    //Readings wander around between calls so that consecutive sessions look continuous
+    static private class Walk{
+        final Random rnd;
+        int emfx10 = 20;
+        float ef = 5;
+        float rf = 2000;
+
+        Walk(long seed){ rnd = new Random(seed); }
+
+        void step(){
+            emfx10 = Math.max(0, Math.min(999, emfx10 + rnd.nextInt(7) - 3));
+            ef = Math.max(0, ef + (rnd.nextFloat() - 0.5f));
+            rf = Math.max(0, rf * (0.9f + rnd.nextFloat() * 0.2f) + rnd.nextInt(3));
+        }
+    }
+
+    //Fill the first fill bytes of a blank image of the given size, starting the log at start
+    static public byte[] image(int size, int fill, LocalDateTime start, long seed){
+        var nvm = new byte[size];
+        Arrays.fill(nvm, (byte)0xff);
+        write(new NvmWriter(nvm, 0), Math.min(fill, size), start, seed);
+        return nvm;
+    }
+
+    //A full log memory's worth, less a little blank space at the end
+    static public byte[] image(LocalDateTime start, long seed){
+        return image(Config.log_memory_size, Config.log_memory_size - 1024, start, seed);
+    }
+
+    //Writes sessions until the writer reaches end. Returns the time just after the last sample.
+    static public LocalDateTime write(NvmWriter w, int end, LocalDateTime start, long seed){
+        var walk = new Walk(seed);
+        var rnd = walk.rnd;
+        var t = start;
+        final int tsize = NvmWriter.time_record_size(), msize = NvmWriter.measurement_record_size();
+
+        while(true){
+            var session_end = t.plusSeconds(600 + rnd.nextInt(4 * 3600));
+            var next_time = t;
+
+            while(t.isBefore(session_end)){
+                if(!t.isBefore(next_time)){
+                    if(w.address() + tsize > end) return t;
+                    w.time_record(t);
+                    if(rnd.nextInt(50) == 0 && w.address() + tsize <= end)
+                        w.time_record(t);
+                    next_time = t.plusSeconds(Config.native_time_granular - 1 + rnd.nextInt(3));
+                }
+
+                if(w.address() + msize > end) return t;
+                walk.step();
+                w.measurement_record(walk.emfx10, walk.ef, walk.rf);
+                t = t.plusSeconds(Config.dt_per_sample);
+            }
+
+            //Logging was switched off for a while
+            t = t.plusMinutes(5 + rnd.nextInt(120));
+        }
+    }
+}
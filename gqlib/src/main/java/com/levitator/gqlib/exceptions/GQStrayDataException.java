@@ -0,0 +1,13 @@
+package com.levitator.gqlib.exceptions;
+
+/**
+ *
+ * Something was waiting in the in-queue before we sent a command, so whatever
+ * comes back can't be trusted to be the reply
+ * 
+ */
+public class GQStrayDataException extends GQProtocolException{
+    public GQStrayDataException(String msg){
+        super(msg);
+    }
+}
@@ -0,0 +1,18 @@
+package com.levitator.gqlib.exceptions;
+
+/**
+ *
+ * The device stopped talking partway through a reply, or never started.
+ * The stream is out of step until whatever is still in flight has been drained.
+ * 
+ */
+public class GQTimeoutException extends GQProtocolException{
+    
+    //Bytes of the reply which did arrive
+    public final int received;
+    
+    public GQTimeoutException(String msg, int received){
+        super(msg);
+        this.received = received;
+    }
+}
@@ -0,0 +1,33 @@
+package com.levitator.gqlib.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+*
+* Byte pipe between GQDevice and a meter
+*
+* GQDevice does all of the protocol work. A transport only has to move bytes and
+* say how many are waiting.
+*
+*/
+public interface GQTransport extends AutoCloseable{
+
+    //Block until at least one byte has been placed in dst, then return the count, or -1 at EOF
+    public int read(ByteBuffer dst) throws IOException;
+
+    //Bytes which can be read without blocking
+    public int available() throws IOException;
+
+    public void write(ByteBuffer src) throws IOException;
+
+    public void flush() throws IOException;
+
+    //Reply buffers come from here so that each transport can choose whatever memory it reads into most cheaply
+    public default ByteBuffer allocate(int capacity){
+        return ByteBuffer.allocate(capacity);
+    }
+
+    @Override
+    public void close() throws IOException;
+}
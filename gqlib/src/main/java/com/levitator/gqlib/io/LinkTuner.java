@@ -0,0 +1,186 @@
+package com.levitator.gqlib.io;
+
+import com.levitator.gqlib.config.Config;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/*
+*
+* Learns how hard we can push a particular meter during log downloads
+*
+* Two knobs: the SPIR chunk size and the gap between commands. After every few clean round trips
+* we measure throughput, shorten the gap, and double the chunk for as long as that keeps paying off.
+* Trouble pulls them back: a command which gets no reply, or runs into leftovers of the previous one,
+* means the gap was too short, and a reply which comes back short or garbled means the chunk was too big.
+* Both limits stick, so we don't keep bumping into them, and they're saved per device version.
+*
+*/
+public class LinkTuner {
+
+    public enum Failure{
+        DROPPED,    //No reply at all
+        STRAY,      //Data in the way before the command went out
+        SHORT,      //Reply stopped partway
+        CORRUPT     //Reply arrived in full but doesn't frame
+    }
+
+    //Clean round trips between adjustments
+    static private final int streak_length = 3;
+
+    //A bigger chunk has to beat the previous throughput by this much to be worth growing again
+    static private final double min_gain = 1.02;
+
+    private int m_chunk;
+    private int m_ceiling;
+    private long m_gap;         //ms
+    private long m_floor;       //ms
+    private double m_rate = 0;  //bytes/s at the last adjustment
+    private final boolean m_adaptive;
+    private boolean m_dirty = false;
+
+    private int m_streak = 0;
+    private long m_streak_bytes = 0;
+    private long m_streak_ns = 0;
+
+    private LinkTuner(int chunk, int ceiling, long gap, long floor, boolean adaptive){
+        m_ceiling = clamp(ceiling, Config.min_log_chunk_size, Config.max_log_chunk_size);
+        m_chunk = clamp(chunk, Config.min_log_chunk_size, m_ceiling);
+        m_floor = clamp(floor, Config.min_command_interval, Config.command_interval);
+        m_gap = clamp(gap, m_floor, Config.command_interval * 2);
+        m_adaptive = adaptive;
+    }
+
+    //Start from the hand-tuned settings in Config
+    public LinkTuner(boolean adaptive){
+        this(Config.log_chunk_size, Config.max_log_chunk_size, Config.command_interval, Config.min_command_interval, adaptive);
+    }
+
+    static private int clamp(int v, int lo, int hi){ return Math.max(lo, Math.min(hi, v)); }
+    static private long clamp(long v, long lo, long hi){ return Math.max(lo, Math.min(hi, v)); }
+
+    public int chunk_size(){ return m_chunk; }
+    public int chunk_ceiling(){ return m_ceiling; }
+    public long command_gap(){ return m_gap; }
+    public long gap_floor(){ return m_floor; }
+    public double rate(){ return m_rate; }
+    public boolean adaptive(){ return m_adaptive; }
+
+    //A chunk of this many bytes came back intact, round_trip_ns after the command went out
+    public void success(int bytes, long round_trip_ns){
+        if(!m_adaptive)
+            return;
+
+        //The gap is part of the cost of every chunk
+        m_streak_bytes += bytes;
+        m_streak_ns += round_trip_ns + m_gap * 1000000;
+        if(++m_streak < streak_length)
+            return;
+
+        var rate = m_streak_bytes * 1e9 / Math.max(m_streak_ns, 1);
+        reset_streak();
+
+        if(m_gap > m_floor){
+            m_gap = Math.max(m_floor, m_gap / 2);
+            m_dirty = true;
+        }
+
+        if(m_chunk < m_ceiling){
+            if(rate > m_rate * min_gain)
+                m_chunk = Math.min(m_ceiling, m_chunk * 2);
+            else
+                m_ceiling = m_chunk;    //Bigger isn't getting us anywhere
+            m_dirty = true;
+        }
+        m_rate = rate;
+    }
+
+    public void failure(Failure f){
+        reset_streak();
+        if(!m_adaptive)
+            return;
+
+        switch(f){
+            case DROPPED:
+            case STRAY:
+                //Never go back down to a gap that failed
+                m_floor = clamp(m_gap + m_gap / 4 + 1, Config.min_command_interval, Config.command_interval);
+                m_gap = clamp(m_gap * 2, m_floor, Config.command_interval * 2);
+                break;
+            case SHORT:
+            case CORRUPT:
+                m_ceiling = Math.max(Config.min_log_chunk_size, m_chunk / 2);
+                m_chunk = m_ceiling;
+                break;
+        }
+        m_rate = 0;
+        m_dirty = true;
+    }
+
+    private void reset_streak(){
+        m_streak = 0;
+        m_streak_bytes = 0;
+        m_streak_ns = 0;
+    }
+
+    //
+    // Persistence
+    //
+
+    static private Path profile_path(String version){
+        var name = version == null ? "unknown" : version.trim().replaceAll("[^A-Za-z0-9._-]", "_");
+        return Config.profile_dir.resolve("link-" + name + ".properties");
+    }
+
+    //What we learned about this device version last time, or the Config defaults if there's nothing usable
+    static public LinkTuner load(String version){
+        var path = profile_path(version);
+        if(!Files.isReadable(path))
+            return new LinkTuner(true);
+
+        var props = new Properties();
+        try(Reader in = Files.newBufferedReader(path)){
+            props.load(in);
+            return new LinkTuner(
+                    Integer.parseInt(props.getProperty("chunk_size")),
+                    Integer.parseInt(props.getProperty("chunk_ceiling")),
+                    Long.parseLong(props.getProperty("command_gap")),
+                    Long.parseLong(props.getProperty("gap_floor")),
+                    true);
+        }
+        catch(IOException | RuntimeException ex){
+            //Unreadable or from some other version of us. Start over.
+            return new LinkTuner(true);
+        }
+    }
+
+    //Write out the learned settings, if anything changed. Replaces the old file atomically.
+    public void save(String version) throws IOException{
+        if(!m_adaptive || !m_dirty)
+            return;
+
+        var path = profile_path(version);
+        var props = new Properties();
+        props.setProperty("chunk_size", Integer.toString(m_chunk));
+        props.setProperty("chunk_ceiling", Integer.toString(m_ceiling));
+        props.setProperty("command_gap", Long.toString(m_gap));
+        props.setProperty("gap_floor", Long.toString(m_floor));
+
+        Files.createDirectories(path.getParent());
+        var tmp = Files.createTempFile(path.getParent(), "link-", ".tmp");
+        try{
+            try(Writer out = Files.newBufferedWriter(tmp)){
+                props.store(out, "Learned link settings for " + version);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally{
+            Files.deleteIfExists(tmp);
+        }
+        m_dirty = false;
+    }
+}
@@ -0,0 +1,378 @@
+package com.levitator.gqlib.io;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import jdk.incubator.foreign.CLinker;
+import jdk.incubator.foreign.FunctionDescriptor;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/*
+*
+* The few libc calls that in-JVM serial IO needs: file descriptors, termios and ptys
+*
+* Bound through the JDK 17 foreign linker, jdk.incubator.foreign, so the JVM has to be run with
+* --add-modules jdk.incubator.foreign --enable-native-access=ALL-UNNAMED. The constants and the termios layout are
+* glibc's on Linux, which is the only place sercat runs, either.
+*
+* Calls fail with an IOException carrying errno's message. A read or write interrupted by a signal is retried, as
+* FileInputStream does it, so the JVM's own signals never reach the caller.
+*
+*/
+public final class Posix {
+
+    static public final int O_RDWR = 02;
+    static public final int O_NOCTTY = 0400;
+    static public final int O_CLOEXEC = 02000000;
+
+    static public final int TCSANOW = 0;
+    static public final int TCSADRAIN = 1;
+
+    static public final int B0 = 0;
+    static public final int B115200 = 010002;
+
+    //struct termios
+    static public final int termios_size = 60;
+    static public final int c_iflag = 0;
+    static public final int c_oflag = 4;
+    static public final int c_cflag = 8;
+    static public final int c_lflag = 12;
+    static public final int c_cc = 17;
+    static public final int VTIME = 5;
+    static public final int VMIN = 6;
+
+    //c_iflag
+    static public final int IGNBRK = 01;
+    static public final int BRKINT = 02;
+    static public final int IGNPAR = 04;
+    static public final int PARMRK = 010;
+    static public final int INPCK = 020;
+    static public final int ISTRIP = 040;
+    static public final int INLCR = 0100;
+    static public final int IGNCR = 0200;
+    static public final int ICRNL = 0400;
+    static public final int IUCLC = 01000;
+    static public final int IXON = 02000;
+    static public final int IXANY = 04000;
+    static public final int IXOFF = 010000;
+    static public final int IMAXBEL = 020000;
+    static public final int IUTF8 = 040000;
+
+    //c_cflag
+    static public final int CSIZE = 060;
+    static public final int CS8 = 060;
+    static public final int CSTOPB = 0100;
+    static public final int PARENB = 0400;
+    static public final int CRTSCTS = 020000000000;
+
+    //c_lflag
+    static public final int ISIG = 01;
+    static public final int ICANON = 02;
+    static public final int ECHO = 010;
+    static public final int ECHOE = 020;
+
+    static private final int EINTR = 4;
+    static private final long FIONREAD = 0x541B;
+
+    static private final CLinker linker = CLinker.getInstance();
+
+    static private final MethodHandle open_h = handle("open", MethodType.methodType(int.class, MemoryAddress.class, int.class),
+            FunctionDescriptor.of(CLinker.C_INT, CLinker.C_POINTER, CLinker.C_INT));
+    static private final MethodHandle close_h = handle("close", MethodType.methodType(int.class, int.class),
+            FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT));
+    static private final MethodHandle read_h = handle("read", MethodType.methodType(long.class, int.class, MemoryAddress.class, long.class),
+            FunctionDescriptor.of(CLinker.C_LONG, CLinker.C_INT, CLinker.C_POINTER, CLinker.C_LONG));
+    static private final MethodHandle write_h = handle("write", MethodType.methodType(long.class, int.class, MemoryAddress.class, long.class),
+            FunctionDescriptor.of(CLinker.C_LONG, CLinker.C_INT, CLinker.C_POINTER, CLinker.C_LONG));
+    static private final MethodHandle ioctl_h = handle("ioctl", MethodType.methodType(int.class, int.class, long.class, MemoryAddress.class),
+            FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT, CLinker.C_LONG, CLinker.asVarArg(CLinker.C_POINTER)));
+    static private final MethodHandle tcgetattr_h = handle("tcgetattr", MethodType.methodType(int.class, int.class, MemoryAddress.class),
+            FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT, CLinker.C_POINTER));
+    static private final MethodHandle tcsetattr_h = handle("tcsetattr", MethodType.methodType(int.class, int.class, int.class, MemoryAddress.class),
+            FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT, CLinker.C_INT, CLinker.C_POINTER));
+    static private final MethodHandle cfmakeraw_h = handle("cfmakeraw", MethodType.methodType(void.class, MemoryAddress.class),
+            FunctionDescriptor.ofVoid(CLinker.C_POINTER));
+    static private final MethodHandle cfsetispeed_h = handle("cfsetispeed", MethodType.methodType(int.class, MemoryAddress.class, int.class),
+            FunctionDescriptor.of(CLinker.C_INT, CLinker.C_POINTER, CLinker.C_INT));
+    static private final MethodHandle cfsetospeed_h = handle("cfsetospeed", MethodType.methodType(int.class, MemoryAddress.class, int.class),
+            FunctionDescriptor.of(CLinker.C_INT, CLinker.C_POINTER, CLinker.C_INT));
+    static private final MethodHandle openpty_h = handle("openpty", MethodType.methodType(int.class, MemoryAddress.class,
+            MemoryAddress.class, MemoryAddress.class, MemoryAddress.class, MemoryAddress.class),
+            FunctionDescriptor.of(CLinker.C_INT, CLinker.C_POINTER, CLinker.C_POINTER, CLinker.C_POINTER, CLinker.C_POINTER, CLinker.C_POINTER));
+    static private final MethodHandle ptsname_r_h = handle("ptsname_r", MethodType.methodType(int.class, int.class, MemoryAddress.class, long.class),
+            FunctionDescriptor.of(CLinker.C_INT, CLinker.C_INT, CLinker.C_POINTER, CLinker.C_LONG));
+    static private final MethodHandle errno_h = handle("__errno_location", MethodType.methodType(MemoryAddress.class),
+            FunctionDescriptor.of(CLinker.C_POINTER));
+    static private final MethodHandle strerror_h = handle("strerror", MethodType.methodType(MemoryAddress.class, int.class),
+            FunctionDescriptor.of(CLinker.C_POINTER, CLinker.C_INT));
+
+    private Posix(){}
+
+    static private MethodHandle handle(String name, MethodType type, FunctionDescriptor desc){
+        var sym = CLinker.systemLookup().lookup(name).orElseThrow(() -> new UnsatisfiedLinkError("libc has no " + name));
+        return linker.downcallHandle(sym, type, desc);
+    }
+
+    //A downcall can only throw what the linker does, which is unchecked
+    static private RuntimeException unexpected(Throwable ex){
+        if(ex instanceof RuntimeException)
+            return (RuntimeException)ex;
+        if(ex instanceof Error)
+            throw (Error)ex;
+        return new IllegalStateException(ex);
+    }
+
+    //Has to be called right after the failing call, before anything else can touch errno
+    static private int errno(){
+        try{
+            var where = (MemoryAddress)errno_h.invokeExact();
+            return MemoryAccess.getInt(where.asSegment(4, ResourceScope.globalScope()));
+        }
+        catch(Throwable ex){
+            throw unexpected(ex);
+        }
+    }
+
+    static private IOException error(int errno, String what){
+        String msg;
+        try{
+            msg = CLinker.toJavaString((MemoryAddress)strerror_h.invokeExact(errno));
+        }
+        catch(Throwable ex){
+            throw unexpected(ex);
+        }
+        return new IOException(what + ": " + msg + " (errno " + errno + ")");
+    }
+
+    static private int check(int result, String what) throws IOException{
+        if(result == -1)
+            throw error(errno(), what);
+        return result;
+    }
+
+    static public int open(Path path, int flags) throws IOException{
+        try(var scope = ResourceScope.newConfinedScope()){
+            return check((int)open_h.invokeExact(CLinker.toCString(path.toString(), scope).address(), flags), "open " + path);
+        }
+        catch(IOException | RuntimeException | Error ex){
+            throw ex;
+        }
+        catch(Throwable ex){
+            throw unexpected(ex);
+        }
+    }
+
+    static public void close(int fd) throws IOException{
+        try{
+            check((int)close_h.invokeExact(fd), "close");
+        }
+        catch(IOException | RuntimeException | Error ex){
+            throw ex;
+        }
+        catch(Throwable ex){
+            throw unexpected(ex);
+        }
+    }
+
+    //Blocks until at least one byte arrives, and returns the count, or -1 at EOF
+    static public int read(int fd, MemorySegment dst) throws IOException{
+        while(true){
+            long result;
+            try{
+                result = (long)read_h.invokeExact(fd, dst.address(), dst.byteSize());
+            }
+            catch(Throwable ex){
+                throw unexpected(ex);
+            }
+            if(result >= 0)
+                return result == 0 ? -1 : (int)result;
+            var errno = errno();
+            if(errno != EINTR)
+                throw error(errno, "read");
+        }
+    }
+
+    //Writes all of src
+    static public void write(int fd, MemorySegment src) throws IOException{
+        var done = 0L;
+        while(done < src.byteSize()){
+            long result;
+            try{
+                result = (long)write_h.invokeExact(fd, src.address().addOffset(done), src.byteSize() - done);
+            }
+            catch(Throwable ex){
+                throw unexpected(ex);
+            }
+            if(result >= 0)
+                done += result;
+            else{
+                var errno = errno();
+                if(errno != EINTR)
+                    throw error(errno, "write");
+            }
+        }
+    }
+
+    //Reads straight into dst if it's off-heap. Otherwise through a native buffer of the same size.
+    static public int read(int fd, ByteBuffer dst) throws IOException{
+        if(dst.isDirect()){
+            var seg = MemorySegment.ofByteBuffer(dst);
+            var result = read(fd, seg);
+            if(result > 0)
+                dst.position(dst.position() + result);
+            return result;
+        }
+
+        try(var scope = ResourceScope.newConfinedScope()){
+            var seg = MemorySegment.allocateNative(dst.remaining(), scope);
+            var result = read(fd, seg);
+            if(result > 0)
+                dst.put(seg.asSlice(0, result).asByteBuffer());
+            return result;
+        }
+    }
+
+    static public void write(int fd, ByteBuffer src) throws IOException{
+        if(src.isDirect()){
+            write(fd, MemorySegment.ofByteBuffer(src));
+            src.position(src.limit());
+            return;
+        }
+
+        try(var scope = ResourceScope.newConfinedScope()){
+            var seg = MemorySegment.allocateNative(src.remaining(), scope);
+            seg.asByteBuffer().put(src);
+            write(fd, seg);
+        }
+    }
+
+    //FIONREAD
+    static public int available(int fd) throws IOException{
+        try(var scope = ResourceScope.newConfinedScope()){
+            var count = MemorySegment.allocateNative(CLinker.C_INT, scope);
+            check((int)ioctl_h.invokeExact(fd, FIONREAD, count.address()), "ioctl FIONREAD");
+            return MemoryAccess.getInt(count);
+        }
+        catch(IOException | RuntimeException | Error ex){
+            throw ex;
+        }
+        catch(Throwable ex){
+            throw unexpected(ex);
+        }
+    }
+
+    //
+    // termios
+    //
+
+    static public MemorySegment tcgetattr(int fd, ResourceScope scope) throws IOException{
+        var tios = MemorySegment.allocateNative(termios_size, scope);
+        try{
+            check((int)tcgetattr_h.invokeExact(fd, tios.address()), "tcgetattr");
+        }
+        catch(IOException | RuntimeException | Error ex){
+            throw ex;
+        }
+        catch(Throwable ex){
+            throw unexpected(ex);
+        }
+        return tios;
+    }
+
+    static public void tcsetattr(int fd, int when, MemorySegment tios) throws IOException{
+        try{
+            check((int)tcsetattr_h.invokeExact(fd, when, tios.address()), "tcsetattr");
+        }
+        catch(IOException | RuntimeException | Error ex){
+            throw ex;
+        }
+        catch(Throwable ex){
+            throw unexpected(ex);
+        }
+    }
+
+    static public void cfmakeraw(MemorySegment tios){
+        try{
+            cfmakeraw_h.invokeExact(tios.address());
+        }
+        catch(Throwable ex){
+            throw unexpected(ex);
+        }
+    }
+
+    static public void cfsetspeed(MemorySegment tios, int speed) throws IOException{
+        try{
+            check((int)cfsetispeed_h.invokeExact(tios.address(), speed), "cfsetispeed");
+            check((int)cfsetospeed_h.invokeExact(tios.address(), speed), "cfsetospeed");
+        }
+        catch(IOException | RuntimeException | Error ex){
+            throw ex;
+        }
+        catch(Throwable ex){
+            throw unexpected(ex);
+        }
+    }
+
+    static public int get_flags(MemorySegment tios, int field){
+        return MemoryAccess.getIntAtOffset(tios, field);
+    }
+
+    static public void set_flags(MemorySegment tios, int field, int clear, int set){
+        MemoryAccess.setIntAtOffset(tios, field, (get_flags(tios, field) & ~clear) | set);
+    }
+
+    static public void set_cc(MemorySegment tios, int index, int value){
+        MemoryAccess.setByteAtOffset(tios, c_cc + index, (byte)value);
+    }
+
+    //
+    // ptys
+    //
+
+    //A master and slave pair, and the slave's name
+    static public class Pty{
+        public final int master;
+        public final int slave;
+        public final Path name;
+
+        Pty(int master, int slave, Path name){
+            this.master = master;
+            this.slave = slave;
+            this.name = name;
+        }
+    }
+
+    static public Pty openpty() throws IOException{
+        int master;
+        int slave;
+        try(var scope = ResourceScope.newConfinedScope()){
+            var fds = MemorySegment.allocateNative(8, scope);
+            check((int)openpty_h.invokeExact(fds.address(), fds.address().addOffset(4), MemoryAddress.NULL,
+                    MemoryAddress.NULL, MemoryAddress.NULL), "openpty");
+            master = MemoryAccess.getIntAtOffset(fds, 0);
+            slave = MemoryAccess.getIntAtOffset(fds, 4);
+
+            //ptsname_r returns the error number instead of setting errno
+            var name = MemorySegment.allocateNative(256, scope);
+            var errno = (int)ptsname_r_h.invokeExact(master, name.address(), name.byteSize());
+            if(errno != 0){
+                close(slave);
+                close(master);
+                throw error(errno, "ptsname_r");
+            }
+            return new Pty(master, slave, Path.of(CLinker.toJavaString(name)));
+        }
+        catch(IOException | RuntimeException | Error ex){
+            throw ex;
+        }
+        catch(Throwable ex){
+            throw unexpected(ex);
+        }
+    }
+
+}
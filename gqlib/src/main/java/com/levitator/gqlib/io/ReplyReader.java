@@ -0,0 +1,240 @@
+package com.levitator.gqlib.io;
+
+import com.levitator.gqlib.config.Config;
+import com.levitator.gqlib.exceptions.EOFException;
+import com.levitator.gqlib.exceptions.GQIOException;
+import com.levitator.gqlib.exceptions.GQInterruptedException;
+import com.levitator.gqlib.exceptions.GQTimeoutException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+*
+* Frames device replies out of a reusable block buffer
+*
+* Replies come in three flavors: lines of text terminated by LF or CRLF, a few echo strings
+* which the firmware forgets to terminate, and fixed-length binary blobs. We pull whatever
+* the transport has ready in one read() and then scan the buffer, instead of going back to the
+* stream, and through all of the exception wrapping, once per byte.
+*
+*/
+public class ReplyReader {
+
+    private final GQTransport m_in;
+
+    //Unread data lies between position and limit
+    private final ByteBuffer m_buf;
+
+    //Scratch space for assembling lines which straddle buffer refills
+    private byte[] m_line = new byte[64];
+    private int m_line_len;
+
+    public ReplyReader(GQTransport in, int capacity){
+        m_in = in;
+        m_buf = in.allocate(capacity);
+        m_buf.limit(0);
+    }
+
+    //Number of bytes that can be consumed without blocking
+    public int available() throws GQIOException{
+        try{
+            return m_buf.remaining() + m_in.available();
+        }
+        catch(IOException ex){
+            throw new GQIOException("Error checking IO in-queue size", ex);
+        }
+    }
+
+    //Read at least one byte into dst
+    private void transport_read(ByteBuffer dst, String what) throws GQIOException, GQInterruptedException{
+        try{
+            if(m_in.read(dst) < 0)
+                throw new EOFException("Device or IO process disconnected while reading " + what);
+        }
+        catch(InterruptedIOException | ClosedByInterruptException ex){
+            throw new GQInterruptedException(false, "Interrupted reading " + what, ex);
+        }
+        catch(IOException ex){
+            throw new GQIOException("Error reading " + what + " from device", ex);
+        }
+    }
+
+    //Block until at least one more byte is buffered
+    private void fill() throws GQIOException, GQInterruptedException{
+        m_buf.clear();
+        try{
+            transport_read(m_buf, "device reply");
+        }
+        finally{
+            m_buf.flip();
+        }
+    }
+
+    public int read() throws GQIOException, GQInterruptedException{
+        if(!m_buf.hasRemaining())
+            fill();
+        return m_buf.get() & 0xff;
+    }
+
+    //Fixed-length binary reply
+    public void read(byte[] data, int i, int len) throws GQIOException, GQInterruptedException{
+
+        var ct = Math.min(len, m_buf.remaining());
+        m_buf.get(data, i, ct);
+        i += ct;
+        len -= ct;
+
+        //Big replies (log chunks) go straight into the caller's array rather than through ours
+        if(len >= m_buf.capacity()){
+            var dst = ByteBuffer.wrap(data, i, len);
+            while(dst.remaining() >= m_buf.capacity())
+                transport_read(dst, "byte array");
+            i = dst.position();
+            len = dst.remaining();
+        }
+
+        while(len > 0){
+            fill();
+            ct = Math.min(len, m_buf.remaining());
+            m_buf.get(data, i, ct);
+            i += ct;
+            len -= ct;
+        }
+    }
+
+    private void poll_sleep() throws GQInterruptedException{
+        try{
+            TimeUnit.MILLISECONDS.sleep(Config.io_poll_interval);
+        }
+        catch(InterruptedException ex){
+            throw new GQInterruptedException(false, "Interrupted waiting on device reply", ex);
+        }
+    }
+    
+    //As read(), except that we give up if nothing arrives for idle_timeout ms
+    //We only ever read what the transport says is there, so we never block in the transport.
+    public void read(byte[] data, int i, int len, long idle_timeout) throws GQIOException, GQInterruptedException, GQTimeoutException{
+        var received = 0;
+        var last = System.nanoTime();
+        var timeout = TimeUnit.MILLISECONDS.toNanos(idle_timeout);
+        
+        while(len > 0){
+            if(!m_buf.hasRemaining()){
+                if(available() == 0){
+                    if(System.nanoTime() - last > timeout)
+                        throw new GQTimeoutException("Device reply stalled after " + received + " of " + (received + len) + " bytes", received);
+                    poll_sleep();
+                    continue;
+                }
+                fill();
+                last = System.nanoTime();
+            }
+            
+            var ct = Math.min(len, m_buf.remaining());
+            m_buf.get(data, i, ct);
+            i += ct;
+            len -= ct;
+            received += ct;
+        }
+    }
+    
+    //Throw away everything until the line has been quiet for quiet_time ms. Returns the number of bytes discarded.
+    public int drain(long quiet_time) throws GQIOException, GQInterruptedException{
+        var result = m_buf.remaining();
+        m_buf.position(m_buf.limit());
+        var last = System.nanoTime();
+        var quiet = TimeUnit.MILLISECONDS.toNanos(quiet_time);
+        
+        while(System.nanoTime() - last <= quiet){
+            if(available() > 0){
+                fill();
+                result += m_buf.remaining();
+                m_buf.position(m_buf.limit());
+                last = System.nanoTime();
+            }
+            else
+                poll_sleep();
+        }
+        return result;
+    }
+    
+    private void append_line(int from, int to){
+        var ct = to - from;
+        if(m_line_len + ct > m_line.length)
+            m_line = Arrays.copyOf(m_line, Math.max(m_line.length * 2, m_line_len + ct));
+        m_buf.get(from, m_line, m_line_len, ct);
+        m_line_len += ct;
+    }
+
+    //Bytes map straight to codepoints, as in Util.bytes2String()
+    private String take_line(){
+        var result = new String(m_line, 0, m_line_len, StandardCharsets.ISO_8859_1);
+        m_line_len = 0;
+        return result;
+    }
+
+    //Line terminated by LF or CRLF. The terminator is not returned.
+    public String read_line() throws GQIOException, GQInterruptedException{
+        m_line_len = 0;
+        while(true){
+            if(!m_buf.hasRemaining())
+                fill();
+
+            int pos = m_buf.position(), end = m_buf.limit(), i;
+            for(i = pos; i < end && m_buf.get(i) != '\n'; ++i);
+            append_line(pos, i);
+
+            if(i < end){
+                m_buf.position(i + 1);
+                break;
+            }
+            m_buf.position(end);
+        }
+
+        //If the line eneded in crlf, then lop off the cr, too
+        if(m_line_len > 0 && m_line[m_line_len - 1] == '\r')
+            --m_line_len;
+        return take_line();
+    }
+
+    //As read_line(), except that the line also ends as soon as it spells out one of the unterminated strings.
+    //These are compared against everything received so far, so they are only ever checked at the one length where they could match.
+    public String read_line(String... unterminated) throws GQIOException, GQInterruptedException{
+
+        var candidates = new byte[unterminated.length][];
+        var max_len = 0;
+        for(var i = 0; i < unterminated.length; ++i){
+            candidates[i] = unterminated[i].getBytes(StandardCharsets.ISO_8859_1);
+            max_len = Math.max(max_len, candidates[i].length);
+        }
+
+        m_line_len = 0;
+        int b;
+        while(true){
+            b = read();
+            if(b == '\n')
+                break;
+
+            if(m_line_len == m_line.length)
+                m_line = Arrays.copyOf(m_line, m_line.length * 2);
+            m_line[m_line_len++] = (byte)b;
+
+            if(m_line_len <= max_len){
+                for(var c : candidates){
+                    if(c.length == m_line_len && Arrays.equals(c, 0, c.length, m_line, 0, m_line_len))
+                        return take_line();
+                }
+            }
+        }
+
+        //If the line eneded in crlf, then lop off the cr, too
+        if(m_line_len > 0 && m_line[m_line_len - 1] == '\r')
+            --m_line_len;
+        return take_line();
+    }
+}
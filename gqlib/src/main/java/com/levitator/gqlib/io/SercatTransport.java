@@ -0,0 +1,92 @@
+package com.levitator.gqlib.io;
+
+import com.levitator.gqlib.config.Config;
+import com.levitator.gqlib.exceptions.GQIOException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/*
+*
+* Serial IO through the native sercat process, which sets up the tty and forwards its stdio
+*
+*/
+public class SercatTransport implements GQTransport{
+
+    //Native process that handles serial I/O
+    private final Process m_process;
+    private final InputStream m_in;
+    private final OutputStream m_out;
+    private final InputStream m_error;
+
+    //Staging for callers who hand us direct buffers
+    private byte[] m_scratch = new byte[0];
+
+    public SercatTransport(Path dev) throws IOException{
+        var cmd = new ArrayList<String>(Config.sercat_cmd);
+        cmd.add(dev.toString());
+        var pb = new ProcessBuilder(cmd);
+        m_process = pb.start();
+        m_in = m_process.getInputStream();
+        m_out = m_process.getOutputStream();
+        m_error = m_process.getErrorStream();
+    }
+
+    static public SercatTransport open(Path dev) throws GQIOException{
+        try{
+            return new SercatTransport(dev);
+        }
+        catch(IOException ex){
+            throw new GQIOException("Failed opening devce or IO process", ex);
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException{
+        int result;
+        if(dst.hasArray()){
+            result = m_in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if(result > 0)
+                dst.position(dst.position() + result);
+        }
+        else{
+            if(m_scratch.length < dst.remaining())
+                m_scratch = new byte[dst.remaining()];
+            result = m_in.read(m_scratch, 0, dst.remaining());
+            if(result > 0)
+                dst.put(m_scratch, 0, result);
+        }
+        return result;
+    }
+
+    @Override
+    public int available() throws IOException{
+        return m_in.available();
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException{
+        if(src.hasArray()){
+            m_out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+        }
+        else{
+            var data = new byte[src.remaining()];
+            src.get(data);
+            m_out.write(data);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException{
+        m_out.flush();
+    }
+
+    @Override
+    public void close(){
+        m_process.destroy();
+    }
+}
@@ -0,0 +1,116 @@
+package com.levitator.gqlib.io;
+
+import com.levitator.gqlib.exceptions.GQIOException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/*
+*
+* Serial IO straight from the JVM, with no sercat process in between
+*
+* The tty is opened, configured and read through libc, by way of Posix. The line discipline is set up once on open, the
+* same way GQSerial.cpp does it: hang up, then raw 8N1 at 115200 with no flow control, VMIN=1 and VTIME=0 so that a read
+* returns as soon as anything arrives. Reply buffers are native memory, and read(2) fills them in place.
+*
+* A read blocked in libc doesn't notice Thread.interrupt(), and nothing about it closes the descriptor, so an interrupt
+* is left for GQDevice to notice between reads, as it is with sercat's pipes, and the tty stays open for every thread.
+*
+*/
+public class TtyTransport implements GQTransport{
+
+    private final int m_fd;
+
+    public TtyTransport(Path dev) throws IOException{
+        m_fd = Posix.open(dev, Posix.O_RDWR | Posix.O_NOCTTY | Posix.O_CLOEXEC);
+        try(var scope = ResourceScope.newConfinedScope()){
+            configure(scope);
+        }
+        catch(IOException | RuntimeException ex){
+            try{
+                Posix.close(m_fd);
+            }
+            catch(IOException close_ex){
+                ex.addSuppressed(close_ex);
+            }
+            throw ex;
+        }
+    }
+
+    static public TtyTransport open(Path dev) throws GQIOException{
+        try{
+            return new TtyTransport(dev);
+        }
+        catch(IOException ex){
+            throw new GQIOException("Failed opening or configuring serial device: " + dev, ex);
+        }
+        catch(LinkageError | IllegalCallerException ex){
+            throw new GQIOException("In-JVM serial IO needs the JVM run with --add-modules jdk.incubator.foreign " +
+                    "--enable-native-access=ALL-UNNAMED", ex);
+        }
+    }
+
+    private void configure(ResourceScope scope) throws IOException{
+        var tios = Posix.tcgetattr(m_fd, scope);
+
+        //Not every tty can do B0 (ptys can't), and it's only a courtesy reset anyway
+        Posix.cfsetspeed(tios, Posix.B0);
+        try{
+            Posix.tcsetattr(m_fd, Posix.TCSADRAIN, tios);
+        }
+        catch(IOException ex){
+            //Carry on
+        }
+
+        Posix.cfmakeraw(tios);
+
+        //8N1, no flow control
+        Posix.set_flags(tios, Posix.c_cflag, Posix.PARENB | Posix.CSTOPB | Posix.CSIZE | Posix.CRTSCTS, Posix.CS8);
+        Posix.set_flags(tios, Posix.c_lflag, Posix.ICANON | Posix.ECHO | Posix.ECHOE | Posix.ISIG, 0);
+        Posix.set_flags(tios, Posix.c_iflag, Posix.BRKINT | Posix.INPCK | Posix.PARMRK | Posix.ISTRIP | Posix.IXON | Posix.IXOFF |
+                Posix.INLCR | Posix.IGNCR | Posix.ICRNL | Posix.IUCLC | Posix.IMAXBEL | Posix.IUTF8,
+                Posix.IGNPAR | Posix.IXANY | Posix.IGNBRK);
+
+        //No output processing, and every delay at 0
+        Posix.set_flags(tios, Posix.c_oflag, -1, 0);
+
+        Posix.set_cc(tios, Posix.VMIN, 1);
+        Posix.set_cc(tios, Posix.VTIME, 0);
+        Posix.cfsetspeed(tios, Posix.B115200);
+        Posix.tcsetattr(m_fd, Posix.TCSADRAIN, tios);
+    }
+
+    //Native, so that read(2) lands in the reply buffer without a copy. Freed once the buffer is unreachable, the same
+    //as a direct ByteBuffer.
+    @Override
+    public ByteBuffer allocate(int capacity){
+        return MemorySegment.allocateNative(capacity, ResourceScope.newImplicitScope()).asByteBuffer();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException{
+        return Posix.read(m_fd, dst);
+    }
+
+    @Override
+    public int available() throws IOException{
+        return Posix.available(m_fd);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException{
+        Posix.write(m_fd, src);
+    }
+
+    @Override
+    public void flush(){
+        //Unbuffered
+    }
+
+    @Override
+    public void close() throws IOException{
+        Posix.close(m_fd);
+    }
+}
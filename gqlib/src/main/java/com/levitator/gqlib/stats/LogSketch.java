@@ -0,0 +1,154 @@
+package com.levitator.gqlib.stats;
+
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.exceptions.GQUserDataFormatException;
+import com.levitator.gqlib.structures.MeasurementSink;
+import com.levitator.util.LocalNanos;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+*
+* Quantile sketches of a log's EMF, EF and RF, with its record count and time range, kept as the records go by, and
+* saved next to a dump so that percentiles over any number of dumps, from any number of devices, can be had by merging
+* the sketches, without going back to the records
+*
+* A few kB, whatever the length of the log. EMF is kept in tenths of m/G and RF in raw device units, as in LogStats,
+* and the getters convert. Files are gzipped, and written under a temporary name and then renamed, as NvmImage's are.
+*
+*/
+public class LogSketch implements MeasurementSink{
+
+    static public final String extension = ".qsk";
+
+    static private final int magic = 0x4751534b;   //"GQSK"
+    static private final short format_version = 1;
+
+    private long m_count = 0;
+    private long m_first = Long.MAX_VALUE, m_last = Long.MIN_VALUE;
+    private final QuantileSketch m_emfx10, m_ef, m_rf;
+
+    public LogSketch(){
+        this(new QuantileSketch(), new QuantileSketch(), new QuantileSketch());
+    }
+
+    private LogSketch(QuantileSketch emfx10, QuantileSketch ef, QuantileSketch rf){
+        m_emfx10 = emfx10;
+        m_ef = ef;
+        m_rf = rf;
+    }
+
+    @Override
+    public void measurement(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+        ++m_count;
+        m_first = Math.min(m_first, time);
+        m_last = Math.max(m_last, time);
+        m_emfx10.add(emfx10);
+        m_ef.add(ef);
+        m_rf.add(rf);
+    }
+
+    public void add(LogDataSet data){
+        var time = data.time_column();
+        var emfx10 = data.emfx10_column();
+        var ef = data.ef_column();
+        var rf = data.rf_column();
+        for(int i = 0; i < data.size(); ++i)
+            measurement(time[i], 0, false, emfx10[i], ef[i], rf[i]);
+    }
+
+    //Folds other into this one
+    public LogSketch merge(LogSketch other){
+        m_count += other.m_count;
+        m_first = Math.min(m_first, other.m_first);
+        m_last = Math.max(m_last, other.m_last);
+        m_emfx10.merge(other.m_emfx10);
+        m_ef.merge(other.m_ef);
+        m_rf.merge(other.m_rf);
+        return this;
+    }
+
+    public long size(){ return m_count; }
+
+    //Earliest and latest times, or null if there's nothing
+    public LocalDateTime first(){ return m_count == 0 ? null : LocalNanos.to_local(m_first); }
+    public LocalDateTime last(){ return m_count == 0 ? null : LocalNanos.to_local(m_last); }
+
+    //In the columns' units
+    public QuantileSketch emfx10(){ return m_emfx10; }
+    public QuantileSketch ef(){ return m_ef; }
+    public QuantileSketch rf(){ return m_rf; }
+
+    //m/G, V/m and mW/m2
+    public double[] emf_quantiles(double... q){ return scale(m_emfx10.quantiles(q), 10); }
+    public double[] ef_quantiles(double... q){ return m_ef.quantiles(q); }
+    public double[] rf_quantiles(double... q){ return scale(m_rf.quantiles(q), LogStats.rf_scale); }
+
+    static private double[] scale(double[] v, double divisor){
+        for(int i = 0; i < v.length; ++i)
+            v[i] /= divisor;
+        return v;
+    }
+
+    //
+    // Files
+    //
+
+    public void write(Path path) throws IOException{
+        var dir = path.toAbsolutePath().getParent();
+        var tmp = Files.createTempFile(dir, "qsk-", ".tmp");
+        try{
+            try(var out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp), 1 << 14))){
+                out.writeInt(magic);
+                out.writeShort(format_version);
+                out.writeLong(m_count);
+                out.writeLong(m_first);
+                out.writeLong(m_last);
+                m_emfx10.write(out);
+                m_ef.write(out);
+                m_rf.write(out);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally{
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    static public LogSketch read(Path path) throws IOException, GQUserDataFormatException{
+        try(var in = new DataInputStream(new GZIPInputStream(Files.newInputStream(path), 1 << 14))){
+            if(in.readInt() != magic)
+                throw new GQUserDataFormatException(path + " is not a quantile sketch");
+            var v = in.readShort();
+            if(v != format_version)
+                throw new GQUserDataFormatException(path + " is quantile sketch format version " + v + ". We only know version " + format_version);
+
+            var count = in.readLong();
+            var first = in.readLong();
+            var last = in.readLong();
+            LogSketch result;
+            try{
+                result = new LogSketch(QuantileSketch.read(in), QuantileSketch.read(in), QuantileSketch.read(in));
+            }
+            catch(GQUserDataFormatException ex){
+                throw new GQUserDataFormatException(path + ": " + ex.getMessage(), ex);
+            }
+            if(count < 0)
+                throw new GQUserDataFormatException(path + ": negative record count");
+            result.m_count = count;
+            result.m_first = first;
+            result.m_last = last;
+            return result;
+        }
+        catch(java.io.EOFException | java.util.zip.ZipException ex){
+            throw new GQUserDataFormatException(path + " is cut short or corrupt: " + ex.getMessage(), ex);
+        }
+    }
+}
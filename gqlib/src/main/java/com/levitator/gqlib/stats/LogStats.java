@@ -0,0 +1,140 @@
+package com.levitator.gqlib.stats;
+
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.structures.MeasurementRecord;
+import com.levitator.util.LocalNanos;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/*
+*
+* Summary statistics of a log, channel by channel, over the columns as LogDataSet keeps them
+*
+* Each stretch of rows is one pass per column, through Moments' kernels. Stretches summarize independently and merge,
+* so a big set is done a chunk per task in parallel, and a stream of records a chunk at a time as it fills.
+* EMF is kept in tenths of m/G and RF in raw device units, as in the columns. The getters convert.
+*
+*/
+public class LogStats {
+
+    //Rows per chunk. Big enough to amortize a task, small enough to stay in cache.
+    static public final int chunk_size = 1 << 14;
+
+    private long m_first = Long.MAX_VALUE, m_last = Long.MIN_VALUE;
+    private final Moments m_emfx10 = new Moments();
+    private final Moments m_ef = new Moments();
+    private final Moments m_rf = new Moments();
+
+    public LogStats(){
+    }
+
+    //Rows [from, to) of the columns
+    public LogStats add(long[] time, int[] emfx10, float[] ef, float[] rf, int from, int to){
+        if(from >= to)
+            return this;
+
+        long first = time[from], last = first;
+        for(int i = from; i < to; ++i){
+            first = Math.min(first, time[i]);
+            last = Math.max(last, time[i]);
+        }
+        m_first = Math.min(m_first, first);
+        m_last = Math.max(m_last, last);
+
+        m_emfx10.merge(Moments.of(emfx10, from, to));
+        m_ef.merge(Moments.of(ef, from, to));
+        m_rf.merge(Moments.of(rf, from, to));
+        return this;
+    }
+
+    //Folds other into this one
+    public LogStats merge(LogStats other){
+        m_first = Math.min(m_first, other.m_first);
+        m_last = Math.max(m_last, other.m_last);
+        m_emfx10.merge(other.m_emfx10);
+        m_ef.merge(other.m_ef);
+        m_rf.merge(other.m_rf);
+        return this;
+    }
+
+    static public LogStats of(LogDataSet data){
+        var n = data.size();
+        var time = data.time_column();
+        var emfx10 = data.emfx10_column();
+        var ef = data.ef_column();
+        var rf = data.rf_column();
+        var chunks = (n + chunk_size - 1) / chunk_size;
+        if(chunks <= 1)
+            return new LogStats().add(time, emfx10, ef, rf, 0, n);
+
+        var parts = new LogStats[chunks];
+        IntStream.range(0, chunks).parallel().forEach(c ->
+                parts[c] = new LogStats().add(time, emfx10, ef, rf, c * chunk_size, Math.min(n, (c + 1) * chunk_size)));
+
+        //Merged in chunk order, so the rounding doesn't depend on how the pool split things up
+        var result = new LogStats();
+        for(var p : parts)
+            result.merge(p);
+        return result;
+    }
+
+    public long size(){ return m_ef.count(); }
+
+    //Earliest and latest times, or null if there's nothing
+    public LocalDateTime first(){ return size() == 0 ? null : LocalNanos.to_local(m_first); }
+    public LocalDateTime last(){ return size() == 0 ? null : LocalNanos.to_local(m_last); }
+
+    //In the columns' units
+    public Moments emfx10(){ return m_emfx10; }
+    public Moments ef(){ return m_ef; }
+    public Moments rf(){ return m_rf; }
+
+    //m/G
+    public double emf_min(){ return m_emfx10.min() / 10; }
+    public double emf_max(){ return m_emfx10.max() / 10; }
+    public double emf_mean(){ return m_emfx10.mean() / 10; }
+    public double emf_stddev(){ return m_emfx10.stddev() / 10; }
+
+    //mW/m2, as IMeasurement.get_rf_mWm2()
+    static public final double rf_scale = MeasurementRecord.rf_multiplier / 1000;
+    public double rf_min(){ return m_rf.min() / rf_scale; }
+    public double rf_max(){ return m_rf.max() / rf_scale; }
+    public double rf_mean(){ return m_rf.mean() / rf_scale; }
+    public double rf_stddev(){ return m_rf.stddev() / rf_scale; }
+
+    //
+    // Exact quantiles, for sets which are all in memory anyway
+    //
+
+    //Quantiles q, each in [0, 1], of the first n values, interpolating between neighbours. Sorts a copy.
+    static public double[] quantiles(float[] v, int n, double... q){
+        var sorted = Arrays.copyOf(v, n);
+        Arrays.parallelSort(sorted);
+        var result = new double[q.length];
+        for(int j = 0; j < q.length; ++j){
+            var at = position(n, q[j]);
+            var i = (int)at;
+            result[j] = i + 1 < n ? sorted[i] + (at - i) * ((double)sorted[i + 1] - sorted[i]) : n > 0 ? sorted[n - 1] : Double.NaN;
+        }
+        return result;
+    }
+
+    static public double[] quantiles(int[] v, int n, double... q){
+        var sorted = Arrays.copyOf(v, n);
+        Arrays.parallelSort(sorted);
+        var result = new double[q.length];
+        for(int j = 0; j < q.length; ++j){
+            var at = position(n, q[j]);
+            var i = (int)at;
+            result[j] = i + 1 < n ? sorted[i] + (at - i) * ((double)sorted[i + 1] - sorted[i]) : n > 0 ? sorted[n - 1] : Double.NaN;
+        }
+        return result;
+    }
+
+    static private double position(int n, double q){
+        if(q < 0 || q > 1)
+            throw new IllegalArgumentException("Quantile out of range: " + q);
+        return q * Math.max(0, n - 1);
+    }
+}
@@ -0,0 +1,128 @@
+package com.levitator.gqlib.stats;
+
+/*
+*
+* Count, min, max, mean and variance of one channel, from a column in a single pass, and mergeable with the same
+* for another stretch of the column
+*
+* The kernels are plain counted loops over a primitive array with nothing in them but the arithmetic, which is what
+* C2 needs to vectorize them: the int one outright, and min and max for floats. Floating-point sums can't be
+* reordered, so those go four ways, each accumulator on its own lane, so the adds don't wait on one another.
+* Sums are of differences from the first value, so that the sum of squares doesn't lose everything to cancellation
+* when the spread is small next to the mean. Merging is Chan et al.'s pairwise update.
+*
+*/
+public class Moments {
+
+    private long m_count = 0;
+    private double m_min = Double.POSITIVE_INFINITY;
+    private double m_max = Double.NEGATIVE_INFINITY;
+    private double m_mean = 0;
+    private double m_m2 = 0;       //Sum of squared differences from the mean
+
+    public Moments(){
+    }
+
+    public Moments(long count, double min, double max, double mean, double m2){
+        m_count = count;
+        m_min = min;
+        m_max = max;
+        m_mean = mean;
+        m_m2 = m2;
+    }
+
+    //v[from, to)
+    static public Moments of(int[] v, int from, int to){
+        if(from >= to)
+            return new Moments();
+
+        int k = v[from], min = k, max = k;
+        long s1 = 0, s2 = 0;
+        for(int i = from; i < to; ++i){
+            var x = v[i];
+            min = Math.min(min, x);
+            max = Math.max(max, x);
+            long d = (long)x - k;
+            s1 += d;
+            s2 += d * d;
+        }
+        return from_sums(to - from, min, max, k, s1, s2);
+    }
+
+    static public Moments of(float[] v, int from, int to){
+        if(from >= to)
+            return new Moments();
+
+        float min = v[from], max = min;
+        for(int i = from; i < to; ++i){
+            var x = v[i];
+            min = Math.min(min, x);
+            max = Math.max(max, x);
+        }
+
+        double k = v[from];
+        double a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+        double q0 = 0, q1 = 0, q2 = 0, q3 = 0;
+        int i = from;
+        for(; i + 4 <= to; i += 4){
+            double d0 = v[i] - k, d1 = v[i + 1] - k, d2 = v[i + 2] - k, d3 = v[i + 3] - k;
+            a0 += d0;
+            a1 += d1;
+            a2 += d2;
+            a3 += d3;
+            q0 += d0 * d0;
+            q1 += d1 * d1;
+            q2 += d2 * d2;
+            q3 += d3 * d3;
+        }
+        for(; i < to; ++i){
+            double d = v[i] - k;
+            a0 += d;
+            q0 += d * d;
+        }
+        return from_sums(to - from, min, max, k, (a0 + a1) + (a2 + a3), (q0 + q1) + (q2 + q3));
+    }
+
+    //From the sum and sum of squares of differences from k
+    static private Moments from_sums(long n, double min, double max, double k, double s1, double s2){
+        var mean_d = s1 / n;
+        return new Moments(n, min, max, k + mean_d, Math.max(0, s2 - s1 * mean_d));
+    }
+
+    //Folds other into this one
+    public Moments merge(Moments other){
+        if(other.m_count == 0)
+            return this;
+        if(m_count == 0){
+            m_count = other.m_count;
+            m_min = other.m_min;
+            m_max = other.m_max;
+            m_mean = other.m_mean;
+            m_m2 = other.m_m2;
+            return this;
+        }
+
+        var n = m_count + other.m_count;
+        var delta = other.m_mean - m_mean;
+        m_mean += delta * other.m_count / n;
+        m_m2 += other.m_m2 + delta * delta * ((double)m_count * other.m_count / n);
+        m_count = n;
+        m_min = Math.min(m_min, other.m_min);
+        m_max = Math.max(m_max, other.m_max);
+        return this;
+    }
+
+    public long count(){ return m_count; }
+
+    //Infinite, or NaN for the mean and variance, when there's nothing
+    public double min(){ return m_min; }
+    public double max(){ return m_max; }
+    public double mean(){ return m_count == 0 ? Double.NaN : m_mean; }
+
+    //Of the values themselves, not an estimate for whatever they were sampled from
+    public double variance(){ return m_count == 0 ? Double.NaN : m_m2 / m_count; }
+    public double stddev(){ return Math.sqrt(variance()); }
+
+    //Sum of squared differences from the mean, for saving and restoring
+    public double m2(){ return m_m2; }
+}
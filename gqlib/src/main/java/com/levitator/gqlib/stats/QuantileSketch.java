@@ -0,0 +1,282 @@
+package com.levitator.gqlib.stats;
+
+import com.levitator.gqlib.exceptions.GQUserDataFormatException;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/*
+*
+* Approximate quantiles of one channel in bounded memory, mergeable with any other sketch of the same accuracy
+*
+* Values go into logarithmic buckets, as in DDSketch: bucket i holds magnitudes in (gamma^(i-1), gamma^i], where
+* gamma = (1 + a) / (1 - a), so every value in a bucket is within a relative error a of the bucket's midpoint. Positive
+* and negative values have their own buckets, and zeroes their own count. A quantile is the midpoint of the bucket its
+* rank falls in, which is within a of the true value. Merging adds up bucket counts, so it doesn't matter what order
+* sketches are merged in, or how the values were split up between them. The result is the sketch of all of them.
+*
+* The buckets are kept in an array over the range in use, so the size depends on the ratio of the biggest magnitude to
+* the smallest, not on the number of values. Past max_bins, the smallest magnitudes share a bucket, which only affects
+* quantiles down among them. With the defaults, that's a range of 10^17 before it happens.
+* min() and max() are exact.
+*
+*/
+public class QuantileSketch {
+
+    static public final double default_accuracy = 0.01;
+    static public final int default_max_bins = 2048;
+
+    private final double m_accuracy;
+    private final double m_gamma;
+    private final double m_log_gamma;
+    private final int m_max_bins;
+
+    private final Store m_positive = new Store();
+    private final Store m_negative = new Store();   //By magnitude
+    private long m_zero = 0;
+    private double m_min = Double.POSITIVE_INFINITY;
+    private double m_max = Double.NEGATIVE_INFINITY;
+
+    //Bucket counts for a range of indices, in an array which grows to cover it
+    private class Store{
+        long[] counts = new long[64];
+        int offset;             //Index of counts[0]
+        int lo, hi;             //Indices in use, when total > 0
+        long total = 0;
+
+        void add(int i, long n){
+            if(total == 0){
+                offset = i - counts.length / 2;
+                lo = hi = i;
+            }
+            else if(i < lo){
+                i = Math.max(i, hi - m_max_bins + 1);
+                if(i < lo){
+                    cover(i, hi);
+                    lo = i;
+                }
+            }
+            else if(i > hi){
+                if(i - lo >= m_max_bins)
+                    collapse(i - m_max_bins + 1);
+                cover(lo, i);
+                hi = i;
+            }
+            counts[i - offset] += n;
+            total += n;
+        }
+
+        //Everything below index new_lo goes into its bucket
+        private void collapse(int new_lo){
+            long moved = 0;
+            for(int j = lo; j <= Math.min(hi, new_lo - 1); ++j){
+                moved += counts[j - offset];
+                counts[j - offset] = 0;
+            }
+            hi = Math.max(hi, new_lo);
+            lo = new_lo;
+            cover(lo, hi);
+            counts[lo - offset] += moved;
+        }
+
+        //Makes room for indices [from, to], which include all that are in use
+        private void cover(int from, int to){
+            if(from >= offset && to < offset + counts.length)
+                return;
+            var len = Math.max(to - from + 1, Math.min(counts.length * 2, m_max_bins));
+            var off = to >= offset + counts.length ? from : to - len + 1;
+            var grown = new long[len];
+            int a = Math.max(offset, off), b = Math.min(offset + counts.length, off + len);
+            if(a < b)
+                System.arraycopy(counts, a - offset, grown, a - off, b - a);
+            counts = grown;
+            offset = off;
+        }
+
+        long count(int i){ return counts[i - offset]; }
+
+        void merge(Store other){
+            if(other.total == 0)
+                return;
+            for(int j = other.lo; j <= other.hi; ++j){
+                var n = other.count(j);
+                if(n != 0)
+                    add(j, n);
+            }
+        }
+
+        void write(DataOutput out) throws IOException{
+            out.writeLong(total);
+            if(total == 0)
+                return;
+            out.writeInt(lo);
+            out.writeInt(hi - lo + 1);
+            for(int j = lo; j <= hi; ++j)
+                out.writeLong(count(j));
+        }
+
+        void read(DataInput in) throws IOException, GQUserDataFormatException{
+            var n = in.readLong();
+            if(n == 0)
+                return;
+            var from = in.readInt();
+            var bins = in.readInt();
+            if(bins <= 0 || bins > m_max_bins)
+                throw new GQUserDataFormatException("Quantile sketch has " + bins + " buckets. The limit is " + m_max_bins);
+            long sum = 0;
+            for(int j = 0; j < bins; ++j){
+                var c = in.readLong();
+                if(c < 0)
+                    throw new GQUserDataFormatException("Quantile sketch has a negative bucket count");
+                if(c != 0)
+                    add(from + j, c);
+                sum += c;
+            }
+            if(sum != n)
+                throw new GQUserDataFormatException("Quantile sketch bucket counts don't add up");
+        }
+    }
+
+    public QuantileSketch(){
+        this(default_accuracy, default_max_bins);
+    }
+
+    //Quantiles within relative error accuracy, in (0, 1), until the range needs more than max_bins buckets
+    public QuantileSketch(double accuracy, int max_bins){
+        if(!(accuracy > 0 && accuracy < 1))
+            throw new IllegalArgumentException("Sketch accuracy out of range: " + accuracy);
+        if(max_bins < 16)
+            throw new IllegalArgumentException("Too few sketch buckets: " + max_bins);
+        m_accuracy = accuracy;
+        m_gamma = (1 + accuracy) / (1 - accuracy);
+        m_log_gamma = Math.log(m_gamma);
+        m_max_bins = max_bins;
+    }
+
+    //An empty one like this one, for merging into
+    public QuantileSketch like(){
+        return new QuantileSketch(m_accuracy, m_max_bins);
+    }
+
+    public double accuracy(){ return m_accuracy; }
+
+    //NaN and infinities are ignored
+    public void add(double v){
+        if(!Double.isFinite(v))
+            return;
+        m_min = Math.min(m_min, v);
+        m_max = Math.max(m_max, v);
+        if(v > 0)
+            m_positive.add(index(v), 1);
+        else if(v < 0)
+            m_negative.add(index(-v), 1);
+        else
+            ++m_zero;
+    }
+
+    //Folds other into this one. They must be of the same accuracy.
+    public QuantileSketch merge(QuantileSketch other){
+        if(other.m_accuracy != m_accuracy)
+            throw new IllegalArgumentException("Can't merge quantile sketches of accuracy " + m_accuracy + " and " + other.m_accuracy);
+        m_positive.merge(other.m_positive);
+        m_negative.merge(other.m_negative);
+        m_zero += other.m_zero;
+        m_min = Math.min(m_min, other.m_min);
+        m_max = Math.max(m_max, other.m_max);
+        return this;
+    }
+
+    public long count(){ return m_positive.total + m_negative.total + m_zero; }
+
+    //Infinite when there's nothing
+    public double min(){ return m_min; }
+    public double max(){ return m_max; }
+
+    //Quantile q, in [0, 1], or NaN if there's nothing
+    public double quantile(double q){
+        if(q < 0 || q > 1)
+            throw new IllegalArgumentException("Quantile out of range: " + q);
+        var n = count();
+        if(n == 0)
+            return Double.NaN;
+
+        //The same rank LogStats.quantiles() interpolates at, rounded to the nearest value
+        var rank = Math.round(q * (n - 1));
+        if(rank == 0)
+            return m_min;
+        if(rank == n - 1)
+            return m_max;
+
+        long seen = 0;
+        var neg = m_negative;
+        if(neg.total > 0){
+            for(int j = neg.hi; j >= neg.lo; --j){
+                seen += neg.count(j);
+                if(seen > rank)
+                    return clamp(-value(j));
+            }
+        }
+        seen += m_zero;
+        if(seen > rank)
+            return 0;
+        var pos = m_positive;
+        for(int j = pos.lo; j <= pos.hi; ++j){
+            seen += pos.count(j);
+            if(seen > rank)
+                return clamp(value(j));
+        }
+        return m_max;
+    }
+
+    public double[] quantiles(double... q){
+        var result = new double[q.length];
+        for(int i = 0; i < q.length; ++i)
+            result[i] = quantile(q[i]);
+        return result;
+    }
+
+    private int index(double magnitude){
+        return (int)Math.ceil(Math.log(magnitude) / m_log_gamma);
+    }
+
+    //Midpoint of bucket i, in the sense of relative error
+    private double value(int i){
+        return 2 * Math.pow(m_gamma, i) / (m_gamma + 1);
+    }
+
+    private double clamp(double v){
+        return Math.max(m_min, Math.min(m_max, v));
+    }
+
+    //
+    // Serialization, as part of a bigger file
+    //
+
+    public void write(DataOutput out) throws IOException{
+        out.writeDouble(m_accuracy);
+        out.writeInt(m_max_bins);
+        out.writeLong(m_zero);
+        out.writeDouble(m_min);
+        out.writeDouble(m_max);
+        m_positive.write(out);
+        m_negative.write(out);
+    }
+
+    static public QuantileSketch read(DataInput in) throws IOException, GQUserDataFormatException{
+        QuantileSketch result;
+        try{
+            result = new QuantileSketch(in.readDouble(), in.readInt());
+        }
+        catch(IllegalArgumentException ex){
+            throw new GQUserDataFormatException(ex.getMessage(), ex);
+        }
+        result.m_zero = in.readLong();
+        result.m_min = in.readDouble();
+        result.m_max = in.readDouble();
+        result.m_positive.read(in);
+        result.m_negative.read(in);
+        if(result.m_zero < 0)
+            throw new GQUserDataFormatException("Quantile sketch has a negative zero count");
+        return result;
+    }
+}
@@ -0,0 +1,448 @@
+package com.levitator.gqlib.stats;
+
+import com.levitator.gqlib.exceptions.GQUserDataFormatException;
+import com.levitator.gqlib.structures.MeasurementSink;
+import com.levitator.util.LocalNanos;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/*
+*
+* A directory of rollup tables: count, min, max, sum and sum of squares of each channel, per minute, per hour and per day,
+* kept up to date from each dump's new records, so that questions about long periods needn't go back to the records
+*
+* Records go in as a MeasurementSink and are added up in memory, and commit() writes them out. Each table remembers a
+* mark, and skips anything up to it, so dumping the same records again, as a full dump of a log that wasn't cleared
+* does, doesn't count them twice. That means the records have to come in time order, dump after dump, as they do from
+* one device. Keep a directory per device.
+*
+* Times alone don't make that safe, since the end of a log is timed differently each time it's dumped: the last run is
+* extrapolated, with its first record left out, until the next TimeRecord, and a session of two runs is all guessed.
+* So records from provisional() on are held back, not counted, and the mark stays at the last record that was. The
+* next dump times them again, for good if the log has grown past them, and since nothing after the mark was counted,
+* they come in after it wherever they land. A full dump decodes them again, and an incremental one does too, as its
+* context, which context() takes. Everything before the mark was timed for good, so dumped again, it lands on or before
+* the mark, and is skipped. If the log is to be cleared, don't call provisional(), since nothing will be dumped again.
+*
+* A table is a file of fixed-size buckets in time order, after a header holding the mark and the last bucket, which
+* stays open, since the next dump may have more for it. commit() appends the buckets which are finished, forces them to
+* disk, and only then rewrites the header, in one small write with a CRC. Dying in between leaves buckets past the end
+* the header gives, which are written over next time. Queries go straight to their first bucket by binary search and
+* read just the buckets they want.
+*
+*/
+public class RollupStore implements MeasurementSink, AutoCloseable{
+
+    public enum Resolution{
+        MINUTE(60),
+        HOUR(60 * 60),
+        DAY(24 * 60 * 60);
+
+        public final long nanos;
+
+        Resolution(long seconds){
+            nanos = seconds * LocalNanos.per_second;
+        }
+
+        //Start of the bucket that time falls in
+        public long floor(long time){ return Math.floorDiv(time, nanos) * nanos; }
+
+        String file_name(){ return name().toLowerCase() + extension; }
+    }
+
+    static public final String extension = ".rollup";
+
+    //Channels, in the columns' units: tenths of m/G, V/m and raw RF
+    static public final int channels = 3;
+    static public final int emfx10 = 0, ef = 1, rf = 2;
+
+    static private final int magic = 0x4751524c;   //"GQRL"
+    static private final short format_version = 1;
+    static private final int bucket_size = 8 + 4 + channels * (4 + 4 + 8 + 8);   //start, count, min, max, sum, sum of squares
+    static private final int header_size = 128;     //magic, version, reserved, resolution, mark time and sequence, closed buckets,
+                                                    //open bucket flag and bucket, CRC of it all
+    static private final int read_buckets = 4096;   //At a time, for queries
+
+    //One stretch of time's totals
+    static public class Bucket{
+        private final long m_start;
+        private int m_count = 0;
+        private final float[] m_min = new float[channels];
+        private final float[] m_max = new float[channels];
+        private final double[] m_sum = new double[channels];
+        private final double[] m_sumsq = new double[channels];
+
+        Bucket(long start){
+            m_start = start;
+            Arrays.fill(m_min, Float.POSITIVE_INFINITY);
+            Arrays.fill(m_max, Float.NEGATIVE_INFINITY);
+        }
+
+        void add(int emfx10_v, float ef_v, float rf_v){
+            ++m_count;
+            put(emfx10, emfx10_v);
+            put(ef, ef_v);
+            put(rf, rf_v);
+        }
+
+        private void put(int c, float v){
+            m_min[c] = Math.min(m_min[c], v);
+            m_max[c] = Math.max(m_max[c], v);
+            m_sum[c] += v;
+            m_sumsq[c] += (double)v * v;
+        }
+
+        void merge(Bucket other){
+            m_count += other.m_count;
+            for(int c = 0; c < channels; ++c){
+                m_min[c] = Math.min(m_min[c], other.m_min[c]);
+                m_max[c] = Math.max(m_max[c], other.m_max[c]);
+                m_sum[c] += other.m_sum[c];
+                m_sumsq[c] += other.m_sumsq[c];
+            }
+        }
+
+        public long start_nanos(){ return m_start; }
+        public LocalDateTime start(){ return LocalNanos.to_local(m_start); }
+        public int count(){ return m_count; }
+
+        //Of channel c
+        public double min(int c){ return m_min[c]; }
+        public double max(int c){ return m_max[c]; }
+        public double sum(int c){ return m_sum[c]; }
+        public double sumsq(int c){ return m_sumsq[c]; }
+        public double mean(int c){ return m_count == 0 ? Double.NaN : m_sum[c] / m_count; }
+
+        //Population standard deviation
+        public double stddev(int c){
+            var mean = mean(c);
+            return Math.sqrt(Math.max(0, m_sumsq[c] / m_count - mean * mean));
+        }
+
+        void write(ByteBuffer buf){
+            buf.putLong(m_start).putInt(m_count);
+            for(int c = 0; c < channels; ++c)
+                buf.putFloat(m_min[c]).putFloat(m_max[c]).putDouble(m_sum[c]).putDouble(m_sumsq[c]);
+        }
+
+        static Bucket read(ByteBuffer buf){
+            var result = new Bucket(buf.getLong());
+            result.m_count = buf.getInt();
+            for(int c = 0; c < channels; ++c){
+                result.m_min[c] = buf.getFloat();
+                result.m_max[c] = buf.getFloat();
+                result.m_sum[c] = buf.getDouble();
+                result.m_sumsq[c] = buf.getDouble();
+            }
+            return result;
+        }
+    }
+
+    //One resolution's file, and what's been added to it since the last commit()
+    static private class Table{
+        final Resolution resolution;
+        final Path path;
+        final FileChannel channel;
+
+        //As of the last commit()
+        long mark_time = Long.MIN_VALUE;
+        int mark_seq = Integer.MIN_VALUE;
+        long closed = 0;
+        Bucket open = null;
+
+        //Since
+        final TreeMap<Long, Bucket> pending = new TreeMap<>();
+        Bucket last = null;
+        long new_mark_time = Long.MIN_VALUE;
+        int new_mark_seq = Integer.MIN_VALUE;
+
+        Table(Resolution resolution, Path path, FileChannel channel){
+            this.resolution = resolution;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        //False if it's already in
+        boolean add(long time, int seq, int emfx10_v, float ef_v, float rf_v){
+            if(time < mark_time || (time == mark_time && seq <= mark_seq))
+                return false;
+
+            var start = resolution.floor(time);
+            if(last == null || last.m_start != start){
+                last = pending.get(start);
+                if(last == null){
+                    last = new Bucket(start);
+                    pending.put(start, last);
+                }
+            }
+            last.add(emfx10_v, ef_v, rf_v);
+
+            if(time > new_mark_time || (time == new_mark_time && seq > new_mark_seq)){
+                new_mark_time = time;
+                new_mark_seq = seq;
+            }
+            return true;
+        }
+
+        void load() throws IOException, GQUserDataFormatException{
+            var size = channel.size();
+            if(size == 0){
+                write_header(mark_time, mark_seq, closed, open);
+                channel.force(false);
+                return;
+            }
+
+            var buf = ByteBuffer.allocate(header_size);
+            read_fully(buf, 0);
+            buf.flip();
+            if(buf.getInt(0) != magic)
+                throw new GQUserDataFormatException(path + " is not a rollup table");
+            var v = buf.getShort(4);
+            if(v != format_version)
+                throw new GQUserDataFormatException(path + " is rollup format version " + v + ". We only know version " + format_version);
+            var crc = new CRC32();
+            crc.update(buf.duplicate().limit(header_size - 4));
+            if((int)crc.getValue() != buf.getInt(header_size - 4))
+                throw new GQUserDataFormatException(path + ": rollup header is corrupt");
+
+            buf.position(8);
+            var seconds = buf.getInt();
+            if(seconds * LocalNanos.per_second != resolution.nanos)
+                throw new GQUserDataFormatException(path + " holds " + seconds + "s buckets, not " + resolution.name().toLowerCase() + "s");
+            mark_time = buf.getLong();
+            mark_seq = buf.getInt();
+            closed = buf.getLong();
+            open = buf.get() != 0 ? Bucket.read(buf) : null;
+            if(closed < 0 || header_size + closed * bucket_size > size)
+                throw new GQUserDataFormatException(path + " is cut short");
+        }
+
+        void commit() throws IOException{
+            if(pending.isEmpty())
+                return;
+
+            //The old open bucket comes before anything new, or is the first of it, since it holds the old mark.
+            //Merged into a copy, so that pending is as it was if we fail.
+            var buckets = new ArrayList<Bucket>(pending.values());
+            if(open != null){
+                var first = buckets.get(0);
+                if(first.m_start == open.m_start){
+                    var merged = new Bucket(open.m_start);
+                    merged.merge(open);
+                    merged.merge(first);
+                    buckets.set(0, merged);
+                }
+                else
+                    buckets.add(0, open);
+            }
+
+            var n = buckets.size() - 1;
+            var end = closed;
+            for(int i = 0; i < n; i += read_buckets){
+                var count = Math.min(read_buckets, n - i);
+                var buf = ByteBuffer.allocate(count * bucket_size);
+                for(int j = 0; j < count; ++j)
+                    buckets.get(i + j).write(buf);
+                buf.flip();
+                write_fully(buf, header_size + end * bucket_size);
+                end += count;
+            }
+            channel.force(false);
+
+            var new_open = buckets.get(n);
+            write_header(new_mark_time, new_mark_seq, end, new_open);
+            channel.force(false);
+            closed = end;
+            open = new_open;
+            mark_time = new_mark_time;
+            mark_seq = new_mark_seq;
+            pending.clear();
+            last = null;
+
+            //Leftovers from a commit that died
+            if(channel.size() > header_size + closed * bucket_size)
+                channel.truncate(header_size + closed * bucket_size);
+        }
+
+        private void write_header(long m_time, int m_seq, long n_closed, Bucket b) throws IOException{
+            var buf = ByteBuffer.allocate(header_size);
+            buf.putInt(magic).putShort(format_version).putShort((short)0);
+            buf.putInt((int)(resolution.nanos / LocalNanos.per_second));
+            buf.putLong(m_time).putInt(m_seq).putLong(n_closed);
+            buf.put((byte)(b != null ? 1 : 0));
+            if(b != null)
+                b.write(buf);
+            var crc = new CRC32();
+            crc.update(buf.array(), 0, header_size - 4);
+            buf.putInt(header_size - 4, (int)crc.getValue());
+            buf.rewind();
+            write_fully(buf, 0);
+        }
+
+        //Committed buckets which overlap [from, to]
+        List<Bucket> query(long from, long to) throws IOException{
+            var result = new ArrayList<Bucket>();
+
+            //First which ends after from
+            long lo = 0, hi = closed;
+            var key = ByteBuffer.allocate(8);
+            while(lo < hi){
+                var mid = (lo + hi) >>> 1;
+                key.clear();
+                read_fully(key, header_size + mid * bucket_size);
+                if(key.getLong(0) + resolution.nanos <= from)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+
+            var buf = ByteBuffer.allocate(read_buckets * bucket_size);
+            for(var i = lo; i < closed; ){
+                var count = (int)Math.min(read_buckets, closed - i);
+                buf.clear().limit(count * bucket_size);
+                read_fully(buf, header_size + i * bucket_size);
+                buf.flip();
+                for(int j = 0; j < count; ++j){
+                    var b = Bucket.read(buf);
+                    if(b.m_start > to)
+                        return result;
+                    result.add(b);
+                }
+                i += count;
+            }
+            if(open != null && open.m_start <= to && open.m_start + resolution.nanos > from)
+                result.add(open);
+            return result;
+        }
+
+        private void read_fully(ByteBuffer buf, long pos) throws IOException{
+            while(buf.hasRemaining()){
+                var n = channel.read(buf, pos);
+                if(n < 0)
+                    throw new EOFException(path + " is cut short");
+                pos += n;
+            }
+        }
+
+        private void write_fully(ByteBuffer buf, long pos) throws IOException{
+            while(buf.hasRemaining())
+                pos += channel.write(buf, pos);
+        }
+    }
+
+    private final Path m_dir;
+    private final Table[] m_tables = new Table[Resolution.values().length];
+    private long m_added = 0;
+    private long m_held = 0;
+    private long m_provisional = Long.MAX_VALUE;
+
+    //Opens the store in dir, creating the directory and tables if need be
+    public RollupStore(Path dir) throws IOException, GQUserDataFormatException{
+        m_dir = dir;
+        Files.createDirectories(dir);
+        try{
+            for(var r : Resolution.values()){
+                var path = dir.resolve(r.file_name());
+                var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                m_tables[r.ordinal()] = new Table(r, path, channel);
+                m_tables[r.ordinal()].load();
+            }
+        }
+        catch(EOFException ex){
+            close();
+            throw new GQUserDataFormatException("Rollup table " + ex.getMessage(), ex);
+        }
+        catch(IOException | GQUserDataFormatException | RuntimeException ex){
+            close();
+            throw ex;
+        }
+    }
+
+    public Path directory(){ return m_dir; }
+
+    @Override
+    public void measurement(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+        if(time >= m_provisional){
+            ++m_held;
+            return;
+        }
+
+        boolean added = false;
+        for(var t : m_tables)
+            added |= t.add(time, seq, emfx10, ef, rf);
+        if(added)
+            ++m_added;
+    }
+
+    //Records from time on are held back until the next dump
+    @Override
+    public void provisional(long time){
+        m_provisional = Math.min(m_provisional, time);
+    }
+
+    //Already counted, or not, as the mark says, the same as any other record
+    @Override
+    public void context(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+        measurement(time, seq, uncertain, emfx10, ef, rf);
+    }
+
+    //Records taken since the last commit(), which weren't already in
+    public long added(){ return m_added; }
+
+    //Records since the last commit() which were held back
+    public long held(){ return m_held; }
+
+    //Latest record in the store, or null if there's nothing
+    public LocalDateTime last(){
+        var t = m_tables[0];
+        return t.open == null ? null : LocalNanos.to_local(t.mark_time);
+    }
+
+    //Writes out what's been added
+    public void commit() throws IOException{
+        for(var t : m_tables)
+            t.commit();
+        m_added = m_held = 0;
+        m_provisional = Long.MAX_VALUE;
+    }
+
+    //Buckets overlapping the period, committed ones only, in time order. Either end may be null for open.
+    public List<Bucket> query(Resolution resolution, LocalDateTime from, LocalDateTime to) throws IOException, GQUserDataFormatException{
+        try{
+            return m_tables[resolution.ordinal()].query(from == null ? Long.MIN_VALUE : LocalNanos.of(from),
+                    to == null ? Long.MAX_VALUE : LocalNanos.of(to));
+        }
+        catch(EOFException ex){
+            throw new GQUserDataFormatException("Rollup table " + ex.getMessage(), ex);
+        }
+    }
+
+    //Anything not committed is dropped
+    @Override
+    public void close() throws IOException{
+        IOException error = null;
+        for(var t : m_tables){
+            if(t == null)
+                continue;
+            try{
+                t.channel.close();
+            }
+            catch(IOException ex){
+                error = ex;
+            }
+        }
+        if(error != null)
+            throw error;
+    }
+}
@@ -0,0 +1,41 @@
+package com.levitator.gqlib.structures;
+
+import com.levitator.gqlib.csv.CSV;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/*
+*
+* Read access to one sample, whether it's a MeasurementRecord or a row in a LogDataSet
+*
+*/
+public interface IMeasurement {
+
+    public LocalDateTime get_time();
+    public long get_time_nanos();
+    public int get_seq_no();
+    public boolean get_uncertain_time();
+    public int get_emfx10();
+    public float get_ef();
+    public float get_rf();
+
+    //mW/m2
+    public default double get_rf_mWm2(){
+        return get_rf() / (MeasurementRecord.rf_multiplier / 1000);
+    }
+
+    //Watts per square meter
+    public default double get_rf_Wm2(){
+        return get_rf() / MeasurementRecord.rf_multiplier;
+    }
+
+    public default String[] to_text(DateTimeFormatter fmt){
+        return MeasurementRecord.to_text(this, fmt);
+    }
+
+    public default void toCSV(DateTimeFormatter fmt, Writer wr) throws IOException{
+        CSV.write_record(to_text(fmt), wr);
+    }
+}
@@ -6,6 +6,7 @@ import com.levitator.gqlib.exceptions.GQProtocolException;
 import com.levitator.gqlib.exceptions.GQUserDataFormatException;
 import com.levitator.gqlib.exceptions.GQFramingError;
 import com.levitator.gqlib.exceptions.internal.RecordTruncatedException;
+import com.levitator.util.LocalNanos;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Reader;
@@ -14,6 +15,7 @@ import java.io.Writer;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
 /*
@@ -21,7 +23,7 @@ import java.time.format.DateTimeFormatter;
 * A record of measurement data
 *
 */
-public class MeasurementRecord extends NvmRecordBase implements Comparable<MeasurementRecord>{
+public class MeasurementRecord extends NvmRecordBase implements Comparable<MeasurementRecord>, IMeasurement{
     
     
     //EMF is in m/G, milligauss
@@ -30,9 +32,12 @@ public class MeasurementRecord extends NvmRecordBase implements Comparable<Measu
     static public final String emf_unit = "m/G";
     static public final String ef_unit = "V/m";
     static public final String rf_unit = "mW/m2";
+
+    //First column heading. Sic.
+    static public final String csv_time_heading = "Date/Tme";
     
     //Dvide by this number to get W/m2
-    public final long rf_multiplier = 100000000;
+    static public final long rf_multiplier = 100000000;
     
     public int emf, emf_10ths; //12 bits, 4 bits
     public float ef, rf;
@@ -43,27 +48,41 @@ public class MeasurementRecord extends NvmRecordBase implements Comparable<Measu
                                    //We feel pretty good about the accuracy of the timestamp if this is false.
     
     //encode single-place fixed decimal as int x 10
+    @Override
     public int get_emfx10(){
        return emf * 10 + emf_10ths;
     }
     
+    @Override public LocalDateTime get_time(){ return time; }
+    @Override public long get_time_nanos(){ return LocalNanos.of(time); }
+    @Override public int get_seq_no(){ return seq_no; }
+    @Override public boolean get_uncertain_time(){ return uncertain_time; }
+    @Override public float get_ef(){ return ef; }
+    @Override public float get_rf(){ return rf; }
+    
     //mW/m2
     public void set_rf_mWm2(double v){
-        rf = rf * (rf_multiplier  / 1000);
+        rf = rf_from_mWm2(v);
     }
-    
-    public double get_rf_mWm2(){
-        return rf  / (rf_multiplier / 1000);
+
+    //Inverse of get_rf_mWm2(), so that the value printed to a CSV file comes back as the same float
+    static public float rf_from_mWm2(double v){
+        final float scale = rf_multiplier / 1000;
+        var result = (float)(v * scale);
+        if(result / scale == v)
+            return result;
+        var up = Math.nextUp(result);
+        if(up / scale == v)
+            return up;
+        var down = Math.nextDown(result);
+        if(down / scale == v)
+            return down;
+        return result;
     }
     public void set_rf_Wm2(double v){
         rf = (float)(v * rf_multiplier);
     }
     
-    //Watts per square meter
-    public double get_rf_Wm2(){
-        return rf / rf_multiplier;
-    }
-    
     //Format a fixed-point single-decimal place value represented as an int multiplied by 10
     static public String format_emfx10(int v){
         //TODO: Observe locale conventions for the decimal point
@@ -88,9 +107,10 @@ public class MeasurementRecord extends NvmRecordBase implements Comparable<Measu
         
         super(data);
         try{     
-            emf = data.get();
+            //Unsigned. Sign extension used to mangle readings whose low nibble was 8 or more.
+            emf = data.get() & 0xff;
             emf <<= 4;
-            emf_10ths = data.get();
+            emf_10ths = data.get() & 0xff;
             emf |= (emf_10ths >> 4);
             emf_10ths &= 0x0f;
 
@@ -112,6 +132,17 @@ public class MeasurementRecord extends NvmRecordBase implements Comparable<Measu
         }
     }
 
+    //From decoded values, as from NvmDecoder
+    public MeasurementRecord(LocalDateTime time, int seq, int emfx10, float ef, float rf){
+        super(0xaa55);
+        this.time = time;
+        seq_no = seq;
+        emf = emfx10 / 10;
+        emf_10ths = emfx10 % 10;
+        this.ef = ef;
+        this.rf = rf;
+    }
+
     @Override
     public int compareTo(MeasurementRecord rhs) {
         var comp = time.compareTo(rhs.time);
@@ -133,21 +164,17 @@ public class MeasurementRecord extends NvmRecordBase implements Comparable<Measu
         fieldnos(int v){ value = v; }
     }
     
-    public String [] to_text(DateTimeFormatter fmt){
+    static public String [] to_text(IMeasurement m, DateTimeFormatter fmt){
         var result = new String[fieldnos.count()];
-        result[fieldnos.DATE_TIME.value] = fmt.format(time);
-        result[fieldnos.TIME_UNCERTAIN.value] = Boolean.toString(uncertain_time);
-        result[fieldnos.SEQ_NO.value] = Integer.toString(seq_no);
-        result[fieldnos.EMF.value] = format_emfx10(get_emfx10());
-        result[fieldnos.EF.value] = Float.toString(ef);
-        result[fieldnos.RF.value] = Double.toString(get_rf_mWm2());
+        result[fieldnos.DATE_TIME.value] = fmt.format(m.get_time());
+        result[fieldnos.TIME_UNCERTAIN.value] = Boolean.toString(m.get_uncertain_time());
+        result[fieldnos.SEQ_NO.value] = Integer.toString(m.get_seq_no());
+        result[fieldnos.EMF.value] = format_emfx10(m.get_emfx10());
+        result[fieldnos.EF.value] = Float.toString(m.get_ef());
+        result[fieldnos.RF.value] = Double.toString(m.get_rf_mWm2());
         return result;
     }
     
-    public void toCSV(DateTimeFormatter fmt, Writer wr) throws IOException{
-        CSV.write_record(to_text(fmt), wr);
-    }
-    
     public void parse_text(String[] fields, DateTimeFormatter[] fmts) throws RecordTruncatedException, GQUserDataFormatException{
         
         if(fields.length < 6)
@@ -178,7 +205,7 @@ public class MeasurementRecord extends NvmRecordBase implements Comparable<Measu
     }
     
     static public void write_CSV_header(Writer out) throws IOException{
-        final String[] headings = {"Date/Tme", "Uncertain T", "Sequence", "EMF " + emf_unit, "EF " + ef_unit, "RF " + rf_unit};
+        final String[] headings = {csv_time_heading, "Uncertain T", "Sequence", "EMF " + emf_unit, "EF " + ef_unit, "RF " + rf_unit};
         CSV.write_record(headings, out);
     }
     
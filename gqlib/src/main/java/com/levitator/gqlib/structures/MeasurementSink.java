@@ -0,0 +1,19 @@
+package com.levitator.gqlib.structures;
+
+/*
+*
+* Receives finished measurements as plain values, the way a LogDataSet stores them
+*
+*/
+public interface MeasurementSink {
+
+    //time is LocalNanos
+    public void measurement(long time, int seq, boolean uncertain, int emfx10, float ef, float rf);
+
+    //Comes once, at the end of a log, before the last session's records are passed on. Those from time on are only
+    //extrapolated or guessed, and will be timed again, and likely differently, once the log grows.
+    public default void provisional(long time){}
+
+    //A record which an incremental dump decoded only for context, since it was passed on last time, timed as it is now
+    public default void context(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){}
+}
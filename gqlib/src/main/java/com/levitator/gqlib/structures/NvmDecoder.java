@@ -0,0 +1,214 @@
+package com.levitator.gqlib.structures;
+
+import com.levitator.gqlib.exceptions.GQFramingError;
+import com.levitator.gqlib.exceptions.GQProtocolException;
+import com.levitator.util.LocalNanos;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/*
+*
+* Single-pass decoder for device log memory
+*
+* Feed it SPIR chunks in address order. Records go straight to an NvmSink with their times and
+* sequence numbers already worked out, so nothing is allocated per record. A record which straddles
+* two chunks is held back and finished off from the start of the next one, so the chunks can be
+* fetched back to back without rewinding.
+*
+*/
+public class NvmDecoder {
+
+    static public final long no_time = Long.MIN_VALUE;
+
+    static private final int time_id = 0x55aa;
+    static private final int measurement_id = 0xaa55;
+    static private final int blank_id = 0xffff;
+    static private final int max_record_size = Math.max(TimeRecord.sizeof(), MeasurementRecord.sizeof());
+
+    //Records starting this close to address 0 make up the head
+    static public final int head_size = 64;
+
+    private final NvmSink m_sink;
+
+    //Start of a record which ran off the end of the last chunk
+    private final byte[] m_carry = new byte[max_record_size];
+    private int m_carry_len = 0;
+
+    private long m_time = no_time;
+    private int m_seq = 0;
+    private boolean m_blank = false;
+    private int m_address = 0;
+
+    //The stretch from the latest TimeRecord to the end, which is where the next dump can pick up
+    private int m_time_address = 0;
+    private final CRC32 m_tail_crc = new CRC32();
+
+    //The first few records, which change when the log is cleared or wraps around onto the start
+    private int m_head_end = 0;
+    private final CRC32 m_head_crc = new CRC32();
+
+    public NvmDecoder(NvmSink sink){
+        m_sink = sink;
+    }
+
+    //For chunks which start partway into memory, at a record boundary
+    public NvmDecoder(NvmSink sink, int address){
+        m_sink = sink;
+        m_address = m_time_address = address;
+    }
+
+    //Bytes of complete records decoded so far. Once blank() is true, this is where the blank space starts.
+    public int address(){ return m_address; }
+
+    //We ran into unwritten memory
+    public boolean blank(){ return m_blank; }
+
+    //Time of the last TimeRecord seen, or no_time
+    public long time(){ return m_time; }
+
+    //Bytes held over waiting for the rest of a record
+    public int carry(){ return m_carry_len; }
+
+    //Address of the latest TimeRecord, and a CRC-32 of everything from there to address()
+    //Duplicates don't count as the latest, since they don't start anything.
+    public int time_address(){ return m_time_address; }
+    public long tail_crc(){ return m_tail_crc.getValue(); }
+
+    //End of the records which start within head_size of address 0, and a CRC-32 of them
+    //Only for a decoder which started at 0.
+    public int head_end(){ return m_head_end; }
+    public long head_crc(){ return m_head_crc.getValue(); }
+
+    static private int record_size(int id, int addr) throws GQFramingError{
+        switch(id){
+            case time_id: return TimeRecord.sizeof();
+            case measurement_id: return MeasurementRecord.sizeof();
+            case blank_id: return 0;
+            default:
+                throw new GQFramingError("Framing bytes did not match any known record type: " + id + " at address: " + addr);
+        }
+    }
+
+    //Decode everything in buf. The position is left at the end, or at the start of blank memory.
+    //Returns false once blank memory has been reached, after which there's nothing more to do.
+    public boolean decode(ByteBuffer buf) throws GQFramingError, GQProtocolException{
+        if(m_blank)
+            return false;
+
+        //Finish the record from the last chunk first
+        if(m_carry_len > 0){
+            var need = m_carry_len < 2 ? 2 : record_size(id(m_carry, 0), m_address);
+            if(need == 0){
+                m_blank = true;
+                return false;
+            }
+            while(m_carry_len < need && buf.hasRemaining()){
+                m_carry[m_carry_len++] = buf.get();
+                if(m_carry_len == 2){
+                    need = record_size(id(m_carry, 0), m_address);
+                    if(need == 0){
+                        //Unwritten memory started in the last chunk. Put back what we took from this one.
+                        buf.position(buf.position() - 1);
+                        m_blank = true;
+                        return false;
+                    }
+                }
+            }
+            if(m_carry_len < need)
+                return true;
+
+            record(ByteBuffer.wrap(m_carry, 0, need), 0);
+            m_carry_len = 0;
+        }
+
+        int pos = buf.position(), end = buf.limit();
+        while(end - pos >= 2){
+            var id = ((buf.get(pos) & 0xff) << 8) | (buf.get(pos + 1) & 0xff);
+            var size = record_size(id, m_address);
+            if(size == 0){
+                buf.position(pos);
+                m_blank = true;
+                return false;
+            }
+            if(end - pos < size)
+                break;
+            record(buf, pos);
+            pos += size;
+        }
+
+        //Hold on to the partial record
+        buf.position(pos);
+        m_carry_len = end - pos;
+        buf.get(m_carry, 0, m_carry_len);
+        return true;
+    }
+
+    static private int id(byte[] b, int i){
+        return ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+    }
+
+    static private float float_le(ByteBuffer buf, int i){
+        return Float.intBitsToFloat((buf.get(i) & 0xff) | ((buf.get(i + 1) & 0xff) << 8) |
+                ((buf.get(i + 2) & 0xff) << 16) | ((buf.get(i + 3) & 0xff) << 24));
+    }
+
+    //A whole record at absolute position i
+    private void record(ByteBuffer buf, int i) throws GQProtocolException, GQFramingError{
+        var id = ((buf.get(i) & 0xff) << 8) | (buf.get(i + 1) & 0xff);
+        if(id == time_id){
+            var t = time_nanos(buf.get(i + 2), buf.get(i + 3), buf.get(i + 4), buf.get(i + 5), buf.get(i + 6), buf.get(i + 7));
+            //Duplicate time records are ignored
+            if(t != m_time){
+                m_time = t;
+                m_seq = 0;
+                m_sink.time(t);
+                m_time_address = m_address;
+                m_tail_crc.reset();
+            }
+            checksum(buf, i, TimeRecord.sizeof());
+            m_address += TimeRecord.sizeof();
+        }
+        else{
+            //12 bits of whole m/G, and then a nibble of tenths
+            var hi = buf.get(i + 2) & 0xff;
+            var lo = buf.get(i + 3) & 0xff;
+            var tenths = lo & 0x0f;
+            if(tenths > 9)
+                throw new GQProtocolException("EMF 10ths place is more than 9: " + tenths + " at address: " + m_address);
+            var emfx10 = ((hi << 4) | (lo >> 4)) * 10 + tenths;
+
+            m_sink.measurement(m_time, m_seq++, emfx10, float_le(buf, i + 4), float_le(buf, i + 8));
+            checksum(buf, i, MeasurementRecord.sizeof());
+            m_address += MeasurementRecord.sizeof();
+        }
+    }
+
+    private void checksum(ByteBuffer buf, int i, int len){
+        checksum(m_tail_crc, buf, i, len);
+        if(m_address < head_size && m_address == m_head_end){
+            checksum(m_head_crc, buf, i, len);
+            m_head_end += len;
+        }
+    }
+
+    static private void checksum(CRC32 crc, ByteBuffer buf, int i, int len){
+        if(buf.hasArray())
+            crc.update(buf.array(), buf.arrayOffset() + i, len);
+        else{
+            for(int j = i; j < i + len; ++j)
+                crc.update(buf.get(j));
+        }
+    }
+
+    //YY MM DD hh mm ss straight to LocalNanos, without building a LocalDateTime for each one
+    private long time_nanos(byte yy, byte mo, byte dd, byte hh, byte mi, byte ss) throws GQProtocolException{
+        int year = 2000 + yy, month = mo, day = dd, hour = hh, minute = mi, second = ss;
+        if(month < 1 || month > 12 || day < 1 || day > LocalNanos.days_in_month(year, month) || hour < 0 || hour > 23 || minute < 0 || minute > 59 ||
+                second < 0 || second > 59){
+            throw new GQProtocolException("Invalid TimeRecord " + year + "/" + month + "/" + day + " " + hour + ":" + minute +
+                    ":" + second + " at address: " + m_address);
+        }
+
+        return LocalNanos.of(year, month, day, hour, minute, second);
+    }
+}
@@ -0,0 +1,72 @@
+package com.levitator.gqlib.structures;
+
+/*
+*
+* Follows the record framing through consecutive chunks of log memory without decoding anything,
+* just to find out where the records stop
+*
+*/
+public class NvmFramer {
+
+    private int m_next = 0;         //Address of the next record
+    private int m_id_hi = 0;        //First framing byte, when it was the last byte of the previous chunk
+    private boolean m_done = false;
+    private boolean m_blank = false;
+
+    //State from before the last walk()
+    private int m_prev_next = 0;
+    private int m_prev_id_hi = 0;
+
+    public NvmFramer(){
+    }
+
+    //For walking from partway into memory, at a record boundary
+    public NvmFramer(int address){
+        m_next = m_prev_next = address;
+    }
+
+    //Address of the first byte which isn't part of a whole record seen so far
+    public int address(){ return m_next; }
+
+    //Whether we stopped at erased memory, as opposed to something that doesn't frame
+    public boolean blank(){ return m_blank; }
+
+    //Forget the last walk(), as when the chunk is going to be fetched again
+    public void undo(){
+        m_next = m_prev_next;
+        m_id_hi = m_prev_id_hi;
+        m_done = false;
+        m_blank = false;
+    }
+
+    //Walk a chunk which starts at address addr, directly following the previous one.
+    //Returns false once something other than a record turns up, which is normally blank memory.
+    public boolean walk(byte[] data, int addr, int len){
+        if(m_done)
+            return false;
+
+        m_prev_next = m_next;
+        m_prev_id_hi = m_id_hi;
+        var end = addr + len;
+        while(m_next + 1 < end){
+            var hi = m_next >= addr ? data[m_next - addr] & 0xff : m_id_hi;
+            var lo = data[m_next + 1 - addr] & 0xff;
+            switch((hi << 8) | lo){
+                case 0x55aa:
+                    m_next += TimeRecord.sizeof();
+                    break;
+                case 0xaa55:
+                    m_next += MeasurementRecord.sizeof();
+                    break;
+                default:
+                    m_done = true;
+                    m_blank = ((hi << 8) | lo) == 0xffff;
+                    return false;
+            }
+        }
+
+        if(m_next == end - 1)
+            m_id_hi = data[len - 1] & 0xff;
+        return true;
+    }
+}
@@ -41,6 +41,10 @@ public abstract class NvmRecordBase {
         framing_bytes = get_record_id(data);
     }
     
+    protected NvmRecordBase(int framing){
+        framing_bytes = framing;
+    }
+    
     //Derived class checks that framing is correct or throws
     protected abstract void check_framing() throws GQFramingError;
     
@@ -0,0 +1,16 @@
+package com.levitator.gqlib.structures;
+
+/*
+*
+* Receives records from an NvmDecoder as plain values
+*
+*/
+public interface NvmSink {
+
+    //The current time changed. Repeats of the same TimeRecord aren't reported.
+    public default void time(long nanos){}
+
+    //A measurement, stamped with the time of the last TimeRecord (LocalNanos) and its position after it
+    //Measurements which come before any TimeRecord have time NvmDecoder.no_time
+    public void measurement(long time, int seq, int emfx10, float ef, float rf);
+}
@@ -0,0 +1,78 @@
+package com.levitator.gqlib.structures;
+
+import java.util.Arrays;
+
+/*
+*
+* Measurements as they come out of the NvmDecoder, in device memory order, before any sorting
+* or time interpolation
+*
+*/
+public class RawLog implements NvmSink{
+
+    private int m_size = 0;
+    private int m_leading = 0;
+    private long m_last_time = NvmDecoder.no_time;
+    private long[] m_time;
+    private int[] m_seq;
+    private int[] m_emfx10;
+    private float[] m_ef;
+    private float[] m_rf;
+
+    public RawLog(){
+        this(1024);
+    }
+
+    public RawLog(int capacity){
+        capacity = Math.max(capacity, 1);
+        m_time = new long[capacity];
+        m_seq = new int[capacity];
+        m_emfx10 = new int[capacity];
+        m_ef = new float[capacity];
+        m_rf = new float[capacity];
+    }
+
+    @Override
+    public void time(long nanos){
+        m_last_time = nanos;
+    }
+
+    @Override
+    public void measurement(long time, int seq, int emfx10, float ef, float rf){
+        if(m_size == m_time.length){
+            var cap = m_size * 2;
+            m_time = Arrays.copyOf(m_time, cap);
+            m_seq = Arrays.copyOf(m_seq, cap);
+            m_emfx10 = Arrays.copyOf(m_emfx10, cap);
+            m_ef = Arrays.copyOf(m_ef, cap);
+            m_rf = Arrays.copyOf(m_rf, cap);
+        }
+
+        var i = m_size++;
+        m_time[i] = time;
+        m_seq[i] = seq;
+        m_emfx10[i] = emfx10;
+        m_ef[i] = ef;
+        m_rf[i] = rf;
+        if(time == NvmDecoder.no_time)
+            ++m_leading;
+    }
+
+    public int size(){ return m_size; }
+    public void clear(){
+        m_size = m_leading = 0;
+        m_last_time = NvmDecoder.no_time;
+    }
+
+    //Number of measurements at the start which came before any TimeRecord
+    public int leading_no_times(){ return m_leading; }
+
+    //Time of the last TimeRecord, or no_time if there wasn't one
+    public long last_time(){ return m_last_time; }
+
+    public long time_nanos(int i){ return m_time[i]; }
+    public int seq_no(int i){ return m_seq[i]; }
+    public int emfx10(int i){ return m_emfx10[i]; }
+    public float ef(int i){ return m_ef[i]; }
+    public float rf(int i){ return m_rf[i]; }
+}
@@ -0,0 +1,40 @@
+package com.levitator.util;
+
+import java.time.LocalDateTime;
+import java.time.Year;
+import java.time.ZoneOffset;
+
+/*
+*
+* LocalDateTime packed into a long as nanoseconds since 1970-01-01T00:00, with no time zone
+*
+* The device clock doesn't know about zones or DST, so neither does this. Covers roughly 1677 to 2262.
+*
+*/
+public class LocalNanos {
+
+    static public final long per_second = 1000000000L;
+
+    static public long of(LocalDateTime t){
+        return Math.addExact(Math.multiplyExact(t.toEpochSecond(ZoneOffset.UTC), per_second), t.getNano());
+    }
+
+    static private final int[] days_before_month = {0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334};
+
+    static public int days_in_month(int year, int month){
+        return month == 2 ? (Year.isLeap(year) ? 29 : 28) : (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+    }
+
+    //Straight from the fields, without building a LocalDateTime. They had better be valid.
+    static public long of(int year, int month, int day, int hour, int minute, int second){
+        //Days since 1970-01-01
+        long y = year - 1;
+        long days = 365 * (y - 1969) + Math.floorDiv(y, 4) - 1969 / 4 - Math.floorDiv(y, 100) + 1969 / 100 + Math.floorDiv(y, 400) - 1969 / 400;
+        days += days_before_month[month - 1] + (Year.isLeap(year) && month > 2 ? 1 : 0) + day - 1;
+        return ((days * 24 + hour) * 60 + minute) * 60000000000L + second * 1000000000L;
+    }
+
+    static public LocalDateTime to_local(long nanos){
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, per_second), (int)Math.floorMod(nanos, per_second), ZoneOffset.UTC);
+    }
+}
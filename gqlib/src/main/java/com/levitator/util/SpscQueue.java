@@ -0,0 +1,133 @@
+package com.levitator.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+*
+* Bounded queue for exactly one producer thread and one consumer thread
+*
+* A ring of slots with a head counter owned by the consumer and a tail counter owned by the producer,
+* so the hand-off costs a couple of ordered stores and no locks. Either side blocks by parking
+* until the other one makes room or delivers. Closing it wakes everybody up: puts start failing,
+* and takes drain whatever is left before reporting the end.
+*
+*/
+public class SpscQueue<T> {
+
+    //Upper bound on a park, in case a wakeup slips between our check and the park
+    static private final long max_park_ns = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Object[] m_slots;
+    private final int m_mask;
+
+    private final AtomicLong m_head = new AtomicLong();  //Next slot to take
+    private final AtomicLong m_tail = new AtomicLong();  //Next slot to fill
+
+    private volatile Thread m_parked_producer;
+    private volatile Thread m_parked_consumer;
+    private volatile boolean m_closed = false;
+
+    //Capacity is rounded up to a power of two
+    public SpscQueue(int capacity){
+        if(capacity < 1)
+            throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+        var cap = Integer.highestOneBit(capacity);
+        if(cap < capacity) cap <<= 1;
+        m_slots = new Object[cap];
+        m_mask = cap - 1;
+    }
+
+    public int capacity(){ return m_slots.length; }
+    public int size(){ return (int)(m_tail.get() - m_head.get()); }
+    public boolean closed(){ return m_closed; }
+
+    //No more puts. Waiting threads wake up.
+    public void close(){
+        m_closed = true;
+        LockSupport.unpark(m_parked_producer);
+        LockSupport.unpark(m_parked_consumer);
+    }
+
+    //Producer side. Returns false if full or closed.
+    public boolean offer(T v){
+        if(v == null)
+            throw new NullPointerException("SpscQueue does not hold nulls");
+        if(m_closed)
+            return false;
+
+        var tail = m_tail.get();
+        if(tail - m_head.get() == m_slots.length)
+            return false;
+
+        m_slots[(int)tail & m_mask] = v;
+        m_tail.lazySet(tail + 1);
+        LockSupport.unpark(m_parked_consumer);
+        return true;
+    }
+
+    //Producer side. Blocks while full. Returns false if the queue was closed.
+    public boolean put(T v) throws InterruptedException{
+        while(!offer(v)){
+            if(m_closed)
+                return false;
+            park_producer();
+        }
+        return true;
+    }
+
+    //Consumer side. Returns null if empty.
+    @SuppressWarnings("unchecked")
+    public T poll(){
+        var head = m_head.get();
+        if(head == m_tail.get())
+            return null;
+
+        var i = (int)head & m_mask;
+        var result = (T)m_slots[i];
+        m_slots[i] = null;
+        m_head.lazySet(head + 1);
+        LockSupport.unpark(m_parked_producer);
+        return result;
+    }
+
+    //Consumer side. Blocks while empty. Returns null once the queue is closed and drained.
+    public T take() throws InterruptedException{
+        T result;
+        while((result = poll()) == null){
+            if(m_closed){
+                //One last look, in case the last put landed between the poll and the close
+                return poll();
+            }
+            park_consumer();
+        }
+        return result;
+    }
+
+    private void park_producer() throws InterruptedException{
+        m_parked_producer = Thread.currentThread();
+        try{
+            if(m_tail.get() - m_head.get() == m_slots.length && !m_closed)
+                LockSupport.parkNanos(this, max_park_ns);
+        }
+        finally{
+            m_parked_producer = null;
+        }
+        if(Thread.interrupted())
+            throw new InterruptedException();
+    }
+
+    private void park_consumer() throws InterruptedException{
+        m_parked_consumer = Thread.currentThread();
+        try{
+            if(m_head.get() == m_tail.get() && !m_closed)
+                LockSupport.parkNanos(this, max_park_ns);
+        }
+        finally{
+            m_parked_consumer = null;
+        }
+        if(Thread.interrupted())
+            throw new InterruptedException();
+    }
+}
@@ -0,0 +1,265 @@
+package com.levitator.tricorder;
+
+import com.levitator.gqlib.stats.LogSketch;
+import com.levitator.tricorder.config.Config;
+import com.levitator.tricorder.features.DumpStats;
+import com.levitator.util.FunctionalThread;
+import com.levitator.util.Util;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+*
+* Many devices from one process: each line of the fleet file is a device's command line, and each device gets a thread
+* which does everything Main.run() would do with it, on its own schedule, until it's done or we're interrupted
+*
+* Threads mostly sleep on their schedules, so this costs a stack per device rather than a JVM. The console is shared:
+* each thread's output is gathered a line at a time and printed whole, tagged with the device path, so the devices'
+* messages don't run into each other. Every dump is also tallied, and merged into one quantile sketch, for a summary
+* of the whole fleet on exit. A device which fails stops on its own, and leaves the others running.
+*
+* Output files aren't shared, and two lines can't name the same -f file, --store or --rollups. Records don't say which
+* device they came from, in any of the formats, so a shared file or store would mix the meters into one series that
+* nobody could pull apart again. The rollups couldn't even count them right: a RollupStore skips whatever comes before
+* its mark, which is one device's latest record, so another device's records would be dropped or counted twice.
+*
+*/
+public class Fleet {
+
+    private final PrintStream m_out;
+    private final Console m_console;
+    private final ArrayList<Member> m_members = new ArrayList<>();
+    private final LogSketch m_sketch = new LogSketch();
+
+    //One device, and what it has done so far
+    public class Member{
+        final String name;
+        final Config conf;
+        final Thread thread;
+        int dumps = 0;
+        long records = 0;
+        Exception failure = null;
+
+        Member(Config conf){
+            this.conf = conf;
+            name = conf.get_device_path().toString();
+            thread = new FunctionalThread(() -> run());
+            thread.setName("fleet " + name);
+        }
+
+        //After each of its dumps
+        public void dumped(DumpStats stats){
+            synchronized(Fleet.this){
+                ++dumps;
+                records += stats.size();
+                m_sketch.merge(stats.sketch());
+            }
+        }
+
+        private void run(){
+            m_console.tag(name);
+            var out = System.out;
+            try{
+                Main.run_device(conf, this);
+            }
+            catch(Exception ex){
+                synchronized(Fleet.this){
+                    failure = ex;
+                }
+                out.println();
+                out.println("Error: " + ex.toString());
+                Util.stack_traces(ex, out);
+            }
+            finally{
+                m_console.finish();
+            }
+        }
+    }
+
+    //Gathers each thread's output into lines, and prints each line whole, after the thread's tag, if it has one
+    static private class Console extends OutputStream{
+        private final PrintStream m_out;
+        private final ThreadLocal<ByteArrayOutputStream> m_line = ThreadLocal.withInitial(ByteArrayOutputStream::new);
+        private final ThreadLocal<String> m_tag = new ThreadLocal<>();
+
+        Console(PrintStream out){
+            m_out = out;
+        }
+
+        void tag(String name){
+            m_tag.set("[" + name + "] ");
+        }
+
+        @Override
+        public void write(int b){
+            var line = m_line.get();
+            line.write(b);
+            if(b == '\n')
+                emit(line);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len){
+            var line = m_line.get();
+            var end = off + len;
+            for(int i = off; i < end; ++i){
+                if(b[i] == '\n'){
+                    line.write(b, off, i + 1 - off);
+                    emit(line);
+                    off = i + 1;
+                }
+            }
+            line.write(b, off, end - off);
+        }
+
+        //Partial lines wait for the rest, so that nobody else's output lands in the middle of them
+        @Override
+        public void flush(){
+        }
+
+        //Whatever is left of this thread's last line
+        void finish(){
+            var line = m_line.get();
+            if(line.size() > 0){
+                line.write('\n');
+                emit(line);
+            }
+        }
+
+        private void emit(ByteArrayOutputStream line){
+            var tag = m_tag.get();
+            synchronized(m_out){
+                if(tag != null)
+                    m_out.print(tag);
+                m_out.write(line.toByteArray(), 0, line.size());
+                m_out.flush();
+            }
+            line.reset();
+        }
+    }
+
+    private Fleet(PrintStream out){
+        m_out = out;
+        m_console = new Console(out);
+    }
+
+    static public void feature_fleet(Config conf) throws IOException, ConfigException{
+        var out = System.out;
+        var fleet = new Fleet(out);
+        var path = conf.get_fleet_path();
+        fleet.read(path, conf);
+
+        Main.trap_shutdown();
+        out.println("Starting " + fleet.m_members.size() + " devices from: " + path);
+        out.println();
+        System.setOut(new PrintStream(fleet.m_console, true));
+        try{
+            fleet.run();
+        }
+        finally{
+            fleet.m_console.finish();
+            System.setOut(out);
+        }
+        fleet.print_summary();
+    }
+
+    //One Member per device line. Devices mustn't share a device path, or output files, which they would overwrite, or mix
+    //up so that which device logged what is lost.
+    private void read(Path path, Config conf) throws IOException, ConfigException{
+        var devices = new HashMap<Path, Integer>();
+        var dumps = new HashMap<Path, Integer>();
+        var stores = new HashMap<Path, Integer>();
+        var rollups = new HashMap<Path, Integer>();
+        var lines = Files.readAllLines(path);
+
+        for(int i = 0; i < lines.size(); ++i){
+            var line = lines.get(i).trim();
+            if(line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            var where = path + " line " + (i + 1) + ": ";
+            Config dev;
+            try{
+                dev = new Config(line.split("\\s+"), conf.get_start_time());
+            }
+            catch(ConfigException ex){
+                throw new ConfigException(where + ex.getMessage());
+            }
+            catch(Exception ex){
+                throw new ConfigException(where + ex.toString());
+            }
+
+            if(dev.is_show_help() || dev.get_archive_dir() != null || dev.is_query_store() || dev.get_replay_path() != null ||
+                    dev.get_percentiles_path() != null || dev.get_rollup_query() != null || dev.get_fleet_path() != null)
+                throw new ConfigException(where + "only options for talking to a device belong in a fleet file");
+
+            claim(devices, dev.get_device_path(), i, where, "device");
+            claim(dumps, dev.get_dump_path(), i, where, "-f file");
+            claim(stores, dev.get_store_dir(), i, where, "--store");
+            claim(rollups, dev.get_rollup_dir(), i, where, "--rollups");
+            m_members.add(new Member(dev));
+        }
+
+        if(m_members.isEmpty())
+            throw new ConfigException(path + " lists no devices");
+    }
+
+    static private void claim(HashMap<Path, Integer> claimed, Path p, int line, String where, String what) throws ConfigException{
+        if(p == null)
+            return;
+        var prev = claimed.putIfAbsent(p.toAbsolutePath().normalize(), line);
+        if(prev != null)
+            throw new ConfigException(where + "the same " + what + " as line " + (prev + 1) + ": " + p +
+                    ". Each device needs its own, since the records don't say which device they came from.");
+    }
+
+    //Until every device is done. If we're interrupted, so are they, and we still wait for them to shut down cleanly.
+    private void run(){
+        var out = System.out;
+        for(var m : m_members)
+            m.thread.start();
+
+        boolean stopping = false;
+        for(var m : m_members){
+            while(true){
+                try{
+                    m.thread.join();
+                    break;
+                }
+                catch(InterruptedException ex){
+                    if(!stopping){
+                        stopping = true;
+                        out.println("Stopping the fleet...");
+                        for(var m2 : m_members)
+                            m2.thread.interrupt();
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void print_summary(){
+        var out = m_out;
+        out.println();
+        out.println("Fleet summary:");
+        for(var m : m_members){
+            out.println("\t" + m.name + ": " + m.dumps + " dumps, " + m.records + " records" +
+                    (m.failure == null ? "" : ". Stopped on error: " + m.failure.getMessage()));
+        }
+
+        if(m_sketch.size() > 0){
+            var fmt = Config.csv_date_time_format;
+            out.println();
+            out.println("All devices: " + m_sketch.size() + " records for the period " + fmt.format(m_sketch.first()) + " - " +
+                    fmt.format(m_sketch.last()));
+            DumpStats.print_percentiles(m_sketch);
+        }
+        out.println();
+    }
+}
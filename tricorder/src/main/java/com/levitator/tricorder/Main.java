@@ -7,6 +7,8 @@ import com.levitator.gqlib.exceptions.GQInterruptedException;
 import com.levitator.gqlib.exceptions.GQProtocolException;
 import com.levitator.gqlib.exceptions.GQUnexpectedException;
 import com.levitator.tricorder.exceptions.ScheduleInterrupted;
+import com.levitator.tricorder.features.Archive;
+import com.levitator.tricorder.features.Replay;
 import com.levitator.tricorder.features.LoggingMode;
 import com.levitator.util.Timer;
 import com.levitator.util.FunctionalThread;
@@ -32,7 +34,7 @@ public class Main {
                 Thread.interrupted();
                 Thread.sleep(2000);
 
-                dev = new GQDevice(conf.get_device_path());
+                dev = Tricorder.open_device(conf);
                 okf.status = true;
             }
 
@@ -74,21 +76,28 @@ public class Main {
     }
     */
     
+    //This traps JVM shutdown, which happens on interrupt, SIGINT, ctrl-C, etc
+    //It launches a thread which stalls shutdown until the main thread exits, which it should
+    //because it will throw an Interrupted exception
+    static void trap_shutdown(){
+        var this_thread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook( 
+            new FunctionalThread( ()->shutdown_handler(this_thread) ) );
+    }
+    
     private static void run(Config conf) throws IOException, InterruptedException, Exception{
-        
-        
-        //This traps JVM shutdown, which happens on interrupt, SIGINT, ctrl-C, etc
-        //It launches a thread which stalls shutdown until the main thread exits, which it should
-        //because it will throw an Interrupted exception
-        {
-            var this_thread = Thread.currentThread();
-            Runtime.getRuntime().addShutdownHook( 
-                new FunctionalThread( ()->shutdown_handler(this_thread) ) );
-        }
+        trap_shutdown();
+        run_device(conf, null);
+    }
+    
+    //Everything we do with one device, from connecting to it until we're done or interrupted. member is its place in
+    //a fleet, or null.
+    static void run_device(Config conf, Fleet.Member member) throws IOException, InterruptedException, Exception{
         
         var out = System.out;
         boolean recoverable = true;
         var app = new Tricorder(conf);
+        app.m_member = member;
         
         //This is what was found on the device on startup
         //Or what was immediately set on the device per user request in new Tricorder()
@@ -170,6 +179,18 @@ public class Main {
             var conf = new Config(args, launch_time);
             if(conf.is_show_help())
                 Config.usage();
+            else if(conf.get_archive_dir() != null)
+                Archive.feature_archive(conf);    //No device involved
+            else if(conf.is_query_store())
+                Archive.feature_query(conf);      //Nor here
+            else if(conf.get_replay_path() != null)
+                Replay.feature_replay(conf);      //Nor here
+            else if(conf.get_percentiles_path() != null)
+                Archive.feature_percentiles(conf);  //Nor here
+            else if(conf.get_rollup_query() != null)
+                Archive.feature_rollup(conf);       //Nor here
+            else if(conf.get_fleet_path() != null)
+                Fleet.feature_fleet(conf);          //Many devices
             else
                 run(conf);
         }
@@ -8,6 +8,7 @@ import com.levitator.gqlib.exceptions.GQException;
 import com.levitator.gqlib.exceptions.GQIOException;
 import com.levitator.gqlib.exceptions.GQInterruptedException;
 import com.levitator.gqlib.exceptions.GQProtocolException;
+import com.levitator.gqlib.io.TtyTransport;
 import com.levitator.tricorder.exceptions.ScheduleInterrupted;
 import com.levitator.tricorder.exceptions.TricorderException;
 import com.levitator.tricorder.features.DumpLog;
@@ -27,6 +28,7 @@ public class Tricorder implements AutoCloseable{
     Config m_conf;
     GQDevice m_device;
     Schedule m_schedule;
+    Fleet.Member m_member = null;   //Who to tell about each dump, if we're one of a fleet
     public final boolean original_log_mode; //The log mode to which to restore on exit
                                             //Tricorder does not do this on close() becuase 
                                             //there are external error-handling considerations
@@ -37,7 +39,7 @@ public class Tricorder implements AutoCloseable{
         out.print("Connecting to device: " + m_conf.get_device_path() + "... ");
         
         try( var guard = new OkFailGuard() ){
-            m_device = new GQDevice(m_conf.get_device_path());
+            m_device = open_device(m_conf);
             guard.status = true;
         }
         out.println("Device version: " + m_device.get_version());
@@ -56,6 +58,14 @@ public class Tricorder implements AutoCloseable{
         m_schedule = new Schedule(this);
     }
     
+    //Connect through sercat or directly, as configured
+    public static GQDevice open_device(Config conf) throws GQIOException, GQInterruptedException, GQProtocolException{
+        if(conf.is_direct_io())
+            return new GQDevice(TtyTransport.open(conf.get_device_path()));
+        else
+            return new GQDevice(conf.get_device_path());
+    }
+    
     public static String make_save_mode_restore_message(Config conf, boolean v){
         return 
             (conf.get_set_log_mode() == null ? 
@@ -85,7 +95,7 @@ public class Tricorder implements AutoCloseable{
         boolean no_clear = true;
         if(m_conf.is_dump_log_now()){
             //Dump the log right away to a specific output file
-            DumpLog.feature_dump(m_device, m_conf);
+            dump_device_log();
             if(m_conf.is_clear_after_dump())
                 no_clear = false;
 
@@ -114,7 +124,9 @@ public class Tricorder implements AutoCloseable{
         
     public void dump_device_log() throws IOException, GQProtocolException, GQIOException, GQInterruptedException{ 
         //Also clears the log if set in config
-        DumpLog.feature_dump(m_device, m_conf);
+        var stats = DumpLog.feature_dump(m_device, m_conf);
+        if(m_member != null)
+            m_member.dumped(stats);
     }
     
     //Everything that isn't initial_actions() happens here
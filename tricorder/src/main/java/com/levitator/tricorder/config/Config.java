@@ -1,9 +1,14 @@
 package com.levitator.tricorder.config;
 
 import com.levitator.gqlib.TimeFormat;
+import com.levitator.gqlib.NvmImage;
+import com.levitator.gqlib.binlog.BinLogWriter;
+import com.levitator.gqlib.stats.LogSketch;
+import com.levitator.gqlib.stats.RollupStore;
 import com.levitator.gqlib.exceptions.GQTimeFormatException;
 import com.levitator.tricorder.ConfigException;
 import com.levitator.util.Ref;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.LocalDateTime;
@@ -20,6 +25,7 @@ import java.util.Map.Entry;
 import static java.util.Map.entry;
 import java.util.TreeMap;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 public class Config extends In {
     
@@ -71,6 +77,22 @@ public class Config extends In {
     private LocalTime dump_period = null; //Time period to wait between dumps
     private LocalTime[] dump_times;      //Comma list of local times at which to dump the log.
     private Boolean set_log_mode = null; //On startup, enable/disable logging to device NVM
+    private boolean direct_io = false;   //Talk to the serial device from the JVM rather than through sercat
+    private boolean incremental_dump = false;    //Only fetch what was logged since the last dump
+    private boolean write_csv = true;         //Dump formats
+    private boolean write_binary = false;
+    private Path archive_dir = null;     //Merge the time-named dumps found here into the dump file, instead of talking to a device
+    private LocalDateTime archive_from = null;  //Limits for the above. Null for none.
+    private LocalDateTime archive_to = null;
+    private Path store_dir = null;       //Also append each dump to the segment store here
+    private int compact_segments = 64;   //Merge the store's smaller segments after a dump once it has more than this. 0 for never.
+    private boolean capture_nvm = false; //Save the raw log memory of each dump as an NvmImage, next to the dump file
+    private Path replay_path = null;     //Decode and interpolate these images, or the ones under this directory, instead of talking to a device
+    private boolean query_store = false; //Write what the store has for --from/--to to the dump file, instead of talking to a device
+    private Path rollup_dir = null;      //Also add each dump's new records to the rollup tables here
+    private RollupStore.Resolution rollup_query = null; //Print the rollups at this resolution for --from/--to, instead of talking to a device
+    private Path percentiles_path = null; //Merge this quantile sketch, or the ones under this directory, and print percentiles, instead of talking to a device
+    private Path fleet_path = null;      //Run every device listed in this file at once, instead of the one
     
     static boolean is_switch(String arg){
         return arg.startsWith("-");
@@ -101,7 +123,13 @@ public class Config extends In {
         var defaults = new Config();
         
         out.println("Usage: tricorder [-h|--help] [<-t|--time> <time string>] [-T|--systime] [-u|--unique] [-o|--overwrite] [-d|--dump]");
-        out.println("\t[-c|--clear] [<-p|--period> <duration>] [--schedule] [-f|--file] [<-l|--log> <true|false>] [device path]");
+        out.println("\t[-c|--clear] [<-p|--period> <duration>] [--schedule] [-f|--file] [<-l|--log> <true|false>] [--direct]");
+        out.println("\t[-i|--incremental] [--format <csv|binary|both>] [<-a|--archive> <directory> [--from <time string>] [--to <time string>]]");
+        out.println("\t[--store <directory> [--compact <segments>] [--query [--from <time string>] [--to <time string>]]] [--capture]");
+        out.println("\t[--replay <image or directory>]");
+        out.println("\t[--rollups <directory> [--rollup <minute|hour|day> [--from <time string>] [--to <time string>]]]");
+        out.println("\t[--percentiles <sketch or directory>] [--fleet <file>]");
+        out.println("\t[device path]");
         out.println();
         out.println("\t-t|--time: set the device time as specified by <time string>");
         out.println("\t-T|--systime: set the device time to the current host system time");
@@ -117,6 +145,34 @@ public class Config extends In {
         out.println("\t\tDefault: " + defaults.dump_path);
         out.println("\t-l|--log: flip device logging mode on or off. This is overriden if any non-immediate dumps are scheduled,");
         out.println("\t\tin which case logging is forced on during the wait. Why would you schedule dumps if you aren't logging?");
+        out.println("\t--direct: open the serial device from the JVM instead of running sercat. Needs the JVM run with");
+        out.println("\t\t--add-modules jdk.incubator.foreign --enable-native-access=ALL-UNNAMED, as the tricorder script does.");
+        out.println("\t-i|--incremental: each dump fetches only what the device logged since the last one, if the log hasn't been");
+        out.println("\t\tcleared or wrapped around in the meantime. Can't be used with -o, which would throw away everything");
+        out.println("\t\tbut the new records. Checkpoints are kept per device and output, in: " + com.levitator.gqlib.config.Config.profile_dir);
+        out.println("\t--format: write dumps as CSV, in the compact binary log format, or both. Binary logs go next to where the");
+        out.println("\t\tCSV file would, with the extension " + BinLogWriter.extension + ". Default: csv");
+        out.println("\t-a|--archive: don't talk to the device. Instead, load every dump under <directory> that was written with -u and the");
+        out.println("\t\tsame -f file name, merge them in time order without duplicates, and write the result to the -f file.");
+        out.println("\t--store: also append every dump to the binary segment store in <directory>, for long-term keeping");
+        out.println("\t--compact: after a dump, once the --store has more than this many segments, merge the smallest of them");
+        out.println("\t\tuntil it has half as many, or all that are left are full size. 0 for never. Default: " + defaults.compact_segments);
+        out.println("\t--query: don't talk to the device. Instead, write what the --store has to the -f file.");
+        out.println("\t--rollups: also keep count, min, max, sum and sum of squares of each quantity per minute, hour and day,");
+        out.println("\t\tin <directory>, updated from each dump's new records. Keep a directory per device.");
+        out.println("\t--rollup: don't talk to the device. Instead, print the --rollups at the given resolution, as CSV.");
+        out.println("\t--capture: also save the raw log memory of each dump, as read from the device, with the extension " + NvmImage.extension);
+        out.println("\t--replay: don't talk to the device. Instead, decode and interpolate a captured image, or every image under a");
+        out.println("\t\tdirectory, in parallel, and write the records to the -f file as a dump would.");
+        out.println("\t--percentiles: don't talk to the device. Instead, merge the quantile sketch, or every sketch under a directory,");
+        out.println("\t\tand print percentiles of each quantity over all of them. Every dump writes a sketch next to it, with the");
+        out.println("\t\textension " + LogSketch.extension + ". Sketches from any number of dumps and devices can be merged.");
+        out.println("\t--fleet: run many devices at once, each with its own schedule and output files. Each line of <file> holds");
+        out.println("\t\tone device's switches and device path, as they would be given on the command line, separated by spaces.");
+        out.println("\t\tBlank lines and lines starting with # are skipped. Takes no other arguments. Use --direct on each line");
+        out.println("\t\tto save running a sercat per device. No two lines may share a device, an -f file, a --store or --rollups");
+        out.println("\t\tdirectory, since records don't say which device they came from.");
+        out.println("\t--from, --to: with -a, --query or --rollup, only the records logged within this period. Either end may be left open.");
         out.println("\t[device path]: path of serial device to use for I/O. Default: " + defaults.device_path);
         out.println();
     }
@@ -222,6 +278,117 @@ public class Config extends In {
         conf.clear_log_now = true;
     }
     
+    static private void process_direct_io_switch(Config conf){
+        conf.direct_io = true;
+    }
+    
+    static private void process_incremental_switch(Config conf){
+        conf.incremental_dump = true;
+    }
+    
+    static private void process_format_switch(Config conf, Ref<Integer> i) throws Exception{
+        var format = demand_next_non_switch(conf.arguments, i);
+        switch(format){
+            case "csv":
+                conf.write_csv = true;
+                conf.write_binary = false;
+                break;
+            case "binary":
+                conf.write_csv = false;
+                conf.write_binary = true;
+                break;
+            case "both":
+                conf.write_csv = true;
+                conf.write_binary = true;
+                break;
+            default:
+                throw new Exception("must be followed by csv, binary, or both");
+        }
+    }
+    
+    static private void process_archive_switch(Config conf, Ref<Integer> i) throws Exception{
+        try{
+            conf.archive_dir = Path.of(demand_next_non_switch(conf.arguments, i));
+        }
+        catch(Exception ex){
+            throw new Exception("must be followed by a valid directory path: " + ex.toString());
+        }
+    }
+    
+    static private void process_store_switch(Config conf, Ref<Integer> i) throws Exception{
+        try{
+            conf.store_dir = Path.of(demand_next_non_switch(conf.arguments, i));
+        }
+        catch(Exception ex){
+            throw new Exception("must be followed by a valid directory path: " + ex.toString());
+        }
+    }
+    
+    static private void process_compact_switch(Config conf, Ref<Integer> i) throws Exception{
+        var count = demand_next_non_switch(conf.arguments, i);
+        try{
+            conf.compact_segments = Integer.parseInt(count);
+        }
+        catch(NumberFormatException ex){
+            throw new Exception("must be followed by a number of segments: " + count);
+        }
+    }
+    
+    static private void process_replay_switch(Config conf, Ref<Integer> i) throws Exception{
+        try{
+            conf.replay_path = Path.of(demand_next_non_switch(conf.arguments, i));
+        }
+        catch(Exception ex){
+            throw new Exception("must be followed by a valid file or directory path: " + ex.toString());
+        }
+    }
+    
+    static private void process_rollups_switch(Config conf, Ref<Integer> i) throws Exception{
+        try{
+            conf.rollup_dir = Path.of(demand_next_non_switch(conf.arguments, i));
+        }
+        catch(Exception ex){
+            throw new Exception("must be followed by a valid directory path: " + ex.toString());
+        }
+    }
+    
+    static private void process_rollup_switch(Config conf, Ref<Integer> i) throws Exception{
+        var resolution = demand_next_non_switch(conf.arguments, i);
+        try{
+            conf.rollup_query = RollupStore.Resolution.valueOf(resolution.toUpperCase());
+        }
+        catch(IllegalArgumentException ex){
+            throw new Exception("must be followed by minute, hour, or day");
+        }
+    }
+    
+    static private void process_fleet_switch(Config conf, Ref<Integer> i) throws Exception{
+        try{
+            conf.fleet_path = Path.of(demand_next_non_switch(conf.arguments, i));
+        }
+        catch(Exception ex){
+            throw new Exception("must be followed by a valid file path: " + ex.toString());
+        }
+    }
+    
+    static private void process_percentiles_switch(Config conf, Ref<Integer> i) throws Exception{
+        try{
+            conf.percentiles_path = Path.of(demand_next_non_switch(conf.arguments, i));
+        }
+        catch(Exception ex){
+            throw new Exception("must be followed by a valid file or directory path: " + ex.toString());
+        }
+    }
+    
+    static private LocalDateTime demand_date_time(Config conf, Ref<Integer> i) throws Exception{
+        try{
+            return TimeFormat.parseDateTime(demand_next_non_switch(conf.arguments, i), Config.date_time_formats);
+        }
+        catch(Exception ex){
+            throw new Exception("must be followed by a valid date/time: " + ex.toString());
+        }
+    }
+    
     //from name, to name
     static private TreeMap<String, switch_handler>  process_synonyms( Map<String, String> syn, Map<String, switch_handler>  in){
         
@@ -244,7 +411,9 @@ public class Config extends In {
             entry("-f", "--file"),
             entry("-h", "--help"),
             entry("-l", "--log"),
-            entry("-C", "--CLEAR")
+            entry("-C", "--CLEAR"),
+            entry("-i", "--incremental"),
+            entry("-a", "--archive")
     ));
     
     static private final TreeMap< String, switch_handler> switch_handlers = new TreeMap<>(process_synonyms(synonyms, Map.<String, switch_handler>ofEntries(
@@ -259,7 +428,22 @@ public class Config extends In {
             switch_handler.entry("-f", (conf, i)        -> process_file_switch(conf, i) ),
             switch_handler.entry("-h", (conf, i)        -> process_help_switch(conf) ),
             switch_handler.entry("-l", (conf, i)        -> process_log_mode_switch(conf, i)),
-            switch_handler.entry("-C", (conf, i)        -> process_clear_log_now_switch(conf))
+            switch_handler.entry("-C", (conf, i)        -> process_clear_log_now_switch(conf)),
+            switch_handler.entry("--direct", (conf, i)  -> process_direct_io_switch(conf)),
+            switch_handler.entry("-i", (conf, i)        -> process_incremental_switch(conf)),
+            switch_handler.entry("--format", (conf, i)  -> process_format_switch(conf, i)),
+            switch_handler.entry("-a", (conf, i)        -> process_archive_switch(conf, i)),
+            switch_handler.entry("--store", (conf, i)   -> process_store_switch(conf, i)),
+            switch_handler.entry("--compact", (conf, i) -> process_compact_switch(conf, i)),
+            switch_handler.entry("--query", (conf, i)   -> conf.query_store = true),
+            switch_handler.entry("--capture", (conf, i) -> conf.capture_nvm = true),
+            switch_handler.entry("--replay", (conf, i)  -> process_replay_switch(conf, i)),
+            switch_handler.entry("--rollups", (conf, i) -> process_rollups_switch(conf, i)),
+            switch_handler.entry("--rollup", (conf, i)  -> process_rollup_switch(conf, i)),
+            switch_handler.entry("--percentiles", (conf, i) -> process_percentiles_switch(conf, i)),
+            switch_handler.entry("--fleet", (conf, i)   -> process_fleet_switch(conf, i)),
+            switch_handler.entry("--from", (conf, i)    -> conf.archive_from = demand_date_time(conf, i)),
+            switch_handler.entry("--to", (conf, i)      -> conf.archive_to = demand_date_time(conf, i))
     )));        
     
     private void process_switch(Ref<Integer> i) throws ConfigException, Exception{
@@ -304,6 +488,17 @@ public class Config extends In {
         
         if(remain > 0)
             device_path = Path.of(arguments[i.value]);
+        
+        if(query_store && store_dir == null)
+            throw new ConfigException("--query needs a --store to query");
+        if(rollup_query != null && rollup_dir == null)
+            throw new ConfigException("--rollup needs --rollups to read");
+        if(archive_dir == null && !query_store && rollup_query == null && (archive_from != null || archive_to != null))
+            throw new ConfigException("--from and --to only apply to -a, --query and --rollup");
+        if(incremental_dump && !append_dump)
+            throw new ConfigException("-i can't be used with -o. Each dump would replace the file with just the records since the last one.");
+        if(fleet_path != null && arguments.length > 2)
+            throw new ConfigException("--fleet takes no other arguments. Each device's go on its line of the fleet file.");
     }
  
     //Useful for retrieving defaults
@@ -393,6 +588,83 @@ public class Config extends In {
         return set_log_mode;
     }
     
+    public boolean is_direct_io() {
+        return direct_io;
+    }
+    
+    public boolean is_incremental_dump() {
+        return incremental_dump;
+    }
+    
+    public boolean is_write_csv() {
+        return write_csv;
+    }
+    
+    public boolean is_write_binary() {
+        return write_binary;
+    }
+    
+    public Path get_archive_dir() {
+        return archive_dir;
+    }
+    
+    public LocalDateTime get_archive_from() {
+        return archive_from;
+    }
+    
+    public LocalDateTime get_archive_to() {
+        return archive_to;
+    }
+    
+    public Path get_store_dir() {
+        return store_dir;
+    }
+    
+    public int get_compact_segments() {
+        return compact_segments;
+    }
+    
+    public boolean is_query_store() {
+        return query_store;
+    }
+    
+    public boolean is_capture_nvm() {
+        return capture_nvm;
+    }
+    
+    public Path get_replay_path() {
+        return replay_path;
+    }
+    
+    public Path get_rollup_dir() {
+        return rollup_dir;
+    }
+    
+    public RollupStore.Resolution get_rollup_query() {
+        return rollup_query;
+    }
+    
+    public Path get_percentiles_path() {
+        return percentiles_path;
+    }
+    
+    public Path get_fleet_path() {
+        return fleet_path;
+    }
+    
+    //Where to keep the incremental dump checkpoint for the configured device and outputs. A checkpoint only says what
+    //one set of outputs already has, so dumping to a different file, store or rollups directory starts from a full dump.
+    public Path get_checkpoint_path() {
+        var name = device_path.toAbsolutePath().toString().replaceAll("[^A-Za-z0-9._-]", "_");
+        var outputs = new StringBuilder(dump_path.toAbsolutePath().normalize().toString());
+        for(var p : new Path[]{store_dir, rollup_dir})
+            outputs.append('\n').append(p == null ? "" : p.toAbsolutePath().normalize().toString());
+        var crc = new CRC32();
+        crc.update(outputs.toString().getBytes(StandardCharsets.UTF_8));
+        return com.levitator.gqlib.config.Config.profile_dir.resolve("checkpoint" + name + "-" +
+                String.format("%08x", crc.getValue()) + ".properties");
+    }
+    
     public Config(String[] args, Timer start) throws Exception, ConfigException{
         start_time = start;
         arguments = args;
@@ -0,0 +1,166 @@
+package com.levitator.tricorder.features;
+
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.OkFailGuard;
+import com.levitator.gqlib.binlog.SegmentStore;
+import com.levitator.gqlib.csv.ArchiveLoader;
+import com.levitator.gqlib.exceptions.GQUserDataFormatException;
+import com.levitator.gqlib.stats.LogSketch;
+import com.levitator.gqlib.stats.LogStats;
+import com.levitator.gqlib.stats.RollupStore;
+import com.levitator.gqlib.structures.MeasurementRecord;
+import com.levitator.tricorder.config.Config;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/*
+*
+* For loading archived log dumps back together, or a period from the segment store, or summing up their sketches or rollups
+*
+*/
+public class Archive {
+
+    static public void feature_archive(Config conf) throws IOException, GQUserDataFormatException{
+        var out = System.out;
+        var dir = conf.get_archive_dir();
+        var path = conf.get_dump_path();
+        var from = conf.get_archive_from();
+        var to = conf.get_archive_to();
+        var loader = new ArchiveLoader(Config.csv_date_time_format, Config.file_name_date_time_format);
+
+        var files = loader.find(dir, path.getFileName().toString());
+        out.println("Found " + files.size() + " dump files in: " + dir);
+        if(from != null || to != null){
+            out.println("For the period: " + (from == null ? "start" : Config.format(from)) + " - " +
+                    (to == null ? "end" : Config.format(to)));
+        }
+
+        LogDataSet data;
+        try(var okf = new OkFailGuard("Loading and merging... ")){
+            data = loader.load(files, from, to);
+            okf.status = true;
+        }
+        write_result(conf, data);
+    }
+    
+    //Pulls a period out of the segment store
+    static public void feature_query(Config conf) throws IOException, GQUserDataFormatException{
+        var out = System.out;
+        var from = conf.get_archive_from();
+        var to = conf.get_archive_to();
+        
+        LogDataSet data;
+        try(var store = new SegmentStore(conf.get_store_dir())){
+            out.println("Store has " + store.size() + " records in " + store.segments() + " segments: " + store.directory());
+            if(from != null || to != null){
+                out.println("For the period: " + (from == null ? "start" : Config.format(from)) + " - " +
+                        (to == null ? "end" : Config.format(to)));
+            }
+            
+            try(var okf = new OkFailGuard("Querying... ")){
+                data = store.query(from, to);
+                okf.status = true;
+            }
+        }
+        write_result(conf, data);
+    }
+    
+    //The rollups for a period, as CSV, a bucket per line, with min, avg, max and standard deviation of each quantity
+    static public void feature_rollup(Config conf) throws IOException, GQUserDataFormatException{
+        var out = System.out;
+        var resolution = conf.get_rollup_query();
+        var from = conf.get_archive_from();
+        var to = conf.get_archive_to();
+        
+        try(var rollups = new RollupStore(conf.get_rollup_dir())){
+            var buckets = rollups.query(resolution, from, to);
+            out.println("" + buckets.size() + " " + resolution.name().toLowerCase() + " rollups in: " + rollups.directory());
+            if(from != null || to != null){
+                out.println("For the period: " + (from == null ? "start" : Config.format(from)) + " - " +
+                        (to == null ? "end" : Config.format(to)));
+            }
+            out.println();
+            
+            var heading = new StringBuilder("Start,Count");
+            for(var q : new String[]{"EMF " + MeasurementRecord.emf_unit, "EF " + MeasurementRecord.ef_unit, "RF " + MeasurementRecord.rf_unit}){
+                for(var s : new String[]{"min", "avg", "max", "std dev"})
+                    heading.append(',').append(q).append(' ').append(s);
+            }
+            out.println(heading);
+            
+            //Channels in the columns' units, and what to divide by for the ones printed
+            int[] channels = {RollupStore.emfx10, RollupStore.ef, RollupStore.rf};
+            double[] scale = {10, 1, LogStats.rf_scale};
+            for(var b : buckets){
+                var line = new StringBuilder(Config.csv_date_time_format.format(b.start())).append(',').append(b.count());
+                for(int i = 0; i < channels.length; ++i){
+                    var c = channels[i];
+                    for(var v : new double[]{b.min(c), b.mean(c), b.max(c), b.stddev(c)})
+                        line.append(',').append(DumpLog.stats_format(v / scale[i]));
+                }
+                out.println(line);
+            }
+            out.println();
+        }
+    }
+    
+    //Percentiles over every sketch found, merged. There's no --from or --to, since a sketch is all of its dump or nothing.
+    static public void feature_percentiles(Config conf) throws IOException, GQUserDataFormatException{
+        var out = System.out;
+        var path = conf.get_percentiles_path();
+        var files = find_sketches(path);
+        out.println("Found " + files.size() + " quantile sketches in: " + path);
+        
+        var sketch = new LogSketch();
+        try(var okf = new OkFailGuard("Merging... ")){
+            for(var f : files){
+                try{
+                    sketch.merge(LogSketch.read(f));
+                }
+                catch(IllegalArgumentException ex){
+                    throw new GQUserDataFormatException(f + ": " + ex.getMessage(), ex);
+                }
+            }
+            okf.status = true;
+        }
+        
+        if(sketch.size() == 0){
+            out.println("0 records.");
+            return;
+        }
+        var fmt = Config.csv_date_time_format;
+        out.println("" + sketch.size() + " records for the period " + fmt.format(sketch.first()) + " - " + fmt.format(sketch.last()));
+        DumpStats.print_percentiles(sketch);
+        out.println();
+    }
+    
+    //The sketch, or the sketches anywhere under the directory, in name order
+    static private List<Path> find_sketches(Path path) throws IOException{
+        if(!Files.isDirectory(path))
+            return List.of(path);
+        try(var files = Files.walk(path)){
+            return files.filter(Files::isRegularFile)
+                    .filter(p -> p.getFileName().toString().endsWith(LogSketch.extension))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+    
+    static void write_result(Config conf, LogDataSet data) throws IOException{
+        var out = System.out;
+        var path = conf.get_dump_path();
+        if(data.size() == 0){
+            out.println("0 records. No file written.");
+            return;
+        }
+
+        var times = DumpLog.time_range(data);
+        var fmt = Config.csv_date_time_format;
+        out.println("" + data.size() + " records for the period " + fmt.format(times.first) + " - " + fmt.format(times.second));
+        DumpLog.print_stats(data);
+        DumpLog.write_log(data, path, conf.is_append_dump());
+    }
+}
@@ -6,18 +6,32 @@ import java.nio.file.Path;
 import com.levitator.gqlib.structures.MeasurementRecord;
 import com.levitator.util.Pair;
 import com.levitator.util.Ref;
+import com.levitator.gqlib.LogCheckpoint;
 import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.NvmImage;
 import com.levitator.gqlib.SessionTimes;
+import com.levitator.gqlib.binlog.BinLogReader;
+import com.levitator.gqlib.binlog.BinLogWriter;
+import com.levitator.gqlib.binlog.SegmentStore;
+import com.levitator.gqlib.stats.LogSketch;
+import com.levitator.gqlib.stats.RollupStore;
+import com.levitator.gqlib.structures.MeasurementSink;
+import com.levitator.gqlib.csv.CsvExporter;
 import com.levitator.gqlib.exceptions.GQException;
 import com.levitator.gqlib.exceptions.GQIOException;
 import com.levitator.gqlib.exceptions.GQInterruptedException;
 import com.levitator.gqlib.exceptions.GQUnexpectedException;
+import com.levitator.gqlib.exceptions.GQUserDataFormatException;
 import com.levitator.gqlib.exceptions.GQProtocolException;
 import com.levitator.gqlib.exceptions.GQFramingError;
 import com.levitator.tricorder.config.Config;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import com.levitator.util.Action;
+import com.levitator.util.LocalNanos;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import util.guards.Guard;
 
@@ -31,16 +45,20 @@ public class DumpLog {
     
     //Assumes the dataset is sorted, which it is when it comes out of ArrayList<> get_log()
     static public Pair<LocalDateTime, LocalDateTime> time_range(LogDataSet data){
-        return new Pair<>( data.first().time, data.last().time );
+        return new Pair<>( data.first().get_time(), data.last().get_time() );
     }
     
     
     //Generate a name based on the time range of a dataset
     static public Path time_name(Path path, LogDataSet data) throws IOException{
         var times = time_range(data);
+        return time_name(path, times.first, times.second);
+    }
+    
+    static public Path time_name(Path path, LocalDateTime first, LocalDateTime last){
         var base = path.getFileName();
         var fmt = Config.file_name_date_time_format;
-        var name = fmt.format(times.first) + "_to_" + fmt.format(times.second) + "_" + base;
+        var name = fmt.format(first) + "_to_" + fmt.format(last) + "_" + base;
         return path.toAbsolutePath().getParent().resolve(name);
     }
     
@@ -65,17 +83,72 @@ public class DumpLog {
         String disposition = append ? "(append)" : "(new/overwrite)";
         out.print("Opening output file" + disposition + ": " + file_str + " ... ");
         
-        BufferedWriter writer;
+        CsvExporter writer;
         try(var guard = new OkFailGuard()){
-            writer = new BufferedWriter( new FileWriter(path.toString(), append) );
+            writer = new CsvExporter(path, append, Config.csv_date_time_format);
             guard.status = true;
         }
         
         try(Guard<RuntimeException> on_close=()->out.println("Dump file closed"); writer ){
-            MeasurementRecord.write_CSV_header(writer);
-            for(var r : records){
-                r.toCSV(Config.csv_date_time_format, writer);
+            writer.write_header();
+            writer.write(records);
+        }
+    }
+    
+    //Where the binary log goes, given where the CSV file would
+    static public Path binary_path(Path path){
+        var name = path.getFileName().toString();
+        if(name.toLowerCase().endsWith(".csv"))
+            name = name.substring(0, name.length() - 4);
+        return path.resolveSibling(name + BinLogWriter.extension);
+    }
+    
+    //Where the raw NVM image goes, given where the CSV file would
+    static public Path image_path(Path path){
+        var name = path.getFileName().toString();
+        if(name.toLowerCase().endsWith(".csv"))
+            name = name.substring(0, name.length() - 4);
+        return path.resolveSibling(name + NvmImage.extension);
+    }
+    
+    //Where the quantile sketch goes, given where the CSV file would
+    static public Path sketch_path(Path path){
+        var name = path.getFileName().toString();
+        if(name.toLowerCase().endsWith(".csv"))
+            name = name.substring(0, name.length() - 4);
+        return path.resolveSibling(name + LogSketch.extension);
+    }
+    
+    //In append mode, the sketch is merged into the one that's there, as the records are appended to the dump file
+    static public void write_sketch(LogSketch sketch, Path path, boolean append) throws IOException{
+        var disposition = append ? "(merge)" : "(new/overwrite)";
+        try(var okf = new OkFailGuard("Writing quantile sketch" + disposition + ": " + path.getFileName() + " ... ")){
+            if(append && Files.exists(path)){
+                try{
+                    sketch = LogSketch.read(path).merge(sketch);
+                }
+                catch(GQUserDataFormatException | IllegalArgumentException ex){
+                    throw new IOException("Can't merge into " + path + ": " + ex.getMessage(), ex);
+                }
             }
+            sketch.write(path);
+            okf.status = true;
+        }
+    }
+    
+    //Images are all or nothing, so in append mode, a new one takes the next free numbered name instead
+    static public void write_image(NvmImage image, Path path, boolean append) throws IOException{
+        var out = System.out;
+        if(append && path.toFile().exists()){
+            var name = path.getFileName().toString();
+            var stem = name.substring(0, name.length() - NvmImage.extension.length());
+            for(int i = 1; path.toFile().exists(); ++i)
+                path = path.resolveSibling(stem + "-" + i + NvmImage.extension);
+        }
+        
+        try(var okf = new OkFailGuard("Saving raw NVM image (" + (image.byte_count() / 1024) + "kB): " + path.getFileName() + " ... ")){
+            image.write(path);
+            okf.status = true;
         }
     }
     
@@ -85,6 +158,69 @@ public class DumpLog {
     
     static public LogDataSet dump(GQDevice device) throws 
             GQProtocolException, GQIOException, GQInterruptedException, GQUnexpectedException, GQFramingError{
+        return dump(device, null);
+    }
+    
+    static public LogDataSet dump(GQDevice device, LogCheckpoint checkpoint) throws 
+            GQProtocolException, GQIOException, GQInterruptedException, GQUnexpectedException, GQFramingError{
+        return dump(device, checkpoint, null);
+    }
+    
+    //With a checkpoint, only what was logged since it, if possible. The checkpoint is moved up to the end of the log.
+    //With a capture, the raw log memory is kept there too, along with the device time.
+    static public LogDataSet dump(GQDevice device, LogCheckpoint checkpoint, NvmImage capture) throws 
+            GQProtocolException, GQIOException, GQInterruptedException, GQUnexpectedException, GQFramingError{
+        
+        var data = new Ref<LogDataSet>();
+        var all_sessions = new SessionTimes();
+        var guess_sessions = new SessionTimes();
+        var bytes_in = fetch(device, checkpoint, capture, (progress, bytes) ->
+                data.value = device.get_log(progress, bytes, all_sessions, guess_sessions, checkpoint, capture));
+        
+        report(new DumpStats(data.value), bytes_in, all_sessions, guess_sessions);
+        return data.value;
+    }
+    
+    //As above, except that the records go to sink, in time order, as they come off the device, rather than being collected.
+    //Returns the summary, which has been printed.
+    static public DumpStats dump(GQDevice device, LogCheckpoint checkpoint, NvmImage capture, MeasurementSink sink) throws 
+            GQProtocolException, GQIOException, GQInterruptedException, GQUnexpectedException, GQFramingError{
+        
+        var stats = new DumpStats();
+        var all_sessions = new SessionTimes();
+        var guess_sessions = new SessionTimes();
+        var tee = new MeasurementSink(){
+            @Override
+            public void measurement(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+                stats.measurement(time, seq, uncertain, emfx10, ef, rf);
+                sink.measurement(time, seq, uncertain, emfx10, ef, rf);
+            }
+            
+            @Override
+            public void provisional(long time){
+                sink.provisional(time);
+            }
+            
+            @Override
+            public void context(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+                sink.context(time, seq, uncertain, emfx10, ef, rf);
+            }
+        };
+        var bytes_in = fetch(device, checkpoint, capture, (progress, bytes) ->
+                device.stream_log(progress, bytes, all_sessions, guess_sessions, checkpoint, capture, tee));
+        
+        report(stats, bytes_in, all_sessions, guess_sessions);
+        return stats;
+    }
+    
+    //One way or another of getting the log off the device, given the progress action and somewhere for the byte count
+    private interface Fetch{
+        void fetch(Action progress_f, Ref<Integer> byte_count) throws GQException;
+    }
+    
+    //Halts device logging around the fetch and tells the user about it. Returns the number of bytes read.
+    static private int fetch(GQDevice device, LogCheckpoint checkpoint, NvmImage capture, Fetch f) throws 
+            GQProtocolException, GQIOException, GQInterruptedException, GQUnexpectedException, GQFramingError{
        
         var out = System.out;
         var bytes_in = new Ref<Integer>(0);
@@ -93,15 +229,20 @@ public class DumpLog {
                 LoggingMode.logging_mode_feature(device, "Halting device log for dump... ", false, 
                         (v) -> "Restoring device logging to mode: " + v + " ... " );
         
-        LogDataSet data;
-        var all_sessions = new SessionTimes();
-        var guess_sessions = new SessionTimes();
-
         try(restore_save){
-            try(var okf = new OkFailGuard("Dumping device log at device time: " + Config.format(device.get_time()) + "...")){
-                data = device.get_log( () -> out.print("."), bytes_in, all_sessions, guess_sessions );
+            var device_time = device.get_time();
+            try(var okf = new OkFailGuard("Dumping device log at device time: " + Config.format(device_time) + "...")){
+                f.fetch( () -> out.print("."), bytes_in );
                 okf.status = true;
             }
+            if(capture != null)
+                capture.device_time(device_time);
+            if(checkpoint != null){
+                if(checkpoint.incremental())
+                    out.println("Picked up from the last dump, at device log address " + (checkpoint.address() - bytes_in.value));
+                else
+                    out.println("Full dump. No usable checkpoint, or the device log was cleared or wrapped around since.");
+            }
         }
         catch(GQProtocolException | GQIOException | GQInterruptedException ex){
             throw ex;
@@ -115,17 +256,26 @@ public class DumpLog {
         
         //Don't restore the log mode here because if we exit, it gets restsored there
         //And if we go into scheduled mode, it immediately gets forced on, and then restored on exit
-
-        if(data.size() == 0){
+        return bytes_in.value;
+    }
+    
+    static private void report(DumpStats stats, int bytes_in, SessionTimes all_sessions, SessionTimes guess_sessions){
+        var out = System.out;
+        if(stats.size() == 0){
             out.println("0 records. Log was empty.");
-            return data;
+            return;
         }
         
-        var times = time_range(data);
         var fmt = Config.csv_date_time_format;
-        out.println("" + data.size() + " records and " + (bytes_in.value / 1024) + "kB retrieved for the period " + 
-                fmt.format(times.first) + " - " + fmt.format(times.second));
+        out.println("" + stats.size() + " records and " + (bytes_in / 1024) + "kB retrieved for the period " + 
+                fmt.format(stats.first()) + " - " + fmt.format(stats.last()));
         
+        print_sessions(all_sessions, guess_sessions);
+        stats.print();
+    }
+    
+    static public void print_sessions(SessionTimes all_sessions, SessionTimes guess_sessions){
+        var out = System.out;
         out.println("Logging sessions found:");
         for(var s : all_sessions){
             out.println("\t" + Config.format(s.getStart()) + " - " + Config.format(s.getEnd()));
@@ -142,41 +292,11 @@ public class DumpLog {
             }
             out.println();
         }
-        
-        int emf_min = Integer.MAX_VALUE, emf_max = Integer.MIN_VALUE;
-        double emf_sum = 0;
-        float ef_min = Float.MAX_VALUE, ef_max = Float.MIN_VALUE;
-        double ef_sum = 0;
-        double rf_min = Double.MAX_VALUE, rf_max = Double.MIN_VALUE;
-        double rf_sum = 0;
-        for(var r : data){
-            emf_min = Math.min(emf_min, r.get_emfx10());
-            emf_max = Math.max(emf_max, r.get_emfx10());
-            emf_sum += r.get_emfx10();
-            
-            ef_min = Math.min(ef_min, r.ef);
-            ef_max = Math.max(ef_max, r.ef);
-            ef_sum += r.ef;
-            
-            var rf = r.get_rf_mWm2();
-            rf_min = Math.min(rf_min, rf);
-            rf_max = Math.max(rf_max, rf);
-            rf_sum += rf;
-        }
-        
-        emf_sum /= (data.size() * 10);
-        ef_sum /= data.size();
-        rf_sum /= data.size();
-
-        out.println();
-        out.println("min/avg/max");
-        out.println("RF " + MeasurementRecord.rf_unit + ": " + stats_format(rf_min) + "/" + stats_format(rf_sum) + "/" + stats_format(rf_max));
-        out.println("EF " + MeasurementRecord.ef_unit + ": " + stats_format(ef_min) + "/" + stats_format(ef_sum) + "/" + stats_format(ef_max));
-        out.println("EMF " + MeasurementRecord.emf_unit + ": " + MeasurementRecord.format_emfx10(emf_min) +
-                "/" + stats_format(emf_sum) + "/" + MeasurementRecord.format_emfx10(emf_max));
-        out.println();
-        
-        return data;
+    }
+    
+    //min/avg/max, std dev and percentiles of each quantity. data must not be empty.
+    static public void print_stats(LogDataSet data){
+        new DumpStats(data).print();
     }
     
     static public void do_clear_log(GQDevice device) throws 
@@ -190,35 +310,274 @@ public class DumpLog {
         }
     }
     
-    static public void feature_dump(GQDevice device, Config conf) throws IOException, GQIOException,
-               GQInterruptedException, GQUnexpectedException, GQProtocolException, GQFramingError{
+    //The dump's output files, written under temporary names as the records come off the device, and moved into place by
+    //commit() once we know the time range they're named for. Nothing is left behind unless it's committed.
+    //A write error stops the writing, and comes out of check(), so that the device is left as it should be first.
+    static private class DumpFiles implements MeasurementSink, AutoCloseable{
+        private Path m_csv_temp, m_bin_temp;
+        private CsvExporter m_csv;
+        private BinLogWriter m_bin;
+        private SegmentStore m_store;
+        private SegmentStore.Appender m_segment;
+        private RollupStore m_rollups;
+        private final boolean m_clearing;
+        private long m_provisional = Long.MAX_VALUE;
+        private IOException m_error;
         
-        var out = System.out;
-        var data = dump(device);
-        var append = conf.is_append_dump();
+        DumpFiles(Config conf, Path path) throws IOException{
+            m_clearing = conf.is_clear_after_dump();
+            try{
+                if(conf.is_write_csv()){
+                    m_csv_temp = temp_path(path.toAbsolutePath());
+                    m_csv = new CsvExporter(m_csv_temp, false, Config.csv_date_time_format);
+                    m_csv.write_header();
+                }
+                if(conf.is_write_binary()){
+                    m_bin_temp = temp_path(binary_path(path.toAbsolutePath()));
+                    m_bin = new BinLogWriter(m_bin_temp, false);
+                }
+                if(conf.get_store_dir() != null){
+                    m_store = new SegmentStore(conf.get_store_dir());
+                    m_segment = m_store.appender();
+                }
+            }
+            catch(GQUserDataFormatException ex){
+                //Only from appending to an existing binary log, which we aren't
+                close();
+                throw new IOException("Unexpected: " + ex.getMessage(), ex);
+            }
+            catch(IOException | RuntimeException ex){
+                close();
+                throw ex;
+            }
+            
+            try{
+                if(conf.get_rollup_dir() != null)
+                    m_rollups = new RollupStore(conf.get_rollup_dir());
+            }
+            catch(GQUserDataFormatException ex){
+                close();
+                throw new IOException("Can't open the rollups: " + ex.getMessage(), ex);
+            }
+            catch(IOException | RuntimeException ex){
+                close();
+                throw ex;
+            }
+        }
         
-        var path = conf.get_dump_path();
-        if(!conf.is_single_file()){
-            if(data.size() == 0){
-                out.println("Device log was empty, so we can't generate an output filename without a time range.");
-                out.println("No file written.");
+        @Override
+        public void measurement(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+            if(m_error != null)
+                return;
+            try{
+                if(m_csv != null)
+                    m_csv.write(time, seq, uncertain, emfx10, ef, rf);
+                if(m_bin != null)
+                    m_bin.write(time, seq, uncertain, emfx10, ef, rf);
+                if(m_segment != null)
+                    m_segment.write(time, seq, uncertain, emfx10, ef, rf);
+                if(m_rollups != null)
+                    m_rollups.measurement(time, seq, uncertain, emfx10, ef, rf);
+            }
+            catch(IOException ex){
+                m_error = ex;
+            }
+        }
+        
+        //The rollups hold back the end of the log until a later dump times it for good, unless there won't be one
+        @Override
+        public void provisional(long time){
+            m_provisional = Math.min(m_provisional, time);
+            if(m_rollups != null && !m_clearing)
+                m_rollups.provisional(time);
+        }
+        
+        //Only the rollups want these, since they may have held them back last time
+        @Override
+        public void context(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+            if(m_rollups != null && m_error == null)
+                m_rollups.context(time, seq, uncertain, emfx10, ef, rf);
+        }
+        
+        //Whether the rollups are holding back records from before time, which an incremental dump picking up there
+        //wouldn't decode again
+        boolean holding_before(long time){
+            return m_rollups != null && !m_clearing && m_provisional < time;
+        }
+        
+        void check() throws IOException{
+            if(m_error != null)
+                throw m_error;
+        }
+        
+        //Moves the files into place for path, or onto the end of what's there, if appending
+        void commit(Path path, boolean append) throws IOException{
+            var out = System.out;
+            String disposition = append ? "(append)" : "(new/overwrite)";
+            if(m_csv != null){
+                try(var okf = new OkFailGuard("Writing output file" + disposition + ": " + path.getFileName() + " ... ")){
+                    m_csv.close();
+                    m_csv = null;
+                    put(m_csv_temp, path, append);
+                    okf.status = true;
+                }
+            }
+            if(m_bin != null){
+                var bin = binary_path(path);
+                try(var okf = new OkFailGuard("Writing binary log file" + disposition + ": " + bin.getFileName() + " ... ")){
+                    m_bin.close();
+                    m_bin = null;
+                    put_binary(m_bin_temp, bin, append);
+                    okf.status = true;
+                }
+            }
+            if(m_segment != null){
+                try(var okf = new OkFailGuard("Appending " + m_segment.rows() + " records to the segment store: " + m_store.directory() + " ... ")){
+                    m_segment.commit();
+                    okf.status = true;
+                }
+            }
+            if(m_rollups != null){
+                var held = m_rollups.held() == 0 ? "" : ", holding back the last " + m_rollups.held() + " until they're timed for good";
+                try(var okf = new OkFailGuard("Rolling up " + m_rollups.added() + " new records" + held + ": " + m_rollups.directory() + " ... ")){
+                    m_rollups.commit();
+                    okf.status = true;
+                }
+            }
+        }
+        
+        static private void put(Path temp, Path path, boolean append) throws IOException{
+            if(!append || !Files.exists(path)){
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
                 return;
             }
             
-            path = time_name(path, data);
-            if(path.toFile().exists()){
-                out.println("Warning: Generated file name already exists and this is surprising: " + path);
-                out.println("Append mode is forced for this file.");
-                append = true;
+            try(var in = FileChannel.open(temp, StandardOpenOption.READ);
+                    var dst = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)){
+                long at = 0, size = in.size();
+                while(at < size)
+                    at += in.transferTo(at, size - at, dst);
             }
+            Files.delete(temp);
         }
         
+        //Binary logs have a file header, so appending means going through a BinLogWriter, a block at a time
+        static private void put_binary(Path temp, Path path, boolean append) throws IOException{
+            if(!append || !Files.exists(path) || Files.size(path) == 0){
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            }
+            
+            try(var in = new BinLogReader(temp); var writer = new BinLogWriter(path, true)){
+                for(var b : in.blocks()){
+                    var rows = new LogDataSet.Builder();
+                    b.read(rows);
+                    writer.write(rows.build());
+                }
+            }
+            catch(GQUserDataFormatException ex){
+                throw new IOException("Can't append to " + path + ": " + ex.getMessage(), ex);
+            }
+            Files.delete(temp);
+        }
+        
+        @Override
+        public void close() throws IOException{
+            //Whatever wasn't committed goes. The guards close in reverse order, and all of them do, whatever throws.
+            try(Guard<IOException> rollups = () -> { if(m_rollups != null) m_rollups.close(); };
+                    Guard<IOException> store = () -> { if(m_store != null) m_store.close(); };
+                    Guard<IOException> segment = () -> { if(m_segment != null) m_segment.close(); };
+                    Guard<IOException> bin = () -> { if(m_bin != null) try{ m_bin.close(); } finally{ Files.deleteIfExists(m_bin_temp); } };
+                    Guard<IOException> csv = () -> { if(m_csv != null) try{ m_csv.close(); } finally{ Files.deleteIfExists(m_csv_temp); } }){
+            }
+        }
+    }
+    
+    //Streams the log to the output files as it's read, so that only a few minutes' worth of it is ever in memory.
+    //Returns the summary, as dump() does.
+    static public DumpStats feature_dump(GQDevice device, Config conf) throws IOException, GQIOException,
+               GQInterruptedException, GQUnexpectedException, GQProtocolException, GQFramingError{
+        
+        var out = System.out;
+        var checkpoint = conf.is_incremental_dump() ? LogCheckpoint.load(conf.get_checkpoint_path()) : null;
+        var capture = conf.is_capture_nvm() ? new NvmImage() : null;
+        var append = conf.is_append_dump();
+        
+        var path = conf.get_dump_path();
         var ppath = path.toAbsolutePath().getParent();
         if(!ppath.toFile().exists())
             throw new IOException("Output directory does not exist");
         
-        write_log(data, path, append); //Will at least create an empty file even if there are no records
-        if(conf.is_clear_after_dump()) do_clear_log(device);
+        DumpStats stats;
+        try(var files = new DumpFiles(conf, path)){
+            stats = dump(device, checkpoint, capture, files);
+            files.check();
+            
+            if(!conf.is_single_file()){
+                if(stats.size() == 0){
+                    save_checkpoint(conf, checkpoint);
+                    out.println("Device log was empty, so we can't generate an output filename without a time range.");
+                    out.println("No file written.");
+                    return stats;
+                }
+
+                path = time_name(path, stats.first(), stats.last());
+                if((conf.is_write_csv() && path.toFile().exists()) || (conf.is_write_binary() && binary_path(path).toFile().exists()) ||
+                        (capture != null && image_path(path).toFile().exists())){
+                    out.println("Warning: Generated file name already exists and this is surprising: " + path);
+                    out.println("Append mode is forced for this file.");
+                    append = true;
+                }
+            }
+            
+            //Will at least create an empty file even if there are no records
+            files.commit(path, append);
+            write_sketch(stats.sketch(), sketch_path(path), append);
+            
+            //A session of two runs is all guessed, and the rollups hold back all of it, but an incremental dump only
+            //goes back to the last run. The next dump has to be a full one, or the rest would never be counted.
+            if(checkpoint != null && checkpoint.valid() && files.holding_before(LocalNanos.of(checkpoint.time())))
+                checkpoint.invalidate();
+        }
+        
+        if(capture != null)
+            write_image(capture, image_path(path), append);
+        if(conf.is_clear_after_dump()){
+            do_clear_log(device);
+            if(checkpoint != null)
+                checkpoint.invalidate();
+        }
+        
+        //Only once the records are safely written
+        save_checkpoint(conf, checkpoint);
+        compact_store(conf);
+        return stats;
+    }
+    
+    //Merges the store's smaller segments once there are too many. Everything from the dump is already safely written, and
+    //a store which didn't get compacted this time still answers queries, so a failure here is only a warning.
+    static private void compact_store(Config conf){
+        var out = System.out;
+        var limit = conf.get_compact_segments();
+        if(conf.get_store_dir() == null || limit == 0)
+            return;
+        
+        try(var store = new SegmentStore(conf.get_store_dir())){
+            if(store.segments() <= limit)
+                return;
+            try(var okf = new OkFailGuard("Compacting " + store.segments() + " segments: " + store.directory() + " ... ")){
+                store.compact(limit / 2);
+                okf.status = true;
+            }
+        }
+        catch(IOException | GQUserDataFormatException | RuntimeException ex){
+            out.println("Warning: Couldn't compact the segment store. It will be tried again after the next dump: " + ex.getMessage());
+        }
+    }
+    
+    static private void save_checkpoint(Config conf, LogCheckpoint checkpoint) throws IOException{
+        if(checkpoint != null)
+            checkpoint.save(conf.get_checkpoint_path());
     }
 
     public static void do_log_features(Config conf, GQDevice dev) throws Exception {
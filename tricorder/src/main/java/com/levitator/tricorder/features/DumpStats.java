@@ -0,0 +1,147 @@
+package com.levitator.tricorder.features;
+
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.stats.LogSketch;
+import com.levitator.gqlib.stats.LogStats;
+import com.levitator.gqlib.structures.IMeasurement;
+import com.levitator.gqlib.structures.MeasurementRecord;
+import com.levitator.gqlib.structures.MeasurementSink;
+import java.time.LocalDateTime;
+
+/*
+*
+* The summary printed after a dump, kept as the records go by instead of over a finished LogDataSet
+*
+* Records are gathered into columns a LogStats chunk at a time, and each full chunk goes through the kernels at once,
+* so the memory doesn't grow with the log. They go into a LogSketch too, for percentiles, which are exact instead when
+* there's a LogDataSet to sort.
+*
+*/
+public class DumpStats implements MeasurementSink{
+
+    static private final double[] percentiles = {0.5, 0.95, 0.99};
+
+    private final LogStats m_stats = new LogStats();
+    private final LogSketch m_sketch = new LogSketch();
+    private long[] m_time = new long[LogStats.chunk_size];
+    private int[] m_emfx10 = new int[LogStats.chunk_size];
+    private float[] m_ef = new float[LogStats.chunk_size];
+    private float[] m_rf = new float[LogStats.chunk_size];
+    private int m_size = 0;
+
+    //Exact, of each quantity, in the units printed, if we have them
+    private double[] m_emf_pct, m_ef_pct, m_rf_pct;
+
+    public DumpStats(){
+    }
+
+    //All at once, percentiles included
+    public DumpStats(LogDataSet data){
+        m_stats.merge(LogStats.of(data));
+        m_time = null;
+        m_emfx10 = null;
+        m_ef = null;
+        m_rf = null;
+        m_sketch.add(data);
+
+        var n = data.size();
+        if(n == 0)
+            return;
+        m_emf_pct = LogStats.quantiles(data.emfx10_column(), n, percentiles);
+        m_ef_pct = LogStats.quantiles(data.ef_column(), n, percentiles);
+        m_rf_pct = LogStats.quantiles(data.rf_column(), n, percentiles);
+        for(int i = 0; i < percentiles.length; ++i){
+            m_emf_pct[i] /= 10;
+            m_rf_pct[i] /= LogStats.rf_scale;
+        }
+    }
+
+    @Override
+    public void measurement(long time, int seq, boolean uncertain, int emfx10, float ef, float rf){
+        var i = m_size++;
+        m_time[i] = time;
+        m_emfx10[i] = emfx10;
+        m_ef[i] = ef;
+        m_rf[i] = rf;
+        if(m_size == LogStats.chunk_size)
+            flush();
+        m_sketch.measurement(time, seq, uncertain, emfx10, ef, rf);
+    }
+
+    public void add(IMeasurement m){
+        measurement(m.get_time_nanos(), m.get_seq_no(), m.get_uncertain_time(), m.get_emfx10(), m.get_ef(), m.get_rf());
+    }
+
+    public void add(Iterable<? extends IMeasurement> data){
+        for(var m : data)
+            add(m);
+    }
+
+    private void flush(){
+        m_stats.add(m_time, m_emfx10, m_ef, m_rf, 0, m_size);
+        m_size = 0;
+    }
+
+    //Everything so far
+    public LogStats stats(){
+        if(m_size > 0)
+            flush();
+        return m_stats;
+    }
+
+    public LogSketch sketch(){ return m_sketch; }
+
+    public long size(){ return stats().size(); }
+
+    //Earliest and latest times, or null if there's nothing
+    public LocalDateTime first(){ return stats().first(); }
+    public LocalDateTime last(){ return stats().last(); }
+
+    //min/avg/max, standard deviation and percentiles of each quantity. There must have been something.
+    public void print(){
+        var out = System.out;
+        var s = stats();
+
+        out.println();
+        out.println("min/avg/max, std dev");
+        out.println("RF " + MeasurementRecord.rf_unit + ": " + DumpLog.stats_format(s.rf_min()) + "/" + DumpLog.stats_format(s.rf_mean()) + "/" +
+                DumpLog.stats_format(s.rf_max()) + ", " + DumpLog.stats_format(s.rf_stddev()));
+        out.println("EF " + MeasurementRecord.ef_unit + ": " + DumpLog.stats_format(s.ef().min()) + "/" + DumpLog.stats_format(s.ef().mean()) + "/" +
+                DumpLog.stats_format(s.ef().max()) + ", " + DumpLog.stats_format(s.ef().stddev()));
+        out.println("EMF " + MeasurementRecord.emf_unit + ": " + MeasurementRecord.format_emfx10((int)s.emfx10().min()) +
+                "/" + DumpLog.stats_format(s.emf_mean()) + "/" + MeasurementRecord.format_emfx10((int)s.emfx10().max()) + ", " +
+                DumpLog.stats_format(s.emf_stddev()));
+
+        if(m_ef_pct != null)
+            print_percentiles("", m_rf_pct, m_ef_pct, m_emf_pct);
+        else
+            print_percentiles(m_sketch);
+        out.println();
+    }
+
+    //The sketch's percentiles, labeled with its accuracy
+    static public void print_percentiles(LogSketch sketch){
+        var accuracy = Math.round(sketch.ef().accuracy() * 1000) / 10.0;
+        print_percentiles(" (to within " + accuracy + "%)", sketch.rf_quantiles(percentiles), sketch.ef_quantiles(percentiles),
+                sketch.emf_quantiles(percentiles));
+    }
+
+    static private void print_percentiles(String note, double[] rf, double[] ef, double[] emf){
+        var out = System.out;
+        out.println();
+        out.println("p50/p95/p99" + note);
+        out.println("RF " + MeasurementRecord.rf_unit + ": " + format(rf));
+        out.println("EF " + MeasurementRecord.ef_unit + ": " + format(ef));
+        out.println("EMF " + MeasurementRecord.emf_unit + ": " + format(emf));
+    }
+
+    static private String format(double[] v){
+        var result = new StringBuilder();
+        for(var x : v){
+            if(result.length() > 0)
+                result.append('/');
+            result.append(DumpLog.stats_format(x));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,106 @@
+package com.levitator.tricorder.features;
+
+import com.levitator.gqlib.LogDataSet;
+import com.levitator.gqlib.NvmImage;
+import com.levitator.gqlib.OkFailGuard;
+import com.levitator.gqlib.SessionTimes;
+import com.levitator.gqlib.exceptions.GQException;
+import com.levitator.gqlib.exceptions.GQUnexpectedException;
+import com.levitator.tricorder.config.Config;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+
+/*
+*
+* For decoding and interpolating captured NVM images again, without the device
+*
+*/
+public class Replay {
+
+    //What one image came to
+    static private class Result{
+        final Path path;
+        final NvmImage image;
+        final LogDataSet data;
+        final SessionTimes all_sessions = new SessionTimes();
+        final SessionTimes guess_sessions = new SessionTimes();
+
+        Result(Path path) throws IOException, GQException{
+            this.path = path;
+            image = NvmImage.read(path);
+            data = image.replay(all_sessions, guess_sessions);
+        }
+    }
+
+    //The image, or the images anywhere under the directory, in name order
+    static private List<Path> find(Path path) throws IOException{
+        if(!Files.isDirectory(path))
+            return List.of(path);
+        try(var files = Files.walk(path)){
+            return files.filter(Files::isRegularFile)
+                    .filter(p -> p.getFileName().toString().endsWith(NvmImage.extension))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    static public void feature_replay(Config conf) throws IOException, GQException, InterruptedException{
+        var out = System.out;
+        var files = find(conf.get_replay_path());
+        out.println("Replaying " + files.size() + " NVM images from: " + conf.get_replay_path());
+
+        //Each image is independent, so they all go at once
+        var pool = ForkJoinPool.commonPool();
+        var tasks = new ArrayList<ForkJoinTask<Result>>();
+        for(var f : files)
+            tasks.add(pool.submit(() -> new Result(f)));
+
+        var results = new ArrayList<Result>();
+        try(var okf = new OkFailGuard("Decoding and interpolating... ")){
+            for(var t : tasks)
+                results.add(join(t));
+            okf.status = true;
+        }
+
+        var all_sessions = new SessionTimes();
+        var guess_sessions = new SessionTimes();
+        var sets = new ArrayList<LogDataSet>();
+        for(var r : results){
+            var time = r.image.device_time();
+            out.println("\t" + r.path.getFileName() + ": " + r.data.size() + " records from " + (r.image.byte_count() / 1024) +
+                    "kB, device " + r.image.version() + ", dumped at device time " + (time == null ? "unknown" : Config.format(time)));
+            all_sessions.addAll(r.all_sessions);
+            guess_sessions.addAll(r.guess_sessions);
+            sets.add(r.data);
+        }
+
+        //Images of a log which wasn't cleared overlap. Earlier names win.
+        var data = LogDataSet.merge(sets);
+        if(data.size() > 0)
+            DumpLog.print_sessions(all_sessions, guess_sessions);
+        Archive.write_result(conf, data);
+    }
+
+    static private Result join(ForkJoinTask<Result> task) throws IOException, GQException, InterruptedException{
+        try{
+            return task.get();
+        }
+        catch(ExecutionException ex){
+            var cause = ex.getCause();
+            if(cause instanceof IOException)
+                throw (IOException)cause;
+            if(cause instanceof GQException)
+                throw (GQException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new GQUnexpectedException("Unexpected exception replaying NVM image", cause);
+        }
+    }
+}
@@ -1,14 +1,11 @@
 package com.levitator.tricorder.schedule;
 
 import com.levitator.gqlib.exceptions.GQException;
-import com.levitator.gqlib.exceptions.GQInterruptedException;
 import com.levitator.tricorder.config.Config;
 import com.levitator.tricorder.Tricorder;
-import com.levitator.util.Util;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import static java.time.temporal.ChronoUnit.DAYS;
-import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -27,22 +24,8 @@ public class NewDayTask extends Task{
     @Override
     public void run() throws GQException, IOException {
         
-        //This does indeed get called early so, make sure it's really midnight or later before proceeding
-        try{
-            while(true){
-                var now=LocalDateTime.now();
-                var today=Util.round_to_day(now);
-                if(today.getDayOfYear() != now.getDayOfYear())
-                    TimeUnit.SECONDS.sleep(1);
-                else
-                    break;
-            }
-        }
-        catch(InterruptedException ex){
-            throw new GQInterruptedException(true, "Interrupted waiting on schedule");
-        }
-        
-        //Just make up a fresh schedule
+        //Schedule.pop_task() doesn't hand us over until the wall clock says it's midnight or later, so
+        //just make up a fresh schedule
         app.reset_schedule();
     }
     
@@ -1,37 +1,109 @@
 package com.levitator.tricorder.schedule;
 import com.levitator.tricorder.Tricorder;
 import com.levitator.tricorder.exceptions.ScheduleInterrupted;
-import com.levitator.util.Util;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 import static java.time.temporal.ChronoUnit.DAYS;
+import static java.time.temporal.ChronoUnit.NANOS;
 
 /**
  *
  * Schedule of things to do
- * 
+ *
  * Currently, we schedule two kinds of events. NVM dumps. And then we have to
  * remember to recalculate the schedule at midnight.
  *
+ * Tasks are planned by the wall clock, but we wait on the monotonic one: each task goes into a DelayQueue with a
+ * System.nanoTime() deadline worked out from its time, so we sleep until exactly the next one is due. The wall clock can
+ * be set, or jump for DST, under us, and the monotonic clock stands still while the machine is suspended, so there's
+ * also a clock check in the queue, which wakes us every minute to compare the two clocks. If they've drifted apart,
+ * the deadlines are worked out again, so dumps which came due during a suspend run within a minute of the resume. A task only runs once the wall
+ * clock agrees it's due, and if the wall clock went back past the start of the day, the schedule starts over.
+ *
  */
 public class Schedule {
-    public final SortedSet<Task> tasks = new TreeSet<>();
+
+    //How often to look for the wall clock having jumped, or the machine having been suspended, while there's nothing
+    //else to wake up for. This is as late as an overdue dump can be after a resume.
+    static private final Duration clock_check_period = Duration.ofMinutes(1);
+
+    //Drift between the clocks that counts as a jump
+    static private final long jump_tolerance = TimeUnit.SECONDS.toNanos(2);
+
+    private final SortedSet<Task> tasks = new TreeSet<>();
+    private final HashMap<Class<? extends Task>, TreeSet<Task>> m_by_class = new HashMap<>();
     private final Tricorder app;
     private boolean m_active = false;
-    
+
+    //A task, or the clock check if task is null, with its monotonic deadline
+    static private class Alarm implements Delayed{
+        final Task task;
+        final long deadline;
+
+        Alarm(Task task, long deadline){
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit){
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed rhs){
+            return Long.compare(deadline, ((Alarm)rhs).deadline);
+        }
+    }
+
+    private final DelayQueue<Alarm> m_alarms = new DelayQueue<>();
+
+    //The two clocks at the same moment, as of the last plan
+    private LocalDateTime m_wall_anchor;
+    private long m_mono_anchor;
+
     //So that if we have more than one expired dump task, we just do the last one
     //DumpTask collapse_dumps = null;
-    
+
     //So that when we start the new day, our periodic task times are scheduled relative
     //to the previous one from yesterday
     DumpTask last_dump = null;
-    
+
+    //The earliest task of the class, or a subclass
     public Task find_first(Class<? extends Task> cls){
-        return Util.find_first( tasks, (t) -> cls.isAssignableFrom(t.getClass()) );
+        Task result = null;
+        for(var ent : m_by_class.entrySet()){
+            if(!cls.isAssignableFrom(ent.getKey()) || ent.getValue().isEmpty())
+                continue;
+            var t = ent.getValue().first();
+            if(result == null || t.compareTo(result) < 0)
+                result = t;
+        }
+        return result;
+    }
+
+    private void add(Task t){
+        if(!tasks.add(t))
+            return;
+        m_by_class.computeIfAbsent(t.getClass(), c -> new TreeSet<>()).add(t);
+        m_alarms.add(new Alarm(t, deadline(t.time)));
+    }
+
+    //Alarms go stale instead, and are skipped when they go off
+    private void remove(Task t){
+        tasks.remove(t);
+        var same = m_by_class.get(t.getClass());
+        if(same != null)
+            same.remove(t);
     }
-    
+
     public void queue_dump(DumpTask t){
         //Collapse expired tasks
         //queue at most one expired dump task. It will get done immediately,
@@ -39,71 +111,130 @@ public class Schedule {
         if(t.expired()){
             var dup = find_first(DumpTask.class);
             if(dup == null || !dup.expired())
-                tasks.add(t);
+                add(t);
         }
         else
-            tasks.add(t);
+            add(t);
     }
-    
-    private Task wait_for_task(Task task) throws ScheduleInterrupted{
-        
-        try{
-            
-            //Poll a bit, in case the system clock is altered
-            long due;
-            do{
-                due = Math.min(2, task.due());
-                TimeUnit.SECONDS.sleep(due);
-            }
-            while(due > 0);
+
+    //Monotonic time at which the wall clock should read t
+    private long deadline(LocalDateTime t){
+        return m_mono_anchor + m_wall_anchor.until(t, NANOS);
+    }
+
+    //Works out the deadlines again from the wall clock as it reads now
+    private void plan(){
+        m_wall_anchor = LocalDateTime.now();
+        m_mono_anchor = System.nanoTime();
+        m_alarms.clear();
+        for(var t : tasks)
+            m_alarms.add(new Alarm(t, deadline(t.time)));
+        m_alarms.add(new Alarm(null, m_mono_anchor + clock_check_period.toNanos()));
+    }
+
+    //True if the wall clock has been set, or has jumped, since the last plan
+    private boolean clock_jumped(){
+        var wall = m_wall_anchor.until(LocalDateTime.now(), NANOS);
+        var mono = System.nanoTime() - m_mono_anchor;
+        return Math.abs(wall - mono) > jump_tolerance;
+    }
+
+    //After a jump. Back past the start of the day, and today's tasks are all wrong, so we start over. Otherwise the
+    //tasks stay, and any dumps that are overdue now collapse to the last of them, as in queue_dump().
+    private void replan(){
+        var out = System.out;
+        var now = LocalDateTime.now();
+        out.println("The system clock has jumped. Now: " + now);
+        var new_day = find_first(NewDayTask.class);
+        if(new_day == null || now.isBefore(new_day.time.minusDays(1))){
+            out.println("It went back past the start of the day, so the schedule starts over.");
+            reset();
+            return;
         }
-        catch(InterruptedException ex){
-            throw new ScheduleInterrupted();
+
+        var overdue = new ArrayList<Task>();
+        for(var t : tasks){
+            if(t instanceof DumpTask && t.expired())
+                overdue.add(t);
         }
-        return task;
+        for(int i = 0; i + 1 < overdue.size(); ++i)
+            remove(overdue.get(i));
+        plan();
     }
-    
+
     public Task next(){
             return tasks.first();
     }
-    
+
+    //Waits for the first task to be due, by both clocks, and takes it off the schedule
     public Task pop_task() throws ScheduleInterrupted{
-        Task result;
-        
-        result = tasks.first();
-        wait_for_task(result);
-        tasks.remove(result);
-        
-        if(result instanceof DumpTask)
-            last_dump = (DumpTask)result;
-        
-        return result;
+        try{
+            while(true){
+                var alarm = m_alarms.take();
+                if(alarm.task == null){
+                    if(clock_jumped())
+                        replan();
+                    else
+                        m_alarms.add(new Alarm(null, System.nanoTime() + clock_check_period.toNanos()));
+                    continue;
+                }
+
+                var result = alarm.task;
+                if(!tasks.contains(result))
+                    continue;
+
+                //An earlier task is due too, so let it go first
+                if(result != tasks.first()){
+                    m_alarms.add(alarm);
+                    continue;
+                }
+
+                //Early, by the wall clock
+                if(result.due_nanos(LocalDateTime.now()) > 0){
+                    if(clock_jumped())
+                        replan();
+                    else
+                        m_alarms.add(new Alarm(result, deadline(result.time)));
+                    continue;
+                }
+
+                remove(result);
+                if(result instanceof DumpTask)
+                    last_dump = (DumpTask)result;
+                return result;
+            }
+        }
+        catch(InterruptedException ex){
+            throw new ScheduleInterrupted();
+        }
     }
-    
+
     //Empty means empty with the exception of the new-day task, which is always present
     //to rebuild the schedule at the end of the day
     public boolean empty(){
         return tasks.first().getClass().equals(NewDayTask.class);
     }
-    
+
     public void reset(){
         var now = LocalDateTime.now();
         var today = now.truncatedTo(DAYS);
         tasks.clear();
+        m_by_class.clear();
         m_active = false;
-        
+        plan();
+
         //End-of day
-        tasks.add(new NewDayTask(app, now));
-        
+        add(new NewDayTask(app, now));
+
         //Periodic dumps
         LocalDateTime t;
         if(last_dump != null)
             t = last_dump.time; //Resume generating periodic dumps relative to the time of the previous one
         else
             t = now;            //There is no previous dump event, so start at present time
-        
+
         var period = app.get_config().get_dump_period();
-        
+
         if(period != null){
             m_active = true;
             while(true){
@@ -113,26 +244,26 @@ public class Schedule {
                 queue_dump(new DumpTask(app, t));
             }
         }
-        
+
         //Specific-time dumps
         var times = app.get_config().get_dump_times();
         if(times.length > 0)
             m_active = true;
-        
+
         for( var ts : app.get_config().get_dump_times() ){
             queue_dump(new DumpTask(app, today.with(ts)));
         }
     }
-    
+
     public Schedule(Tricorder tri){
         app=tri;
         reset();
     }
-    
+
     //While evaluating Config, we decide whether to consider scheduling as active.
     //It's active if any periodic or specific dump-times have beenn specified.
     public boolean is_active(){
         return m_active;
     }
-    
+
 }
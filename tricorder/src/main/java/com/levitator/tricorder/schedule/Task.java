@@ -5,6 +5,7 @@ import com.levitator.tricorder.Tricorder;
 import com.levitator.tricorder.exceptions.TricorderException;
 import java.io.IOException;
 import java.time.LocalDateTime;
+import static java.time.temporal.ChronoUnit.NANOS;
 import static java.time.temporal.ChronoUnit.SECONDS;
 
 public abstract class Task implements Comparable<Task>{
@@ -25,6 +26,11 @@ public abstract class Task implements Comparable<Task>{
         return Math.max(0, now.until(time, SECONDS));
     }
     
+    //The same, to the nanosecond
+    public long due_nanos(LocalDateTime now){
+        return Math.max(0, now.until(time, NANOS));
+    }
+    
     public boolean expired(){
         return due() <= 0;
     }